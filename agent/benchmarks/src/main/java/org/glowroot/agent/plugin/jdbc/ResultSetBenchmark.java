@@ -1,5 +1,5 @@
 /*
- * Copyright 2014-2016 the original author or authors.
+ * Copyright 2014-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -37,6 +37,8 @@ import org.openjdk.jmh.annotations.TearDown;
 import org.glowroot.agent.plugin.jdbc.support.MockConnection;
 import org.glowroot.microbenchmarks.support.TransactionWorthy;
 
+// run with the jdbc plugin's captureResultSetNavigate property both enabled (timed row navigation)
+// and disabled (row counting only) to compare the per-row overhead of the two modes
 @BenchmarkMode(Mode.AverageTime)
 @OutputTimeUnit(TimeUnit.NANOSECONDS)
 @State(Scope.Thread)
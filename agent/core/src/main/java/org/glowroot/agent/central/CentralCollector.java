@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2017 the original author or authors.
+ * Copyright 2015-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -24,6 +24,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.annotation.Nullable;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
@@ -36,6 +37,7 @@ import org.glowroot.agent.collector.Collector;
 import org.glowroot.agent.live.LiveJvmServiceImpl;
 import org.glowroot.agent.live.LiveTraceRepositoryImpl;
 import org.glowroot.agent.live.LiveWeavingServiceImpl;
+import org.glowroot.common.model.SharedTimerNames;
 import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
@@ -68,6 +70,9 @@ public class CentralCollector implements Collector {
     // log startup messages using logger name "org.glowroot"
     private static final Logger startupLogger = LoggerFactory.getLogger("org.glowroot");
 
+    private static final boolean DISABLE_SHARED_TIMER_NAMES =
+            Boolean.getBoolean("glowroot.central.disableSharedTimerNames");
+
     private final String agentId;
     private final String agentRollupId;
     private final String collectorAddress;
@@ -77,6 +82,9 @@ public class CentralCollector implements Collector {
 
     private final SharedQueryTextLimiter sharedQueryTextLimiter = new SharedQueryTextLimiter();
 
+    private final SharedTimerNamesNegotiator sharedTimerNamesNegotiator =
+            new SharedTimerNamesNegotiator(DISABLE_SHARED_TIMER_NAMES);
+
     private volatile int nextAggregateDelayMillis;
 
     public CentralCollector(Map<String, String> properties, String collectorAddress,
@@ -109,6 +117,18 @@ public class CentralCollector implements Collector {
                 agentId, inConnectionFailure, sharedQueryTextLimiter);
     }
 
+    @VisibleForTesting
+    CentralCollector(String agentId, CentralConnection centralConnection,
+            CollectorServiceStub collectorServiceStub,
+            DownstreamServiceObserver downstreamServiceObserver) {
+        this.agentId = agentId;
+        agentRollupId = "";
+        collectorAddress = "";
+        this.centralConnection = centralConnection;
+        this.collectorServiceStub = collectorServiceStub;
+        this.downstreamServiceObserver = downstreamServiceObserver;
+    }
+
     @Override
     public void init(File confDir, @Nullable File sharedConfDir, Environment environment,
             AgentConfig agentConfig, final AgentConfigUpdater agentConfigUpdater) {
@@ -145,7 +165,7 @@ public class CentralCollector implements Collector {
     @Override
     public void collectAggregates(AggregateReader aggregateReader) {
         centralConnection.callWithAFewRetries(nextAggregateDelayMillis,
-                new CollectAggregatesGrpcCall(aggregateReader));
+                new CollectAggregatesGrpcCall(aggregateReader, false));
     }
 
     @Override
@@ -209,8 +229,11 @@ public class CentralCollector implements Collector {
 
         private class AggregateVisitorImpl implements AggregateVisitor {
             private final StreamObserver<AggregateStreamMessage> requestObserver;
-            private AggregateVisitorImpl(StreamObserver<AggregateStreamMessage> requestObserver) {
+            private final @Nullable SharedTimerNames.Encoder sharedTimerNameEncoder;
+            private AggregateVisitorImpl(StreamObserver<AggregateStreamMessage> requestObserver,
+                    @Nullable SharedTimerNames.Encoder sharedTimerNameEncoder) {
                 this.requestObserver = requestObserver;
+                this.sharedTimerNameEncoder = sharedTimerNameEncoder;
             }
             @Override
             public void visitOverallAggregate(String transactionType,
@@ -229,7 +252,7 @@ public class CentralCollector implements Collector {
                 requestObserver.onNext(AggregateStreamMessage.newBuilder()
                         .setOverallAggregate(OverallAggregate.newBuilder()
                                 .setTransactionType(transactionType)
-                                .setAggregate(overallAggregate))
+                                .setAggregate(encodeTimerNames(overallAggregate)))
                         .build());
             }
             @Override
@@ -246,31 +269,54 @@ public class CentralCollector implements Collector {
                         .setTransactionAggregate(TransactionAggregate.newBuilder()
                                 .setTransactionType(transactionType)
                                 .setTransactionName(transactionName)
-                                .setAggregate(transactionAggregate))
+                                .setAggregate(encodeTimerNames(transactionAggregate)))
                         .build());
             }
+            private Aggregate encodeTimerNames(Aggregate aggregate) {
+                if (sharedTimerNameEncoder == null) {
+                    return aggregate;
+                }
+                Aggregate encodedAggregate = sharedTimerNameEncoder.encode(aggregate);
+                for (String timerName : sharedTimerNameEncoder.getNewTimerNames()) {
+                    requestObserver.onNext(AggregateStreamMessage.newBuilder()
+                            .setSharedTimerName(timerName)
+                            .build());
+                }
+                return encodedAggregate;
+            }
         }
 
         private final AggregateReader aggregateReader;
         private final List<String> fullTextSha1s = Lists.newArrayList();
 
-        private CollectAggregatesGrpcCall(AggregateReader aggregateReader) {
+        // re-sends and retries always use full timer names (see SharedTimerNamesNegotiator)
+        private volatile boolean retry;
+        private volatile boolean sentSharedTimerNames;
+
+        private CollectAggregatesGrpcCall(AggregateReader aggregateReader, boolean resend) {
             this.aggregateReader = aggregateReader;
+            retry = resend;
         }
 
         @Override
         public void call(StreamObserver<AggregateResponseMessage> responseObserver) {
             final StreamObserver<AggregateStreamMessage> requestObserver =
                     collectorServiceStub.collectAggregateStream(responseObserver);
+            boolean sharedTimerNames = sharedTimerNamesNegotiator.useSharedTimerNames(retry);
+            retry = true;
+            sentSharedTimerNames = sharedTimerNames;
             requestObserver.onNext(AggregateStreamMessage.newBuilder()
                     .setStreamHeader(AggregateStreamHeader.newBuilder()
                             .setAgentId(agentId)
-                            .setCaptureTime(aggregateReader.captureTime()))
+                            .setCaptureTime(aggregateReader.captureTime())
+                            .setSharedTimerNames(sharedTimerNames))
                     .build());
             // need to clear in case this is a retry
             fullTextSha1s.clear();
             try {
-                aggregateReader.accept(new AggregateVisitorImpl(requestObserver));
+                // shared timer names are scoped to the stream, so need new encoder for each retry
+                aggregateReader.accept(new AggregateVisitorImpl(requestObserver,
+                        sharedTimerNames ? new SharedTimerNames.Encoder() : null));
             } catch (Throwable t) {
                 logger.error(t.getMessage(), t);
                 requestObserver.onError(t);
@@ -286,6 +332,16 @@ public class CentralCollector implements Collector {
             for (String fullTextSha1 : fullTextSha1s) {
                 sharedQueryTextLimiter.onSuccessfullySentToCentralCollector(fullTextSha1);
             }
+            if (sharedTimerNamesNegotiator.onResponse(sentSharedTimerNames, response)) {
+                // the central node that handled the stream ignored the shared timer names (e.g.
+                // older central node during rolling upgrade or downgrade)
+                //
+                // the re-send honors the next aggregate delay that was just returned, same as the
+                // next aggregate collection, so that it does not bypass central's back pressure
+                logger.debug("re-sending aggregates with full timer names");
+                centralConnection.callWithAFewRetries(nextAggregateDelayMillis,
+                        new CollectAggregatesGrpcCall(aggregateReader, true));
+            }
         }
     }
 
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2017 the original author or authors.
+ * Copyright 2015-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -38,6 +38,7 @@ import io.grpc.Attributes;
 import io.grpc.EquivalentAddressGroup;
 import io.grpc.ManagedChannel;
 import io.grpc.NameResolver;
+import io.grpc.Status;
 import io.grpc.netty.GrpcSslContexts;
 import io.grpc.netty.NegotiationType;
 import io.grpc.netty.NettyChannelBuilder;
@@ -397,7 +398,12 @@ class CentralConnection {
                     logger.debug(t.getMessage(), t);
                 }
             });
-            if (!init && stopwatch.elapsed(SECONDS) > maxTotalInSeconds) {
+            // central responds with RESOURCE_EXHAUSTED when it cannot accept any more data from
+            // this agent for now, in which case the data is retained (bounded by PENDING_LIMIT)
+            // and retried until accepted, instead of being dropped after maxTotalInSeconds
+            boolean retryUntilAccepted = maxTotalInSeconds > 0
+                    && Status.fromThrowable(t).getCode() == Status.Code.RESOURCE_EXHAUSTED;
+            if (!init && !retryUntilAccepted && stopwatch.elapsed(SECONDS) > maxTotalInSeconds) {
                 if (initCallSucceeded) {
                     suppressLogCollector(new Runnable() {
                         @Override
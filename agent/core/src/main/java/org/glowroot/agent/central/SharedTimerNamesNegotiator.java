@@ -0,0 +1,48 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateResponseMessage;
+
+// decides per aggregate stream whether to send shared timer names, since each stream (and each
+// retry) can be handled by a different central cluster node, and during a rolling upgrade or
+// downgrade that node can be an older version which ignores the shared timer name fields and would
+// store the timers with empty names
+//
+// shared timer names are only sent after the response to the previous aggregate stream confirmed
+// support, and are never sent on retries
+class SharedTimerNamesNegotiator {
+
+    private final boolean disabled;
+
+    private volatile boolean confirmed;
+
+    SharedTimerNamesNegotiator(boolean disabled) {
+        this.disabled = disabled;
+    }
+
+    boolean useSharedTimerNames(boolean retry) {
+        // the retry could be due to an older central node rejecting the unknown stream message
+        return !disabled && confirmed && !retry;
+    }
+
+    // returns true if the aggregates were sent with shared timer names to a central node that did
+    // not confirm support, in which case they need to be re-sent with full timer names
+    boolean onResponse(boolean sentSharedTimerNames, AggregateResponseMessage response) {
+        confirmed = response.getSharedTimerNamesSupported();
+        return sentSharedTimerNames && !confirmed;
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2017 the original author or authors.
+ * Copyright 2011-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -403,6 +403,11 @@ public class ConfigService {
                     .addMbeanAttributes(ImmutableMBeanAttribute.of("SystemCpuLoad", false));
         }
         defaultGaugeConfigs.add(operatingSystemMBean.build());
+        defaultGaugeConfigs.add(ImmutableGaugeConfig.builder()
+                .mbeanObjectName("org.glowroot:type=AgentOverhead")
+                .addMbeanAttributes(
+                        ImmutableMBeanAttribute.of("EstimatedOverheadPercent", false))
+                .build());
         return ImmutableList.copyOf(defaultGaugeConfigs);
     }
 
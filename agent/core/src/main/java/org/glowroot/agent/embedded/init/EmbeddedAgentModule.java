@@ -1,5 +1,5 @@
 /*
- * Copyright 2013-2017 the original author or authors.
+ * Copyright 2013-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -400,6 +400,11 @@ class EmbeddedAgentModule {
                     .build());
         }
 
+        @Override
+        public List<AgentRollup> readAgentRollupTree() {
+            return readAgentRollups();
+        }
+
         @Override
         public String readAgentRollupDisplay(String agentRollupId) {
             return "";
@@ -1,5 +1,5 @@
 /*
- * Copyright 2013-2017 the original author or authors.
+ * Copyright 2013-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -19,14 +19,22 @@ import java.io.ByteArrayInputStream;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableSet;
 import java.util.concurrent.atomic.AtomicLongArray;
 
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Parser;
 import org.checkerframework.checker.tainting.qual.Untainted;
@@ -83,6 +91,24 @@ public class AggregateDao implements AggregateRepository {
 
     private static final String AGENT_ID = "";
 
+    // when enabled, level 1 rollups are accumulated in memory as the level 0 aggregates are stored,
+    // instead of reading the level 0 aggregates back from the database when each rollup interval
+    // closes
+    //
+    // this is opt-in since the accumulators hold full mutable aggregates (including queries, service
+    // calls and profiles) in memory until the rollup interval closes
+    private static final boolean STREAMING_ROLLUPS =
+            Boolean.getBoolean("glowroot.embedded.streamingRollups");
+
+    // higher rollup levels are always rolled up from the database, since their much longer rollup
+    // intervals would keep the accumulators in memory for hours
+    private static final int STREAMING_ROLLUP_LEVEL = 1;
+
+    // when a rollup interval accumulates more than this many (overall and transaction) aggregates in
+    // memory, its accumulator is discarded and the rollup interval is rolled up from the database
+    private static final int STREAMING_ROLLUP_MAX_AGGREGATES =
+            Integer.getInteger("glowroot.embedded.streamingRollupMaxAggregates", 1000);
+
     private static final ImmutableList<Column> overallAggregatePointColumns =
             ImmutableList.<Column>of(
                     ImmutableColumn.of("transaction_type", ColumnType.VARCHAR),
@@ -156,16 +182,45 @@ public class AggregateDao implements AggregateRepository {
 
     private final AtomicLongArray lastRollupTimes;
 
+    private final boolean streamingRollups;
+    private final int streamingRollupMaxAggregates;
+
+    // rollup intervals that start at or after this time only contain aggregates stored by this
+    // process, and so can be rolled up from the in-memory accumulators, while the rollup intervals
+    // before this (e.g. when restarting in the middle of a rollup interval) still need to be rolled
+    // up from the database
+    private final long streamingRollupStartTime;
+
+    // level 1 rollup accumulators, keyed by rollup capture time
+    @GuardedBy("rollupLock")
+    private final Map<Long, AggregateRollupAccumulator> rollupAccumulators = Maps.newHashMap();
+
+    // rollup capture times whose accumulator was discarded for exceeding
+    // streamingRollupMaxAggregates, and so need to be rolled up from the database
+    @GuardedBy("rollupLock")
+    private final NavigableSet<Long> overflowedRollupTimes = Sets.newTreeSet();
+
     private final Object rollupLock = new Object();
 
     AggregateDao(DataSource dataSource, List<CappedDatabase> rollupCappedDatabases,
             ConfigRepositoryImpl configRepository, TransactionTypeDao transactionTypeDao,
             FullQueryTextDao fullQueryTextDao) throws Exception {
+        this(dataSource, rollupCappedDatabases, configRepository, transactionTypeDao,
+                fullQueryTextDao, STREAMING_ROLLUPS, STREAMING_ROLLUP_MAX_AGGREGATES);
+    }
+
+    @VisibleForTesting
+    AggregateDao(DataSource dataSource, List<CappedDatabase> rollupCappedDatabases,
+            ConfigRepositoryImpl configRepository, TransactionTypeDao transactionTypeDao,
+            FullQueryTextDao fullQueryTextDao, boolean streamingRollups,
+            int streamingRollupMaxAggregates) throws Exception {
         this.dataSource = dataSource;
         this.rollupCappedDatabases = rollupCappedDatabases;
         this.configRepository = configRepository;
         this.transactionTypeDao = transactionTypeDao;
         this.fullQueryTextDao = fullQueryTextDao;
+        this.streamingRollups = streamingRollups;
+        this.streamingRollupMaxAggregates = streamingRollupMaxAggregates;
 
         List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
         for (int i = 0; i < rollupConfigs.size(); i++) {
@@ -189,6 +244,9 @@ public class AggregateDao implements AggregateRepository {
         }
         this.lastRollupTimes = new AtomicLongArray(lastRollupTimes);
 
+        streamingRollupStartTime = dataSource
+                .queryForLong("select ifnull(max(capture_time), 0) from aggregate_tt_rollup_0");
+
         // TODO initial rollup in case store is not called in a reasonable time
     }
 
@@ -206,6 +264,16 @@ public class AggregateDao implements AggregateRepository {
                 dataSource.update(new AggregateInsert(transactionType, null, captureTime,
                         overallAggregate, truncatedQueryTexts, 0, cappedDatabase));
                 transactionTypeDao.updateLastCaptureTime(transactionType, captureTime);
+                if (streamingRollups) {
+                    synchronized (rollupLock) {
+                        AggregateRollupAccumulator accumulator =
+                                getRollupAccumulator(captureTime);
+                        if (accumulator != null) {
+                            accumulator.mergeOverallAggregate(transactionType, overallAggregate,
+                                    truncatedQueryTexts);
+                        }
+                    }
+                }
             }
             @Override
             public void visitTransactionAggregate(String transactionType, String transactionName,
@@ -214,6 +282,16 @@ public class AggregateDao implements AggregateRepository {
                 addToTruncatedQueryTexts(sharedQueryTexts);
                 dataSource.update(new AggregateInsert(transactionType, transactionName, captureTime,
                         transactionAggregate, truncatedQueryTexts, 0, cappedDatabase));
+                if (streamingRollups) {
+                    synchronized (rollupLock) {
+                        AggregateRollupAccumulator accumulator =
+                                getRollupAccumulator(captureTime);
+                        if (accumulator != null) {
+                            accumulator.mergeTransactionAggregate(transactionType,
+                                    transactionName, transactionAggregate, truncatedQueryTexts);
+                        }
+                    }
+                }
             }
             private void addToTruncatedQueryTexts(List<String> sharedQueryTexts)
                     throws SQLException {
@@ -261,8 +339,9 @@ public class AggregateDao implements AggregateRepository {
     public void mergeTransactionSummariesInto(String agentRollupId, OverallQuery query,
             SummarySortOrder sortOrder, int limit, TransactionSummaryCollector collector)
             throws Exception {
-        dataSource.query(
-                new TransactionSummaryQuery(query, sortOrder, limit, collector));
+        // unlike central, the sort and limit are applied in the database, using the index on the
+        // per transaction name rows, so that only the top transaction names are read
+        dataSource.query(new TransactionSummaryQuery(query, sortOrder, limit, collector));
     }
 
     // query.from() is non-inclusive
@@ -422,16 +501,95 @@ public class AggregateDao implements AggregateRepository {
         dataSource.deleteBefore("aggregate_tn_rollup_" + castUntainted(rollupLevel), captureTime);
     }
 
+    @GuardedBy("rollupLock")
     private void rollup(long lastRollupTime, long curentRollupTime, long fixedIntervalMillis,
             int toRollupLevel, int fromRollupLevel) throws Exception {
+        boolean streamingRollupLevel = streamingRollups && toRollupLevel == STREAMING_ROLLUP_LEVEL;
+        if (streamingRollupLevel) {
+            Iterator<Entry<Long, AggregateRollupAccumulator>> i =
+                    rollupAccumulators.entrySet().iterator();
+            while (i.hasNext()) {
+                Entry<Long, AggregateRollupAccumulator> entry = i.next();
+                long rollupTime = entry.getKey();
+                if (rollupTime <= curentRollupTime) {
+                    if (rollupTime > lastRollupTime) {
+                        flush(entry.getValue(), rollupTime, toRollupLevel);
+                    }
+                    i.remove();
+                }
+            }
+            if (lastRollupTime >= streamingRollupStartTime && overflowedRollupTimes.isEmpty()) {
+                // all remaining rollup intervals were accumulated in memory above
+                return;
+            }
+        }
         List<Long> rollupTimes = dataSource.query(new RollupTimeRowMapper(fromRollupLevel,
                 fixedIntervalMillis, lastRollupTime, curentRollupTime));
         for (Long rollupTime : rollupTimes) {
+            if (streamingRollupLevel && isStreamingRollup(rollupTime, fixedIntervalMillis)
+                    && !overflowedRollupTimes.contains(rollupTime)) {
+                // already rolled up from the in-memory accumulator above
+                continue;
+            }
             dataSource.query(new RollupOverallAggregates(rollupTime, fixedIntervalMillis,
                     fromRollupLevel, toRollupLevel));
             dataSource.query(new RollupTransactionAggregates(rollupTime, fixedIntervalMillis,
                     fromRollupLevel, toRollupLevel));
         }
+        if (streamingRollupLevel) {
+            overflowedRollupTimes.headSet(curentRollupTime, true).clear();
+        }
+    }
+
+    // returns the level 1 accumulator that the capture time should be merged into, or null if the
+    // rollup interval is rolled up from the database instead
+    @GuardedBy("rollupLock")
+    private @Nullable AggregateRollupAccumulator getRollupAccumulator(long captureTime) {
+        long intervalMillis =
+                configRepository.getRollupConfigs().get(STREAMING_ROLLUP_LEVEL).intervalMillis();
+        long rollupTime = RollupLevelService.getCeilRollupTime(captureTime, intervalMillis);
+        if (rollupTime <= lastRollupTimes.get(STREAMING_ROLLUP_LEVEL)
+                || !isStreamingRollup(rollupTime, intervalMillis)
+                || overflowedRollupTimes.contains(rollupTime)) {
+            return null;
+        }
+        AggregateRollupAccumulator accumulator = rollupAccumulators.get(rollupTime);
+        if (accumulator == null) {
+            accumulator = new AggregateRollupAccumulator(getMaxAggregateQueriesPerType(),
+                    getMaxAggregateServiceCallsPerType());
+            rollupAccumulators.put(rollupTime, accumulator);
+        } else if (accumulator.getAggregateCount() >= streamingRollupMaxAggregates) {
+            // the level 0 aggregates are all in the database, so the accumulator can just be
+            // discarded
+            rollupAccumulators.remove(rollupTime);
+            overflowedRollupTimes.add(rollupTime);
+            return null;
+        }
+        return accumulator;
+    }
+
+    private boolean isStreamingRollup(long rollupTime, long intervalMillis) {
+        return rollupTime - intervalMillis >= streamingRollupStartTime;
+    }
+
+    private void flush(AggregateRollupAccumulator accumulator, long rollupTime,
+            int toRollupLevel) throws Exception {
+        CappedDatabase cappedDatabase = rollupCappedDatabases.get(toRollupLevel);
+        ScratchBuffer scratchBuffer = new ScratchBuffer();
+        for (Entry<String, MutableAggregate> entry : accumulator.getOverallAggregates()
+                .entrySet()) {
+            dataSource.update(new AggregateInsert(entry.getKey(), null, rollupTime,
+                    entry.getValue(), toRollupLevel, cappedDatabase, scratchBuffer));
+        }
+        for (Entry<String, Map<String, MutableAggregate>> outerEntry : accumulator
+                .getTransactionAggregates().entrySet()) {
+            String transactionType = outerEntry.getKey();
+            for (Entry<String, MutableAggregate> entry : outerEntry.getValue().entrySet()) {
+                dataSource.update(new AggregateInsert(transactionType, entry.getKey(),
+                        rollupTime, entry.getValue(), toRollupLevel, cappedDatabase,
+                        scratchBuffer));
+            }
+        }
     }
 
     private void mergeProfilesInto(ProfileCollector collector, TransactionQuery query,
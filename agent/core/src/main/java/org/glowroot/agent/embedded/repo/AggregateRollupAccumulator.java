@@ -0,0 +1,144 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+
+import org.glowroot.agent.embedded.repo.AggregateDao.TruncatedQueryText;
+import org.glowroot.common.repo.MutableAggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+// accumulates the level 0 aggregates of a single level 1 rollup interval in memory as they are stored, so
+// that the rollup does not need to read them back from the database when the interval closes
+//
+// not thread safe, access is guarded by AggregateDao.rollupLock
+class AggregateRollupAccumulator {
+
+    private final int maxAggregateQueriesPerType;
+    private final int maxAggregateServiceCallsPerType;
+
+    // sorted maps so that the rollup rows are written in the same order as when reading them back
+    // from the database
+    private final Map<String, MutableAggregate> overallAggregates = Maps.newTreeMap();
+    private final Map<String, Map<String, MutableAggregate>> transactionAggregates =
+            Maps.newTreeMap();
+
+    private int aggregateCount;
+
+    AggregateRollupAccumulator(int maxAggregateQueriesPerType,
+            int maxAggregateServiceCallsPerType) {
+        this.maxAggregateQueriesPerType = maxAggregateQueriesPerType;
+        this.maxAggregateServiceCallsPerType = maxAggregateServiceCallsPerType;
+    }
+
+    Map<String, MutableAggregate> getOverallAggregates() {
+        return overallAggregates;
+    }
+
+    Map<String, Map<String, MutableAggregate>> getTransactionAggregates() {
+        return transactionAggregates;
+    }
+
+    // used to bound the memory held by the accumulator
+    int getAggregateCount() {
+        return aggregateCount;
+    }
+
+    void mergeOverallAggregate(String transactionType, Aggregate aggregate,
+            List<TruncatedQueryText> truncatedQueryTexts) {
+        MutableAggregate mutableAggregate = overallAggregates.get(transactionType);
+        if (mutableAggregate == null) {
+            mutableAggregate = newMutableAggregate();
+            overallAggregates.put(transactionType, mutableAggregate);
+        }
+        merge(mutableAggregate, aggregate, truncatedQueryTexts);
+    }
+
+    void mergeTransactionAggregate(String transactionType, String transactionName,
+            Aggregate aggregate, List<TruncatedQueryText> truncatedQueryTexts) {
+        Map<String, MutableAggregate> aggregates = transactionAggregates.get(transactionType);
+        if (aggregates == null) {
+            aggregates = Maps.newTreeMap();
+            transactionAggregates.put(transactionType, aggregates);
+        }
+        MutableAggregate mutableAggregate = aggregates.get(transactionName);
+        if (mutableAggregate == null) {
+            mutableAggregate = newMutableAggregate();
+            aggregates.put(transactionName, mutableAggregate);
+        }
+        merge(mutableAggregate, aggregate, truncatedQueryTexts);
+    }
+
+    private MutableAggregate newMutableAggregate() {
+        aggregateCount++;
+        return new MutableAggregate(maxAggregateQueriesPerType, maxAggregateServiceCallsPerType);
+    }
+
+    // this mirrors AggregateDao.merge(), which merges the same data after it has been written to
+    // (and read back from) the database
+    private static void merge(MutableAggregate mergedAggregate, Aggregate aggregate,
+            List<TruncatedQueryText> truncatedQueryTexts) {
+        mergedAggregate.addTotalDurationNanos(aggregate.getTotalDurationNanos());
+        mergedAggregate.addTransactionCount(aggregate.getTransactionCount());
+        mergedAggregate.addErrorCount(aggregate.getErrorCount());
+        mergedAggregate.addAsyncTransactions(aggregate.getAsyncTransactions());
+        mergedAggregate.mergeMainThreadRootTimers(aggregate.getMainThreadRootTimerList());
+        mergedAggregate.mergeAuxThreadRootTimers(aggregate.getAuxThreadRootTimerList());
+        mergedAggregate.mergeAsyncTimers(aggregate.getAsyncTimerList());
+        Aggregate.ThreadStats mainThreadStats = aggregate.getMainThreadStats();
+        mergedAggregate.addMainThreadTotalCpuNanos(mainThreadStats.hasTotalCpuNanos()
+                ? mainThreadStats.getTotalCpuNanos().getValue() : null);
+        mergedAggregate.addMainThreadTotalBlockedNanos(mainThreadStats.hasTotalBlockedNanos()
+                ? mainThreadStats.getTotalBlockedNanos().getValue() : null);
+        mergedAggregate.addMainThreadTotalWaitedNanos(mainThreadStats.hasTotalWaitedNanos()
+                ? mainThreadStats.getTotalWaitedNanos().getValue() : null);
+        mergedAggregate.addMainThreadTotalAllocatedBytes(mainThreadStats.hasTotalAllocatedBytes()
+                ? mainThreadStats.getTotalAllocatedBytes().getValue() : null);
+        Aggregate.ThreadStats auxThreadStats = aggregate.getAuxThreadStats();
+        mergedAggregate.addAuxThreadTotalCpuNanos(auxThreadStats.hasTotalCpuNanos()
+                ? auxThreadStats.getTotalCpuNanos().getValue() : null);
+        mergedAggregate.addAuxThreadTotalBlockedNanos(auxThreadStats.hasTotalBlockedNanos()
+                ? auxThreadStats.getTotalBlockedNanos().getValue() : null);
+        mergedAggregate.addAuxThreadTotalWaitedNanos(auxThreadStats.hasTotalWaitedNanos()
+                ? auxThreadStats.getTotalWaitedNanos().getValue() : null);
+        mergedAggregate.addAuxThreadTotalAllocatedBytes(auxThreadStats.hasTotalAllocatedBytes()
+                ? auxThreadStats.getTotalAllocatedBytes().getValue() : null);
+        mergedAggregate.mergeDurationNanosHistogram(aggregate.getDurationNanosHistogram());
+        for (Aggregate.QueriesByType queriesByType : aggregate.getQueriesByTypeList()) {
+            for (Aggregate.Query query : queriesByType.getQueryList()) {
+                TruncatedQueryText truncatedQueryText =
+                        truncatedQueryTexts.get(query.getSharedQueryTextIndex());
+                mergedAggregate.mergeQuery(queriesByType.getType(),
+                        truncatedQueryText.truncatedText(), truncatedQueryText.fullTextSha1(),
+                        query.getTotalDurationNanos(), query.getExecutionCount(),
+                        query.hasTotalRows(), query.getTotalRows().getValue());
+            }
+        }
+        List<Aggregate.ServiceCallsByType> serviceCalls = aggregate.getServiceCallsByTypeList();
+        if (!serviceCalls.isEmpty()) {
+            mergedAggregate.mergeServiceCalls(serviceCalls);
+        }
+        if (aggregate.hasMainThreadProfile()) {
+            mergedAggregate.mergeMainThreadProfile(aggregate.getMainThreadProfile());
+        }
+        if (aggregate.hasAuxThreadProfile()) {
+            mergedAggregate.mergeAuxThreadProfile(aggregate.getAuxThreadProfile());
+        }
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2012-2017 the original author or authors.
+ * Copyright 2012-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,7 +15,11 @@
  */
 package org.glowroot.agent.embedded.repo;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import org.glowroot.agent.embedded.init.ConfigRepositoryImpl;
+import org.glowroot.agent.embedded.util.DataSource;
 import org.glowroot.common.config.EmbeddedStorageConfig;
 import org.glowroot.common.config.StorageConfig;
 import org.glowroot.common.util.Clock;
@@ -25,6 +29,15 @@ import static java.util.concurrent.TimeUnit.HOURS;
 
 class ReaperRunnable extends ScheduledRunnable {
 
+    private static final Logger logger = LoggerFactory.getLogger(ReaperRunnable.class);
+
+    // the h2 page store re-uses the pages freed by the reaper, but the file never shrinks unless
+    // it is compacted, which blocks all database access until it completes, so this is disabled
+    // by default (zero)
+    private static final long COMPACT_AFTER_DELETED_ROWS =
+            Long.getLong("glowroot.internal.h2.compactAfterDeletedRows", 0);
+
+    private final DataSource dataSource;
     private final ConfigRepositoryImpl configRepository;
     private final AggregateDao aggregateDao;
     private final TraceDao traceDao;
@@ -36,10 +49,12 @@ class ReaperRunnable extends ScheduledRunnable {
     private final IncidentDao incidentDao;
     private final Clock clock;
 
-    ReaperRunnable(ConfigRepositoryImpl configService, AggregateDao aggregateDao, TraceDao traceDao,
-            GaugeIdDao gaugeIdDao, GaugeNameDao gaugeNameDao, GaugeValueDao gaugeValueDao,
+    ReaperRunnable(DataSource dataSource, ConfigRepositoryImpl configService,
+            AggregateDao aggregateDao, TraceDao traceDao, GaugeIdDao gaugeIdDao,
+            GaugeNameDao gaugeNameDao, GaugeValueDao gaugeValueDao,
             TransactionTypeDao transactionTypeDao, FullQueryTextDao fullQueryTextDao,
             IncidentDao incidentDao, Clock clock) {
+        this.dataSource = dataSource;
         this.configRepository = configService;
         this.aggregateDao = aggregateDao;
         this.traceDao = traceDao;
@@ -92,5 +107,11 @@ class ReaperRunnable extends ScheduledRunnable {
         }
         incidentDao.deleteResolvedIncidentsBefore(
                 currentTime - HOURS.toMillis(StorageConfig.RESOLVED_INCIDENT_EXPIRATION_HOURS));
+        long deletedRowCount = dataSource.getDeletedRowCount();
+        if (COMPACT_AFTER_DELETED_ROWS > 0 && deletedRowCount >= COMPACT_AFTER_DELETED_ROWS) {
+            logger.info("compacting embedded database after {} rows have been deleted",
+                    deletedRowCount);
+            dataSource.compact();
+        }
     }
 }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2017 the original author or authors.
+ * Copyright 2011-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -126,9 +126,9 @@ public class SimpleRepoModule {
         if (backgroundExecutor == null) {
             reaperRunnable = null;
         } else {
-            reaperRunnable = new ReaperRunnable(configRepository, aggregateDao, traceDao,
-                    gaugeIdDao, gaugeNameDao, gaugeValueDao, transactionTypeDao, fullQueryTextDao,
-                    incidentDao, clock);
+            reaperRunnable = new ReaperRunnable(dataSource, configRepository, aggregateDao,
+                    traceDao, gaugeIdDao, gaugeNameDao, gaugeValueDao, transactionTypeDao,
+                    fullQueryTextDao, incidentDao, clock);
             reaperRunnable.scheduleWithFixedDelay(backgroundExecutor,
                     SNAPSHOT_REAPER_PERIOD_MINUTES, MINUTES);
         }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2017 the original author or authors.
+ * Copyright 2011-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -49,9 +49,7 @@ import org.glowroot.agent.embedded.util.Schemas.Column;
 import org.glowroot.agent.embedded.util.Schemas.ColumnType;
 import org.glowroot.agent.embedded.util.Schemas.Index;
 import org.glowroot.common.config.StorageConfig;
-import org.glowroot.common.live.ImmutableEntries;
 import org.glowroot.common.live.ImmutableTracePoint;
-import org.glowroot.common.live.LiveTraceRepository.Entries;
 import org.glowroot.common.live.LiveTraceRepository.Existence;
 import org.glowroot.common.live.LiveTraceRepository.TraceKind;
 import org.glowroot.common.live.LiveTraceRepository.TracePoint;
@@ -61,7 +59,10 @@ import org.glowroot.common.repo.ImmutableErrorMessageCount;
 import org.glowroot.common.repo.ImmutableErrorMessagePoint;
 import org.glowroot.common.repo.ImmutableErrorMessageResult;
 import org.glowroot.common.repo.ImmutableHeaderPlus;
+import org.glowroot.common.repo.ImmutableStoredEntries;
 import org.glowroot.common.repo.TraceRepository;
+import org.glowroot.common.repo.TraceRepository.StoredEntries;
+import org.glowroot.common.util.CloseableIterator;
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
@@ -249,17 +250,17 @@ public class TraceDao implements TraceRepository {
     }
 
     @Override
-    public @Nullable Entries readEntries(String agentRollupId, String agentId, String traceId)
-            throws Exception {
+    public @Nullable StoredEntries readEntries(String agentRollupId, String agentId,
+            String traceId) throws Exception {
         return dataSource.query(new EntriesQuery(traceId));
     }
 
     // since this is only used by export, SharedQueryTexts are always returned with fullTrace
     // (never with truncatedText/truncatedEndText/fullTraceSha1) @Override
     @Override
-    public @Nullable Entries readEntriesForExport(String agentRollupId, String agentId,
+    public @Nullable StoredEntries readEntriesForExport(String agentRollupId, String agentId,
             String traceId) throws Exception {
-        Entries entries = dataSource.query(new EntriesQuery(traceId));
+        StoredEntries entries = dataSource.query(new EntriesQuery(traceId));
         if (entries == null) {
             return null;
         }
@@ -283,10 +284,7 @@ public class TraceDao implements TraceRepository {
                 }
             }
         }
-        return ImmutableEntries.builder()
-                .copyFrom(entries)
-                .sharedQueryTexts(sharedQueryTexts)
-                .build();
+        return ImmutableStoredEntries.of(entries.entries(), sharedQueryTexts);
     }
 
     @Override
@@ -626,7 +624,7 @@ public class TraceDao implements TraceRepository {
         }
     }
 
-    private class EntriesQuery implements JdbcQuery</*@Nullable*/ Entries> {
+    private class EntriesQuery implements JdbcQuery</*@Nullable*/ StoredEntries> {
 
         private final String traceId;
 
@@ -645,7 +643,7 @@ public class TraceDao implements TraceRepository {
         }
 
         @Override
-        public @Nullable Entries processResultSet(ResultSet resultSet) throws Exception {
+        public @Nullable StoredEntries processResultSet(ResultSet resultSet) throws Exception {
             if (!resultSet.next()) {
                 return null;
             }
@@ -655,22 +653,24 @@ public class TraceDao implements TraceRepository {
             if (entriesCappedId == null) {
                 return null;
             }
-            List<Trace.Entry> entries =
-                    traceCappedDatabase.readMessages(entriesCappedId, Trace.Entry.parser());
-            if (entries.isEmpty()) {
+            // entries are parsed as they are iterated over by the caller
+            CloseableIterator<Trace.Entry> entries =
+                    traceCappedDatabase.iterateMessages(entriesCappedId, Trace.Entry.parser());
+            if (!entries.hasNext() && !entries.isOverwritten()) {
                 return null;
             }
-            ImmutableEntries.Builder result = ImmutableEntries.builder()
-                    .addAllEntries(entries);
-            if (sharedQueryTextsCappedId != null) {
-                result.addAllSharedQueryTexts(traceCappedDatabase
-                        .readMessages(sharedQueryTextsCappedId, Trace.SharedQueryText.parser()));
+            List<Trace.SharedQueryText> sharedQueryTexts;
+            if (sharedQueryTextsCappedId == null) {
+                sharedQueryTexts = ImmutableList.of();
+            } else {
+                sharedQueryTexts = traceCappedDatabase.readMessages(sharedQueryTextsCappedId,
+                        Trace.SharedQueryText.parser());
             }
-            return result.build();
+            return ImmutableStoredEntries.of(entries, sharedQueryTexts);
         }
 
         @Override
-        public @Nullable Entries valueIfDataSourceClosed() {
+        public @Nullable StoredEntries valueIfDataSourceClosed() {
             return null;
         }
     }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2012-2017 the original author or authors.
+ * Copyright 2012-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -50,6 +50,7 @@ import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.util.AppServerDetection;
 import org.glowroot.agent.util.JavaVersion;
+import org.glowroot.common.util.CloseableIterator;
 import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.common.util.SizeLimitBypassingParser;
 
@@ -221,6 +222,85 @@ public class CappedDatabase {
         return messages;
     }
 
+    // same as readMessages(), except that the messages are parsed as the returned iterator is
+    // advanced, so that the messages are never all held in memory at once
+    //
+    // if the block rolls over while it is being iterated, the iterator ends early and reports
+    // isOverwritten()
+    public <T extends /*@NonNull*/ MessageLite> CloseableIterator<T> iterateMessages(
+            final long cappedId, Parser<T> parser) throws IOException {
+        boolean overwritten;
+        boolean inTheFuture;
+        synchronized (lock) {
+            overwritten = out.isOverwritten(cappedId);
+            inTheFuture = cappedId >= out.getCurrIndex();
+        }
+        if (overwritten || inTheFuture) {
+            // see comment in readMessages() regarding inTheFuture
+            return CloseableIterator.of(ImmutableList.<T>of().iterator());
+        }
+        // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
+        // lots of small reads from the underlying RandomAccessFile
+        final int bufferSize = 32768;
+        final InputStream input = newLZFInputStream(
+                new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize));
+        final SizeLimitBypassingParser<T> sizeLimitBypassingParser =
+                new SizeLimitBypassingParser<T>(parser);
+        return new CloseableIterator<T>() {
+
+            private boolean overwritten;
+            private boolean closed;
+
+            @Override
+            protected T computeNext() {
+                if (closed) {
+                    return endOfData();
+                }
+                /*@Nullable*/ T message;
+                try {
+                    message = sizeLimitBypassingParser.parseDelimitedFrom(input);
+                } catch (Exception e) {
+                    overwritten = isExpired(cappedId);
+                    if (!overwritten) {
+                        logger.error(e.getMessage(), e);
+                    }
+                    message = null;
+                }
+                if (message == null) {
+                    closeQuietly();
+                    return endOfData();
+                }
+                return message;
+            }
+
+            @Override
+            public boolean isOverwritten() {
+                if (!closed && isExpired(cappedId)) {
+                    // the remaining messages can no longer be read
+                    overwritten = true;
+                    closeQuietly();
+                }
+                return overwritten;
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (!closed) {
+                    closed = true;
+                    input.close();
+                }
+            }
+
+            private void closeQuietly() {
+                try {
+                    close();
+                } catch (IOException e) {
+                    logger.warn(e.getMessage(), e);
+                }
+            }
+        };
+    }
+
     @OnlyUsedByTests
     CharSource read(long cappedId) {
         return new CappedBlockCharSource(cappedId);
@@ -1,5 +1,5 @@
 /*
- * Copyright 2012-2017 the original author or authors.
+ * Copyright 2012-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -26,6 +26,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
@@ -51,6 +52,7 @@ import org.glowroot.common.repo.RepoAdmin.H2Table;
 import org.glowroot.common.util.OnlyUsedByTests;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static org.glowroot.agent.util.Checkers.castUntainted;
 
 public class DataSource {
@@ -63,6 +65,16 @@ public class DataSource {
     private static final int QUERY_TIMEOUT_SECONDS =
             Integer.getInteger("glowroot.internal.h2.queryTimeout", 60);
 
+    // at least 1, since "limit 0" would never delete anything and the chunk loop would never end
+    private static final int DELETE_CHUNK_SIZE =
+            Math.max(1, Integer.getInteger("glowroot.internal.h2.deleteChunkSize", 100));
+
+    // percentage of time that chunked deletes hold the single jdbc connection, the rest of the
+    // time is spent pausing between chunks so that other threads waiting on the connection (e.g.
+    // storing aggregates or serving the UI) are not starved while large amounts of data expire
+    private static final int DELETE_DUTY_CYCLE_PERCENT = Math.max(1,
+            Math.min(100, Integer.getInteger("glowroot.internal.h2.deleteDutyCyclePercent", 50)));
+
     // null means use memDb
     private final @Nullable File dbFile;
     private final Thread shutdownHookThread;
@@ -71,6 +83,10 @@ public class DataSource {
     private Connection connection;
     private volatile boolean closed;
 
+    // number of rows deleted by deleteBefore*() since the last compact or defrag, used to decide
+    // when compacting is worthwhile
+    private final AtomicLong deletedRowCount = new AtomicLong();
+
     private final Map</*@Untainted*/ String, ImmutableList<Column>> tables =
             Maps.newConcurrentMap();
     private final Map</*@Untainted*/ String, ImmutableList<Index>> indexes =
@@ -111,6 +127,7 @@ public class DataSource {
             execute("shutdown defrag");
             preparedStatementCache.invalidateAll();
             connection = createConnection(dbFile);
+            deletedRowCount.set(0);
         }
     }
 
@@ -125,6 +142,7 @@ public class DataSource {
             execute("shutdown compact");
             preparedStatementCache.invalidateAll();
             connection = createConnection(dbFile);
+            deletedRowCount.set(0);
         }
     }
 
@@ -391,27 +409,57 @@ public class DataSource {
 
     public void deleteBefore(@Untainted String tableName, @Untainted String columnName,
             long captureTime) throws SQLException {
-        // delete 100 at a time, which is both faster than deleting all at once, and doesn't
-        // lock the single jdbc connection for one large chunk of time
-        int deleted;
-        do {
-            deleted = update("delete from " + tableName + " where " + columnName + " < ? limit 100",
-                    captureTime);
-        } while (deleted > 0);
+        deleteInChunks(tableName, columnName, captureTime, null);
     }
 
     public void deleteBeforeUsingLock(@Untainted String tableName, @Untainted String columnName,
             long captureTime, Object lock) throws SQLException {
-        // delete 100 at a time, which is both faster than deleting all at once, and doesn't
+        deleteInChunks(tableName, columnName, captureTime, lock);
+    }
+
+    public long getDeletedRowCount() {
+        return deletedRowCount.get();
+    }
+
+    private void deleteInChunks(@Untainted String tableName, @Untainted String columnName,
+            long captureTime, @Nullable Object externalLock) throws SQLException {
+        // delete in small chunks, which is both faster than deleting all at once, and doesn't
         // lock the single jdbc connection for one large chunk of time
+        @Untainted
+        String sql = "delete from " + tableName + " where " + columnName + " < ? limit "
+                + castUntainted(DELETE_CHUNK_SIZE);
         int deleted;
         do {
-            synchronized (lock) {
-                deleted = update(
-                        "delete from " + tableName + " where " + columnName + " < ? limit 100",
-                        captureTime);
+            long startTick = System.nanoTime();
+            if (externalLock == null) {
+                deleted = update(sql, captureTime);
+            } else {
+                synchronized (externalLock) {
+                    deleted = update(sql, captureTime);
+                }
+            }
+            deletedRowCount.addAndGet(deleted);
+            if (deleted == DELETE_CHUNK_SIZE && !pauseBetweenChunks(startTick)) {
+                // interrupted, the remaining rows will be deleted on the next pass
+                return;
             }
-        } while (deleted > 0);
+        } while (deleted == DELETE_CHUNK_SIZE);
+    }
+
+    private static boolean pauseBetweenChunks(long chunkStartTick) {
+        long chunkNanos = System.nanoTime() - chunkStartTick;
+        long pauseNanos = chunkNanos * (100 - DELETE_DUTY_CYCLE_PERCENT)
+                / DELETE_DUTY_CYCLE_PERCENT;
+        if (pauseNanos <= 0) {
+            return true;
+        }
+        try {
+            NANOSECONDS.sleep(pauseNanos);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
     }
 
     public void syncTable(@Untainted String tableName, List<Column> columns) throws SQLException {
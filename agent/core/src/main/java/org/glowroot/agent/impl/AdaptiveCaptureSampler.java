@@ -0,0 +1,99 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+// decides at transaction start whether the transaction captures trace entries from the start, or
+// captures lightweight until it passes the upgrade threshold
+//
+// lightweight capture still collects everything that goes into aggregates (timers, queries and
+// service calls), it only skips building trace entries, which are not needed unless the
+// transaction ends up being stored as a (slow) trace
+//
+// errors are always captured as trace entries (see Transaction.allowAnotherErrorEntry())
+class AdaptiveCaptureSampler {
+
+    // 100 (the default) disables adaptive capture
+    private static final int SAMPLE_PERCENT =
+            Integer.getInteger("glowroot.adaptiveCapture.samplePercent", 100);
+
+    // should be well below the slow threshold so that slow traces are still captured (mostly)
+    private static final long UPGRADE_THRESHOLD_MILLIS =
+            Long.getLong("glowroot.adaptiveCapture.upgradeThresholdMillis", 100);
+
+    // this bounds the trace entry capture overhead under high throughput regardless of the sample
+    // percent, zero (the default) means no limit
+    private static final int MAX_SAMPLED_PER_SECOND =
+            Integer.getInteger("glowroot.adaptiveCapture.maxSampledPerSecond", 0);
+
+    private final int samplePercent;
+    private final long upgradeThresholdNanos;
+    private final int maxSampledPerSecond;
+
+    private final AtomicLong transactionCounter = new AtomicLong();
+
+    // ok if race condition when rolling over to the next second
+    private volatile long currentSecond;
+    private final AtomicInteger sampledInCurrentSecond = new AtomicInteger();
+
+    AdaptiveCaptureSampler(int samplePercent, long upgradeThresholdMillis,
+            int maxSampledPerSecond) {
+        this.samplePercent = samplePercent;
+        this.upgradeThresholdNanos = MILLISECONDS.toNanos(upgradeThresholdMillis);
+        this.maxSampledPerSecond = maxSampledPerSecond;
+    }
+
+    static @Nullable AdaptiveCaptureSampler create() {
+        if (SAMPLE_PERCENT >= 100) {
+            return null;
+        }
+        return new AdaptiveCaptureSampler(Math.max(SAMPLE_PERCENT, 0), UPGRADE_THRESHOLD_MILLIS,
+                MAX_SAMPLED_PER_SECOND);
+    }
+
+    // returns the tick at which full trace entry capture begins
+    long getFullCaptureTick(long startTick) {
+        if (isSampled(startTick)) {
+            return startTick;
+        }
+        return startTick + upgradeThresholdNanos;
+    }
+
+    private boolean isSampled(long startTick) {
+        // sampling based on counter instead of random spreads the sampled transactions evenly,
+        // and avoids contention on a shared Random
+        long n = transactionCounter.getAndIncrement();
+        if ((n + 1) * samplePercent / 100 == n * samplePercent / 100) {
+            return false;
+        }
+        if (maxSampledPerSecond <= 0) {
+            return true;
+        }
+        long second = NANOSECONDS.toSeconds(startTick);
+        if (second != currentSecond) {
+            currentSecond = second;
+            sampledInCurrentSecond.set(0);
+        }
+        return sampledInCurrentSecond.incrementAndGet() <= maxSampledPerSecond;
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2013-2017 the original author or authors.
+ * Copyright 2013-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -19,14 +19,13 @@ import java.util.List;
 
 import javax.annotation.Nullable;
 
-import com.google.common.collect.Lists;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 
 import org.glowroot.agent.config.AdvancedConfig;
 import org.glowroot.agent.impl.Transaction.RootTimerCollector;
 import org.glowroot.agent.impl.Transaction.ThreadStatsCollector;
 import org.glowroot.agent.model.CommonTimerImpl;
-import org.glowroot.agent.model.MutableAggregateTimer;
+import org.glowroot.agent.model.MutableAggregateTimers;
 import org.glowroot.agent.model.ThreadProfile;
 import org.glowroot.agent.model.QueryCollector;
 import org.glowroot.agent.model.QueryCollector.SharedQueryTextCollector;
@@ -273,34 +272,15 @@ class AggregateCollector {
 
     private static class RootTimerCollectorImpl implements RootTimerCollector {
 
-        List<MutableAggregateTimer> rootMutableTimers = Lists.newArrayList();
+        private final MutableAggregateTimers aggregateTimers = new MutableAggregateTimers();
 
         @Override
         public void mergeRootTimer(CommonTimerImpl rootTimer) {
-            mergeRootTimer(rootTimer, rootMutableTimers);
+            aggregateTimers.mergeRootTimer(rootTimer);
         }
 
         private List<Aggregate.Timer> toProto() {
-            List<Aggregate.Timer> rootTimers = Lists.newArrayList();
-            for (MutableAggregateTimer rootMutableTimer : rootMutableTimers) {
-                rootTimers.add(rootMutableTimer.toProto());
-            }
-            return rootTimers;
-        }
-
-        private static void mergeRootTimer(CommonTimerImpl toBeMergedRootTimer,
-                List<MutableAggregateTimer> rootTimers) {
-            for (MutableAggregateTimer rootTimer : rootTimers) {
-                if (toBeMergedRootTimer.getName().equals(rootTimer.getName())
-                        && toBeMergedRootTimer.isExtended() == rootTimer.isExtended()) {
-                    rootTimer.merge(toBeMergedRootTimer);
-                    return;
-                }
-            }
-            MutableAggregateTimer rootTimer = MutableAggregateTimer.createRootTimer(
-                    toBeMergedRootTimer.getName(), toBeMergedRootTimer.isExtended());
-            rootTimer.merge(toBeMergedRootTimer);
-            rootTimers.add(rootTimer);
+            return aggregateTimers.toProto();
         }
     }
 
@@ -313,14 +293,20 @@ class AggregateCollector {
         private double totalAllocatedBytes;
 
         private boolean empty = true;
+        private boolean blockedWaitedEmpty = true;
 
         @Override
         public void mergeThreadStats(ThreadStats threadStats) {
             totalCpuNanos = NotAvailableAware.add(totalCpuNanos, threadStats.getTotalCpuNanos());
-            totalBlockedMillis =
-                    NotAvailableAware.add(totalBlockedMillis, threadStats.getTotalBlockedMillis());
-            totalWaitedMillis =
-                    NotAvailableAware.add(totalWaitedMillis, threadStats.getTotalWaitedMillis());
+            int blockedWaitedSampleWeight = threadStats.getBlockedWaitedSampleWeight();
+            if (blockedWaitedSampleWeight != 0) {
+                // extrapolate from the sampled transaction to the transactions it represents
+                totalBlockedMillis = NotAvailableAware.add(totalBlockedMillis,
+                        weighted(threadStats.getTotalBlockedMillis(), blockedWaitedSampleWeight));
+                totalWaitedMillis = NotAvailableAware.add(totalWaitedMillis,
+                        weighted(threadStats.getTotalWaitedMillis(), blockedWaitedSampleWeight));
+                blockedWaitedEmpty = false;
+            }
             totalAllocatedBytes = NotAvailableAware.add(totalAllocatedBytes,
                     threadStats.getTotalAllocatedBytes());
             empty = false;
@@ -330,22 +316,25 @@ class AggregateCollector {
             if (empty) {
                 return true;
             }
-            return NotAvailableAware.isNA(totalCpuNanos)
-                    && NotAvailableAware.isNA(totalBlockedMillis)
-                    && NotAvailableAware.isNA(totalWaitedMillis)
+            return NotAvailableAware.isNA(totalCpuNanos) && isBlockedWaitedNA()
                     && NotAvailableAware.isNA(totalAllocatedBytes);
         }
 
+        private boolean isBlockedWaitedNA() {
+            return blockedWaitedEmpty || (NotAvailableAware.isNA(totalBlockedMillis)
+                    && NotAvailableAware.isNA(totalWaitedMillis));
+        }
+
         public Aggregate.ThreadStats toProto() {
             Aggregate.ThreadStats.Builder builder = Aggregate.ThreadStats.newBuilder();
             if (!NotAvailableAware.isNA(totalCpuNanos)) {
                 builder.setTotalCpuNanos(toProto(totalCpuNanos));
             }
-            if (!NotAvailableAware.isNA(totalBlockedMillis)) {
+            if (!blockedWaitedEmpty && !NotAvailableAware.isNA(totalBlockedMillis)) {
                 builder.setTotalBlockedNanos(
                         toProto(totalBlockedMillis * NANOSECONDS_PER_MILLISECOND));
             }
-            if (!NotAvailableAware.isNA(totalWaitedMillis)) {
+            if (!blockedWaitedEmpty && !NotAvailableAware.isNA(totalWaitedMillis)) {
                 builder.setTotalWaitedNanos(
                         toProto(totalWaitedMillis * NANOSECONDS_PER_MILLISECOND));
             }
@@ -355,6 +344,13 @@ class AggregateCollector {
             return builder.build();
         }
 
+        private static long weighted(long value, int weight) {
+            if (weight == 1 || NotAvailableAware.isNA(value)) {
+                return value;
+            }
+            return value * weight;
+        }
+
         private static OptionalDouble toProto(double value) {
             return OptionalDouble.newBuilder().setValue(value).build();
         }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2017 the original author or authors.
+ * Copyright 2015-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -21,6 +21,7 @@ import java.util.Map.Entry;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Maps;
 
 import org.glowroot.agent.collector.Collector;
@@ -228,8 +229,9 @@ public class AggregateIntervalCollector {
         }
     }
 
-    void flush(Collector collector) throws Exception {
-        collector.collectAggregates(new AggregatesImpl(captureTime));
+    // jvmThreadsAggregate is the background profile for this interval (see BackgroundProfiler)
+    void flush(Collector collector, @Nullable Aggregate jvmThreadsAggregate) throws Exception {
+        collector.collectAggregates(new AggregatesImpl(captureTime, jvmThreadsAggregate));
     }
 
     void clear() {
@@ -335,9 +337,11 @@ public class AggregateIntervalCollector {
     private class AggregatesImpl implements AggregateReader {
 
         private final long captureTime;
+        private final @Nullable Aggregate jvmThreadsAggregate;
 
-        private AggregatesImpl(long captureTime) {
+        private AggregatesImpl(long captureTime, @Nullable Aggregate jvmThreadsAggregate) {
             this.captureTime = captureTime;
+            this.jvmThreadsAggregate = jvmThreadsAggregate;
         }
 
         @Override
@@ -368,6 +372,10 @@ public class AggregateIntervalCollector {
                     }
                 }
             }
+            if (jvmThreadsAggregate != null) {
+                aggregateVisitor.visitOverallAggregate(BackgroundProfiler.TRANSACTION_TYPE,
+                        ImmutableList.<String>of(), jvmThreadsAggregate);
+            }
         }
     }
 }
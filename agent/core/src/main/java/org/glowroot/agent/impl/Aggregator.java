@@ -1,5 +1,5 @@
 /*
- * Copyright 2013-2017 the original author or authors.
+ * Copyright 2013-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -22,6 +22,7 @@ import java.util.concurrent.Executors;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 
+import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import org.slf4j.Logger;
@@ -31,8 +32,10 @@ import org.glowroot.agent.collector.Collector;
 import org.glowroot.agent.config.ConfigService;
 import org.glowroot.agent.util.RateLimitedLogger;
 import org.glowroot.agent.util.ThreadFactories;
+import org.glowroot.agent.util.Tickers;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.SECONDS;
@@ -46,6 +49,8 @@ public class Aggregator {
     // back pressure on aggregate flushing
     private static final int AGGREGATE_PENDING_LIMIT = 5;
 
+    private static final Ticker ticker = Tickers.getTicker();
+
     private volatile AggregateIntervalCollector activeIntervalCollector;
     private final List<AggregateIntervalCollector> pendingIntervalCollectors =
             Lists.newCopyOnWriteArrayList();
@@ -54,6 +59,7 @@ public class Aggregator {
     private final ExecutorService flushingExecutor;
     private final Collector collector;
     private final ConfigService configService;
+    private final @Nullable BackgroundProfiler backgroundProfiler;
     private final Clock clock;
 
     private final long aggregateIntervalMillis;
@@ -69,12 +75,21 @@ public class Aggregator {
 
     private final RateLimitedLogger backPressureLogger = new RateLimitedLogger(Aggregator.class);
 
+    // these are only updated by the processing thread, and are used for estimating agent overhead
+    // (see AgentOverhead)
+    private volatile long processingNanos;
+    private volatile long transactionCount;
+    private volatile long timerCount;
+    private volatile long traceEntryCount;
+
     private volatile boolean closed;
 
     public Aggregator(Collector collector, ConfigService configService,
-            long aggregateIntervalMillis, Clock clock) {
+            @Nullable BackgroundProfiler backgroundProfiler, long aggregateIntervalMillis,
+            Clock clock) {
         this.collector = collector;
         this.configService = configService;
+        this.backgroundProfiler = backgroundProfiler;
         this.clock = clock;
         this.aggregateIntervalMillis = aggregateIntervalMillis;
         processingExecutor = Executors
@@ -102,6 +117,22 @@ public class Aggregator {
         return intervalCollectors;
     }
 
+    public long getProcessingNanos() {
+        return processingNanos;
+    }
+
+    public long getTransactionCount() {
+        return transactionCount;
+    }
+
+    public long getTimerCount() {
+        return timerCount;
+    }
+
+    public long getTraceEntryCount() {
+        return traceEntryCount;
+    }
+
     public void clearInMemoryAggregate() {
         activeIntervalCollector.clear();
     }
@@ -206,7 +237,12 @@ public class Aggregator {
                         configService.getAdvancedConfig().maxAggregateQueriesPerType(),
                         configService.getAdvancedConfig().maxAggregateServiceCallsPerType(), clock);
             }
+            long startTick = ticker.read();
             activeIntervalCollector.add(transaction);
+            transactionCount++;
+            timerCount += transaction.getTimerCount();
+            traceEntryCount += transaction.getEntryCount();
+            processingNanos += ticker.read() - startTick;
         }
 
         private void maybeEndOfInterval() {
@@ -247,7 +283,12 @@ public class Aggregator {
                 @Override
                 public void run() {
                     try {
-                        intervalCollector.flush(collector);
+                        // the background profile is flushed along with the aggregates so that it
+                        // is stored (and rolled up) the same as the aggregates for the interval
+                        Aggregate jvmThreadsAggregate = backgroundProfiler == null ? null
+                                : backgroundProfiler.removeIntervalAggregate(
+                                        intervalCollector.getCaptureTime());
+                        intervalCollector.flush(collector, jvmThreadsAggregate);
                     } catch (Throwable t) {
                         logger.error(t.getMessage(), t);
                     } finally {
@@ -0,0 +1,267 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.Maps;
+import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.common.model.MutableProfile;
+import org.glowroot.common.repo.Utils;
+import org.glowroot.common.util.Clock;
+import org.glowroot.common.util.OnlyUsedByTests;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+// optional low-rate profiler of all jvm threads (not just the threads that are part of a
+// transaction), so that cpu burned by background threads (e.g. message consumers and schedulers)
+// shows up over time in the flame graph of the "JVM Threads" transaction type
+//
+// only runnable threads are sampled since the purpose is to find where cpu is being burned, and
+// stack traces are truncated to the top (deepest) frames to bound the cost of each sample
+//
+// the profile for each aggregate interval is flushed by the Aggregator, along with (and in the same
+// collection as) the aggregates for that interval, so that it is stored before the interval is
+// rolled up
+public class BackgroundProfiler {
+
+    static final String TRANSACTION_TYPE = "JVM Threads";
+
+    private static final Logger logger = LoggerFactory.getLogger(BackgroundProfiler.class);
+
+    // zero (the default) disables the background profiler
+    private static final long INTERVAL_MILLIS =
+            Long.getLong("glowroot.backgroundProfiler.intervalMillis", 0);
+
+    private static final int MAX_STACK_DEPTH =
+            Integer.getInteger("glowroot.backgroundProfiler.maxStackDepth", 64);
+
+    // the share of a single core (in tenths of a percent) that the profiler is allowed to use
+    private static final int CPU_BUDGET_PERMILLE =
+            Integer.getInteger("glowroot.backgroundProfiler.cpuBudgetPermille", 5);
+
+    private static final @Nullable String THREAD_NAME_REGEX =
+            System.getProperty("glowroot.backgroundProfiler.threadNameRegex");
+
+    private final long aggregateIntervalMillis;
+    private final long intervalMillis;
+    private final int maxStackDepth;
+    private final int cpuBudgetPermille;
+    private final @Nullable Pattern threadNamePattern;
+    private final Clock clock;
+    private final Ticker ticker;
+
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    private final boolean threadCpuTimeSupported;
+
+    private final InternalRunnable runnable = new InternalRunnable();
+    private @MonotonicNonNull Thread processingThread;
+
+    // only updated by the processing thread
+    private volatile long samplingNanos;
+
+    // only accessed by the processing thread
+    private long budgetDelayCount;
+
+    // keyed by capture time, there is normally only a single entry here, but there can be more
+    // when a sample is taken right after the end of an interval, before the Aggregator has
+    // flushed that interval
+    @GuardedBy("lock")
+    private final Map<Long, MutableProfile> intervalProfiles = Maps.newTreeMap();
+    @GuardedBy("lock")
+    private long lastFlushedCaptureTime;
+    private final Object lock = new Object();
+
+    BackgroundProfiler(long aggregateIntervalMillis, long intervalMillis, int maxStackDepth,
+            int cpuBudgetPermille, @Nullable Pattern threadNamePattern, Clock clock,
+            Ticker ticker) {
+        this.aggregateIntervalMillis = aggregateIntervalMillis;
+        this.intervalMillis = intervalMillis;
+        this.maxStackDepth = maxStackDepth;
+        this.cpuBudgetPermille = cpuBudgetPermille;
+        this.threadNamePattern = threadNamePattern;
+        this.clock = clock;
+        this.ticker = ticker;
+        threadCpuTimeSupported = threadMXBean.isCurrentThreadCpuTimeSupported();
+    }
+
+    public static @Nullable BackgroundProfiler create(long aggregateIntervalMillis, Clock clock,
+            Ticker ticker) {
+        if (INTERVAL_MILLIS <= 0) {
+            return null;
+        }
+        Pattern threadNamePattern =
+                THREAD_NAME_REGEX == null ? null : Pattern.compile(THREAD_NAME_REGEX);
+        BackgroundProfiler backgroundProfiler = new BackgroundProfiler(aggregateIntervalMillis,
+                INTERVAL_MILLIS, MAX_STACK_DEPTH, Math.max(CPU_BUDGET_PERMILLE, 1),
+                threadNamePattern, clock, ticker);
+        backgroundProfiler.start();
+        return backgroundProfiler;
+    }
+
+    public long getSamplingNanos() {
+        return samplingNanos;
+    }
+
+    // called by the Aggregator when flushing the aggregate interval ending at captureTime
+    //
+    // the samples are not recorded as transactions (e.g. with the sampling duration), since that
+    // would show up as throughput of the "JVM Threads" transaction type (the cost of the sampling
+    // itself is reported via AgentOverhead instead)
+    @Nullable
+    Aggregate removeIntervalAggregate(long captureTime) {
+        MutableProfile profile;
+        synchronized (lock) {
+            profile = intervalProfiles.get(captureTime);
+            // also discard any earlier intervals that were not flushed (e.g. due to aggregate
+            // back pressure in the Aggregator)
+            Iterator<Long> i = intervalProfiles.keySet().iterator();
+            while (i.hasNext() && i.next() <= captureTime) {
+                i.remove();
+            }
+            lastFlushedCaptureTime = Math.max(lastFlushedCaptureTime, captureTime);
+        }
+        if (profile == null) {
+            return null;
+        }
+        return Aggregate.newBuilder()
+                .setMainThreadProfile(profile.toProto())
+                .build();
+    }
+
+    @OnlyUsedByTests
+    public void close() throws InterruptedException {
+        runnable.closed = true;
+        if (processingThread != null) {
+            processingThread.interrupt();
+            processingThread.join();
+        }
+    }
+
+    private void start() {
+        processingThread = new Thread(runnable);
+        processingThread.setDaemon(true);
+        processingThread.setName("Glowroot-Background-Profiler");
+        processingThread.start();
+    }
+
+    // returns the number of milliseconds to wait before the next sample
+    long sample() {
+        long startCpuNanos = threadCpuTimeSupported ? threadMXBean.getCurrentThreadCpuTime() : 0;
+        long startTick = ticker.read();
+        sampleInternal();
+        long durationNanos = ticker.read() - startTick;
+        long cpuNanos = threadCpuTimeSupported
+                ? threadMXBean.getCurrentThreadCpuTime() - startCpuNanos : durationNanos;
+        samplingNanos += durationNanos;
+        // strictly enforce the cpu budget by delaying the next sample (beyond the configured
+        // interval if needed) so that the cpu used by sampling stays under the budget
+        long budgetDelayMillis = NANOSECONDS.toMillis(cpuNanos * 1000 / cpuBudgetPermille);
+        if (budgetDelayMillis > intervalMillis) {
+            budgetDelayCount++;
+            return budgetDelayMillis;
+        }
+        return intervalMillis;
+    }
+
+    @OnlyUsedByTests
+    long getBudgetDelayCount() {
+        return budgetDelayCount;
+    }
+
+    private void sampleInternal() {
+        // getAllThreadIds() always includes the current thread, so it is never empty
+        // (see https://bugs.openjdk.java.net/browse/JDK-8074368)
+        @Nullable
+        ThreadInfo[] threadInfos =
+                threadMXBean.getThreadInfo(threadMXBean.getAllThreadIds(), maxStackDepth);
+        // capture time is read after the thread infos, so that a sample taken across the end of
+        // an interval is attributed to the next interval
+        long captureTime =
+                Utils.getRollupCaptureTime(clock.currentTimeMillis(), aggregateIntervalMillis);
+        synchronized (lock) {
+            if (captureTime <= lastFlushedCaptureTime) {
+                // the Aggregator has already flushed this interval
+                return;
+            }
+            MutableProfile profile = intervalProfiles.get(captureTime);
+            if (profile == null) {
+                profile = new MutableProfile();
+                intervalProfiles.put(captureTime, profile);
+            }
+            merge(threadInfos, profile);
+        }
+    }
+
+    private void merge(@Nullable ThreadInfo[] threadInfos, MutableProfile profile) {
+        for (ThreadInfo threadInfo : threadInfos) {
+            if (threadInfo == null || threadInfo.getThreadState() != Thread.State.RUNNABLE) {
+                // thread has terminated, or is not using cpu
+                continue;
+            }
+            String threadName = threadInfo.getThreadName();
+            if (threadName.startsWith("Glowroot-")) {
+                continue;
+            }
+            if (threadNamePattern != null && !threadNamePattern.matcher(threadName).matches()) {
+                continue;
+            }
+            StackTraceElement[] stackTrace = threadInfo.getStackTrace();
+            if (stackTrace.length > 0) {
+                profile.merge(Arrays.asList(stackTrace), Thread.State.RUNNABLE);
+            }
+        }
+    }
+
+    private class InternalRunnable implements Runnable {
+
+        private volatile boolean closed;
+
+        @Override
+        public void run() {
+            long delayMillis = intervalMillis;
+            while (!closed) {
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (InterruptedException e) {
+                    // probably shutdown requested (see close method above)
+                    logger.debug(e.getMessage(), e);
+                    continue;
+                }
+                try {
+                    delayMillis = sample();
+                } catch (Throwable t) {
+                    logger.error(t.getMessage(), t);
+                    delayMillis = intervalMillis;
+                }
+            }
+        }
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2017 the original author or authors.
+ * Copyright 2011-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -22,6 +22,7 @@ import java.util.Random;
 
 import javax.annotation.Nullable;
 
+import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import org.slf4j.Logger;
@@ -29,6 +30,7 @@ import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.config.ConfigService;
 import org.glowroot.agent.plugin.api.config.ConfigListener;
+import org.glowroot.agent.util.Tickers;
 import org.glowroot.common.util.OnlyUsedByTests;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -37,6 +39,8 @@ public class StackTraceCollector {
 
     private static final Logger logger = LoggerFactory.getLogger(StackTraceCollector.class);
 
+    private static final Ticker ticker = Tickers.getTicker();
+
     private final TransactionRegistry transactionRegistry;
     private final ConfigService configService;
     private final Random random;
@@ -44,6 +48,10 @@ public class StackTraceCollector {
     private final InternalRunnable runnable;
     private final Thread processingThread;
 
+    // only updated by the processing thread, this is mostly the time that the sampled threads are
+    // paused at a safepoint for ThreadMXBean.getThreadInfo()
+    private volatile long samplingNanos;
+
     public StackTraceCollector(TransactionRegistry transactionRegistry,
             final ConfigService configService, Random random) {
         this.transactionRegistry = transactionRegistry;
@@ -79,6 +87,10 @@ public class StackTraceCollector {
         processingThread.join();
     }
 
+    public long getSamplingNanos() {
+        return samplingNanos;
+    }
+
     static void captureStackTraces(List<ThreadContextImpl> threadContexts,
             ConfigService configService) {
         if (threadContexts.isEmpty()) {
@@ -159,7 +171,9 @@ public class StackTraceCollector {
                 }
                 activeThreadContexts.addAll(transaction.getActiveAuxThreadContexts());
             }
+            long startTick = ticker.read();
             captureStackTraces(activeThreadContexts, configService);
+            samplingNanos += ticker.read() - startTick;
         }
     }
 }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2017 the original author or authors.
+ * Copyright 2015-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -131,7 +131,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
     ThreadContextImpl(Transaction transaction, @Nullable TraceEntryImpl parentTraceEntry,
             @Nullable TraceEntryImpl parentThreadContextPriorEntry, MessageSupplier messageSupplier,
             TimerName rootTimerName, long startTick, boolean captureThreadStats,
-            @Nullable ThreadAllocatedBytes threadAllocatedBytes,
+            int blockedWaitedSampleWeight, @Nullable ThreadAllocatedBytes threadAllocatedBytes,
             boolean limitExceededAuxThreadContext, Ticker ticker,
             ThreadContextThreadLocal.Holder threadContextHolder,
             @Nullable ServletRequestInfo servletRequestInfo) {
@@ -143,8 +143,8 @@ public class ThreadContextImpl implements ThreadContextPlus {
                 rootTimer, startTick);
         this.parentThreadContextPriorEntry = parentThreadContextPriorEntry;
         threadId = Thread.currentThread().getId();
-        threadStatsComponent =
-                captureThreadStats ? new ThreadStatsComponent(threadAllocatedBytes) : null;
+        threadStatsComponent = captureThreadStats
+                ? new ThreadStatsComponent(threadAllocatedBytes, blockedWaitedSampleWeight) : null;
         this.limitExceededAuxThreadContext = limitExceededAuxThreadContext;
         this.ticker = ticker;
         this.threadContextHolder = threadContextHolder;
@@ -261,6 +261,13 @@ public class ThreadContextImpl implements ThreadContextPlus {
         return threadStatsComponent != null;
     }
 
+    int getBlockedWaitedSampleWeight() {
+        if (threadStatsComponent == null) {
+            return 0;
+        }
+        return threadStatsComponent.getBlockedWaitedSampleWeight();
+    }
+
     private boolean isCompleted(long captureTick) {
         if (!traceEntryComponent.isCompleted()) {
             return false;
@@ -1229,5 +1236,15 @@ public class ThreadContextImpl implements ThreadContextPlus {
             }
             return syncTimer.extend();
         }
+
+        @Override
+        protected Object getTransactionCompletionLock() {
+            return transaction.getCompletionLock();
+        }
+
+        @Override
+        protected boolean isTransactionCompleted() {
+            return transaction.isCompleted();
+        }
     }
 }
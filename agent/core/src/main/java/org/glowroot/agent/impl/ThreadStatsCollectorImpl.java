@@ -1,5 +1,5 @@
 /*
- * Copyright 2016 the original author or authors.
+ * Copyright 2016-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -29,6 +29,8 @@ class ThreadStatsCollectorImpl implements ThreadStatsCollector {
     private long totalBlockedMillis;
     private long totalWaitedMillis;
     private long totalAllocatedBytes;
+    // all threads of a transaction share the same sample weight
+    private int blockedWaitedSampleWeight = 1;
 
     private boolean empty = true;
 
@@ -41,6 +43,7 @@ class ThreadStatsCollectorImpl implements ThreadStatsCollector {
                 NotAvailableAware.add(totalWaitedMillis, threadStats.getTotalWaitedMillis());
         totalAllocatedBytes = NotAvailableAware.add(totalAllocatedBytes,
                 threadStats.getTotalAllocatedBytes());
+        blockedWaitedSampleWeight = threadStats.getBlockedWaitedSampleWeight();
         empty = false;
     }
 
@@ -56,7 +59,7 @@ class ThreadStatsCollectorImpl implements ThreadStatsCollector {
 
     ThreadStats getMergedThreadStats() {
         return new ThreadStats(totalCpuNanos, totalBlockedMillis, totalWaitedMillis,
-                totalAllocatedBytes);
+                totalAllocatedBytes, blockedWaitedSampleWeight);
     }
 
     public Trace.ThreadStats toProto() {
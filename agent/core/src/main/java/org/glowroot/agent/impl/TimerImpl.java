@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2017 the original author or authors.
+ * Copyright 2011-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -29,7 +29,7 @@ import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.model.CommonTimerImpl;
 import org.glowroot.agent.model.ImmutableTimerImplSnapshot;
-import org.glowroot.agent.model.MutableAggregateTimer;
+import org.glowroot.agent.model.MutableAggregateTimers;
 import org.glowroot.agent.model.MutableTraceTimer;
 import org.glowroot.agent.model.TimerNameImpl;
 import org.glowroot.agent.plugin.api.Timer;
@@ -172,6 +172,11 @@ public class TimerImpl implements Timer, CommonTimerImpl {
         return timerName.extended();
     }
 
+    @Override
+    public int getTimerNameId() {
+        return timerName.specialHashCode();
+    }
+
     // only called after transaction completion
     @Override
     public long getTotalNanos() {
@@ -184,6 +189,17 @@ public class TimerImpl implements Timer, CommonTimerImpl {
         return count;
     }
 
+    // count of this timer and all of its nested timers, only called after transaction completion
+    long getCountIncludingNested() {
+        long countIncludingNested = count;
+        TimerImpl curr = headChild;
+        while (curr != null) {
+            countIncludingNested += curr.getCountIncludingNested();
+            curr = curr.nextSibling;
+        }
+        return countIncludingNested;
+    }
+
     // only called after transaction completion
     @Override
     public void mergeChildTimersInto(List<MutableTraceTimer> childTimers) {
@@ -210,24 +226,10 @@ public class TimerImpl implements Timer, CommonTimerImpl {
 
     // only called after transaction completion
     @Override
-    public void mergeChildTimersInto2(List<MutableAggregateTimer> childTimers) {
+    public void mergeChildTimersInto(MutableAggregateTimers aggregateTimers, int pathId) {
         TimerImpl curr = headChild;
         while (curr != null) {
-            String currName = curr.getName();
-            boolean extended = curr.isExtended();
-            MutableAggregateTimer matchingChildTimer = null;
-            for (MutableAggregateTimer childTimer : childTimers) {
-                if (currName.equals(childTimer.getName()) && extended == childTimer.isExtended()) {
-                    matchingChildTimer = childTimer;
-                    break;
-                }
-            }
-            if (matchingChildTimer == null) {
-                matchingChildTimer = new MutableAggregateTimer(curr.getName(), curr.isExtended(), 0,
-                        0, new ArrayList<MutableAggregateTimer>());
-                childTimers.add(matchingChildTimer);
-            }
-            matchingChildTimer.merge(curr);
+            aggregateTimers.merge(pathId, curr);
             curr = curr.nextSibling;
         }
     }
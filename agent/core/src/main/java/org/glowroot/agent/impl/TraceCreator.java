@@ -179,6 +179,7 @@ public class TraceCreator {
         }
         builder.setEntryCount(entryCount);
         builder.setEntryLimitExceeded(transaction.isEntryLimitExceeded());
+        builder.setEntriesPartiallyCaptured(transaction.isEntriesPartiallyCaptured());
         builder.setMainThreadProfileSampleCount(mainProfileSampleCount);
         builder.setMainThreadProfileSampleLimitExceeded(
                 transaction.isMainThreadProfileSampleLimitExceeded());
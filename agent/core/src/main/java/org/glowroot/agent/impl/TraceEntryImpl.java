@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2017 the original author or authors.
+ * Copyright 2011-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -296,6 +296,16 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
         return locationStackTrace != null;
     }
 
+    @Override
+    protected Object getTransactionCompletionLock() {
+        return threadContext.getTransaction().getCompletionLock();
+    }
+
+    @Override
+    protected boolean isTransactionCompleted() {
+        return threadContext.getTransaction().isCompleted();
+    }
+
     void setLocationStackTrace(ImmutableList<StackTraceElement> locationStackTrace) {
         this.locationStackTrace = locationStackTrace;
     }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2017 the original author or authors.
+ * Copyright 2011-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -57,12 +57,14 @@ import org.glowroot.agent.model.AsyncTimerImpl;
 import org.glowroot.agent.model.CommonTimerImpl;
 import org.glowroot.agent.model.ErrorMessage;
 import org.glowroot.agent.model.ImmutableTimerImplSnapshot;
-import org.glowroot.agent.model.MutableAggregateTimer;
+import org.glowroot.agent.model.MutableAggregateTimers;
 import org.glowroot.agent.model.MutableTraceTimer;
 import org.glowroot.agent.model.QueryCollector;
 import org.glowroot.agent.model.ThreadProfile;
 import org.glowroot.agent.model.ThreadStats;
+import org.glowroot.agent.model.ThreadStatsComponent;
 import org.glowroot.agent.model.TimerNameImpl;
+import org.glowroot.agent.model.TimerNameRegistry;
 import org.glowroot.agent.plugin.api.Message;
 import org.glowroot.agent.plugin.api.MessageSupplier;
 import org.glowroot.agent.plugin.api.ThreadContext.ServletRequestInfo;
@@ -107,6 +109,13 @@ public class Transaction {
     private final long startTime;
     private final long startTick;
 
+    // see AdaptiveCaptureSampler
+    private final long fullCaptureTick;
+    private volatile boolean lightweightCapture;
+    // entries that are skipped during lightweight capture are not captured later, so their child
+    // entries end up attached to the closest captured ancestor entry
+    private volatile boolean entriesSkippedDuringLightweightCapture;
+
     private volatile boolean async;
     private volatile boolean outer;
 
@@ -205,8 +214,8 @@ public class Transaction {
 
     Transaction(long startTime, long startTick, String transactionType, String transactionName,
             MessageSupplier messageSupplier, TimerName timerName, boolean captureThreadStats,
-            int maxTraceEntriesPerTransaction, int maxAggregateQueriesPerType,
-            int maxAggregateServiceCallsPerType,
+            long fullCaptureTick, int maxTraceEntriesPerTransaction,
+            int maxAggregateQueriesPerType, int maxAggregateServiceCallsPerType,
             @Nullable ThreadAllocatedBytes threadAllocatedBytes,
             CompletionCallback completionCallback, Ticker ticker,
             TransactionRegistry transactionRegistry, TransactionServiceImpl transactionService,
@@ -216,6 +225,8 @@ public class Transaction {
         this.startTick = startTick;
         this.transactionType = transactionType;
         this.transactionName = transactionName;
+        this.fullCaptureTick = fullCaptureTick;
+        lightweightCapture = fullCaptureTick != startTick;
         this.maxTraceEntriesPerTransaction = maxTraceEntriesPerTransaction;
         this.maxAggregateQueriesPerType = maxAggregateQueriesPerType;
         this.maxAggregateServiceCallsPerType = maxAggregateServiceCallsPerType;
@@ -226,8 +237,9 @@ public class Transaction {
         this.transactionService = transactionService;
         this.configService = configService;
         mainThreadContext = new ThreadContextImpl(castInitialized(this), null, null,
-                messageSupplier, timerName, startTick, captureThreadStats, threadAllocatedBytes,
-                false, ticker, threadContextHolder, null);
+                messageSupplier, timerName, startTick, captureThreadStats,
+                captureThreadStats ? ThreadStatsComponent.nextBlockedWaitedSampleWeight() : 0,
+                threadAllocatedBytes, false, ticker, threadContextHolder, null);
     }
 
     long getStartTime() {
@@ -257,6 +269,11 @@ public class Transaction {
         return completed;
     }
 
+    // completed is set while holding this lock, see end()
+    Object getCompletionLock() {
+        return mainThreadContext;
+    }
+
     long getEndTick() {
         return endTick;
     }
@@ -326,6 +343,26 @@ public class Transaction {
         return mainThreadContext.getRootTimer();
     }
 
+    // used for estimating agent overhead (see AgentOverhead), so does not need to be exact (e.g. aux
+    // thread contexts that have already been merged are not included)
+    long getTimerCount() {
+        long timerCount = getMainThreadRootTimer().getCountIncludingNested();
+        synchronized (mainThreadContext) {
+            if (auxThreadContexts != null) {
+                for (ThreadContextImpl auxThreadContext : auxThreadContexts) {
+                    timerCount += auxThreadContext.getRootTimer().getCountIncludingNested();
+                }
+            }
+        }
+        return timerCount;
+    }
+
+    // includes entries that were not captured because of the entry limit, since they still incur
+    // most of the cost (timer and query data)
+    int getEntryCount() {
+        return entryLimitCounter;
+    }
+
     void mergeAuxThreadTimersInto(RootTimerCollector rootTimers) {
         synchronized (mainThreadContext) {
             if (auxThreadContexts == null) {
@@ -431,6 +468,11 @@ public class Transaction {
 
     // this method has side effect of incrementing counter
     boolean allowAnotherEntry() {
+        if (lightweightCapture && !upgradeToFullCapture()) {
+            // not counted against the entry limit, since entry limit exceeded would be misleading
+            entriesSkippedDuringLightweightCapture = true;
+            return false;
+        }
         return entryLimitCounter++ < maxTraceEntriesPerTransaction;
     }
 
@@ -441,6 +483,14 @@ public class Transaction {
                 || extraErrorEntryLimitCounter++ < maxTraceEntriesPerTransaction;
     }
 
+    private boolean upgradeToFullCapture() {
+        if (ticker.read() < fullCaptureTick) {
+            return false;
+        }
+        lightweightCapture = false;
+        return true;
+    }
+
     // this method has side effect of incrementing counter
     boolean allowAnotherAggregateQuery(boolean bypassLimit) {
         if (aggregateQueryLimitCounter++ < maxAggregateQueriesPerType
@@ -672,15 +722,15 @@ public class Transaction {
                 auxThreadContext = new ThreadContextImpl(this, parentTraceEntry,
                         parentThreadContextPriorEntry, AuxThreadRootMessageSupplier.INSTANCE,
                         auxTimerName, startTick, mainThreadContext.getCaptureThreadStats(),
-                        threadAllocatedBytes, false, ticker, threadContextHolder,
-                        servletRequestInfo);
+                        mainThreadContext.getBlockedWaitedSampleWeight(), threadAllocatedBytes,
+                        false, ticker, threadContextHolder, servletRequestInfo);
                 auxThreadContexts.add(auxThreadContext);
             } else {
                 auxThreadContext = new ThreadContextImpl(this, mainThreadContext.getRootEntry(),
                         mainThreadContext.getTailEntry(), AuxThreadRootMessageSupplier.INSTANCE,
                         auxTimerName, startTick, mainThreadContext.getCaptureThreadStats(),
-                        threadAllocatedBytes, true, ticker, threadContextHolder,
-                        servletRequestInfo);
+                        mainThreadContext.getBlockedWaitedSampleWeight(), threadAllocatedBytes,
+                        true, ticker, threadContextHolder, servletRequestInfo);
                 if (unmergedLimitExceededAuxThreadContexts == null) {
                     unmergedLimitExceededAuxThreadContexts = Sets.newHashSet();
                 }
@@ -756,6 +806,10 @@ public class Transaction {
         return entryLimitCounter > maxTraceEntriesPerTransaction;
     }
 
+    boolean isEntriesPartiallyCaptured() {
+        return entriesSkippedDuringLightweightCapture;
+    }
+
     void captureStackTrace(boolean auxiliary, ThreadInfo threadInfo, int limit) {
         if (completed) {
             return;
@@ -1032,13 +1086,18 @@ public class Transaction {
             return count;
         }
 
+        @Override
+        public int getTimerNameId() {
+            return TimerNameRegistry.INSTANCE.getId(name, false);
+        }
+
         @Override
         public void mergeChildTimersInto(List<MutableTraceTimer> childTimers) {
             // async timers have no child timers
         }
 
         @Override
-        public void mergeChildTimersInto2(List<MutableAggregateTimer> childTimers) {
+        public void mergeChildTimersInto(MutableAggregateTimers aggregateTimers, int pathId) {
             // async timers have no child timers
         }
 
@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2017 the original author or authors.
+ * Copyright 2011-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -17,12 +17,17 @@ package org.glowroot.agent.impl;
 
 import java.util.Collection;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.common.base.Ticker;
-import com.google.common.collect.Sets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Longs;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -50,7 +55,25 @@ public class TransactionCollector {
     private final Aggregator aggregator;
     private final Clock clock;
     private final Ticker ticker;
-    private final Set<Transaction> pendingTransactions = Sets.newCopyOnWriteArraySet();
+
+    // all traces that are waiting to be stored or are in the process of being stored
+    private final ConcurrentMap<Transaction, PendingTrace> pendingTraces =
+            Maps.newConcurrentMap();
+    // traces that are waiting to be stored, ordered from most valuable to least valuable
+    private final ConcurrentSkipListSet<PendingTrace> queuedTraces =
+            new ConcurrentSkipListSet<PendingTrace>();
+    private final AtomicLong pendingTraceSequence = new AtomicLong();
+
+    private final AtomicLong droppedTraceCount = new AtomicLong();
+    private final AtomicLong evictedTraceCount = new AtomicLong();
+    private final AtomicLong coalescedPartialTraceCount = new AtomicLong();
+
+    private final Runnable storeNextTraceRunnable = new Runnable() {
+        @Override
+        public void run() {
+            storeNextTrace();
+        }
+    };
 
     private final RateLimitedLogger backPressureLogger =
             new RateLimitedLogger(TransactionCollector.class);
@@ -94,10 +117,34 @@ public class TransactionCollector {
         return transaction.getErrorMessage() != null;
     }
 
+    // only returns completed transactions, since transactions with pending partial traces are
+    // still active
     public Collection<Transaction> getPendingTransactions() {
+        List<Transaction> pendingTransactions = Lists.newArrayList();
+        for (Map.Entry<Transaction, PendingTrace> entry : pendingTraces.entrySet()) {
+            if (!entry.getValue().partial) {
+                pendingTransactions.add(entry.getKey());
+            }
+        }
         return pendingTransactions;
     }
 
+    public int getPendingTraceCount() {
+        return pendingTraces.size();
+    }
+
+    public long getDroppedTraceCount() {
+        return droppedTraceCount.get();
+    }
+
+    public long getEvictedTraceCount() {
+        return evictedTraceCount.get();
+    }
+
+    public long getCoalescedPartialTraceCount() {
+        return coalescedPartialTraceCount.get();
+    }
+
     @OnlyUsedByTests
     public void close() throws InterruptedException {
         dedicatedExecutor.shutdown();
@@ -106,58 +153,105 @@ public class TransactionCollector {
         }
     }
 
-    void onCompletedTransaction(final Transaction transaction) {
+    void onCompletedTransaction(Transaction transaction) {
         // capture time is calculated by the aggregator because it depends on monotonically
         // increasing capture times so it can flush aggregates without concern for new data
         // arriving with a prior capture time
         long captureTime = aggregator.add(transaction);
-        final boolean slow = shouldStoreSlow(transaction);
-        if (!slow && !shouldStoreError(transaction)) {
+        boolean slow = shouldStoreSlow(transaction);
+        boolean error = shouldStoreError(transaction);
+        if (!slow && !error) {
             return;
         }
-        // limit doesn't apply to transactions that were already (partially) stored to make sure
-        // they don't get left out in case they cause an avalanche of slowness
-        if (pendingTransactions.size() >= PENDING_LIMIT && !transaction.isPartiallyStored()) {
+        // limit doesn't apply to transactions that were already (partially) stored (or have a
+        // partial trace waiting to be stored) to make sure they don't get left out in case they
+        // cause an avalanche of slowness
+        boolean update =
+                transaction.isPartiallyStored() || pendingTraces.containsKey(transaction);
+        PendingTrace pendingTrace = new PendingTrace(transaction, slow, false,
+                update ? PendingTrace.RANK_UPDATE
+                        : error ? PendingTrace.RANK_ERROR : PendingTrace.RANK_SLOW,
+                pendingTraceSequence.getAndIncrement());
+        if (!update && !makeRoomFor(pendingTrace)) {
+            droppedTraceCount.incrementAndGet();
             backPressureLogger.warn("not storing a trace because of an excessive backlog of {}"
-                    + " traces already waiting to be stored", PENDING_LIMIT);
+                    + " more valuable traces already waiting to be stored", PENDING_LIMIT);
             return;
         }
-        pendingTransactions.add(transaction);
 
         // this need to be called inside the transaction thread
         transaction.onCompleteWillStoreTrace(captureTime);
 
+        PendingTrace priorPendingTrace = pendingTraces.put(transaction, pendingTrace);
+        if (priorPendingTrace != null && queuedTraces.remove(priorPendingTrace)) {
+            // the completed trace supersedes the partial trace that was waiting to be stored
+            coalescedPartialTraceCount.incrementAndGet();
+        }
+        queuedTraces.add(pendingTrace);
         // transaction is ended, so Executor Plugin won't tie this async work to the transaction
         // (which is good)
-        dedicatedExecutor.execute(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    TraceReader traceReader =
-                            TraceCreator.createTraceReaderForCompleted(transaction, slow);
-                    collector.collectTrace(traceReader);
-                } catch (Throwable t) {
-                    logger.error(t.getMessage(), t);
-                } finally {
-                    pendingTransactions.remove(transaction);
-                }
-            }
-        });
+        dedicatedExecutor.execute(storeNextTraceRunnable);
     }
 
-    // no need to throttle partial trace storage since throttling is handled upstream by using a
-    // single thread executor in PartialTraceStorageWatcher
+    // no need to apply the pending limit to partial trace storage since throttling is handled
+    // upstream by ImmediateTraceStoreWatcher (at most one partial trace per transaction per period)
     public void storePartialTrace(Transaction transaction) {
+        PendingTrace pendingTrace = new PendingTrace(transaction, true, true,
+                PendingTrace.RANK_UPDATE, pendingTraceSequence.getAndIncrement());
+        if (pendingTraces.putIfAbsent(transaction, pendingTrace) != null) {
+            // the prior partial trace for this transaction has not been stored yet (or the
+            // completed trace is already waiting to be stored), and the trace is captured at the
+            // time it is stored, so this update would be redundant
+            coalescedPartialTraceCount.incrementAndGet();
+            return;
+        }
+        queuedTraces.add(pendingTrace);
+        dedicatedExecutor.execute(storeNextTraceRunnable);
+    }
+
+    // evicts less valuable traces if needed, returns false if there are too many more valuable
+    // traces already waiting to be stored
+    private boolean makeRoomFor(PendingTrace pendingTrace) {
+        while (pendingTraces.size() >= PENDING_LIMIT) {
+            PendingTrace leastValuable = queuedTraces.isEmpty() ? null : queuedTraces.last();
+            if (leastValuable == null || leastValuable.rank == PendingTrace.RANK_UPDATE
+                    || !pendingTrace.isMoreValuableThan(leastValuable)) {
+                return false;
+            }
+            if (queuedTraces.remove(leastValuable)) {
+                pendingTraces.remove(leastValuable.transaction, leastValuable);
+                evictedTraceCount.incrementAndGet();
+            }
+        }
+        return true;
+    }
+
+    // one store task is submitted for each queued trace, but the most valuable queued trace is
+    // stored first (and there is nothing to do when the queued trace was evicted or superseded)
+    private void storeNextTrace() {
+        PendingTrace pendingTrace = queuedTraces.pollFirst();
+        if (pendingTrace == null) {
+            return;
+        }
+        Transaction transaction = pendingTrace.transaction;
         try {
-            TraceReader traceReader = TraceCreator.createTraceReaderForPartial(transaction,
-                    clock.currentTimeMillis(), ticker.read());
-            // one last check if transaction has completed
-            if (!transaction.isCompleted()) {
-                transaction.setPartiallyStored();
+            if (pendingTrace.partial) {
+                TraceReader traceReader = TraceCreator.createTraceReaderForPartial(transaction,
+                        clock.currentTimeMillis(), ticker.read());
+                // one last check if transaction has completed
+                if (!transaction.isCompleted()) {
+                    transaction.setPartiallyStored();
+                    collector.collectTrace(traceReader);
+                }
+            } else {
+                TraceReader traceReader =
+                        TraceCreator.createTraceReaderForCompleted(transaction, pendingTrace.slow);
                 collector.collectTrace(traceReader);
             }
-        } catch (Exception e) {
-            logger.error(e.getMessage(), e);
+        } catch (Throwable t) {
+            logger.error(t.getMessage(), t);
+        } finally {
+            pendingTraces.remove(transaction, pendingTrace);
         }
     }
 
@@ -169,4 +263,48 @@ public class TransactionCollector {
         }
         return false;
     }
+
+    private static class PendingTrace implements Comparable<PendingTrace> {
+
+        // updates to traces that were already (partially) stored are never evicted
+        private static final int RANK_UPDATE = 2;
+        private static final int RANK_ERROR = 1;
+        private static final int RANK_SLOW = 0;
+
+        private final Transaction transaction;
+        private final boolean slow;
+        private final boolean partial;
+        private final int rank;
+        private final long durationNanos;
+        private final long sequence;
+
+        private PendingTrace(Transaction transaction, boolean slow, boolean partial, int rank,
+                long sequence) {
+            this.transaction = transaction;
+            this.slow = slow;
+            this.partial = partial;
+            this.rank = rank;
+            this.durationNanos = transaction.getDurationNanos();
+            this.sequence = sequence;
+        }
+
+        private boolean isMoreValuableThan(PendingTrace other) {
+            if (rank != other.rank) {
+                return rank > other.rank;
+            }
+            return durationNanos > other.durationNanos;
+        }
+
+        // most valuable first, and then oldest first
+        @Override
+        public int compareTo(PendingTrace other) {
+            if (rank != other.rank) {
+                return rank > other.rank ? -1 : 1;
+            }
+            if (durationNanos != other.durationNanos) {
+                return durationNanos > other.durationNanos ? -1 : 1;
+            }
+            return Longs.compare(sequence, other.sequence);
+        }
+    }
 }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2017 the original author or authors.
+ * Copyright 2011-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -42,6 +42,9 @@ public class TransactionServiceImpl implements ConfigListener {
     private final Clock clock;
     private final Ticker ticker;
 
+    private final @Nullable AdaptiveCaptureSampler adaptiveCaptureSampler =
+            AdaptiveCaptureSampler.create();
+
     private final TransactionCompletionCallback transactionCompletionCallback =
             new TransactionCompletionCallback();
 
@@ -83,9 +86,11 @@ public class TransactionServiceImpl implements ConfigListener {
         // ensure visibility of recent configuration updates
         configService.readMemoryBarrier();
         long startTick = ticker.read();
+        long fullCaptureTick = adaptiveCaptureSampler == null ? startTick
+                : adaptiveCaptureSampler.getFullCaptureTick(startTick);
         Transaction transaction = new Transaction(clock.currentTimeMillis(), startTick,
                 transactionType, transactionName, messageSupplier, timerName, captureThreadStats,
-                maxTraceEntriesPerTransaction, maxAggregateQueriesPerType,
+                fullCaptureTick, maxTraceEntriesPerTransaction, maxAggregateQueriesPerType,
                 maxAggregateServiceCallsPerType, threadAllocatedBytes,
                 transactionCompletionCallback, ticker, transactionRegistry, this, configService,
                 userProfileScheduler, threadContextHolder);
@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2017 the original author or authors.
+ * Copyright 2011-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -40,6 +40,7 @@ import org.glowroot.agent.config.ConfigService;
 import org.glowroot.agent.config.PluginCache;
 import org.glowroot.agent.config.PluginDescriptor;
 import org.glowroot.agent.impl.Aggregator;
+import org.glowroot.agent.impl.BackgroundProfiler;
 import org.glowroot.agent.impl.ConfigServiceImpl;
 import org.glowroot.agent.impl.GlowrootServiceImpl;
 import org.glowroot.agent.impl.ServiceRegistryImpl;
@@ -105,6 +106,8 @@ public class AgentModule {
 
     private final GaugeCollector gaugeCollector;
     private final StackTraceCollector stackTraceCollector;
+    private final @Nullable BackgroundProfiler backgroundProfiler;
+    private final AgentOverhead agentOverhead;
 
     private final ImmediateTraceStoreWatcher immedateTraceStoreWatcher;
 
@@ -174,7 +177,9 @@ public class AgentModule {
         deadlockedActiveWeavingRunnable = new DeadlockedActiveWeavingRunnable(weaver);
         deadlockedActiveWeavingRunnable.scheduleWithFixedDelay(backgroundExecutor, 5, 5, SECONDS);
 
-        aggregator = new Aggregator(collector, configService, ROLLUP_0_INTERVAL_MILLIS, clock);
+        backgroundProfiler = BackgroundProfiler.create(ROLLUP_0_INTERVAL_MILLIS, clock, ticker);
+        aggregator = new Aggregator(collector, configService, backgroundProfiler,
+                ROLLUP_0_INTERVAL_MILLIS, clock);
         transactionCollector =
                 new TransactionCollector(configService, collector, aggregator, clock, ticker);
 
@@ -211,12 +216,19 @@ public class AgentModule {
                         "org.glowroot:type=FileSystem,name=" + name);
             }
         }
+        lazyPlatformMBeanServer.lazyRegisterMBean(new TraceCollectorStats(transactionCollector),
+                "org.glowroot:type=TraceCollector");
         gaugeCollector = new GaugeCollector(configService, collector, lazyPlatformMBeanServer,
                 clock, ticker);
         // using fixed rate to keep gauge collections close to on the second mark
         long gaugeCollectionIntervalMillis = configService.getGaugeCollectionIntervalMillis();
         gaugeCollector.scheduleWithFixedDelay(gaugeCollectionIntervalMillis, MILLISECONDS);
         stackTraceCollector = new StackTraceCollector(transactionRegistry, configService, random);
+        agentOverhead = new AgentOverhead(weaver, aggregator, stackTraceCollector,
+                backgroundProfiler, ticker);
+        agentOverhead.scheduleWithFixedDelay(backgroundExecutor);
+        lazyPlatformMBeanServer.lazyRegisterMBean(agentOverhead,
+                "org.glowroot:type=AgentOverhead");
 
         immedateTraceStoreWatcher = new ImmediateTraceStoreWatcher(backgroundExecutor,
                 transactionRegistry, transactionCollector, configService, ticker);
@@ -354,7 +366,11 @@ public class AgentModule {
     public void close() throws Exception {
         immedateTraceStoreWatcher.cancel();
         stackTraceCollector.close();
+        if (backgroundProfiler != null) {
+            backgroundProfiler.close();
+        }
         gaugeCollector.close();
+        agentOverhead.cancel();
         lazyPlatformMBeanServer.close();
         transactionCollector.close();
         aggregator.close();
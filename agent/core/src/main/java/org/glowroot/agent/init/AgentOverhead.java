@@ -0,0 +1,156 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.init;
+
+import java.util.concurrent.ScheduledExecutorService;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Ticker;
+
+import org.glowroot.agent.impl.Aggregator;
+import org.glowroot.agent.impl.BackgroundProfiler;
+import org.glowroot.agent.impl.StackTraceCollector;
+import org.glowroot.agent.weaving.Weaver;
+import org.glowroot.common.util.ScheduledRunnable;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// estimate of what the agent is costing the jvm
+//
+// work done on glowroot's own threads (and weaving) is measured directly, while work done on the
+// application threads is estimated from the number of transactions, timers and trace entries
+// multiplied by their per-operation cost, since measuring it directly would cost more than the
+// operations themselves
+//
+// the per-operation cost defaults are ballpark numbers from TransactionBenchmark, TimerBenchmark
+// and TraceEntryBenchmark (see agent/benchmarks), for a calibrated estimate run those benchmarks
+// on the target hardware and set the system properties below from the results
+//
+// the estimated overhead percent is computed once per PERCENT_INTERVAL_SECONDS by the scheduled
+// run, so that multiple readers of this mbean all see the same value
+class AgentOverhead extends ScheduledRunnable implements AgentOverheadMXBean {
+
+    private static final long TRANSACTION_NANOS =
+            Long.getLong("glowroot.overhead.transactionNanos", 5000);
+    private static final long TIMER_NANOS = Long.getLong("glowroot.overhead.timerNanos", 50);
+    private static final long TRACE_ENTRY_NANOS =
+            Long.getLong("glowroot.overhead.traceEntryNanos", 250);
+
+    static final long PERCENT_INTERVAL_SECONDS = 10;
+
+    private final Weaver weaver;
+    private final Aggregator aggregator;
+    private final StackTraceCollector stackTraceCollector;
+    private final @Nullable BackgroundProfiler backgroundProfiler;
+    private final Ticker ticker;
+
+    private final int availableProcessors = Runtime.getRuntime().availableProcessors();
+
+    // only accessed by the scheduled run
+    private long priorTick;
+    private long priorEstimatedOverheadNanos;
+
+    private volatile double estimatedOverheadPercent;
+
+    AgentOverhead(Weaver weaver, Aggregator aggregator, StackTraceCollector stackTraceCollector,
+            @Nullable BackgroundProfiler backgroundProfiler, Ticker ticker) {
+        this.weaver = weaver;
+        this.aggregator = aggregator;
+        this.stackTraceCollector = stackTraceCollector;
+        this.backgroundProfiler = backgroundProfiler;
+        this.ticker = ticker;
+        priorTick = ticker.read();
+        priorEstimatedOverheadNanos = getEstimatedOverheadNanos();
+    }
+
+    @Override
+    public long getTransactionCount() {
+        return aggregator.getTransactionCount();
+    }
+
+    @Override
+    public long getTimerCount() {
+        return aggregator.getTimerCount();
+    }
+
+    @Override
+    public long getTraceEntryCount() {
+        return aggregator.getTraceEntryCount();
+    }
+
+    @Override
+    public long getWeavingTimeMillis() {
+        return NANOSECONDS.toMillis(weaver.getWeavingNanos());
+    }
+
+    @Override
+    public long getStackTraceSamplingTimeMillis() {
+        return NANOSECONDS.toMillis(getStackTraceSamplingNanos());
+    }
+
+    @Override
+    public long getAggregationTimeMillis() {
+        return NANOSECONDS.toMillis(aggregator.getProcessingNanos());
+    }
+
+    @Override
+    public long getEstimatedOverheadTimeMillis() {
+        return NANOSECONDS.toMillis(getEstimatedOverheadNanos());
+    }
+
+    @Override
+    public double getEstimatedOverheadPercent() {
+        return estimatedOverheadPercent;
+    }
+
+    void scheduleWithFixedDelay(ScheduledExecutorService backgroundExecutor) {
+        scheduleWithFixedDelay(backgroundExecutor, PERCENT_INTERVAL_SECONDS,
+                PERCENT_INTERVAL_SECONDS, SECONDS);
+    }
+
+    @Override
+    protected void runInternal() {
+        long currTick = ticker.read();
+        long intervalNanos = currTick - priorTick;
+        if (intervalNanos <= 0) {
+            return;
+        }
+        long estimatedOverheadNanos = getEstimatedOverheadNanos();
+        estimatedOverheadPercent = 100.0 * (estimatedOverheadNanos - priorEstimatedOverheadNanos)
+                / ((double) intervalNanos * availableProcessors);
+        priorTick = currTick;
+        priorEstimatedOverheadNanos = estimatedOverheadNanos;
+    }
+
+    long getEstimatedOverheadNanos() {
+        long measuredNanos = weaver.getWeavingNanos() + getStackTraceSamplingNanos()
+                + aggregator.getProcessingNanos();
+        long estimatedNanos = aggregator.getTransactionCount() * TRANSACTION_NANOS
+                + aggregator.getTimerCount() * TIMER_NANOS
+                + aggregator.getTraceEntryCount() * TRACE_ENTRY_NANOS;
+        return measuredNanos + estimatedNanos;
+    }
+
+    private long getStackTraceSamplingNanos() {
+        long samplingNanos = stackTraceCollector.getSamplingNanos();
+        if (backgroundProfiler != null) {
+            samplingNanos += backgroundProfiler.getSamplingNanos();
+        }
+        return samplingNanos;
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.init;
+
+import org.glowroot.agent.impl.TransactionCollector;
+
+class TraceCollectorStats implements TraceCollectorStatsMXBean {
+
+    private final TransactionCollector transactionCollector;
+
+    TraceCollectorStats(TransactionCollector transactionCollector) {
+        this.transactionCollector = transactionCollector;
+    }
+
+    @Override
+    public int getPendingTraceCount() {
+        return transactionCollector.getPendingTraceCount();
+    }
+
+    @Override
+    public long getDroppedTraceCount() {
+        return transactionCollector.getDroppedTraceCount();
+    }
+
+    @Override
+    public long getEvictedTraceCount() {
+        return transactionCollector.getEvictedTraceCount();
+    }
+
+    @Override
+    public long getCoalescedPartialTraceCount() {
+        return transactionCollector.getCoalescedPartialTraceCount();
+    }
+}
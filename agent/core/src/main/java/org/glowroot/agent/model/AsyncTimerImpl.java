@@ -1,5 +1,5 @@
 /*
- * Copyright 2016 the original author or authors.
+ * Copyright 2016-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -54,6 +54,11 @@ public class AsyncTimerImpl implements CommonTimerImpl {
         return false;
     }
 
+    @Override
+    public int getTimerNameId() {
+        return timerName.specialHashCode();
+    }
+
     @Override
     public long getTotalNanos() {
         long totalNanos = this.totalNanos;
@@ -75,7 +80,7 @@ public class AsyncTimerImpl implements CommonTimerImpl {
     }
 
     @Override
-    public void mergeChildTimersInto2(List<MutableAggregateTimer> childTimers) {
+    public void mergeChildTimersInto(MutableAggregateTimers aggregateTimers, int pathId) {
         // async timers have no child timers
     }
 
@@ -1,5 +1,5 @@
 /*
- * Copyright 2016 the original author or authors.
+ * Copyright 2016-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -31,9 +31,12 @@ public interface CommonTimerImpl {
 
     long getCount();
 
+    // see TimerNameRegistry
+    int getTimerNameId();
+
     void mergeChildTimersInto(List<MutableTraceTimer> childTimers);
 
-    void mergeChildTimersInto2(List<MutableAggregateTimer> childTimers);
+    void mergeChildTimersInto(MutableAggregateTimers aggregateTimers, int pathId);
 
     TimerImplSnapshot getSnapshot();
 
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2016 the original author or authors.
+ * Copyright 2015-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,9 +15,7 @@
  */
 package org.glowroot.agent.model;
 
-import java.util.Arrays;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nullable;
@@ -29,6 +27,12 @@ import org.immutables.value.Value;
 import org.glowroot.common.util.Styles;
 import org.glowroot.wire.api.model.Proto;
 
+// the throwable is converted at the time the error is captured, so that only the converted stack
+// trace frames are retained (and not the throwable and everything that it references), and so that
+// the transaction throwable frame limit is applied in the order that the errors occurred
+//
+// the converted stack trace elements are shared across repeated throwables (see
+// StackTraceInternPool), which keeps the cost of converting at capture time low
 @Value.Immutable
 @Styles.AllParameters
 public abstract class ErrorMessage {
@@ -63,31 +67,25 @@ public abstract class ErrorMessage {
     }
 
     private static Proto.Throwable buildThrowableInfo(Throwable t,
-            @Nullable List<StackTraceElement> causedStackTrace,
+            StackTraceElement /*@Nullable*/ [] causedStackTrace,
             AtomicInteger transactionThrowableFrameCount, int recursionDepth) {
         int framesInCommonWithEnclosing = 0;
-        ImmutableList<StackTraceElement> stackTrace = ImmutableList.of();
+        StackTraceElement[] stackTrace = t.getStackTrace();
+        List<Proto.StackTraceElement> stackTraceElements = ImmutableList.of();
         if (transactionThrowableFrameCount.get() < TRANSACTION_THROWABLE_FRAME_LIMIT) {
-            stackTrace = ImmutableList.copyOf(t.getStackTrace());
+            int length = stackTrace.length;
             if (causedStackTrace != null) {
-                ListIterator<StackTraceElement> i = stackTrace.listIterator(stackTrace.size());
-                ListIterator<StackTraceElement> j =
-                        causedStackTrace.listIterator(causedStackTrace.size());
-                while (i.hasPrevious() && j.hasPrevious()) {
-                    StackTraceElement element = i.previous();
-                    StackTraceElement causedElement = j.previous();
-                    if (!element.equals(causedElement)) {
-                        break;
-                    }
-                    framesInCommonWithEnclosing++;
-                }
-                if (framesInCommonWithEnclosing > 0) {
+                int causedIndex = causedStackTrace.length - 1;
+                while (length > 0 && causedIndex >= 0
+                        && stackTrace[length - 1].equals(causedStackTrace[causedIndex])) {
                     // strip off common frames
-                    stackTrace =
-                            stackTrace.subList(0, stackTrace.size() - framesInCommonWithEnclosing);
+                    length--;
+                    causedIndex--;
+                    framesInCommonWithEnclosing++;
                 }
             }
-            transactionThrowableFrameCount.addAndGet(stackTrace.size());
+            stackTraceElements = StackTraceInternPool.INSTANCE.intern(stackTrace, length);
+            transactionThrowableFrameCount.addAndGet(length);
         }
         Proto.Throwable.Builder builder = Proto.Throwable.newBuilder()
                 .setClassName(t.getClass().getName());
@@ -95,9 +93,7 @@ public abstract class ErrorMessage {
         if (message != null) {
             builder.setMessage(message);
         }
-        for (StackTraceElement element : stackTrace) {
-            builder.addStackTraceElement(toProto(element));
-        }
+        builder.addAllStackTraceElement(stackTraceElements);
         builder.setFramesInCommonWithEnclosing(framesInCommonWithEnclosing);
         Throwable cause = t.getCause();
         if (cause == null) {
@@ -116,8 +112,8 @@ public abstract class ErrorMessage {
                     .build());
         } else {
             // pass t's original stack trace to construct the nested cause
-            // (not stackTraces, which now has common frames removed)
-            builder.setCause(buildThrowableInfo(cause, Arrays.asList(t.getStackTrace()),
+            // (not stackTraceElements, which has common frames removed)
+            builder.setCause(buildThrowableInfo(cause, stackTrace,
                     transactionThrowableFrameCount, recursionDepth + 1));
         }
         return builder.build();
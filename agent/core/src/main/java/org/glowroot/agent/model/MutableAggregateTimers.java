@@ -0,0 +1,180 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+// aggregate timer trees stored as primitive arrays indexed by path id, where each path id
+// identifies a timer name (see TimerNameRegistry) under a parent path, so merging a transaction's
+// timers is a path lookup and an array addition per timer, instead of a scan comparing timer names
+// at every level of the tree
+//
+// path ids are local to this instance (and assigned in the order the paths are first merged) so
+// that the tables are released along with the aggregate at the end of each aggregation interval
+//
+// must be used under an appropriate lock
+public class MutableAggregateTimers {
+
+    public static final int ROOT_PATH_ID = -1;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private int[] parentPathIds = new int[INITIAL_CAPACITY];
+    private int[] timerNameIds = new int[INITIAL_CAPACITY];
+    // aggregates use double instead of long to avoid (unlikely) 292 year nanosecond rollover
+    private double[] totalNanos = new double[INITIAL_CAPACITY];
+    private long[] counts = new long[INITIAL_CAPACITY];
+    private int size;
+
+    // open addressing hash table from (parent path id, timer name id) to path id + 1 (so that
+    // zero can mark an empty slot), capacity must always be a power of 2
+    private long[] pathKeys = new long[INITIAL_CAPACITY << 1];
+    private int[] pathValues = new int[INITIAL_CAPACITY << 1];
+
+    public void mergeRootTimer(CommonTimerImpl rootTimer) {
+        merge(ROOT_PATH_ID, rootTimer);
+    }
+
+    public void merge(int parentPathId, CommonTimerImpl timer) {
+        int pathId = getOrCreatePathId(parentPathId, timer.getTimerNameId());
+        totalNanos[pathId] += timer.getTotalNanos();
+        counts[pathId] += timer.getCount();
+        timer.mergeChildTimersInto(this, pathId);
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public List<Aggregate.Timer> toProto() {
+        if (size == 0) {
+            return Lists.newArrayList();
+        }
+        // parents are always merged before their children, so child path ids are always greater
+        // than their parent path id, and children are linked here in the order they were merged
+        int[] firstChildPathIds = new int[size];
+        int[] lastChildPathIds = new int[size];
+        int[] nextSiblingPathIds = new int[size];
+        Arrays.fill(firstChildPathIds, -1);
+        Arrays.fill(nextSiblingPathIds, -1);
+        List<Integer> rootPathIds = Lists.newArrayList();
+        for (int pathId = 0; pathId < size; pathId++) {
+            int parentPathId = parentPathIds[pathId];
+            if (parentPathId == ROOT_PATH_ID) {
+                rootPathIds.add(pathId);
+            } else if (firstChildPathIds[parentPathId] == -1) {
+                firstChildPathIds[parentPathId] = pathId;
+                lastChildPathIds[parentPathId] = pathId;
+            } else {
+                nextSiblingPathIds[lastChildPathIds[parentPathId]] = pathId;
+                lastChildPathIds[parentPathId] = pathId;
+            }
+        }
+        List<Aggregate.Timer> rootTimers = Lists.newArrayList();
+        for (int rootPathId : rootPathIds) {
+            rootTimers.add(toProto(rootPathId, firstChildPathIds, nextSiblingPathIds));
+        }
+        return rootTimers;
+    }
+
+    private Aggregate.Timer toProto(int pathId, int[] firstChildPathIds,
+            int[] nextSiblingPathIds) {
+        int timerNameId = timerNameIds[pathId];
+        Aggregate.Timer.Builder builder = Aggregate.Timer.newBuilder()
+                .setName(TimerNameRegistry.INSTANCE.getName(timerNameId))
+                .setExtended(TimerNameRegistry.INSTANCE.isExtended(timerNameId))
+                .setTotalNanos(totalNanos[pathId])
+                .setCount(counts[pathId]);
+        int childPathId = firstChildPathIds[pathId];
+        while (childPathId != -1) {
+            builder.addChildTimer(toProto(childPathId, firstChildPathIds, nextSiblingPathIds));
+            childPathId = nextSiblingPathIds[childPathId];
+        }
+        return builder.build();
+    }
+
+    private int getOrCreatePathId(int parentPathId, int timerNameId) {
+        long key = pathKey(parentPathId, timerNameId);
+        int mask = pathKeys.length - 1;
+        int slot = hash(key) & mask;
+        while (true) {
+            int value = pathValues[slot];
+            if (value == 0) {
+                return createPathId(parentPathId, timerNameId, key, slot);
+            }
+            if (pathKeys[slot] == key) {
+                return value - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private int createPathId(int parentPathId, int timerNameId, long key, int slot) {
+        int pathId = size++;
+        if (pathId == parentPathIds.length) {
+            int newCapacity = pathId << 1;
+            parentPathIds = Arrays.copyOf(parentPathIds, newCapacity);
+            timerNameIds = Arrays.copyOf(timerNameIds, newCapacity);
+            totalNanos = Arrays.copyOf(totalNanos, newCapacity);
+            counts = Arrays.copyOf(counts, newCapacity);
+        }
+        parentPathIds[pathId] = parentPathId;
+        timerNameIds[pathId] = timerNameId;
+        pathKeys[slot] = key;
+        pathValues[slot] = pathId + 1;
+        // keep the load factor at or below 0.5
+        if (size << 1 > pathKeys.length) {
+            rehash();
+        }
+        return pathId;
+    }
+
+    private void rehash() {
+        int newCapacity = pathKeys.length << 1;
+        int mask = newCapacity - 1;
+        long[] newPathKeys = new long[newCapacity];
+        int[] newPathValues = new int[newCapacity];
+        for (int i = 0; i < pathKeys.length; i++) {
+            int value = pathValues[i];
+            if (value != 0) {
+                long key = pathKeys[i];
+                int slot = hash(key) & mask;
+                while (newPathValues[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                newPathKeys[slot] = key;
+                newPathValues[slot] = value;
+            }
+        }
+        pathKeys = newPathKeys;
+        pathValues = newPathValues;
+    }
+
+    private static long pathKey(int parentPathId, int timerNameId) {
+        return ((long) parentPathId << 32) | (timerNameId & 0xFFFFFFFFL);
+    }
+
+    private static int hash(long key) {
+        int hash = (int) (key ^ (key >>> 32)) * 0x9E3779B9;
+        // spread the higher bits since the slot is taken from the lower bits
+        return hash ^ (hash >>> 16);
+    }
+}
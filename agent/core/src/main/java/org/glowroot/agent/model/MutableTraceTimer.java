@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2016 the original author or authors.
+ * Copyright 2015-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -64,6 +64,11 @@ public class MutableTraceTimer implements CommonTimerImpl {
         return count;
     }
 
+    @Override
+    public int getTimerNameId() {
+        return TimerNameRegistry.INSTANCE.getId(name, extended);
+    }
+
     @Override
     public void mergeChildTimersInto(List<MutableTraceTimer> childTimers) {
         for (MutableTraceTimer curr : this.childTimers) {
@@ -86,23 +91,9 @@ public class MutableTraceTimer implements CommonTimerImpl {
     }
 
     @Override
-    public void mergeChildTimersInto2(List<MutableAggregateTimer> childTimers) {
-        for (MutableTraceTimer curr : this.childTimers) {
-            String currName = curr.getName();
-            boolean extended = curr.isExtended();
-            MutableAggregateTimer matchingChildTimer = null;
-            for (MutableAggregateTimer childTimer : childTimers) {
-                if (currName.equals(childTimer.getName()) && extended == childTimer.isExtended()) {
-                    matchingChildTimer = childTimer;
-                    break;
-                }
-            }
-            if (matchingChildTimer == null) {
-                matchingChildTimer = new MutableAggregateTimer(curr.getName(), curr.isExtended(), 0,
-                        0, new ArrayList<MutableAggregateTimer>());
-                childTimers.add(matchingChildTimer);
-            }
-            matchingChildTimer.merge(curr);
+    public void mergeChildTimersInto(MutableAggregateTimers aggregateTimers, int pathId) {
+        for (MutableTraceTimer childTimer : childTimers) {
+            aggregateTimers.merge(pathId, childTimer);
         }
     }
 
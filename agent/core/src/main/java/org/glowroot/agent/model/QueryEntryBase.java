@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2016 the original author or authors.
+ * Copyright 2015-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -50,33 +50,42 @@ public abstract class QueryEntryBase implements QueryEntry {
     @Override
     public void rowNavigationAttempted() {
         if (currRow == -1) {
-            currRow = 0;
             if (queryData != null) {
                 // queryData can be null here if the aggregated query limit is exceeded
                 // (though typically query limit is larger than trace entry limit)
-                queryData.setHasTotalRows();
+                synchronized (getTransactionCompletionLock()) {
+                    if (isTransactionCompleted()) {
+                        return;
+                    }
+                    queryData.setHasTotalRows();
+                }
             }
+            currRow = 0;
         }
     }
 
     @Override
     public void incrementCurrRow() {
         if (currRow == -1) {
-            currRow = 1;
-            maxRow = 1;
             if (queryData != null) {
                 // queryData can be null here if the aggregated query limit is exceeded
                 // (though typically query limit is larger than trace entry limit)
-                queryData.incrementRowCount(1);
+                if (!incrementRowCount(queryData, 1)) {
+                    return;
+                }
             }
+            currRow = 1;
+            maxRow = 1;
         } else if (currRow == maxRow) {
-            currRow++;
-            maxRow = currRow;
             if (queryData != null) {
                 // queryData can be null here if the query limit is exceeded
                 // (though typically query limit is larger than trace entry limit)
-                queryData.incrementRowCount(1);
+                if (!incrementRowCount(queryData, 1)) {
+                    return;
+                }
             }
+            currRow++;
+            maxRow = currRow;
         } else {
             currRow++;
         }
@@ -88,13 +97,36 @@ public abstract class QueryEntryBase implements QueryEntry {
             if (queryData != null) {
                 // queryData can be null here if the aggregated query limit is exceeded
                 // (though typically query limit is larger than trace entry limit)
-                queryData.incrementRowCount(row - maxRow);
+                if (!incrementRowCount(queryData, row - maxRow)) {
+                    return;
+                }
             }
             maxRow = row;
         }
         currRow = row;
     }
 
+    // row navigation can be passed on lazily by plugins (e.g. when a statement is closed), which
+    // can happen after the transaction has completed and its query data has been handed off to be
+    // aggregated
+    //
+    // the transaction is marked completed while holding this lock, so checking for completion and
+    // updating the query data while holding it ensures that either the update is visible to the
+    // aggregation or the update is dropped
+    private boolean incrementRowCount(QueryData queryData, long count) {
+        synchronized (getTransactionCompletionLock()) {
+            if (isTransactionCompleted()) {
+                return false;
+            }
+            queryData.incrementRowCount(count);
+            return true;
+        }
+    }
+
+    protected abstract Object getTransactionCompletionLock();
+
+    protected abstract boolean isTransactionCompleted();
+
     // row count -1 means no navigation has been attempted
     // row count 0 means that navigation has been attempted but there were 0 rows
     protected boolean isRowNavigationAttempted() {
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.google.common.collect.ImmutableList;
+
+import org.glowroot.wire.api.model.Proto;
+
+// agent-wide pool of converted throwable stack traces, so that repeated throwables (e.g. during an
+// error storm caused by a downstream outage) share the same converted stack trace elements instead
+// of converting (and retaining) the same stack trace over and over
+//
+// the pool is direct-mapped by stack trace hash, which keeps it bounded and lock-free (a colliding
+// stack trace simply replaces the prior one in its slot)
+class StackTraceInternPool {
+
+    private static final int SIZE;
+
+    static {
+        int size = Integer.getInteger("glowroot.throwable.internPoolSize", 1024);
+        // round up to power of 2
+        SIZE = Integer.highestOneBit(Math.max(size, 1) * 2 - 1);
+    }
+
+    static final StackTraceInternPool INSTANCE = new StackTraceInternPool(SIZE);
+
+    private final AtomicReferenceArray</*@Nullable*/ Entry> slots;
+    private final int mask;
+
+    StackTraceInternPool(int size) {
+        slots = new AtomicReferenceArray</*@Nullable*/ Entry>(size);
+        mask = size - 1;
+    }
+
+    // only the first length elements of the stack trace are used
+    List<Proto.StackTraceElement> intern(StackTraceElement[] stackTrace, int length) {
+        int hash = hash(stackTrace, length);
+        int slot = hash & mask;
+        Entry entry = slots.get(slot);
+        if (entry != null && entry.hash == hash && entry.matches(stackTrace, length)) {
+            return entry.elements;
+        }
+        ImmutableList.Builder<Proto.StackTraceElement> elements = ImmutableList.builder();
+        StackTraceElement[] frames = new StackTraceElement[length];
+        for (int i = 0; i < length; i++) {
+            elements.add(ErrorMessage.toProto(stackTrace[i]));
+            frames[i] = stackTrace[i];
+        }
+        entry = new Entry(hash, frames, elements.build());
+        slots.set(slot, entry);
+        return entry.elements;
+    }
+
+    // cheap since the string hash codes are cached
+    private static int hash(StackTraceElement[] stackTrace, int length) {
+        int hash = length;
+        for (int i = 0; i < length; i++) {
+            StackTraceElement element = stackTrace[i];
+            hash = 31 * hash + element.getClassName().hashCode();
+            hash = 31 * hash + element.getLineNumber();
+        }
+        // spread the higher bits since the slot is taken from the lower bits
+        return hash ^ (hash >>> 16);
+    }
+
+    private static class Entry {
+
+        private final int hash;
+        private final StackTraceElement[] frames;
+        private final ImmutableList<Proto.StackTraceElement> elements;
+
+        private Entry(int hash, StackTraceElement[] frames,
+                ImmutableList<Proto.StackTraceElement> elements) {
+            this.hash = hash;
+            this.frames = frames;
+            this.elements = elements;
+        }
+
+        private boolean matches(StackTraceElement[] stackTrace, int length) {
+            if (frames.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (!frames[i].equals(stackTrace[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2016 the original author or authors.
+ * Copyright 2016-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -27,13 +27,22 @@ public class ThreadStats {
     private final long totalBlockedMillis; // not converting to nanos here for micro-opt purposes
     private final long totalWaitedMillis; // not converting to nanos here for micro-opt purposes
     private final long totalAllocatedBytes;
+    // blocked and waited time are only captured for a sample of transactions, this is the number
+    // of transactions that they represent in aggregates (zero if they were not captured)
+    private final int blockedWaitedSampleWeight;
 
     public ThreadStats(long totalCpuNanos, long totalBlockedMillis, long totalWaitedMillis,
             long totalAllocatedBytes) {
+        this(totalCpuNanos, totalBlockedMillis, totalWaitedMillis, totalAllocatedBytes, 1);
+    }
+
+    public ThreadStats(long totalCpuNanos, long totalBlockedMillis, long totalWaitedMillis,
+            long totalAllocatedBytes, int blockedWaitedSampleWeight) {
         this.totalCpuNanos = totalCpuNanos;
         this.totalBlockedMillis = totalBlockedMillis;
         this.totalWaitedMillis = totalWaitedMillis;
         this.totalAllocatedBytes = totalAllocatedBytes;
+        this.blockedWaitedSampleWeight = blockedWaitedSampleWeight;
     }
 
     public long getTotalCpuNanos() {
@@ -51,4 +60,8 @@ public class ThreadStats {
     public long getTotalAllocatedBytes() {
         return totalAllocatedBytes;
     }
+
+    public int getBlockedWaitedSampleWeight() {
+        return blockedWaitedSampleWeight;
+    }
 }
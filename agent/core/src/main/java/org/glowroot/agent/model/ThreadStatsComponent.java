@@ -1,5 +1,5 @@
 /*
- * Copyright 2013-2016 the original author or authors.
+ * Copyright 2013-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -18,6 +18,7 @@ package org.glowroot.agent.model;
 import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadInfo;
 import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
@@ -27,8 +28,10 @@ import org.checkerframework.checker.nullness.qual.RequiresNonNull;
 
 import org.glowroot.agent.util.ThreadAllocatedBytes;
 
-import static com.google.common.base.Preconditions.checkNotNull;
-
+// cpu time and allocated bytes are captured for every transaction, since these are cheap to read
+// for the current thread, while blocked and waited time require ThreadMXBean.getThreadInfo() which
+// is much more expensive, and so are only captured when thread contention monitoring is enabled
+// (otherwise they are not available anyways), and then only for a sample of transactions
 public class ThreadStatsComponent {
 
     private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
@@ -37,6 +40,12 @@ public class ThreadStatsComponent {
     private static final boolean IS_THREAD_CONTENTION_MONITORING_SUPPORTED =
             threadMXBean.isThreadContentionMonitoringSupported();
 
+    // blocked and waited time are captured for one out of every N transactions
+    private static final int BLOCKED_WAITED_SAMPLE_INTERVAL =
+            Math.max(Integer.getInteger("glowroot.threadStats.blockedWaitedSampleInterval", 1), 1);
+
+    private static final AtomicInteger blockedWaitedSampleCounter = new AtomicInteger();
+
     private final long threadId;
     private final long startingCpuNanos;
     private final long startingBlockedMillis;
@@ -45,27 +54,33 @@ public class ThreadStatsComponent {
 
     private final @Nullable ThreadAllocatedBytes threadAllocatedBytes;
 
+    private final int blockedWaitedSampleWeight;
+
     @GuardedBy("lock")
     private volatile @MonotonicNonNull ThreadStats completedThreadStats;
 
     private final Object lock = new Object();
 
-    public ThreadStatsComponent(@Nullable ThreadAllocatedBytes threadAllocatedBytes) {
+    // blockedWaitedSampleWeight is shared by all threads of a transaction (see
+    // nextBlockedWaitedSampleWeight())
+    public ThreadStatsComponent(@Nullable ThreadAllocatedBytes threadAllocatedBytes,
+            int blockedWaitedSampleWeight) {
         threadId = Thread.currentThread().getId();
-        ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId, 0);
-        // thread info for current thread cannot be null
-        checkNotNull(threadInfo);
         if (IS_THREAD_CPU_TIME_SUPPORTED) {
             startingCpuNanos = threadMXBean.getCurrentThreadCpuTime();
         } else {
             startingCpuNanos = -1;
         }
-        if (IS_THREAD_CONTENTION_MONITORING_SUPPORTED) {
-            startingBlockedMillis = threadInfo.getBlockedTime();
-            startingWaitedMillis = threadInfo.getWaitedTime();
-        } else {
+        ThreadInfo threadInfo = null;
+        if (blockedWaitedSampleWeight != 0) {
+            threadInfo = threadMXBean.getThreadInfo(threadId, 0);
+        }
+        if (threadInfo == null) {
             startingBlockedMillis = -1;
             startingWaitedMillis = -1;
+        } else {
+            startingBlockedMillis = threadInfo.getBlockedTime();
+            startingWaitedMillis = threadInfo.getWaitedTime();
         }
         if (threadAllocatedBytes != null) {
             startingAllocatedBytes = threadAllocatedBytes.getThreadAllocatedBytesSafely(threadId);
@@ -73,12 +88,35 @@ public class ThreadStatsComponent {
             startingAllocatedBytes = -1;
         }
         this.threadAllocatedBytes = threadAllocatedBytes;
+        this.blockedWaitedSampleWeight = blockedWaitedSampleWeight;
+    }
+
+    // returns the number of transactions that the blocked and waited time of the next transaction
+    // represents in aggregates, or zero if blocked and waited time should not be captured for the
+    // next transaction
+    public static int nextBlockedWaitedSampleWeight() {
+        if (!IS_THREAD_CONTENTION_MONITORING_SUPPORTED
+                || !threadMXBean.isThreadContentionMonitoringEnabled()) {
+            // blocked and waited time would just be -1 (not available) anyways
+            return 0;
+        }
+        if (BLOCKED_WAITED_SAMPLE_INTERVAL == 1) {
+            return 1;
+        }
+        if (blockedWaitedSampleCounter.getAndIncrement() % BLOCKED_WAITED_SAMPLE_INTERVAL == 0) {
+            return BLOCKED_WAITED_SAMPLE_INTERVAL;
+        }
+        return 0;
+    }
+
+    public int getBlockedWaitedSampleWeight() {
+        return blockedWaitedSampleWeight;
     }
 
     // must be called from transaction thread
     public void onComplete() {
         synchronized (lock) {
-            completedThreadStats = getThreadStats();
+            completedThreadStats = getThreadStatsInternal(true);
         }
     }
 
@@ -89,7 +127,7 @@ public class ThreadStatsComponent {
                 // transaction thread is still alive (and cannot terminate in the middle of this
                 // method because of above lock), so safe to capture ThreadMXBean.getThreadInfo()
                 // and ThreadMXBean.getThreadCpuTime() for the transaction thread
-                return getThreadStatsInternal();
+                return getThreadStatsInternal(false);
             } else {
                 return completedThreadStats;
             }
@@ -104,7 +142,7 @@ public class ThreadStatsComponent {
                 // method because of above lock), so safe to capture ThreadMXBean.getThreadCpuTime()
                 // for the transaction thread
                 if (IS_THREAD_CPU_TIME_SUPPORTED) {
-                    return getTotalCpuNanosInternal();
+                    return getTotalCpuNanosInternal(threadMXBean.getThreadCpuTime(threadId));
                 } else {
                     return -1;
                 }
@@ -114,27 +152,27 @@ public class ThreadStatsComponent {
         }
     }
 
-    private ThreadStats getThreadStatsInternal() {
-        ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId, 0);
-        if (threadInfo == null) {
-            // thread must have just recently terminated
-            return new ThreadStats(-1, -1, -1, -1);
+    private ThreadStats getThreadStatsInternal(boolean currentThread) {
+        long totalBlockedMillis = -1;
+        long totalWaitedMillis = -1;
+        if (startingBlockedMillis != -1 || startingWaitedMillis != -1) {
+            ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId, 0);
+            if (threadInfo == null) {
+                // thread must have just recently terminated
+                return new ThreadStats(-1, -1, -1, -1);
+            }
+            totalBlockedMillis = getTotalBlockedMillis(threadInfo);
+            totalWaitedMillis = getTotalWaitedMillis(threadInfo);
         }
         long totalCpuNanos;
         if (IS_THREAD_CPU_TIME_SUPPORTED) {
-            totalCpuNanos = getTotalCpuNanosInternal();
+            // getCurrentThreadCpuTime() is much cheaper than getThreadCpuTime()
+            long threadCpuNanos = currentThread ? threadMXBean.getCurrentThreadCpuTime()
+                    : threadMXBean.getThreadCpuTime(threadId);
+            totalCpuNanos = getTotalCpuNanosInternal(threadCpuNanos);
         } else {
             totalCpuNanos = -1;
         }
-        long totalBlockedMillis;
-        long totalWaitedMillis;
-        if (IS_THREAD_CONTENTION_MONITORING_SUPPORTED) {
-            totalBlockedMillis = getTotalBlockedMillis(threadInfo);
-            totalWaitedMillis = getTotalWaitedMillis(threadInfo);
-        } else {
-            totalBlockedMillis = -1;
-            totalWaitedMillis = -1;
-        }
         long totalAllocatedBytes;
         if (this.threadAllocatedBytes != null) {
             totalAllocatedBytes = getThreadAllocatedBytes();
@@ -142,13 +180,12 @@ public class ThreadStatsComponent {
             totalAllocatedBytes = -1;
         }
         return new ThreadStats(totalCpuNanos, totalBlockedMillis, totalWaitedMillis,
-                totalAllocatedBytes);
+                totalAllocatedBytes, blockedWaitedSampleWeight);
     }
 
-    private long getTotalCpuNanosInternal() {
+    private long getTotalCpuNanosInternal(long threadCpuNanos) {
         // getThreadCpuTime() returns -1 if CPU time measurement is disabled (which is different
         // than whether or not it is supported)
-        long threadCpuNanos = threadMXBean.getThreadCpuTime(threadId);
         if (startingCpuNanos != -1 && threadCpuNanos != -1) {
             return threadCpuNanos - startingCpuNanos;
         } else {
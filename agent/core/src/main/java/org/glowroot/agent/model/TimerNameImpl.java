@@ -1,5 +1,5 @@
 /*
- * Copyright 2014-2016 the original author or authors.
+ * Copyright 2014-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,8 +15,6 @@
  */
 package org.glowroot.agent.model;
 
-import java.util.concurrent.atomic.AtomicInteger;
-
 import javax.annotation.Nullable;
 
 import com.google.common.annotations.VisibleForTesting;
@@ -29,8 +27,6 @@ import org.glowroot.common.util.Styles;
 @Styles.AllParameters
 public abstract class TimerNameImpl implements TimerName {
 
-    private static final AtomicInteger nextSpecialHashCode = new AtomicInteger();
-
     @VisibleForTesting
     public abstract String name();
 
@@ -44,8 +40,10 @@ public abstract class TimerNameImpl implements TimerName {
         return ImmutableTimerNameImpl.of(name(), true);
     }
 
+    // dense id from TimerNameRegistry, which also makes a good hash code for NestedTimerMap since
+    // it is unique per timer name
     @Value.Derived
     public int specialHashCode() {
-        return nextSpecialHashCode.getAndIncrement();
+        return TimerNameRegistry.INSTANCE.getId(name(), extended());
     }
 }
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+// agent-wide registry of dense timer name ids, so that aggregate timers can be merged by indexing
+// into primitive arrays (see MutableAggregateTimers) instead of comparing timer names
+//
+// the number of distinct timer names is bounded by the instrumentation, so ids are never released
+public class TimerNameRegistry {
+
+    public static final TimerNameRegistry INSTANCE = new TimerNameRegistry();
+
+    // not using guava's Maps.newConcurrentMap() since this is used during weaving (see
+    // PreInitializeWeavingClasses)
+    private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+    private final ConcurrentMap<String, Integer> extendedIds =
+            new ConcurrentHashMap<String, Integer>();
+
+    // guarded by this for writes, ids are only published (via the maps above) after the name and
+    // extended flag are written here
+    private volatile String[] names = new String[64];
+    private volatile boolean[] extendedFlags = new boolean[64];
+    private int size;
+
+    public int getId(String name, boolean extended) {
+        Integer id = extended ? extendedIds.get(name) : ids.get(name);
+        if (id == null) {
+            return register(name, extended);
+        }
+        return id;
+    }
+
+    public String getName(int id) {
+        return names[id];
+    }
+
+    public boolean isExtended(int id) {
+        return extendedFlags[id];
+    }
+
+    private synchronized int register(String name, boolean extended) {
+        ConcurrentMap<String, Integer> map = extended ? extendedIds : ids;
+        Integer existingId = map.get(name);
+        if (existingId != null) {
+            return existingId;
+        }
+        int id = size++;
+        if (id == names.length) {
+            extendedFlags = Arrays.copyOf(extendedFlags, id << 1);
+            names = Arrays.copyOf(names, id << 1);
+        }
+        names[id] = name;
+        extendedFlags[id] = extended;
+        map.put(name, id);
+        return id;
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2014-2016 the original author or authors.
+ * Copyright 2014-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -17,46 +17,66 @@ package org.glowroot.agent.weaving;
 
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 
 import javax.annotation.Nullable;
 
+import com.google.common.annotations.VisibleForTesting;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import static com.google.common.base.Preconditions.checkNotNull;
 
 class Accessor {
 
+    private static final Logger logger = LoggerFactory.getLogger(Accessor.class);
+
     private final AccessorType accessorType;
     private final @Nullable Method method;
     private final @Nullable Field field;
+    // this is null when the member cannot be accessed directly from generated bytecode, in which
+    // case reflection is used (it is also cleared if the generated bytecode turns out to not have
+    // access to the member at runtime)
+    private volatile @Nullable AccessorInvoker invoker;
+
+    // clazz is the class that the accessor will be evaluated on (or a super class of it)
+    static Accessor fromMethod(Class<?> clazz, Method method) {
+        return new Accessor(method, AccessorGenerator.generate(clazz, method));
+    }
 
-    static Accessor fromMethod(Method method) {
-        return new Accessor(method);
+    static Accessor fromField(Class<?> clazz, Field field) {
+        return new Accessor(field, AccessorGenerator.generate(clazz, field));
     }
 
-    static Accessor fromField(Field field) {
-        return new Accessor(field);
+    @VisibleForTesting
+    static Accessor fromMethod(Method method, @Nullable AccessorInvoker invoker) {
+        return new Accessor(method, invoker);
     }
 
     static Accessor arrayLength() {
         return new Accessor();
     }
 
-    private Accessor(Method method) {
+    private Accessor(Method method, @Nullable AccessorInvoker invoker) {
         accessorType = AccessorType.METHOD;
         this.method = method;
         this.field = null;
+        this.invoker = invoker;
     }
 
-    private Accessor(Field field) {
+    private Accessor(Field field, @Nullable AccessorInvoker invoker) {
         accessorType = AccessorType.FIELD;
         this.method = null;
         this.field = field;
+        this.invoker = invoker;
     }
 
     private Accessor() {
         accessorType = AccessorType.ARRAY_LENGTH;
         this.method = null;
         this.field = null;
+        this.invoker = null;
     }
 
     Class<?> getValueType() {
@@ -79,6 +99,23 @@ class Accessor {
         if (isArrayEvaluation(object)) {
             return evaluateArray((/*@Nullable*/ Object[]) object);
         }
+        AccessorInvoker invoker = this.invoker;
+        if (invoker != null) {
+            try {
+                return invoker.get(object);
+            } catch (LinkageError e) {
+                // e.g. IllegalAccessError on Java 9+ when the owner is a public class in a package
+                // that is not exported by its module, in which case the generated bytecode will
+                // never have access, so falling back to reflection (which also re-throws any
+                // linkage error thrown by the member itself)
+                logger.debug("disabling generated accessor for {}: {}", getMemberName(),
+                        e.getMessage(), e);
+                this.invoker = null;
+            } catch (Throwable t) {
+                // wrapping for consistency with reflection, so that callers see the same exception
+                throw new InvocationTargetException(t);
+            }
+        }
         switch (accessorType) {
             case METHOD:
                 checkNotNull(method);
@@ -93,6 +130,16 @@ class Accessor {
         }
     }
 
+    private String getMemberName() {
+        if (method != null) {
+            return method.getDeclaringClass().getName() + "." + method.getName() + "()";
+        }
+        if (field != null) {
+            return field.getDeclaringClass().getName() + "." + field.getName();
+        }
+        return "array length";
+    }
+
     private boolean isArrayEvaluation(Object object) {
         return object instanceof Object[] && accessorType != AccessorType.ARRAY_LENGTH;
     }
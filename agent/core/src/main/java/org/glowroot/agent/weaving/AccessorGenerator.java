@@ -0,0 +1,336 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.MapMaker;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.objectweb.asm.Opcodes.ACC_FINAL;
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_SUPER;
+import static org.objectweb.asm.Opcodes.ACONST_NULL;
+import static org.objectweb.asm.Opcodes.ALOAD;
+import static org.objectweb.asm.Opcodes.ARETURN;
+import static org.objectweb.asm.Opcodes.CHECKCAST;
+import static org.objectweb.asm.Opcodes.GETFIELD;
+import static org.objectweb.asm.Opcodes.INVOKEINTERFACE;
+import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
+import static org.objectweb.asm.Opcodes.INVOKESTATIC;
+import static org.objectweb.asm.Opcodes.INVOKEVIRTUAL;
+import static org.objectweb.asm.Opcodes.RETURN;
+import static org.objectweb.asm.Opcodes.V1_5;
+
+// generates a small class per accessor that calls the getter method (or reads the field) directly,
+// instead of going through reflection on every evaluation of a message template path
+//
+// only public (non-static) members that can be reached through a public class are supported, since
+// the generated class is defined in a different (runtime) package, in all other cases the caller
+// falls back to reflection
+//
+// the generated classes are defined in their own package (which is not used by any class in the
+// glowroot jar), so that the glowroot packages are never split across class loaders
+class AccessorGenerator {
+
+    private static final String GENERATED_ACCESSOR_INTERNAL_NAME_PREFIX =
+            "org/glowroot/agent/generated/GeneratedAccessor";
+
+    private static final Logger logger = LoggerFactory.getLogger(AccessorGenerator.class);
+
+    private static final boolean REFLECTION_ONLY =
+            Boolean.getBoolean("glowroot.internal.reflectionOnlyAccessors");
+
+    private static final AtomicInteger counter = new AtomicInteger();
+
+    // the generated classes are cached since Beans only holds weak references to its accessors,
+    // and so would otherwise define a new class every time one of its accessors is collected
+    //
+    // weak keys to prevent Class retention, and weak values since the generated class is strongly
+    // referenced by its class loader anyways (which in turn references the class used as the key)
+    private static final LoadingCache<Class<?>, ConcurrentMap<String, Class<?>>> generatedClasses =
+            CacheBuilder.newBuilder()
+                    .weakKeys()
+                    .build(new CacheLoader<Class<?>, ConcurrentMap<String, Class<?>>>() {
+                        @Override
+                        public ConcurrentMap<String, Class<?>> load(Class<?> clazz) {
+                            return new MapMaker().weakValues().makeMap();
+                        }
+                    });
+
+    private AccessorGenerator() {}
+
+    static @Nullable AccessorInvoker generate(Class<?> clazz, Method method) {
+        if (REFLECTION_ONLY || !isPublicInstanceMember(method)) {
+            return null;
+        }
+        Class<?> owner = getAccessibleOwner(clazz, method);
+        if (owner == null) {
+            return null;
+        }
+        String key = method.getName() + Type.getMethodDescriptor(method);
+        return getOrGenerate(owner, key, method);
+    }
+
+    static @Nullable AccessorInvoker generate(Class<?> clazz, Field field) {
+        if (REFLECTION_ONLY || !isPublicInstanceMember(field)) {
+            return null;
+        }
+        Class<?> owner = getAccessibleSuperClass(clazz, field.getDeclaringClass());
+        if (owner == null) {
+            return null;
+        }
+        String key = field.getName() + ':' + Type.getDescriptor(field.getType());
+        return getOrGenerate(owner, key, field);
+    }
+
+    private static @Nullable AccessorInvoker getOrGenerate(Class<?> owner, String key,
+            Member member) {
+        ClassLoader loader = getTargetLoader(owner);
+        if (loader == null) {
+            return null;
+        }
+        ConcurrentMap<String, Class<?>> generatedClassesForOwner =
+                generatedClasses.getUnchecked(owner);
+        try {
+            Class<?> generatedClass = generatedClassesForOwner.get(key);
+            if (generatedClass == null) {
+                String internalName =
+                        GENERATED_ACCESSOR_INTERNAL_NAME_PREFIX + counter.incrementAndGet();
+                byte[] bytes;
+                if (member instanceof Method) {
+                    bytes = generate(internalName, owner, (Method) member);
+                } else {
+                    bytes = generate(internalName, owner, (Field) member);
+                }
+                generatedClass = ClassLoaders.defineClass(internalName.replace('/', '.'), bytes,
+                        loader);
+                // if another thread generated the same accessor concurrently, the extra
+                // generated class is harmless
+                generatedClassesForOwner.put(key, generatedClass);
+            }
+            return (AccessorInvoker) generatedClass.newInstance();
+        } catch (Throwable t) {
+            // falling back to reflection
+            logger.debug("unable to generate accessor for {} in class {}: {}", member.getName(),
+                    owner.getName(), t.getMessage(), t);
+            return null;
+        }
+    }
+
+    private static byte[] generate(String internalName, Class<?> owner, Method method) {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS + ClassWriter.COMPUTE_FRAMES);
+        MethodVisitor mv = visitClassAndGetMethod(cw, internalName);
+        String ownerInternalName = Type.getInternalName(owner);
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitTypeInsn(CHECKCAST, ownerInternalName);
+        if (owner.isInterface()) {
+            mv.visitMethodInsn(INVOKEINTERFACE, ownerInternalName, method.getName(),
+                    Type.getMethodDescriptor(method), true);
+        } else {
+            mv.visitMethodInsn(INVOKEVIRTUAL, ownerInternalName, method.getName(),
+                    Type.getMethodDescriptor(method), false);
+        }
+        Class<?> returnType = method.getReturnType();
+        if (returnType == void.class) {
+            // same as reflection
+            mv.visitInsn(ACONST_NULL);
+        } else {
+            box(mv, Type.getType(returnType));
+        }
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private static byte[] generate(String internalName, Class<?> owner, Field field) {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS + ClassWriter.COMPUTE_FRAMES);
+        MethodVisitor mv = visitClassAndGetMethod(cw, internalName);
+        String ownerInternalName = Type.getInternalName(owner);
+        Type fieldType = Type.getType(field.getType());
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitTypeInsn(CHECKCAST, ownerInternalName);
+        mv.visitFieldInsn(GETFIELD, ownerInternalName, field.getName(),
+                fieldType.getDescriptor());
+        box(mv, fieldType);
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private static MethodVisitor visitClassAndGetMethod(ClassWriter cw, String internalName) {
+        cw.visit(V1_5, ACC_PUBLIC + ACC_FINAL + ACC_SUPER, internalName, null, "java/lang/Object",
+                new String[] {Type.getInternalName(AccessorInvoker.class)});
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        mv = cw.visitMethod(ACC_PUBLIC, "get", "(Ljava/lang/Object;)Ljava/lang/Object;", null,
+                null);
+        mv.visitCode();
+        return mv;
+    }
+
+    private static void box(MethodVisitor mv, Type type) {
+        Type boxedType;
+        switch (type.getSort()) {
+            case Type.BOOLEAN:
+                boxedType = Type.getType(Boolean.class);
+                break;
+            case Type.CHAR:
+                boxedType = Type.getType(Character.class);
+                break;
+            case Type.BYTE:
+                boxedType = Type.getType(Byte.class);
+                break;
+            case Type.SHORT:
+                boxedType = Type.getType(Short.class);
+                break;
+            case Type.INT:
+                boxedType = Type.getType(Integer.class);
+                break;
+            case Type.FLOAT:
+                boxedType = Type.getType(Float.class);
+                break;
+            case Type.LONG:
+                boxedType = Type.getType(Long.class);
+                break;
+            case Type.DOUBLE:
+                boxedType = Type.getType(Double.class);
+                break;
+            default:
+                // not a primitive type
+                return;
+        }
+        mv.visitMethodInsn(INVOKESTATIC, boxedType.getInternalName(), "valueOf",
+                Type.getMethodDescriptor(boxedType, type), false);
+    }
+
+    // the generated class is defined in the same class loader as the owner, returns null (so that
+    // reflection is used) if the owner is in the bootstrap class loader, since classes cannot be
+    // defined in the bootstrap class loader this way
+    private static @Nullable ClassLoader getTargetLoader(Class<?> owner) {
+        ClassLoader loader = owner.getClassLoader();
+        if (loader == null) {
+            return null;
+        }
+        // the generated class must be able to resolve AccessorInvoker, which is not the case
+        // for example in OSGi bundles that do not import glowroot packages
+        try {
+            if (Class.forName(AccessorInvoker.class.getName(), false, loader)
+                    == AccessorInvoker.class) {
+                return loader;
+            }
+        } catch (ClassNotFoundException e) {
+            // log exception at trace level
+            logger.trace(e.getMessage(), e);
+        }
+        return null;
+    }
+
+    private static boolean isPublicInstanceMember(Member member) {
+        int modifiers = member.getModifiers();
+        return Modifier.isPublic(modifiers) && !Modifier.isStatic(modifiers);
+    }
+
+    // getter methods are often declared on non-public classes that implement public interfaces
+    // (e.g. the collection returned by Collections.synchronizedList()), in which case the method
+    // is invoked through the public interface instead
+    private static @Nullable Class<?> getAccessibleOwner(Class<?> clazz, Method method) {
+        Class<?> owner = getAccessibleSuperClass(clazz, method.getDeclaringClass());
+        if (owner != null) {
+            return owner;
+        }
+        return getAccessibleInterface(clazz, method);
+    }
+
+    // returns the accessible class closest to the declaring class, since the more general the
+    // owner, the more receivers the generated class can be used on (same as with reflection, which
+    // only requires the receiver to be an instance of the declaring class)
+    private static @Nullable Class<?> getAccessibleSuperClass(Class<?> clazz,
+            Class<?> declaringClass) {
+        Class<?> accessibleSuperClass = null;
+        Class<?> curr = clazz;
+        while (curr != null && declaringClass.isAssignableFrom(curr)) {
+            if (isAccessible(curr)) {
+                accessibleSuperClass = curr;
+            }
+            curr = curr.getSuperclass();
+        }
+        return accessibleSuperClass;
+    }
+
+    private static @Nullable Class<?> getAccessibleInterface(Class<?> clazz, Method method) {
+        for (Class<?> iface : clazz.getInterfaces()) {
+            if (isAccessible(iface) && declaresMethod(iface, method)) {
+                return iface;
+            }
+            Class<?> superInterface = getAccessibleInterface(iface, method);
+            if (superInterface != null) {
+                return superInterface;
+            }
+        }
+        Class<?> superClass = clazz.getSuperclass();
+        if (superClass == null) {
+            return null;
+        }
+        return getAccessibleInterface(superClass, method);
+    }
+
+    private static boolean declaresMethod(Class<?> iface, Method method) {
+        try {
+            // return type must match exactly since it is part of the method descriptor
+            return iface.getMethod(method.getName(), method.getParameterTypes())
+                    .getReturnType() == method.getReturnType();
+        } catch (NoSuchMethodException e) {
+            // log exception at trace level
+            logger.trace(e.getMessage(), e);
+            return false;
+        }
+    }
+
+    private static boolean isAccessible(Class<?> clazz) {
+        Class<?> curr = clazz;
+        while (curr != null) {
+            if (!Modifier.isPublic(curr.getModifiers())) {
+                return false;
+            }
+            curr = curr.getEnclosingClass();
+        }
+        return true;
+    }
+}
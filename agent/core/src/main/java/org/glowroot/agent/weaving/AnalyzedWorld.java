@@ -1,5 +1,5 @@
 /*
- * Copyright 2012-2017 the original author or authors.
+ * Copyright 2012-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -21,11 +21,9 @@ import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.net.URL;
 import java.security.CodeSource;
-import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
@@ -67,15 +65,11 @@ public class AnalyzedWorld {
     }
 
     // weak keys to prevent retention of class loaders
-    // it's important that the weak keys point directly to the class loaders themselves (as opposed
-    // to through another instance, e.g. Optional<ClassLoader>) so that the keys won't be cleared
-    // while their associated class loaders are still being used
     //
-    // not using the much more convenient (and concurrent) guava CacheBuilder since it uses many
-    // additional classes that must then be pre-initialized since this is called from inside
-    // ClassFileTransformer.transform() (see PreInitializeClasses)
-    private final Map<ClassLoader, ConcurrentMap<String, AnalyzedClass>> world = Collections
-            .synchronizedMap(new WeakHashMap<ClassLoader, ConcurrentMap<String, AnalyzedClass>>());
+    // lookups are lock-free since they are performed multiple times for every class that is
+    // loaded, often from many threads in parallel during application startup
+    private final WeakClassLoaderMap<ConcurrentMap<String, AnalyzedClass>> world =
+            new WeakClassLoaderMap<ConcurrentMap<String, AnalyzedClass>>();
 
     // the analyzed classes for the bootstrap class loader (null) have to be stored separately since
     // LoadingCache doesn't accept null keys, and using an Optional<ClassLoader> for the key makes
@@ -107,7 +101,7 @@ public class AnalyzedWorld {
     }
 
     public void removeClasses(List<Class<?>> classes) {
-        for (Map<String, AnalyzedClass> map : getWorldValues()) {
+        for (Map<String, AnalyzedClass> map : world.values()) {
             for (Class<?> clazz : classes) {
                 map.remove(clazz.getName());
             }
@@ -118,9 +112,7 @@ public class AnalyzedWorld {
     }
 
     public ImmutableList<ClassLoader> getClassLoaders() {
-        synchronized (world) {
-            return ImmutableList.copyOf(world.keySet());
-        }
+        return world.keys();
     }
 
     void add(AnalyzedClass analyzedClass, @Nullable ClassLoader loader) {
@@ -386,21 +378,11 @@ public class AnalyzedWorld {
         if (loader == null) {
             return bootstrapLoaderWorld;
         } else {
-            // this synchronization is for atomicity of get/put
-            synchronized (world) {
-                ConcurrentMap<String, AnalyzedClass> map = world.get(loader);
-                if (map == null) {
-                    map = new ConcurrentHashMap<String, AnalyzedClass>();
-                    world.put(loader, map);
-                }
-                return map;
+            ConcurrentMap<String, AnalyzedClass> map = world.get(loader);
+            if (map == null) {
+                map = world.putIfAbsent(loader, new ConcurrentHashMap<String, AnalyzedClass>());
             }
-        }
-    }
-
-    private ImmutableList<ConcurrentMap<String, AnalyzedClass>> getWorldValues() {
-        synchronized (world) {
-            return ImmutableList.copyOf(world.values());
+            return map;
         }
     }
 
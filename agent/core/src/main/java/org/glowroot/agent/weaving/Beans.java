@@ -1,5 +1,5 @@
 /*
- * Copyright 2012-2016 the original author or authors.
+ * Copyright 2012-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -43,7 +43,8 @@ class Beans {
     static {
         try {
             SENTINEL_ACCESSOR =
-                    Accessor.fromMethod(Beans.class.getDeclaredMethod("sentinelMethod"));
+                    Accessor.fromMethod(Beans.class,
+                            Beans.class.getDeclaredMethod("sentinelMethod"));
         } catch (Exception e) {
             // unrecoverable error
             throw new AssertionError(e);
@@ -122,28 +123,28 @@ class Beans {
         String capitalizedName = Character.toUpperCase(name.charAt(0)) + name.substring(1);
         try {
             Method method = Reflections.getAnyMethod(clazz, "get" + capitalizedName);
-            return Accessor.fromMethod(method);
+            return Accessor.fromMethod(clazz, method);
         } catch (Exception e) {
             // log exception at trace level
             logger.trace(e.getMessage(), e);
         }
         try {
             Method method = Reflections.getAnyMethod(clazz, "is" + capitalizedName);
-            return Accessor.fromMethod(method);
+            return Accessor.fromMethod(clazz, method);
         } catch (Exception f) {
             // log exception at trace level
             logger.trace(f.getMessage(), f);
         }
         try {
             Method method = Reflections.getAnyMethod(clazz, name);
-            return Accessor.fromMethod(method);
+            return Accessor.fromMethod(clazz, method);
         } catch (Exception g) {
             // log exception at trace level
             logger.trace(g.getMessage(), g);
         }
         try {
             Field field = Reflections.getAnyField(clazz, name);
-            return Accessor.fromField(field);
+            return Accessor.fromField(clazz, field);
         } catch (Exception h) {
             // log exception at trace level
             logger.trace(h.getMessage(), h);
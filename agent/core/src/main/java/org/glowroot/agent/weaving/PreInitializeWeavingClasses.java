@@ -1,5 +1,5 @@
 /*
- * Copyright 2012-2017 the original author or authors.
+ * Copyright 2012-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -270,6 +270,7 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.model.CommonTimerImpl");
         types.add("org.glowroot.agent.model.ThreadContextPlus");
         types.add("org.glowroot.agent.model.TimerNameImpl");
+        types.add("org.glowroot.agent.model.TimerNameRegistry");
         types.add("org.glowroot.agent.plugin.api.MessageSupplier");
         types.add("org.glowroot.agent.plugin.api.MessageSupplier$1");
         types.add("org.glowroot.agent.plugin.api.OptionalThreadContext");
@@ -369,10 +370,16 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.weaving.MixinType");
         types.add("org.glowroot.agent.weaving.PublicFinalMethod");
         types.add("org.glowroot.agent.weaving.ShimType");
+        types.add("org.glowroot.agent.weaving.SpeculativeClassParser");
+        types.add("org.glowroot.agent.weaving.SpeculativeClassParser$1");
+        types.add("org.glowroot.agent.weaving.SpeculativeClassParser$ParsedClass");
         types.add("org.glowroot.agent.weaving.ThinClassVisitor");
         types.add("org.glowroot.agent.weaving.ThinClassVisitor$AnnotationCaptureMethodVisitor");
         types.add("org.glowroot.agent.weaving.ThinClassVisitor$ThinClass");
         types.add("org.glowroot.agent.weaving.ThinClassVisitor$ThinMethod");
+        types.add("org.glowroot.agent.weaving.WeakClassLoaderMap");
+        types.add("org.glowroot.agent.weaving.WeakClassLoaderMap$1");
+        types.add("org.glowroot.agent.weaving.WeakClassLoaderMap$Entry");
         types.add("org.glowroot.agent.weaving.Weaver");
         types.add("org.glowroot.agent.weaving.Weaver$JSRInlinerClassVisitor");
         types.add("org.glowroot.agent.weaving.WeavingClassFileTransformer");
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.URL;
+import java.security.CodeSource;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.zip.CRC32;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.io.ByteStreams;
+import org.objectweb.asm.ClassReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.util.ThreadFactories;
+import org.glowroot.agent.weaving.ThinClassVisitor.ThinClass;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// speculatively parses (on background threads) the class headers of all classes in a jar file the
+// first time that a class is woven from that jar file, since during application startup the other
+// classes in the same jar file are typically loaded soon after (often from multiple threads in
+// parallel), and then the class loading thread can skip parsing the class header
+//
+// a speculatively parsed class is only used if the class bytes being woven are identical to the
+// class bytes in the jar file (e.g. not modified by another ClassFileTransformer), which is
+// verified by length and checksum
+class SpeculativeClassParser {
+
+    private static final Logger logger = LoggerFactory.getLogger(SpeculativeClassParser.class);
+
+    // not all classes in a jar file are necessarily loaded, so this bounds the memory retained by
+    // speculatively parsed classes that are never woven, once the bound is reached the oldest
+    // speculatively parsed classes are evicted, since those are the least likely to still be loaded
+    // (classes in the same jar file are typically loaded soon after the first one)
+    private static final int MAX_PARSED_CLASSES =
+            Integer.getInteger("glowroot.weaving.speculativeParsing.maxClasses", 10000);
+
+    // once this many jar files are waiting to be parsed, further jar files are rejected (and are
+    // only submitted again the next time a class is woven from them), so that a burst of class
+    // loading across many jar files does not queue up unbounded work
+    private static final int MAX_QUEUED_JAR_FILES =
+            Integer.getInteger("glowroot.weaving.speculativeParsing.maxQueuedJarFiles", 100);
+
+    private final Executor executor;
+
+    private final ConcurrentMap<String, Boolean> seenLocations =
+            new ConcurrentHashMap<String, Boolean>();
+
+    private final int maxParsedClasses;
+
+    // keyed by internal class name, in insertion order so that the oldest can be evicted
+    @GuardedBy("parsedClasses")
+    private final Map<String, ParsedClass> parsedClasses = new LinkedHashMap<String, ParsedClass>();
+
+    SpeculativeClassParser() {
+        this(createExecutor(), MAX_PARSED_CLASSES);
+    }
+
+    @VisibleForTesting
+    SpeculativeClassParser(Executor executor, int maxParsedClasses) {
+        this.executor = executor;
+        this.maxParsedClasses = maxParsedClasses;
+    }
+
+    @Nullable
+    ThinClass getThinClass(String className, @Nullable CodeSource codeSource,
+            byte[] classBytes) {
+        if (codeSource == null) {
+            return null;
+        }
+        URL location = codeSource.getLocation();
+        if (location == null || !location.getProtocol().equals("file")) {
+            return null;
+        }
+        String locationKey = location.toExternalForm();
+        ParsedClass parsedClass;
+        synchronized (parsedClasses) {
+            parsedClass = parsedClasses.remove(className);
+        }
+        if (parsedClass == null) {
+            if (seenLocations.putIfAbsent(locationKey, true) == null) {
+                submit(location, locationKey);
+            }
+            return null;
+        }
+        if (parsedClass.location.equals(locationKey)
+                && parsedClass.length == classBytes.length
+                && parsedClass.checksum == checksum(classBytes)) {
+            return parsedClass.thinClass;
+        }
+        return null;
+    }
+
+    private void submit(final URL location, final String locationKey) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        parseJarFile(location, locationKey);
+                    } catch (Throwable t) {
+                        // speculative parsing is only an optimization
+                        logger.debug(t.getMessage(), t);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // executor is saturated, so back off until the next class is woven from this location
+            logger.debug(e.getMessage(), e);
+            seenLocations.remove(locationKey);
+        }
+    }
+
+    private void parseJarFile(URL location, String locationKey) throws Exception {
+        File file = new File(location.toURI());
+        if (!file.isFile() || !file.getName().endsWith(".jar")) {
+            return;
+        }
+        JarFile jarFile = new JarFile(file);
+        try {
+            Enumeration<JarEntry> entries = jarFile.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry jarEntry = entries.nextElement();
+                String name = jarEntry.getName();
+                if (!name.endsWith(".class") || name.startsWith("META-INF/")) {
+                    continue;
+                }
+                String className = name.substring(0, name.length() - ".class".length());
+                InputStream in = jarFile.getInputStream(jarEntry);
+                byte[] classBytes;
+                try {
+                    classBytes = ByteStreams.toByteArray(in);
+                } finally {
+                    in.close();
+                }
+                ThinClassVisitor accv = new ThinClassVisitor();
+                new ClassReader(classBytes).accept(accv,
+                        ClassReader.SKIP_FRAMES + ClassReader.SKIP_CODE);
+                add(className, new ParsedClass(locationKey, accv.getThinClass(),
+                        classBytes.length, checksum(classBytes)));
+            }
+        } finally {
+            jarFile.close();
+        }
+    }
+
+    private void add(String className, ParsedClass parsedClass) {
+        synchronized (parsedClasses) {
+            if (parsedClasses.containsKey(className)) {
+                return;
+            }
+            parsedClasses.put(className, parsedClass);
+            if (parsedClasses.size() > maxParsedClasses) {
+                Iterator<ParsedClass> i = parsedClasses.values().iterator();
+                i.next();
+                i.remove();
+            }
+        }
+    }
+
+    @VisibleForTesting
+    int getParsedClassCount() {
+        synchronized (parsedClasses) {
+            return parsedClasses.size();
+        }
+    }
+
+    private static ThreadPoolExecutor createExecutor() {
+        int threadCount = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threadCount, threadCount, 10,
+                SECONDS, new LinkedBlockingQueue<Runnable>(MAX_QUEUED_JAR_FILES),
+                ThreadFactories.create("Glowroot-Speculative-Class-Parser-%d"));
+        // threads are only needed during bursts of class loading (e.g. application startup)
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static long checksum(byte[] classBytes) {
+        CRC32 crc = new CRC32();
+        crc.update(classBytes, 0, classBytes.length);
+        return crc.getValue();
+    }
+
+    private static class ParsedClass {
+
+        private final String location;
+        private final ThinClass thinClass;
+        private final int length;
+        private final long checksum;
+
+        private ParsedClass(String location, ThinClass thinClass, int length, long checksum) {
+            this.location = location;
+            this.thinClass = thinClass;
+            this.length = length;
+            this.checksum = checksum;
+        }
+    }
+}
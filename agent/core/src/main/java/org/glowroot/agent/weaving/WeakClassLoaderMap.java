@@ -0,0 +1,143 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.lang.ref.WeakReference;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.ImmutableList;
+
+// weak keyed (by identity) map from class loader to value, with lock-free reads
+//
+// lookups happen multiple times for every class that is loaded (often from many threads in
+// parallel during application startup), while new class loaders are comparatively rare, so updates
+// are performed under a lock by copying the (small) table, and then publishing the new table, which
+// allows lookups to read the current table without any locking
+//
+// it's important that the weak references point directly to the class loaders themselves (as
+// opposed to through another instance) so that the entries won't be cleared while their associated
+// class loaders are still being used
+//
+// not using the much more convenient (and concurrent) guava CacheBuilder since it uses many
+// additional classes that must then be pre-initialized since this is called from inside
+// ClassFileTransformer.transform() (see PreInitializeClasses)
+class WeakClassLoaderMap<V> {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private volatile /*@Nullable*/ Entry<V>[] table = newTable(INITIAL_CAPACITY);
+
+    // only accessed under lock
+    private int size;
+
+    @Nullable
+    V get(ClassLoader loader) {
+        /*@Nullable*/ Entry<V>[] table = this.table;
+        Entry<V> entry = table[indexFor(loader, table.length)];
+        while (entry != null) {
+            if (entry.get() == loader) {
+                return entry.value;
+            }
+            entry = entry.next;
+        }
+        return null;
+    }
+
+    // returns the existing value if there is one, otherwise adds and returns the given value
+    synchronized V putIfAbsent(ClassLoader loader, V value) {
+        V existingValue = get(loader);
+        if (existingValue != null) {
+            return existingValue;
+        }
+        // purge cleared entries while copying, which also keeps size accurate for resizing
+        /*@Nullable*/ Entry<V>[] currTable = table;
+        int capacity = currTable.length;
+        if (size + 1 > capacity / 2) {
+            capacity *= 2;
+        }
+        /*@Nullable*/ Entry<V>[] newTable = newTable(capacity);
+        int newSize = 0;
+        for (Entry<V> entry : currTable) {
+            while (entry != null) {
+                ClassLoader key = entry.get();
+                if (key != null) {
+                    int index = indexFor(key, capacity);
+                    newTable[index] = new Entry<V>(key, entry.value, newTable[index]);
+                    newSize++;
+                }
+                entry = entry.next;
+            }
+        }
+        int index = indexFor(loader, capacity);
+        newTable[index] = new Entry<V>(loader, value, newTable[index]);
+        size = newSize + 1;
+        table = newTable;
+        return value;
+    }
+
+    ImmutableList<ClassLoader> keys() {
+        ImmutableList.Builder<ClassLoader> keys = ImmutableList.builder();
+        for (Entry<V> entry : table) {
+            while (entry != null) {
+                ClassLoader key = entry.get();
+                if (key != null) {
+                    keys.add(key);
+                }
+                entry = entry.next;
+            }
+        }
+        return keys.build();
+    }
+
+    List<V> values() {
+        ImmutableList.Builder<V> values = ImmutableList.builder();
+        for (Entry<V> entry : table) {
+            while (entry != null) {
+                if (entry.get() != null) {
+                    values.add(entry.value);
+                }
+                entry = entry.next;
+            }
+        }
+        return values.build();
+    }
+
+    private static int indexFor(ClassLoader loader, int length) {
+        int hash = System.identityHashCode(loader);
+        // spread the higher bits since the index is taken from the lower bits
+        return (hash ^ (hash >>> 16)) & (length - 1);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> /*@Nullable*/ Entry<V>[] newTable(int capacity) {
+        return new Entry[capacity];
+    }
+
+    // entries are immutable, so a published table (and its chains) never changes
+    private static class Entry<V> extends WeakReference<ClassLoader> {
+
+        private final V value;
+        private final @Nullable Entry<V> next;
+
+        private Entry(ClassLoader key, V value, @Nullable Entry<V> next) {
+            super(key);
+            this.value = value;
+            this.next = next;
+        }
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2012-2017 the original author or authors.
+ * Copyright 2012-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -27,6 +27,7 @@ import java.lang.management.ThreadMXBean;
 import java.security.CodeSource;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nullable;
 
@@ -59,6 +60,7 @@ import org.glowroot.agent.plugin.api.config.ConfigListener;
 import org.glowroot.agent.plugin.api.weaving.Pointcut;
 import org.glowroot.agent.util.IterableWithSelfRemovableEntries;
 import org.glowroot.agent.util.IterableWithSelfRemovableEntries.SelfRemovableEntry;
+import org.glowroot.agent.weaving.ThinClassVisitor.ThinClass;
 import org.glowroot.common.util.ScheduledRunnable.TerminateSubsequentExecutionsException;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -73,6 +75,11 @@ public class Weaver {
     private static final @Nullable String DEBUG_CLASS_NAME =
             System.getProperty("glowroot.weaving.debugClassName");
 
+    // speculatively parse the other classes in a jar file on background threads, which can reduce
+    // startup time on multi-core machines when many classes are loaded in parallel
+    private static final boolean SPECULATIVE_PARSING =
+            Boolean.getBoolean("glowroot.weaving.speculativeParsing");
+
     private final Supplier<List<Advice>> advisors;
     private final ImmutableList<ShimType> shimTypes;
     private final ImmutableList<MixinType> mixinTypes;
@@ -80,11 +87,15 @@ public class Weaver {
     private final TransactionRegistry transactionRegistry;
     private final Ticker ticker;
     private final TimerName timerName;
+    private final @Nullable SpeculativeClassParser speculativeClassParser;
 
     private volatile boolean weavingTimerEnabled;
 
     private volatile boolean weavingDisabledForLoggingDeadlock;
 
+    // used for estimating agent overhead (see AgentOverhead)
+    private final AtomicLong weavingNanos = new AtomicLong();
+
     private final IterableWithSelfRemovableEntries<ActiveWeaving> activeWeavings =
             new IterableWithSelfRemovableEntries<ActiveWeaving>();
 
@@ -105,6 +116,7 @@ public class Weaver {
             }
         });
         this.timerName = timerNameCache.getTimerName(OnlyForTheTimerName.class);
+        speculativeClassParser = SPECULATIVE_PARSING ? new SpeculativeClassParser() : null;
     }
 
     public void checkForDeadlockedActiveWeaving() {
@@ -141,9 +153,14 @@ public class Weaver {
             if (weavingTimer != null) {
                 weavingTimer.stop();
             }
+            weavingNanos.addAndGet(ticker.read() - startTick);
         }
     }
 
+    public long getWeavingNanos() {
+        return weavingNanos.get();
+    }
+
     private @Nullable TimerImpl startWeavingTimer(long startTick) {
         if (!weavingTimerEnabled) {
             return null;
@@ -163,8 +180,16 @@ public class Weaver {
             @Nullable CodeSource codeSource, @Nullable ClassLoader loader) {
         List<Advice> advisors = analyzedWorld.mergeInstrumentationAnnotations(this.advisors.get(),
                 classBytes, loader, className);
-        ThinClassVisitor accv = new ThinClassVisitor();
-        new ClassReader(classBytes).accept(accv, ClassReader.SKIP_FRAMES + ClassReader.SKIP_CODE);
+        ThinClass thinClass = null;
+        if (speculativeClassParser != null) {
+            thinClass = speculativeClassParser.getThinClass(className, codeSource, classBytes);
+        }
+        if (thinClass == null) {
+            ThinClassVisitor accv = new ThinClassVisitor();
+            new ClassReader(classBytes).accept(accv,
+                    ClassReader.SKIP_FRAMES + ClassReader.SKIP_CODE);
+            thinClass = accv.getThinClass();
+        }
         byte[] maybeProcessedBytes = null;
         if (className.equals("org/apache/felix/framework/BundleWiringImpl")) {
             ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
@@ -179,7 +204,7 @@ public class Weaver {
             cr.accept(new JSRInlinerClassVisitor(cv), ClassReader.EXPAND_FRAMES);
             maybeProcessedBytes = cw.toByteArray();
         }
-        ClassAnalyzer classAnalyzer = new ClassAnalyzer(accv.getThinClass(), advisors, shimTypes,
+        ClassAnalyzer classAnalyzer = new ClassAnalyzer(thinClass, advisors, shimTypes,
                 mixinTypes, loader, analyzedWorld, codeSource, classBytes);
         classAnalyzer.analyzeMethods();
         if (!classAnalyzer.isWeavingRequired()) {
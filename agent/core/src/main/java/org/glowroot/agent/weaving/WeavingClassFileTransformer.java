@@ -1,5 +1,5 @@
 /*
- * Copyright 2012-2017 the original author or authors.
+ * Copyright 2012-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -127,6 +127,7 @@ public class WeavingClassFileTransformer implements ClassFileTransformer {
                 || className.startsWith("org/glowroot/agent/embedded/init/")
                 || className.startsWith("org/glowroot/agent/embedded/repo/")
                 || className.startsWith("org/glowroot/agent/embedded/util/")
+                || className.startsWith("org/glowroot/agent/generated/")
                 || className.startsWith("org/glowroot/agent/impl/")
                 || className.startsWith("org/glowroot/agent/init/")
                 || className.startsWith("org/glowroot/agent/jul/")
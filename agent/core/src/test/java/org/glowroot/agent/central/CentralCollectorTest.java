@@ -0,0 +1,111 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import io.grpc.ManagedChannel;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.stub.StreamObserver;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import org.glowroot.agent.central.CentralConnection.GrpcCall;
+import org.glowroot.agent.collector.Collector.AggregateReader;
+import org.glowroot.wire.api.model.CollectorServiceGrpc;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateResponseMessage;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.verify;
+
+public class CentralCollectorTest {
+
+    private ManagedChannel channel;
+    private CentralConnection centralConnection;
+    private CentralCollector centralCollector;
+
+    @Before
+    public void beforeEachTest() {
+        // there is no server behind this channel, the aggregate streams just need somewhere to go
+        channel = InProcessChannelBuilder.forName("glowroot-test").build();
+        centralConnection = mock(CentralConnection.class);
+        centralCollector = new CentralCollector("agent", centralConnection,
+                CollectorServiceGrpc.newStub(channel), mock(DownstreamServiceObserver.class));
+    }
+
+    @After
+    public void afterEachTest() {
+        channel.shutdownNow();
+    }
+
+    @Test
+    public void shouldDelayResendWithFullTimerNames() {
+        // given
+        // first response confirms shared timer names support
+        GrpcCall<AggregateResponseMessage> call = collectAggregates(0);
+        call.call(new NopStreamObserver());
+        call.doWithResponse(AggregateResponseMessage.newBuilder()
+                .setNextDelayMillis(1000)
+                .setSharedTimerNamesSupported(true)
+                .build());
+        // next stream is sent with shared timer names
+        call = collectAggregates(1000);
+        call.call(new NopStreamObserver());
+        // when
+        // and is handled by an older central node which is also applying back pressure
+        call.doWithResponse(AggregateResponseMessage.newBuilder()
+                .setNextDelayMillis(20000)
+                .build());
+        // then
+        verify(centralConnection).callWithAFewRetries(eq(20000), any(GrpcCall.class));
+    }
+
+    @Test
+    public void shouldNotResendWhenSharedTimerNamesWereNotSent() {
+        // given
+        GrpcCall<AggregateResponseMessage> call = collectAggregates(0);
+        call.call(new NopStreamObserver());
+        // when
+        call.doWithResponse(AggregateResponseMessage.newBuilder()
+                .setNextDelayMillis(20000)
+                .build());
+        // then
+        verify(centralConnection, never()).callWithAFewRetries(anyInt(), any(GrpcCall.class));
+    }
+
+    @SuppressWarnings("unchecked")
+    private GrpcCall<AggregateResponseMessage> collectAggregates(int expectedDelayMillis) {
+        centralCollector.collectAggregates(mock(AggregateReader.class));
+        ArgumentCaptor<GrpcCall> captor = ArgumentCaptor.forClass(GrpcCall.class);
+        verify(centralConnection).callWithAFewRetries(eq(expectedDelayMillis), captor.capture());
+        reset(centralConnection);
+        return captor.getValue();
+    }
+
+    private static class NopStreamObserver implements StreamObserver<AggregateResponseMessage> {
+        @Override
+        public void onNext(AggregateResponseMessage value) {}
+        @Override
+        public void onError(Throwable t) {}
+        @Override
+        public void onCompleted() {}
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import org.junit.Test;
+
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateResponseMessage;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SharedTimerNamesNegotiatorTest {
+
+    // older central versions only set next_delay_millis
+    private static final AggregateResponseMessage OLD_CENTRAL_RESPONSE =
+            AggregateResponseMessage.newBuilder()
+                    .setNextDelayMillis(1000)
+                    .build();
+
+    private static final AggregateResponseMessage NEW_CENTRAL_RESPONSE =
+            AggregateResponseMessage.newBuilder()
+                    .setNextDelayMillis(1000)
+                    .setSharedTimerNamesSupported(true)
+                    .build();
+
+    @Test
+    public void shouldNotSendSharedTimerNamesBeforeConfirmed() {
+        SharedTimerNamesNegotiator negotiator = new SharedTimerNamesNegotiator(false);
+        assertThat(negotiator.useSharedTimerNames(false)).isFalse();
+    }
+
+    @Test
+    public void shouldSendSharedTimerNamesAfterConfirmed() {
+        // given
+        SharedTimerNamesNegotiator negotiator = new SharedTimerNamesNegotiator(false);
+        // when
+        boolean resend = negotiator.onResponse(false, NEW_CENTRAL_RESPONSE);
+        // then
+        assertThat(resend).isFalse();
+        assertThat(negotiator.useSharedTimerNames(false)).isTrue();
+        assertThat(negotiator.useSharedTimerNames(true)).isFalse();
+    }
+
+    @Test
+    public void shouldNeverSendSharedTimerNamesToOldCentral() {
+        // given
+        SharedTimerNamesNegotiator negotiator = new SharedTimerNamesNegotiator(false);
+        // when
+        boolean resend1 = negotiator.onResponse(false, OLD_CENTRAL_RESPONSE);
+        boolean resend2 = negotiator.onResponse(false, OLD_CENTRAL_RESPONSE);
+        // then
+        assertThat(resend1).isFalse();
+        assertThat(resend2).isFalse();
+        assertThat(negotiator.useSharedTimerNames(false)).isFalse();
+    }
+
+    @Test
+    public void shouldResendWhenOldCentralIgnoresSharedTimerNames() throws Exception {
+        // given
+        SharedTimerNamesNegotiator negotiator = new SharedTimerNamesNegotiator(false);
+        negotiator.onResponse(false, NEW_CENTRAL_RESPONSE);
+        // when
+        // next stream is handled by an older central node (e.g. during rolling downgrade)
+        boolean sentSharedTimerNames = negotiator.useSharedTimerNames(false);
+        boolean resend = negotiator.onResponse(sentSharedTimerNames,
+                AggregateResponseMessage.parseFrom(OLD_CENTRAL_RESPONSE.toByteArray()));
+        // then
+        assertThat(sentSharedTimerNames).isTrue();
+        assertThat(resend).isTrue();
+        assertThat(negotiator.useSharedTimerNames(false)).isFalse();
+        // and the re-sent stream with full timer names does not trigger another resend
+        assertThat(negotiator.onResponse(false, OLD_CENTRAL_RESPONSE)).isFalse();
+    }
+
+    @Test
+    public void shouldNotSendSharedTimerNamesWhenDisabled() {
+        // given
+        SharedTimerNamesNegotiator negotiator = new SharedTimerNamesNegotiator(true);
+        // when
+        negotiator.onResponse(false, NEW_CENTRAL_RESPONSE);
+        // then
+        assertThat(negotiator.useSharedTimerNames(false)).isFalse();
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2013-2017 the original author or authors.
+ * Copyright 2013-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -60,6 +60,7 @@ public class AggregateDaoTest {
     private DataSource dataSource;
     private File cappedFile;
     private CappedDatabase cappedDatabase;
+    private ConfigRepositoryImpl configRepository;
     private AggregateDao aggregateDao;
 
     @Before
@@ -73,17 +74,14 @@ public class AggregateDaoTest {
         }
         cappedFile = File.createTempFile("glowroot-test-", ".capped.db");
         cappedDatabase = new CappedDatabase(cappedFile, 1000000, Ticker.systemTicker());
-        ConfigRepositoryImpl configRepository = mock(ConfigRepositoryImpl.class);
+        configRepository = mock(ConfigRepositoryImpl.class);
         when(configRepository.getAdvancedConfig(AGENT_ID))
                 .thenReturn(AdvancedConfig.getDefaultInstance());
         ImmutableList<RollupConfig> rollupConfigs = ImmutableList.<RollupConfig>of(
                 ImmutableRollupConfig.of(1000, 0), ImmutableRollupConfig.of(15000, 3600000),
                 ImmutableRollupConfig.of(900000000, 8 * 3600000));
         when(configRepository.getRollupConfigs()).thenReturn(rollupConfigs);
-        aggregateDao = new AggregateDao(
-                dataSource, ImmutableList.<CappedDatabase>of(cappedDatabase, cappedDatabase,
-                        cappedDatabase, cappedDatabase),
-                configRepository, mock(TransactionTypeDao.class), mock(FullQueryTextDao.class));
+        aggregateDao = createAggregateDao(false, 0);
     }
 
     @After
@@ -133,6 +131,131 @@ public class AggregateDaoTest {
         assertThat(queryResult.records().get(2).transactionCount()).isEqualTo(2);
     }
 
+    @Test
+    public void shouldReadTransactionsSortedAndLimited() throws Exception {
+        // given
+        // more transaction names than the limit (plus the extra 100 read for merging), so that
+        // the sort and limit applied in the database are what determine the result
+        storeManyTransactionNames(10000, 300);
+        storeManyTransactionNames(20000, 300);
+
+        // when
+        OverallQuery query = ImmutableOverallQuery.builder()
+                .transactionType("a type")
+                .from(0)
+                .to(100000)
+                .rollupLevel(0)
+                .build();
+        TransactionSummaryCollector throughputCollector = new TransactionSummaryCollector();
+        aggregateDao.mergeTransactionSummariesInto(AGENT_ID, query, SummarySortOrder.THROUGHPUT,
+                10, throughputCollector);
+        Result<TransactionSummary> throughputResult =
+                throughputCollector.getResult(SummarySortOrder.THROUGHPUT, 10);
+        TransactionSummaryCollector averageTimeCollector = new TransactionSummaryCollector();
+        aggregateDao.mergeTransactionSummariesInto(AGENT_ID, query,
+                SummarySortOrder.AVERAGE_TIME, 10, averageTimeCollector);
+        Result<TransactionSummary> averageTimeResult =
+                averageTimeCollector.getResult(SummarySortOrder.AVERAGE_TIME, 10);
+
+        // then
+        assertThat(throughputResult.records()).hasSize(10);
+        assertThat(throughputResult.moreAvailable()).isTrue();
+        for (int i = 0; i < 10; i++) {
+            TransactionSummary summary = throughputResult.records().get(i);
+            assertThat(summary.transactionName()).isEqualTo("name " + (299 - i));
+            assertThat(summary.transactionCount()).isEqualTo(2 * (300 - i));
+            assertThat(summary.totalDurationNanos()).isEqualTo(2 * 100000);
+        }
+        assertThat(averageTimeResult.records()).hasSize(10);
+        assertThat(averageTimeResult.moreAvailable()).isTrue();
+        for (int i = 0; i < 10; i++) {
+            TransactionSummary summary = averageTimeResult.records().get(i);
+            assertThat(summary.transactionName()).isEqualTo("name " + i);
+            assertThat(summary.transactionCount()).isEqualTo(2 * (i + 1));
+        }
+    }
+
+    @Test
+    public void shouldRollupAggregates() throws Exception {
+        // given
+        storeAggregates(16000, 10);
+        storeAggregates(20000, 20);
+        // this closes the 15 second rollup interval ending at 30000
+        storeAggregates(30000, 0);
+
+        // when, then
+        assertRollup();
+    }
+
+    @Test
+    public void shouldRollupAggregatesFromMemory() throws Exception {
+        // given
+        aggregateDao = createAggregateDao(true, 1000);
+        storeAggregates(16000, 10);
+        storeAggregates(20000, 20);
+        // this closes the 15 second rollup interval ending at 30000
+        storeAggregates(30000, 0);
+
+        // when, then
+        assertRollup();
+    }
+
+    @Test
+    public void shouldRollupAggregatesFromDatabaseWhenMemoryLimitExceeded() throws Exception {
+        // given
+        // the overall aggregate and the transaction aggregate exceed the limit of 1
+        aggregateDao = createAggregateDao(true, 1);
+        storeAggregates(16000, 10);
+        storeAggregates(20000, 20);
+        // this closes the 15 second rollup interval ending at 30000
+        storeAggregates(30000, 0);
+
+        // when, then
+        assertRollup();
+    }
+
+    private void assertRollup() throws Exception {
+        // when
+        TransactionQuery query = ImmutableTransactionQuery.builder()
+                .transactionType("a type")
+                .from(0)
+                .to(100000)
+                .rollupLevel(1)
+                .build();
+        OverallQuery query2 = ImmutableOverallQuery.builder()
+                .transactionType("a type")
+                .from(0)
+                .to(100000)
+                .rollupLevel(1)
+                .build();
+        TransactionSummaryCollector collector = new TransactionSummaryCollector();
+        List<OverviewAggregate> overallAggregates =
+                aggregateDao.readOverviewAggregates(AGENT_ID, query);
+        aggregateDao.mergeTransactionSummariesInto(AGENT_ID, query2, SummarySortOrder.TOTAL_TIME,
+                10, collector);
+        Result<TransactionSummary> queryResult =
+                collector.getResult(SummarySortOrder.TOTAL_TIME, 10);
+
+        // then
+        assertThat(overallAggregates).hasSize(1);
+        assertThat(overallAggregates.get(0).captureTime()).isEqualTo(30000);
+        assertThat(overallAggregates.get(0).totalDurationNanos()).isEqualTo(3000000);
+        assertThat(overallAggregates.get(0).transactionCount()).isEqualTo(30);
+        assertThat(queryResult.records()).hasSize(1);
+        assertThat(queryResult.records().get(0).transactionName()).isEqualTo("one");
+        assertThat(queryResult.records().get(0).totalDurationNanos()).isEqualTo(3000000);
+        assertThat(queryResult.records().get(0).transactionCount()).isEqualTo(30);
+    }
+
+    private AggregateDao createAggregateDao(boolean streamingRollups,
+            int streamingRollupMaxAggregates) throws Exception {
+        return new AggregateDao(dataSource,
+                ImmutableList.<CappedDatabase>of(cappedDatabase, cappedDatabase, cappedDatabase,
+                        cappedDatabase),
+                configRepository, mock(TransactionTypeDao.class), mock(FullQueryTextDao.class),
+                streamingRollups, streamingRollupMaxAggregates);
+    }
+
     // also used by TransactionCommonServiceTest
     public void populateAggregates() throws Exception {
         aggregateDao.store(new AggregateReader() {
@@ -212,6 +335,62 @@ public class AggregateDaoTest {
         });
     }
 
+    private void storeAggregates(final long captureTime, final int transactionCount)
+            throws Exception {
+        aggregateDao.store(new AggregateReader() {
+            @Override
+            public long captureTime() {
+                return captureTime;
+            }
+            @Override
+            public void accept(AggregateVisitor aggregateVisitor) throws Exception {
+                if (transactionCount == 0) {
+                    return;
+                }
+                Aggregate aggregate = Aggregate.newBuilder()
+                        .setTotalDurationNanos(transactionCount * 100000)
+                        .setErrorCount(0)
+                        .setTransactionCount(transactionCount)
+                        .setDurationNanosHistogram(getFakeHistogram())
+                        .build();
+                aggregateVisitor.visitOverallAggregate("a type", new ArrayList<String>(),
+                        aggregate);
+                aggregateVisitor.visitTransactionAggregate("a type", "one",
+                        new ArrayList<String>(), aggregate);
+            }
+        });
+    }
+
+    // transaction "name <i>" has i + 1 transactions, all with the same total duration
+    private void storeManyTransactionNames(final long captureTime, final int count)
+            throws Exception {
+        aggregateDao.store(new AggregateReader() {
+            @Override
+            public long captureTime() {
+                return captureTime;
+            }
+            @Override
+            public void accept(AggregateVisitor aggregateVisitor) throws Exception {
+                aggregateVisitor.visitOverallAggregate("a type", new ArrayList<String>(),
+                        Aggregate.newBuilder()
+                                .setTotalDurationNanos(count * 100000)
+                                .setErrorCount(0)
+                                .setTransactionCount(count * (count + 1) / 2)
+                                .setDurationNanosHistogram(getFakeHistogram())
+                                .build());
+                for (int i = 0; i < count; i++) {
+                    aggregateVisitor.visitTransactionAggregate("a type", "name " + i,
+                            new ArrayList<String>(), Aggregate.newBuilder()
+                                    .setTotalDurationNanos(100000)
+                                    .setErrorCount(0)
+                                    .setTransactionCount(i + 1)
+                                    .setDurationNanosHistogram(getFakeHistogram())
+                                    .build());
+                }
+            }
+        });
+    }
+
     // used by TransactionCommonServiceTest
     public AggregateRepository getAggregateRepository() {
         return aggregateDao;
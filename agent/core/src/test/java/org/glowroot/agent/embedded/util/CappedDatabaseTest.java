@@ -1,5 +1,5 @@
 /*
- * Copyright 2012-2016 the original author or authors.
+ * Copyright 2012-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -18,10 +18,14 @@ package org.glowroot.agent.embedded.util;
 import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Random;
 
 import com.google.common.base.Charsets;
 import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.google.common.io.ByteSource;
 import org.junit.After;
 import org.junit.Before;
@@ -29,6 +33,9 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
+import org.glowroot.common.util.CloseableIterator;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
 import static org.assertj.core.api.Assertions.assertThat;
 
 public class CappedDatabaseTest {
@@ -63,6 +70,85 @@ public class CappedDatabaseTest {
         assertThat(text2).isEqualTo(text);
     }
 
+    @Test
+    public void shouldIterateMessages() throws Exception {
+        // given
+        List<Trace.Entry> entries = Lists.newArrayList();
+        for (int i = 0; i < 10; i++) {
+            entries.add(Trace.Entry.newBuilder()
+                    .setMessage("entry " + i)
+                    .build());
+        }
+        long cappedId = cappedDatabase.writeMessages(entries, "test");
+        // when
+        Iterator<Trace.Entry> i = cappedDatabase.iterateMessages(cappedId, Trace.Entry.parser());
+        // then
+        assertThat(Lists.newArrayList(i)).isEqualTo(entries);
+    }
+
+    @Test
+    public void shouldNotIterateOverwrittenMessages() throws Exception {
+        // given
+        long cappedId = cappedDatabase.writeMessages(
+                ImmutableList.of(Trace.Entry.newBuilder().setMessage("entry").build()), "test");
+        // use random text so that the lzf compressed text is also large and forces wrapping
+        Random random = new Random();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 600; i++) {
+            sb.append((char) ('a' + random.nextInt(26)));
+        }
+        String text = sb.toString();
+        cappedDatabase.write(ByteSource.wrap(text.getBytes(Charsets.UTF_8)), "test");
+        cappedDatabase.write(ByteSource.wrap(text.getBytes(Charsets.UTF_8)), "test");
+        // when
+        Iterator<Trace.Entry> i = cappedDatabase.iterateMessages(cappedId, Trace.Entry.parser());
+        // then
+        assertThat(i.hasNext()).isFalse();
+    }
+
+    @Test
+    public void shouldReportMessagesOverwrittenMidIteration() throws Exception {
+        // given
+        List<Trace.Entry> entries = Lists.newArrayList();
+        for (int i = 0; i < 10; i++) {
+            entries.add(Trace.Entry.newBuilder()
+                    .setMessage("entry " + i)
+                    .build());
+        }
+        long cappedId = cappedDatabase.writeMessages(entries, "test");
+        CloseableIterator<Trace.Entry> i =
+                cappedDatabase.iterateMessages(cappedId, Trace.Entry.parser());
+        assertThat(i.next()).isEqualTo(entries.get(0));
+        assertThat(i.isOverwritten()).isFalse();
+        // when
+        // use random text so that the lzf compressed text is also large and forces wrapping
+        Random random = new Random();
+        StringBuilder sb = new StringBuilder();
+        for (int j = 0; j < 600; j++) {
+            sb.append((char) ('a' + random.nextInt(26)));
+        }
+        String text = sb.toString();
+        cappedDatabase.write(ByteSource.wrap(text.getBytes(Charsets.UTF_8)), "test");
+        cappedDatabase.write(ByteSource.wrap(text.getBytes(Charsets.UTF_8)), "test");
+        // then
+        assertThat(i.isOverwritten()).isTrue();
+        assertThat(i.hasNext()).isFalse();
+    }
+
+    @Test
+    public void shouldStopIteratingMessagesWhenClosed() throws Exception {
+        // given
+        long cappedId = cappedDatabase.writeMessages(
+                ImmutableList.of(Trace.Entry.newBuilder().setMessage("entry").build()), "test");
+        CloseableIterator<Trace.Entry> i =
+                cappedDatabase.iterateMessages(cappedId, Trace.Entry.parser());
+        // when
+        i.close();
+        // then
+        assertThat(i.hasNext()).isFalse();
+        assertThat(i.isOverwritten()).isFalse();
+    }
+
     @Test
     public void shouldReadOneByteAtATime() throws Exception {
         // given
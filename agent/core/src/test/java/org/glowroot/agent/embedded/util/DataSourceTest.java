@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2017 the original author or authors.
+ * Copyright 2015-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -20,6 +20,7 @@ import java.sql.SQLException;
 import org.junit.Test;
 import org.slf4j.Logger;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -94,4 +95,21 @@ public class DataSourceTest {
                 "'aaa', NULL, 99");
         verifyNoMoreInteractions(logger);
     }
+
+    @Test
+    public void testDeleteBeforeInChunks() throws Exception {
+        // given
+        DataSource dataSource = new DataSource();
+        dataSource.execute("create table test (capture_time bigint)");
+        for (int i = 0; i < 250; i++) {
+            dataSource.update("insert into test (capture_time) values (?)", i);
+        }
+        // when
+        dataSource.deleteBefore("test", 210);
+        // then
+        assertThat(dataSource.queryForLong("select count(*) from test")).isEqualTo(40);
+        assertThat(dataSource.queryForLong("select min(capture_time) from test")).isEqualTo(210);
+        assertThat(dataSource.getDeletedRowCount()).isEqualTo(210);
+        dataSource.close();
+    }
 }
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import org.junit.Test;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AdaptiveCaptureSamplerTest {
+
+    @Test
+    public void shouldSampleEvenly() {
+        // given
+        AdaptiveCaptureSampler sampler = new AdaptiveCaptureSampler(10, 100, 0);
+        // when
+        int sampledCount = 0;
+        for (int i = 0; i < 1000; i++) {
+            long startTick = SECONDS.toNanos(i);
+            long fullCaptureTick = sampler.getFullCaptureTick(startTick);
+            if (fullCaptureTick == startTick) {
+                sampledCount++;
+                // spread evenly
+                assertThat(i % 10).isEqualTo(9);
+            } else {
+                assertThat(fullCaptureTick).isEqualTo(startTick + MILLISECONDS.toNanos(100));
+            }
+        }
+        // then
+        assertThat(sampledCount).isEqualTo(100);
+    }
+
+    @Test
+    public void shouldCapSampledPerSecond() {
+        // given
+        AdaptiveCaptureSampler sampler = new AdaptiveCaptureSampler(50, 100, 3);
+        // when
+        int sampledCount = 0;
+        long startTick = SECONDS.toNanos(5);
+        for (int i = 0; i < 100; i++) {
+            if (sampler.getFullCaptureTick(startTick) == startTick) {
+                sampledCount++;
+            }
+        }
+        long nextSecondStartTick = SECONDS.toNanos(6);
+        boolean sampledInNextSecond = false;
+        for (int i = 0; i < 2; i++) {
+            if (sampler.getFullCaptureTick(nextSecondStartTick) == nextSecondStartTick) {
+                sampledInNextSecond = true;
+            }
+        }
+        // then
+        assertThat(sampledCount).isEqualTo(3);
+        assertThat(sampledInNextSecond).isTrue();
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2014-2017 the original author or authors.
+ * Copyright 2014-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -26,6 +26,7 @@ import org.glowroot.agent.collector.Collector;
 import org.glowroot.agent.config.ConfigService;
 import org.glowroot.agent.config.ImmutableAdvancedConfig;
 import org.glowroot.agent.model.ThreadStats;
+import org.glowroot.agent.model.TimerNameRegistry;
 import org.glowroot.common.util.Clock;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
@@ -48,7 +49,7 @@ public class AggregatorTest {
         when(configService.getAdvancedConfig())
                 .thenReturn(ImmutableAdvancedConfig.builder().build());
         Aggregator aggregator =
-                new Aggregator(aggregateCollector, configService, 1000, Clock.systemClock());
+                new Aggregator(aggregateCollector, configService, null, 1000, Clock.systemClock());
 
         // when
         int count = 0;
@@ -79,6 +80,8 @@ public class AggregatorTest {
         Transaction transaction = mock(Transaction.class);
         TimerImpl mainThreadRootTimer = mock(TimerImpl.class);
         when(mainThreadRootTimer.getName()).thenReturn("mock timer");
+        when(mainThreadRootTimer.getTimerNameId())
+                .thenReturn(TimerNameRegistry.INSTANCE.getId("mock timer", false));
         when(transaction.getTransactionType()).thenReturn("a type");
         when(transaction.getTransactionName()).thenReturn("a name");
         when(transaction.getDurationNanos()).thenReturn(MILLISECONDS.toNanos(123));
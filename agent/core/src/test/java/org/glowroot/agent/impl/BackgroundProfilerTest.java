@@ -0,0 +1,130 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Ticker;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.common.util.Clock;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class BackgroundProfilerTest {
+
+    private Thread busyThread;
+    private volatile boolean stopped;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        busyThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+                while (!stopped) {
+                    spin();
+                }
+            }
+        });
+        busyThread.setName("busy-thread");
+        busyThread.start();
+        latch.await();
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        stopped = true;
+        busyThread.join();
+    }
+
+    @Test
+    public void shouldFlushProfileOfMatchingThreads() throws Exception {
+        // given
+        Clock clock = mock(Clock.class);
+        BackgroundProfiler backgroundProfiler = new BackgroundProfiler(60000, 10, 8, 1000,
+                Pattern.compile("busy-thread"), clock, Ticker.systemTicker());
+
+        // when
+        when(clock.currentTimeMillis()).thenReturn(1000L);
+        for (int i = 0; i < 10; i++) {
+            backgroundProfiler.sample();
+        }
+        // this sample belongs to the next interval
+        when(clock.currentTimeMillis()).thenReturn(61000L);
+        backgroundProfiler.sample();
+        Aggregate aggregate = backgroundProfiler.removeIntervalAggregate(60000);
+
+        // then
+        assertThat(aggregate).isNotNull();
+        // samples are not recorded as transactions
+        assertThat(aggregate.getTransactionCount()).isZero();
+        assertThat(aggregate.getMainThreadRootTimerCount()).isZero();
+        Profile profile = aggregate.getMainThreadProfile();
+        // busy thread may occasionally be observed in a non-runnable state
+        assertThat(getRootSampleCount(profile)).isBetween(1L, 10L);
+        // stack depth is bounded
+        for (Profile.ProfileNode node : profile.getNodeList()) {
+            assertThat(node.getDepth()).isLessThan(8);
+        }
+        assertThat(backgroundProfiler.removeIntervalAggregate(60000)).isNull();
+        Aggregate nextAggregate = backgroundProfiler.removeIntervalAggregate(120000);
+        assertThat(nextAggregate).isNotNull();
+        assertThat(getRootSampleCount(nextAggregate.getMainThreadProfile())).isBetween(0L, 1L);
+    }
+
+    @Test
+    public void shouldNotAddToIntervalAlreadyFlushed() throws Exception {
+        // given
+        Clock clock = mock(Clock.class);
+        BackgroundProfiler backgroundProfiler = new BackgroundProfiler(60000, 10, 8, 1000,
+                Pattern.compile("busy-thread"), clock, Ticker.systemTicker());
+        when(clock.currentTimeMillis()).thenReturn(1000L);
+        backgroundProfiler.sample();
+        backgroundProfiler.removeIntervalAggregate(60000);
+
+        // when
+        backgroundProfiler.sample();
+
+        // then
+        assertThat(backgroundProfiler.removeIntervalAggregate(60000)).isNull();
+        assertThat(backgroundProfiler.removeIntervalAggregate(120000)).isNull();
+    }
+
+    private static long getRootSampleCount(Profile profile) {
+        long rootSampleCount = 0;
+        for (Profile.ProfileNode node : profile.getNodeList()) {
+            if (node.getDepth() == 0) {
+                rootSampleCount += node.getSampleCount();
+            }
+        }
+        return rootSampleCount;
+    }
+
+    private static void spin() {
+        for (int i = 0; i < 1000; i++) {
+            Math.sqrt(i);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import org.glowroot.agent.collector.Collector;
+import org.glowroot.agent.collector.Collector.TraceReader;
+import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.model.ErrorMessage;
+import org.glowroot.common.util.Clock;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class TransactionCollectorTest {
+
+    private final List<String> storedTraceIds = Lists.newCopyOnWriteArrayList();
+    private final CountDownLatch storing = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private TransactionCollector transactionCollector;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        Collector collector = mock(Collector.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                TraceReader traceReader = (TraceReader) invocation.getArguments()[0];
+                storing.countDown();
+                release.await();
+                storedTraceIds.add(traceReader.partial() ? traceReader.traceId() + ":partial"
+                        : traceReader.traceId());
+                return null;
+            }
+        }).when(collector).collectTrace(any(TraceReader.class));
+        transactionCollector = new TransactionCollector(mock(ConfigService.class), collector,
+                mock(Aggregator.class), mock(Clock.class), mock(Ticker.class));
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        release.countDown();
+        transactionCollector.close();
+    }
+
+    @Test
+    public void shouldEvictLeastValuableTraces() throws Exception {
+        // given
+        transactionCollector.onCompletedTransaction(transaction("first", 1000, false));
+        // wait until the first trace is being stored so the rest are queued
+        assertThat(storing.await(10, SECONDS)).isTrue();
+        for (int i = 1; i < 100; i++) {
+            transactionCollector.onCompletedTransaction(transaction("slow" + i, 100 + i, false));
+        }
+        // when
+        Transaction error = transaction("error", 1, true);
+        transactionCollector.onCompletedTransaction(error);
+        Transaction fast = transaction("fast", 50, false);
+        transactionCollector.onCompletedTransaction(fast);
+        // then
+        assertThat(transactionCollector.getEvictedTraceCount()).isEqualTo(1);
+        assertThat(transactionCollector.getDroppedTraceCount()).isEqualTo(1);
+        assertThat(transactionCollector.getPendingTraceCount()).isEqualTo(100);
+        assertThat(transactionCollector.getPendingTransactions()).contains(error);
+        assertThat(transactionCollector.getPendingTransactions()).doesNotContain(fast);
+        release.countDown();
+        transactionCollector.close();
+        assertThat(storedTraceIds).hasSize(100);
+        // most valuable traces are stored first
+        assertThat(storedTraceIds.subList(0, 4)).containsExactly("first", "error", "slow99",
+                "slow98");
+        // least valuable trace was evicted
+        assertThat(storedTraceIds).doesNotContain("slow1");
+        assertThat(storedTraceIds.get(99)).isEqualTo("slow2");
+    }
+
+    @Test
+    public void shouldCoalescePartialTraces() throws Exception {
+        // given
+        transactionCollector.onCompletedTransaction(transaction("first", 1000, false));
+        assertThat(storing.await(10, SECONDS)).isTrue();
+        Transaction transaction = transaction("long", 10000, false);
+        // when
+        transactionCollector.storePartialTrace(transaction);
+        transactionCollector.storePartialTrace(transaction);
+        // then
+        assertThat(transactionCollector.getCoalescedPartialTraceCount()).isEqualTo(1);
+        // partial traces are still active transactions
+        assertThat(transactionCollector.getPendingTransactions()).doesNotContain(transaction);
+        // and when
+        when(transaction.isCompleted()).thenReturn(true);
+        transactionCollector.onCompletedTransaction(transaction);
+        // then
+        assertThat(transactionCollector.getCoalescedPartialTraceCount()).isEqualTo(2);
+        assertThat(transactionCollector.getPendingTransactions()).contains(transaction);
+        release.countDown();
+        transactionCollector.close();
+        assertThat(storedTraceIds).containsExactly("first", "long");
+    }
+
+    private static Transaction transaction(String traceId, long durationNanos, boolean error) {
+        Transaction transaction = mock(Transaction.class);
+        when(transaction.getTraceId()).thenReturn(traceId);
+        when(transaction.getDurationNanos()).thenReturn(durationNanos);
+        when(transaction.getSlowThresholdMillisOverride())
+                .thenReturn(Transaction.USE_GENERAL_STORE_THRESHOLD);
+        if (error) {
+            when(transaction.getErrorMessage())
+                    .thenReturn(ErrorMessage.create("error", null, new AtomicInteger()));
+        }
+        return transaction;
+    }
+}
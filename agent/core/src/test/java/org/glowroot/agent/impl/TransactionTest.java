@@ -1,5 +1,5 @@
 /*
- * Copyright 2016 the original author or authors.
+ * Copyright 2016-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,9 +15,29 @@
  */
 package org.glowroot.agent.impl;
 
+import java.util.List;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
 import org.junit.Test;
 
+import org.glowroot.agent.collector.Collector.EntryVisitor;
+import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.impl.Transaction.CompletionCallback;
+import org.glowroot.agent.model.ImmutableTimerNameImpl;
+import org.glowroot.agent.model.QueryCollector;
+import org.glowroot.agent.model.QueryCollector.SharedQueryTextCollector;
+import org.glowroot.agent.model.TimerNameImpl;
+import org.glowroot.agent.plugin.api.MessageSupplier;
+import org.glowroot.agent.plugin.api.QueryEntry;
+import org.glowroot.agent.plugin.api.QueryMessageSupplier;
+import org.glowroot.agent.plugin.api.TraceEntry;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 public class TransactionTest {
 
@@ -59,4 +79,80 @@ public class TransactionTest {
         // then
         assertThat(lowerSixBytes).isEqualTo("9ab0affd1a83");
     }
+
+    @Test
+    public void shouldOnlyCaptureEntriesAfterUpgradeToFullCapture() throws Exception {
+        // given
+        Ticker ticker = mock(Ticker.class);
+        TimerNameImpl timerName = ImmutableTimerNameImpl.of("test", false);
+        // lightweight capture until tick 100
+        Transaction transaction = createTransaction(ticker, timerName, 100, 100);
+        ThreadContextImpl threadContext = transaction.getMainThreadContext();
+        // when
+        when(ticker.read()).thenReturn(10L);
+        TraceEntry traceEntry = threadContext.startTraceEntry(MessageSupplier.create("before"),
+                timerName);
+        assertThat(traceEntry.getClass().getName()).endsWith("$DummyTraceEntryOrQuery");
+        when(ticker.read()).thenReturn(20L);
+        traceEntry.end();
+        when(ticker.read()).thenReturn(110L);
+        traceEntry = threadContext.startTraceEntry(MessageSupplier.create("after"), timerName);
+        when(ticker.read()).thenReturn(120L);
+        traceEntry.end();
+        // then
+        final List<String> messages = Lists.newArrayList();
+        transaction.accept(130, new EntryVisitor() {
+            @Override
+            public int visitSharedQueryText(String sharedQueryText) {
+                return 0;
+            }
+
+            @Override
+            public void visitEntry(Trace.Entry entry) {
+                messages.add(entry.getMessage());
+            }
+        });
+        // the root entry is not visited, it becomes the trace header
+        assertThat(messages).containsExactly("after");
+        assertThat(transaction.isEntryLimitExceeded()).isFalse();
+        Trace.Header header = TraceCreator.createPartialTraceHeader(transaction, 0, 130);
+        assertThat(header.getEntriesPartiallyCaptured()).isTrue();
+        assertThat(header.getEntryLimitExceeded()).isFalse();
+    }
+
+    @Test
+    public void shouldNotUpdateQueryDataAfterCompletion() throws Exception {
+        // given
+        Ticker ticker = mock(Ticker.class);
+        TimerNameImpl timerName = ImmutableTimerNameImpl.of("test", false);
+        // no trace entries, so that the query entry is not captured in the trace
+        Transaction transaction = createTransaction(ticker, timerName, 0, 0);
+        ThreadContextImpl threadContext = transaction.getMainThreadContext();
+        QueryEntry queryEntry = threadContext.startQueryEntry("SQL", "select 1",
+                QueryMessageSupplier.create("select 1"), timerName);
+        assertThat(queryEntry.getClass().getName()).endsWith("$DummyTraceEntryOrQuery");
+        queryEntry.end();
+        queryEntry.setCurrRow(5);
+        // when
+        transaction.end(10, false);
+        // e.g. row count passed on when the statement is closed after the transaction completes
+        queryEntry.setCurrRow(10);
+        // or e.g. result set iterated after the transaction completes
+        queryEntry.incrementCurrRow();
+        // then
+        QueryCollector queries = new QueryCollector(100, 4);
+        threadContext.mergeQueriesInto(queries);
+        Aggregate.Query query =
+                queries.toAggregateProto(new SharedQueryTextCollector()).get(0).getQuery(0);
+        assertThat(query.getTotalRows().getValue()).isEqualTo(5);
+    }
+
+    private static Transaction createTransaction(Ticker ticker, TimerNameImpl timerName,
+            long fullCaptureTick, int maxTraceEntriesPerTransaction) {
+        return new Transaction(0, 0, "type", "name", MessageSupplier.create("root"), timerName,
+                false, fullCaptureTick, maxTraceEntriesPerTransaction, 100, 100, null,
+                mock(CompletionCallback.class), ticker, mock(TransactionRegistry.class),
+                mock(TransactionServiceImpl.class), mock(ConfigService.class),
+                mock(UserProfileScheduler.class), mock(ThreadContextThreadLocal.Holder.class));
+    }
 }
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.init;
+
+import com.google.common.base.Ticker;
+import org.junit.Test;
+
+import org.glowroot.agent.impl.Aggregator;
+import org.glowroot.agent.impl.StackTraceCollector;
+import org.glowroot.agent.weaving.Weaver;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.offset;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AgentOverheadTest {
+
+    @Test
+    public void shouldEstimateOverhead() {
+        // given
+        Weaver weaver = mock(Weaver.class);
+        Aggregator aggregator = mock(Aggregator.class);
+        StackTraceCollector stackTraceCollector = mock(StackTraceCollector.class);
+        Ticker ticker = mock(Ticker.class);
+        when(ticker.read()).thenReturn(0L);
+        AgentOverhead agentOverhead =
+                new AgentOverhead(weaver, aggregator, stackTraceCollector, null, ticker);
+
+        // when
+        when(weaver.getWeavingNanos()).thenReturn(MILLISECONDS.toNanos(10));
+        when(stackTraceCollector.getSamplingNanos()).thenReturn(MILLISECONDS.toNanos(20));
+        when(aggregator.getProcessingNanos()).thenReturn(MILLISECONDS.toNanos(30));
+        when(aggregator.getTransactionCount()).thenReturn(10L);
+        when(aggregator.getTimerCount()).thenReturn(100L);
+        when(aggregator.getTraceEntryCount()).thenReturn(1000L);
+
+        // then
+        long expectedNanos = MILLISECONDS.toNanos(60) + 10 * 5000 + 100 * 50 + 1000 * 250;
+        assertThat(agentOverhead.getEstimatedOverheadNanos()).isEqualTo(expectedNanos);
+        assertThat(agentOverhead.getWeavingTimeMillis()).isEqualTo(10);
+        // not computed until the first scheduled run
+        assertThat(agentOverhead.getEstimatedOverheadPercent()).isZero();
+        when(ticker.read()).thenReturn(SECONDS.toNanos(10));
+        agentOverhead.runInternal();
+        int availableProcessors = Runtime.getRuntime().availableProcessors();
+        double expectedPercent =
+                100.0 * expectedNanos / (SECONDS.toNanos(10) * availableProcessors);
+        assertThat(agentOverhead.getEstimatedOverheadPercent()).isCloseTo(expectedPercent,
+                offset(0.0001));
+        // multiple readers see the same value until the next scheduled run
+        when(ticker.read()).thenReturn(SECONDS.toNanos(15));
+        assertThat(agentOverhead.getEstimatedOverheadPercent()).isCloseTo(expectedPercent,
+                offset(0.0001));
+        assertThat(agentOverhead.getEstimatedOverheadPercent()).isCloseTo(expectedPercent,
+                offset(0.0001));
+        // no additional overhead in the next interval
+        when(ticker.read()).thenReturn(SECONDS.toNanos(20));
+        agentOverhead.runInternal();
+        assertThat(agentOverhead.getEstimatedOverheadPercent()).isZero();
+    }
+}
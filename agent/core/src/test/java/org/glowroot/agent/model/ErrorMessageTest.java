@@ -0,0 +1,104 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import org.glowroot.wire.api.model.Proto;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ErrorMessageTest {
+
+    @Test
+    public void shouldConvertThrowable() {
+        // given
+        Exception cause = new IllegalStateException("the cause");
+        Exception t = new RuntimeException("the message", cause);
+        AtomicInteger frameCount = new AtomicInteger();
+        // when
+        ErrorMessage errorMessage = ErrorMessage.create(null, t, frameCount);
+        // then
+        assertThat(errorMessage.message()).isEqualTo("the message");
+        // frames are counted against the limit at capture time
+        assertThat(frameCount.get()).isEqualTo(t.getStackTrace().length + 1);
+        Proto.Throwable throwable = errorMessage.throwable();
+        assertThat(throwable.getClassName()).isEqualTo(RuntimeException.class.getName());
+        assertThat(throwable.getMessage()).isEqualTo("the message");
+        assertThat(throwable.getStackTraceElementCount()).isEqualTo(t.getStackTrace().length);
+        assertThat(throwable.getStackTraceElement(0).getMethodName())
+                .isEqualTo("shouldConvertThrowable");
+        Proto.Throwable causeThrowable = throwable.getCause();
+        assertThat(causeThrowable.getClassName()).isEqualTo(IllegalStateException.class.getName());
+        // only the line creating the cause is different
+        assertThat(causeThrowable.getStackTraceElementCount()).isEqualTo(1);
+        assertThat(causeThrowable.getFramesInCommonWithEnclosing())
+                .isEqualTo(t.getStackTrace().length - 1);
+    }
+
+    @Test
+    public void shouldApplyFrameLimitInCaptureOrder() {
+        // given
+        // one frame below the default limit of 100000
+        AtomicInteger frameCount = new AtomicInteger(99999);
+        // when
+        ErrorMessage first = createErrorMessage("first", frameCount);
+        ErrorMessage second = createErrorMessage("second", frameCount);
+        // then
+        // the limit was reached by the first error, regardless of which error is read first
+        assertThat(second.throwable().getStackTraceElementCount()).isZero();
+        assertThat(first.throwable().getStackTraceElementCount()).isGreaterThan(0);
+    }
+
+    @Test
+    public void shouldShareStackTraceElementsOfRepeatedThrowables() {
+        // given
+        ErrorMessage[] errorMessages = new ErrorMessage[2];
+        for (int i = 0; i < 2; i++) {
+            // created from the same line so that the stack traces are the same
+            errorMessages[i] = createErrorMessage(i == 0 ? "one" : "two");
+        }
+        // when
+        Proto.Throwable throwable1 = errorMessages[0].throwable();
+        Proto.Throwable throwable2 = errorMessages[1].throwable();
+        // then
+        assertThat(throwable1.getMessage()).isEqualTo("one");
+        assertThat(throwable2.getMessage()).isEqualTo("two");
+        assertThat(throwable1.getStackTraceElementList())
+                .isEqualTo(throwable2.getStackTraceElementList());
+        for (int i = 0; i < throwable1.getStackTraceElementCount(); i++) {
+            assertThat(throwable1.getStackTraceElement(i))
+                    .isSameAs(throwable2.getStackTraceElement(i));
+        }
+    }
+
+    @Test
+    public void shouldNotConvertWithoutThrowable() {
+        ErrorMessage errorMessage = ErrorMessage.create("abc", null, new AtomicInteger());
+        assertThat(errorMessage.message()).isEqualTo("abc");
+        assertThat(errorMessage.throwable()).isNull();
+    }
+
+    private static ErrorMessage createErrorMessage(String message) {
+        return createErrorMessage(message, new AtomicInteger());
+    }
+
+    private static ErrorMessage createErrorMessage(String message, AtomicInteger frameCount) {
+        return ErrorMessage.create(null, new Exception(message), frameCount);
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MutableAggregateTimersTest {
+
+    @Test
+    public void shouldMergeTimerTrees() {
+        // given
+        MutableAggregateTimers aggregateTimers = new MutableAggregateTimers();
+        // when
+        aggregateTimers.mergeRootTimer(timer("http request", 100, 1,
+                timer("jdbc query", 10, 2), timer("jdbc query", 20, 1, true)));
+        aggregateTimers.mergeRootTimer(timer("http request", 200, 1,
+                timer("jdbc query", 30, 3, timer("jdbc get connection", 5, 1)),
+                timer("http client request", 40, 1)));
+        aggregateTimers.mergeRootTimer(timer("jdbc query", 7, 1));
+        List<Aggregate.Timer> rootTimers = aggregateTimers.toProto();
+        // then
+        assertThat(rootTimers).hasSize(2);
+        Aggregate.Timer rootTimer = rootTimers.get(0);
+        assertThat(rootTimer.getName()).isEqualTo("http request");
+        assertThat(rootTimer.getTotalNanos()).isEqualTo(300);
+        assertThat(rootTimer.getCount()).isEqualTo(2);
+        assertThat(rootTimer.getChildTimerCount()).isEqualTo(3);
+
+        Aggregate.Timer childTimer = rootTimer.getChildTimer(0);
+        assertThat(childTimer.getName()).isEqualTo("jdbc query");
+        assertThat(childTimer.getExtended()).isFalse();
+        assertThat(childTimer.getTotalNanos()).isEqualTo(40);
+        assertThat(childTimer.getCount()).isEqualTo(5);
+        assertThat(childTimer.getChildTimerCount()).isEqualTo(1);
+        assertThat(childTimer.getChildTimer(0).getName()).isEqualTo("jdbc get connection");
+
+        Aggregate.Timer extendedChildTimer = rootTimer.getChildTimer(1);
+        assertThat(extendedChildTimer.getName()).isEqualTo("jdbc query");
+        assertThat(extendedChildTimer.getExtended()).isTrue();
+        assertThat(extendedChildTimer.getTotalNanos()).isEqualTo(20);
+
+        assertThat(rootTimer.getChildTimer(2).getName()).isEqualTo("http client request");
+
+        // same timer name as a nested timer, but a different path
+        Aggregate.Timer otherRootTimer = rootTimers.get(1);
+        assertThat(otherRootTimer.getName()).isEqualTo("jdbc query");
+        assertThat(otherRootTimer.getTotalNanos()).isEqualTo(7);
+        assertThat(otherRootTimer.getChildTimerCount()).isZero();
+    }
+
+    @Test
+    public void shouldMergeManyPaths() {
+        // given
+        MutableAggregateTimers aggregateTimers = new MutableAggregateTimers();
+        // when
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 100; j++) {
+                aggregateTimers.mergeRootTimer(timer("root " + j, 1, 1, timer("child", 1, 1)));
+            }
+        }
+        List<Aggregate.Timer> rootTimers = aggregateTimers.toProto();
+        // then
+        assertThat(rootTimers).hasSize(100);
+        for (int j = 0; j < 100; j++) {
+            Aggregate.Timer rootTimer = rootTimers.get(j);
+            assertThat(rootTimer.getName()).isEqualTo("root " + j);
+            assertThat(rootTimer.getCount()).isEqualTo(3);
+            assertThat(rootTimer.getChildTimer(0).getCount()).isEqualTo(3);
+        }
+    }
+
+    @Test
+    public void shouldAssignSameIdToSameTimerName() {
+        TimerNameRegistry registry = TimerNameRegistry.INSTANCE;
+        int id = registry.getId("same name", false);
+        assertThat(registry.getId("same name", false)).isEqualTo(id);
+        assertThat(registry.getId("same name", true)).isNotEqualTo(id);
+        assertThat(registry.getName(id)).isEqualTo("same name");
+        assertThat(registry.isExtended(id)).isFalse();
+        assertThat(ImmutableTimerNameImpl.of("same name", false).specialHashCode())
+                .isEqualTo(id);
+    }
+
+    private static MutableTraceTimer timer(String name, long totalNanos, long count,
+            MutableTraceTimer... childTimers) {
+        return timer(name, totalNanos, count, false, childTimers);
+    }
+
+    private static MutableTraceTimer timer(String name, long totalNanos, long count,
+            boolean extended, MutableTraceTimer... childTimers) {
+        return new MutableTraceTimer(name, extended, totalNanos, count,
+                ImmutableList.copyOf(childTimers));
+    }
+}
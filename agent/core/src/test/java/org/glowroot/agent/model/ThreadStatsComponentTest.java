@@ -0,0 +1,82 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+public class ThreadStatsComponentTest {
+
+    private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    @Test
+    public void shouldNotCaptureBlockedWaitedWhenNotSampled() {
+        // given
+        ThreadStatsComponent component = new ThreadStatsComponent(null, 0);
+        // when
+        component.onComplete();
+        ThreadStats threadStats = component.getThreadStats();
+        // then
+        assertThat(threadStats.getTotalBlockedMillis()).isEqualTo(-1);
+        assertThat(threadStats.getTotalWaitedMillis()).isEqualTo(-1);
+        assertThat(threadStats.getBlockedWaitedSampleWeight()).isZero();
+        if (threadMXBean.isThreadCpuTimeSupported() && threadMXBean.isThreadCpuTimeEnabled()) {
+            assertThat(threadStats.getTotalCpuNanos()).isGreaterThanOrEqualTo(0);
+        }
+    }
+
+    @Test
+    public void shouldCaptureBlockedWaitedWhenSampled() {
+        assumeTrue(threadMXBean.isThreadContentionMonitoringSupported());
+        boolean original = threadMXBean.isThreadContentionMonitoringEnabled();
+        threadMXBean.setThreadContentionMonitoringEnabled(true);
+        try {
+            // given
+            int weight = ThreadStatsComponent.nextBlockedWaitedSampleWeight();
+            ThreadStatsComponent component = new ThreadStatsComponent(null, weight);
+            // when
+            component.onComplete();
+            ThreadStats threadStats = component.getThreadStats();
+            // then
+            assertThat(weight).isEqualTo(1);
+            assertThat(threadStats.getTotalBlockedMillis()).isGreaterThanOrEqualTo(0);
+            assertThat(threadStats.getTotalWaitedMillis()).isGreaterThanOrEqualTo(0);
+            assertThat(threadStats.getBlockedWaitedSampleWeight()).isEqualTo(1);
+        } finally {
+            threadMXBean.setThreadContentionMonitoringEnabled(original);
+        }
+    }
+
+    @Test
+    public void shouldNotSampleWhenContentionMonitoringDisabled() {
+        boolean original = threadMXBean.isThreadContentionMonitoringEnabled();
+        if (threadMXBean.isThreadContentionMonitoringSupported()) {
+            threadMXBean.setThreadContentionMonitoringEnabled(false);
+        }
+        try {
+            assertThat(ThreadStatsComponent.nextBlockedWaitedSampleWeight()).isZero();
+        } finally {
+            if (threadMXBean.isThreadContentionMonitoringSupported()) {
+                threadMXBean.setThreadContentionMonitoringEnabled(original);
+            }
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import org.glowroot.agent.util.Reflections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AccessorGeneratorTest {
+
+    @Test
+    public void shouldGenerateForGetterMethod() throws Exception {
+        // when
+        AccessorInvoker invoker = AccessorGenerator.generate(PublicObject.class,
+                PublicObject.class.getMethod("getOne"));
+        // then
+        assertThat(invoker).isNotNull();
+        assertThat(invoker.get(new PublicObject())).isEqualTo("1");
+    }
+
+    @Test
+    public void shouldGenerateForPrimitiveMethod() throws Exception {
+        // when
+        AccessorInvoker invoker = AccessorGenerator.generate(PublicObject.class,
+                PublicObject.class.getMethod("isTwo"));
+        // then
+        assertThat(invoker).isNotNull();
+        assertThat(invoker.get(new PublicObject())).isEqualTo(true);
+    }
+
+    @Test
+    public void shouldGenerateForPrimitiveField() throws Exception {
+        // when
+        AccessorInvoker invoker = AccessorGenerator.generate(PublicObject.class,
+                PublicObject.class.getField("three"));
+        // then
+        assertThat(invoker).isNotNull();
+        assertThat(invoker.get(new PublicObject())).isEqualTo(3L);
+    }
+
+    @Test
+    public void shouldReuseGeneratedClass() throws Exception {
+        // when
+        AccessorInvoker invoker1 = AccessorGenerator.generate(PublicObject.class,
+                PublicObject.class.getMethod("getOne"));
+        AccessorInvoker invoker2 = AccessorGenerator.generate(PublicObject.class,
+                PublicObject.class.getMethod("getOne"));
+        // then
+        assertThat(invoker1).isNotNull();
+        assertThat(invoker2).isNotNull();
+        assertThat(invoker1.getClass()).isSameAs(invoker2.getClass());
+    }
+
+    @Test
+    public void shouldGenerateThroughPublicInterface() throws Exception {
+        // when
+        AccessorInvoker invoker = AccessorGenerator.generate(PrivateObject.class,
+                PrivateObject.class.getMethod("getOne"));
+        // then
+        assertThat(invoker).isNotNull();
+        assertThat(invoker.get(new PrivateObject())).isEqualTo("1");
+        assertThat(invoker.getClass().getName())
+                .startsWith("org.glowroot.agent.generated.GeneratedAccessor");
+    }
+
+    @Test
+    public void shouldNotGenerateForBootstrapClass() throws Exception {
+        // given
+        List<String> list = Collections.synchronizedList(Lists.newArrayList("a", "b"));
+        // when
+        AccessorInvoker invoker = AccessorGenerator.generate(list.getClass(),
+                Reflections.getAnyMethod(list.getClass(), "size"));
+        // then
+        assertThat(invoker).isNull();
+    }
+
+    @Test
+    public void shouldNotGenerateForNonPublicClass() throws Exception {
+        // when
+        AccessorInvoker invoker = AccessorGenerator.generate(PrivateObject.class,
+                PrivateObject.class.getMethod("getTwo"));
+        // then
+        assertThat(invoker).isNull();
+    }
+
+    @Test
+    public void shouldWrapExceptionSameAsReflection() throws Exception {
+        // given
+        Accessor accessor = Accessor.fromMethod(PublicObject.class,
+                PublicObject.class.getMethod("getFour"));
+        // when
+        Throwable t = null;
+        try {
+            accessor.evaluate(new PublicObject());
+        } catch (InvocationTargetException e) {
+            t = e.getCause();
+        }
+        // then
+        assertThat(t).isInstanceOf(IllegalStateException.class).hasMessage("four");
+    }
+
+    @Test
+    public void shouldFallBackToReflectionOnLinkageError() throws Exception {
+        // given
+        final AtomicInteger invokerCount = new AtomicInteger();
+        AccessorInvoker inaccessibleInvoker = new AccessorInvoker() {
+            @Override
+            public Object get(Object obj) {
+                invokerCount.getAndIncrement();
+                throw new IllegalAccessError();
+            }
+        };
+        Accessor accessor = Accessor.fromMethod(PublicObject.class.getMethod("getOne"),
+                inaccessibleInvoker);
+        // when
+        Object value1 = accessor.evaluate(new PublicObject());
+        Object value2 = accessor.evaluate(new PublicObject());
+        // then
+        assertThat(value1).isEqualTo("1");
+        assertThat(value2).isEqualTo("1");
+        assertThat(invokerCount.get()).isEqualTo(1);
+    }
+
+    public static class PublicObject {
+
+        public final long three = 3;
+
+        public String getOne() {
+            return "1";
+        }
+
+        public boolean isTwo() {
+            return true;
+        }
+
+        public String getFour() {
+            throw new IllegalStateException("four");
+        }
+    }
+
+    public interface PublicInterface {
+        String getOne();
+    }
+
+    private static class PrivateObject implements PublicInterface {
+
+        @Override
+        public String getOne() {
+            return "1";
+        }
+
+        @SuppressWarnings("unused")
+        public String getTwo() {
+            return "2";
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.CodeSource;
+import java.security.cert.Certificate;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import com.google.common.io.ByteStreams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.weaving.ThinClassVisitor.ThinClass;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SpeculativeClassParserTest {
+
+    private static final String ONE = "org/glowroot/agent/weaving/SpeculativeClassParserTest$One";
+    private static final String TWO = "org/glowroot/agent/weaving/SpeculativeClassParserTest$Two";
+
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private File jarFile;
+    private CodeSource codeSource;
+
+    @Before
+    public void beforeEachTest() throws IOException {
+        jarFile = File.createTempFile("glowroot-test-", ".jar");
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(jarFile));
+        try {
+            for (String className : new String[] {ONE, TWO}) {
+                out.putNextEntry(new JarEntry(className + ".class"));
+                out.write(getClassBytes(className));
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+        codeSource = new CodeSource(jarFile.toURI().toURL(), (Certificate[]) null);
+    }
+
+    @After
+    public void afterEachTest() {
+        jarFile.delete();
+    }
+
+    @Test
+    public void shouldUseSpeculativelyParsedClass() throws Exception {
+        // given
+        SpeculativeClassParser parser = new SpeculativeClassParser(DIRECT_EXECUTOR, 100);
+        // first class woven from the jar file triggers parsing of the jar file
+        assertThat(parser.getThinClass(ONE, codeSource, getClassBytes(ONE))).isNull();
+        // when
+        ThinClass thinClass = parser.getThinClass(TWO, codeSource, getClassBytes(TWO));
+        // then
+        assertThat(thinClass).isNotNull();
+        assertThat(thinClass.name()).isEqualTo(TWO);
+        // each speculatively parsed class is only used once
+        assertThat(parser.getThinClass(TWO, codeSource, getClassBytes(TWO))).isNull();
+    }
+
+    @Test
+    public void shouldNotUseSpeculativelyParsedClassWhenBytesDiffer() throws Exception {
+        // given
+        SpeculativeClassParser parser = new SpeculativeClassParser(DIRECT_EXECUTOR, 100);
+        parser.getThinClass(ONE, codeSource, getClassBytes(ONE));
+        // same length, but different checksum (e.g. modified by another ClassFileTransformer)
+        byte[] modifiedClassBytes = getClassBytes(TWO);
+        modifiedClassBytes[modifiedClassBytes.length - 1] ^= 1;
+        // when
+        ThinClass thinClass = parser.getThinClass(TWO, codeSource, modifiedClassBytes);
+        // then
+        assertThat(thinClass).isNull();
+    }
+
+    @Test
+    public void shouldBackOffWhenExecutorIsSaturated() throws Exception {
+        // given
+        final AtomicInteger submitCount = new AtomicInteger();
+        SpeculativeClassParser parser = new SpeculativeClassParser(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                submitCount.getAndIncrement();
+                throw new RejectedExecutionException();
+            }
+        }, 100);
+        // when
+        ThinClass thinClass1 = parser.getThinClass(ONE, codeSource, getClassBytes(ONE));
+        ThinClass thinClass2 = parser.getThinClass(TWO, codeSource, getClassBytes(TWO));
+        // then
+        assertThat(thinClass1).isNull();
+        assertThat(thinClass2).isNull();
+        // rejected jar file is submitted again the next time a class is woven from it
+        assertThat(submitCount.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldEvictOldestParsedClassWhenFull() throws Exception {
+        // given
+        SpeculativeClassParser parser = new SpeculativeClassParser(DIRECT_EXECUTOR, 1);
+        // when
+        // parsing the jar file adds both One and Two, so One is evicted to stay within the bound
+        parser.getThinClass(ONE, codeSource, getClassBytes(ONE));
+        // then
+        assertThat(parser.getParsedClassCount()).isEqualTo(1);
+        // speculative parsing keeps working after the bound has been reached
+        ThinClass thinClass = parser.getThinClass(TWO, codeSource, getClassBytes(TWO));
+        assertThat(thinClass).isNotNull();
+        assertThat(thinClass.name()).isEqualTo(TWO);
+        assertThat(parser.getParsedClassCount()).isZero();
+    }
+
+    private static byte[] getClassBytes(String className) throws IOException {
+        InputStream in =
+                SpeculativeClassParserTest.class.getResourceAsStream("/" + className + ".class");
+        try {
+            return ByteStreams.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    @SuppressWarnings("unused")
+    private static class One {}
+
+    @SuppressWarnings("unused")
+    private static class Two {}
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class WeakClassLoaderMapTest {
+
+    @Test
+    public void shouldPutAndGet() {
+        // given
+        WeakClassLoaderMap<String> map = new WeakClassLoaderMap<String>();
+        List<ClassLoader> loaders = Lists.newArrayList();
+        // when
+        for (int i = 0; i < 100; i++) {
+            ClassLoader loader = new URLClassLoader(new URL[0]);
+            loaders.add(loader);
+            assertThat(map.putIfAbsent(loader, "value" + i)).isEqualTo("value" + i);
+        }
+        // then
+        for (int i = 0; i < 100; i++) {
+            assertThat(map.get(loaders.get(i))).isEqualTo("value" + i);
+            // existing value is retained
+            assertThat(map.putIfAbsent(loaders.get(i), "other")).isEqualTo("value" + i);
+        }
+        assertThat(map.get(new URLClassLoader(new URL[0]))).isNull();
+        assertThat(map.keys()).containsOnlyElementsOf(loaders).hasSize(100);
+        assertThat(map.values()).hasSize(100);
+    }
+}
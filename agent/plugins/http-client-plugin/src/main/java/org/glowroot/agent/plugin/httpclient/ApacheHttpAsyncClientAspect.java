@@ -1,5 +1,5 @@
 /*
- * Copyright 2016-2017 the original author or authors.
+ * Copyright 2016-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -125,7 +125,7 @@ public class ApacheHttpAsyncClientAspect {
                 uri = uriObj.toString();
             }
             AsyncTraceEntry asyncTraceEntry = context.startAsyncServiceCallEntry("HTTP",
-                    method + Uris.stripQueryString(uri),
+                    method + Uris.getServiceCallUri(uri),
                     MessageSupplier.create("http client request: {}{}", method, uri), timerName);
             asyncTraceEntryHolder.set(asyncTraceEntry);
             return asyncTraceEntry;
@@ -177,7 +177,7 @@ public class ApacheHttpAsyncClientAspect {
                 uri = "";
             }
             AsyncTraceEntry asyncTraceEntry = context.startAsyncServiceCallEntry("HTTP",
-                    method + Uris.stripQueryString(uri),
+                    method + Uris.getServiceCallUri(uri),
                     MessageSupplier.create("http client request: {}{}{}", method, host, uri),
                     timerName);
             asyncTraceEntryHolder.set(asyncTraceEntry);
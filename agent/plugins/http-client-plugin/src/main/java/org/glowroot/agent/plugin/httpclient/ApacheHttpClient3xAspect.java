@@ -1,5 +1,5 @@
 /*
- * Copyright 2016-2017 the original author or authors.
+ * Copyright 2016-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -71,7 +71,7 @@ public class ApacheHttpClient3xAspect {
             } else {
                 uri = uriObj.toString();
             }
-            return context.startServiceCallEntry("HTTP", method + Uris.stripQueryString(uri),
+            return context.startServiceCallEntry("HTTP", method + Uris.getServiceCallUri(uri),
                     MessageSupplier.create("http client request: {}{}", method, uri),
                     timerName);
         }
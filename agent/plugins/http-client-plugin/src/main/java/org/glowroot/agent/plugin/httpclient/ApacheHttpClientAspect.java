@@ -1,5 +1,5 @@
 /*
- * Copyright 2016-2017 the original author or authors.
+ * Copyright 2016-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -112,7 +112,7 @@ public class ApacheHttpClientAspect {
             } else {
                 uri = uriObj.toString();
             }
-            return context.startServiceCallEntry("HTTP", method + Uris.stripQueryString(uri),
+            return context.startServiceCallEntry("HTTP", method + Uris.getServiceCallUri(uri),
                     MessageSupplier.create("http client request: {}{}", method, uri),
                     timerName);
         }
@@ -160,7 +160,7 @@ public class ApacheHttpClientAspect {
             if (uri == null) {
                 uri = "";
             }
-            return context.startServiceCallEntry("HTTP", method + Uris.stripQueryString(uri),
+            return context.startServiceCallEntry("HTTP", method + Uris.getServiceCallUri(uri),
                     MessageSupplier.create("http client request: {}{}{}", method, host, uri),
                     timerName);
         }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2017 the original author or authors.
+ * Copyright 2015-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -141,7 +141,7 @@ public class AsyncHttpClientAspect {
             if (url == null) {
                 url = "";
             }
-            return context.startAsyncServiceCallEntry("HTTP", method + Uris.stripQueryString(url),
+            return context.startAsyncServiceCallEntry("HTTP", method + Uris.getServiceCallUri(url),
                     MessageSupplier.create("http client request: {}{}", method, url), timerName);
         }
         @OnReturn
@@ -217,7 +217,7 @@ public class AsyncHttpClientAspect {
                 method += " ";
             }
             String url = requestInvoker.getUrl(request);
-            return context.startAsyncServiceCallEntry("HTTP", method + Uris.stripQueryString(url),
+            return context.startAsyncServiceCallEntry("HTTP", method + Uris.getServiceCallUri(url),
                     MessageSupplier.create("http client request: {}{}", method, url), timerName);
         }
         @OnReturn
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.httpclient;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.glowroot.agent.plugin.api.Agent;
+import org.glowroot.agent.plugin.api.config.ConfigListener;
+import org.glowroot.agent.plugin.api.config.ConfigService;
+
+class HttpClientPluginProperties {
+
+    private static final String REPLACE_URI_IDS_PROPERTY_NAME = "replaceUriIds";
+    private static final String URI_TEMPLATES_PROPERTY_NAME = "uriTemplates";
+
+    private static final ConfigService configService = Agent.getConfigService("http-client");
+
+    private static volatile UriTemplater uriTemplater =
+            new UriTemplater(false, Collections.<String>emptyList());
+
+    static {
+        configService.registerConfigListener(new HttpClientPluginConfigListener());
+    }
+
+    private HttpClientPluginProperties() {}
+
+    static UriTemplater uriTemplater() {
+        return uriTemplater;
+    }
+
+    private static class HttpClientPluginConfigListener implements ConfigListener {
+
+        @Override
+        public void onChange() {
+            boolean replaceUriIds =
+                    configService.getBooleanProperty(REPLACE_URI_IDS_PROPERTY_NAME).value();
+            List<String> uriTemplates = new ArrayList<String>();
+            String uriTemplatesText =
+                    configService.getStringProperty(URI_TEMPLATES_PROPERTY_NAME).value();
+            for (String uriTemplate : uriTemplatesText.split(",")) {
+                uriTemplate = uriTemplate.trim();
+                if (!uriTemplate.isEmpty()) {
+                    uriTemplates.add(uriTemplate);
+                }
+            }
+            // a new templater is created (instead of updating the existing one) so that its memo
+            // never contains results from the prior config
+            uriTemplater = new UriTemplater(replaceUriIds, uriTemplates);
+        }
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2017 the original author or authors.
+ * Copyright 2017-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -132,7 +132,7 @@ public class HttpURLConnectionAspect {
                 url = urlObj.toString();
             }
             traceEntry = threadContext.startServiceCallEntry("HTTP",
-                    method + Uris.stripQueryString(url),
+                    method + Uris.getServiceCallUri(url),
                     MessageSupplier.create("http client request: {}{}", method, url), timerName);
             ((HasTraceEntry) httpURLConnection).glowroot$setTraceEntry(traceEntry);
             return traceEntry;
@@ -1,5 +1,5 @@
 /*
- * Copyright 2016-2017 the original author or authors.
+ * Copyright 2016-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -115,7 +115,7 @@ public class OkHttpClientAspect {
             } else {
                 url = urlObj.toString();
             }
-            return context.startServiceCallEntry("HTTP", method + Uris.stripQueryString(url),
+            return context.startServiceCallEntry("HTTP", method + Uris.getServiceCallUri(url),
                     MessageSupplier.create("http client request: {}{}", method, url), timerName);
         }
         @OnReturn
@@ -163,7 +163,7 @@ public class OkHttpClientAspect {
                 url = urlObj.toString();
             }
             AsyncTraceEntry asyncTraceEntry = context.startAsyncServiceCallEntry("HTTP",
-                    method + Uris.stripQueryString(url),
+                    method + Uris.getServiceCallUri(url),
                     MessageSupplier.create("http client request: {}{}", method, url), timerName);
             // important to inject values into callback in @OnBefore since it's possible for
             // callback to be invoked prior to @OnReturn
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.httpclient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.annotation.Nullable;
+
+// replaces the variable segments of uri paths with placeholders, e.g. /users/12345/orders/987
+// becomes /users/{id}/orders/{id}, so that service calls to the same REST endpoint are aggregated
+// together, instead of each distinct uri using up one of the maxAggregateServiceCallsPerType slots
+//
+// the host and port are never modified, only the path
+class UriTemplater {
+
+    private static final int MEMO_SIZE = 1024;
+
+    private final boolean replaceIds;
+    private final List<CustomTemplate> customTemplates;
+
+    // direct-mapped by uri hash, which keeps the memo bounded and lock-free (a colliding uri simply
+    // replaces the prior one in its slot)
+    private final AtomicReferenceArray</*@Nullable*/ MemoEntry> memo =
+            new AtomicReferenceArray</*@Nullable*/ MemoEntry>(MEMO_SIZE);
+
+    UriTemplater(boolean replaceIds, List<String> customTemplates) {
+        this.replaceIds = replaceIds;
+        List<CustomTemplate> list = new ArrayList<CustomTemplate>();
+        for (String customTemplate : customTemplates) {
+            list.add(new CustomTemplate(customTemplate));
+        }
+        this.customTemplates = list;
+    }
+
+    String templatize(String uri) {
+        if (!replaceIds && customTemplates.isEmpty()) {
+            return uri;
+        }
+        int slot = uri.hashCode() & (MEMO_SIZE - 1);
+        MemoEntry entry = memo.get(slot);
+        if (entry != null && entry.uri.equals(uri)) {
+            return entry.template;
+        }
+        String template = templatizeInternal(uri);
+        memo.set(slot, new MemoEntry(uri, template));
+        return template;
+    }
+
+    private String templatizeInternal(String uri) {
+        int pathStart = getPathStart(uri);
+        if (pathStart == -1) {
+            return uri;
+        }
+        for (CustomTemplate customTemplate : customTemplates) {
+            if (customTemplate.matches(uri, pathStart)) {
+                return uri.substring(0, pathStart) + customTemplate.text;
+            }
+        }
+        if (!replaceIds) {
+            return uri;
+        }
+        // only allocate if there is something to replace
+        StringBuilder sb = null;
+        int copiedUpTo = 0;
+        int length = uri.length();
+        int segmentStart = pathStart;
+        while (segmentStart <= length) {
+            int segmentEnd = uri.indexOf('/', segmentStart);
+            if (segmentEnd == -1) {
+                segmentEnd = length;
+            }
+            String placeholder = getPlaceholder(uri, segmentStart, segmentEnd);
+            if (placeholder != null) {
+                if (sb == null) {
+                    sb = new StringBuilder(length);
+                }
+                sb.append(uri, copiedUpTo, segmentStart);
+                sb.append(placeholder);
+                copiedUpTo = segmentEnd;
+            }
+            segmentStart = segmentEnd + 1;
+        }
+        if (sb == null) {
+            return uri;
+        }
+        sb.append(uri, copiedUpTo, length);
+        return sb.toString();
+    }
+
+    // returns -1 if the uri has no path
+    private static int getPathStart(String uri) {
+        int index = uri.indexOf("://");
+        if (index == -1) {
+            return 0;
+        }
+        return uri.indexOf('/', index + 3);
+    }
+
+    private static @Nullable String getPlaceholder(String uri, int start, int end) {
+        int length = end - start;
+        if (length == 0) {
+            return null;
+        }
+        if (isNumeric(uri, start, end)) {
+            return "{id}";
+        }
+        if (length == 36 && isUuid(uri, start)) {
+            return "{uuid}";
+        }
+        // requiring at least one digit avoids replacing ordinary words made up of a-f
+        if (length >= 8 && isHexWithDigit(uri, start, end)) {
+            return "{hex}";
+        }
+        return null;
+    }
+
+    private static boolean isNumeric(String uri, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = uri.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isUuid(String uri, int start) {
+        for (int i = 0; i < 36; i++) {
+            char c = uri.charAt(start + i);
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') {
+                    return false;
+                }
+            } else if (!isHex(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isHexWithDigit(String uri, int start, int end) {
+        boolean digit = false;
+        for (int i = start; i < end; i++) {
+            char c = uri.charAt(i);
+            if (!isHex(c)) {
+                return false;
+            }
+            digit = digit || c <= '9';
+        }
+        return digit;
+    }
+
+    private static boolean isHex(char c) {
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+    }
+
+    private static class CustomTemplate {
+
+        private final String text;
+        // null elements are placeholders which match any single (non-empty) path segment
+        private final /*@Nullable*/ String[] segments;
+
+        private CustomTemplate(String template) {
+            text = template.startsWith("/") ? template : "/" + template;
+            List</*@Nullable*/ String> list = new ArrayList</*@Nullable*/ String>();
+            int segmentStart = 1;
+            while (segmentStart <= text.length()) {
+                int segmentEnd = text.indexOf('/', segmentStart);
+                if (segmentEnd == -1) {
+                    segmentEnd = text.length();
+                }
+                String segment = text.substring(segmentStart, segmentEnd);
+                if (segment.equals("*") || (segment.startsWith("{") && segment.endsWith("}"))) {
+                    list.add(null);
+                } else {
+                    list.add(segment);
+                }
+                segmentStart = segmentEnd + 1;
+            }
+            segments = list.toArray(new String[list.size()]);
+        }
+
+        private boolean matches(String uri, int pathStart) {
+            int length = uri.length();
+            if (pathStart >= length || uri.charAt(pathStart) != '/') {
+                return false;
+            }
+            int segmentStart = pathStart + 1;
+            for (String segment : segments) {
+                if (segmentStart > length) {
+                    return false;
+                }
+                int segmentEnd = uri.indexOf('/', segmentStart);
+                if (segmentEnd == -1) {
+                    segmentEnd = length;
+                }
+                int segmentLength = segmentEnd - segmentStart;
+                if (segment == null) {
+                    if (segmentLength == 0) {
+                        return false;
+                    }
+                } else if (segment.length() != segmentLength
+                        || !uri.regionMatches(segmentStart, segment, 0, segmentLength)) {
+                    return false;
+                }
+                segmentStart = segmentEnd + 1;
+            }
+            // all of the uri's path segments must have been matched
+            return segmentStart == length + 1;
+        }
+    }
+
+    private static class MemoEntry {
+
+        private final String uri;
+        private final String template;
+
+        private MemoEntry(String uri, String template) {
+            this.uri = uri;
+            this.template = template;
+        }
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2016 the original author or authors.
+ * Copyright 2016-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -19,6 +19,12 @@ class Uris {
 
     private Uris() {}
 
+    // this is the uri used in the service call text, which is aggregated, so it needs to be
+    // stripped of the query string and templated (see UriTemplater)
+    static String getServiceCallUri(String uri) {
+        return HttpClientPluginProperties.uriTemplater().templatize(stripQueryString(uri));
+    }
+
     static String stripQueryString(String uri) {
         int index = uri.indexOf('?');
         if (index == -1) {
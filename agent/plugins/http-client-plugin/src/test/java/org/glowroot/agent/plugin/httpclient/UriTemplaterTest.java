@@ -0,0 +1,83 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.httpclient;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class UriTemplaterTest {
+
+    private static final UriTemplater REPLACE_IDS =
+            new UriTemplater(true, Collections.<String>emptyList());
+
+    @Test
+    public void shouldReplaceIds() {
+        assertThat(REPLACE_IDS.templatize("http://localhost:8080/users/12345/orders/987"))
+                .isEqualTo("http://localhost:8080/users/{id}/orders/{id}");
+        assertThat(REPLACE_IDS.templatize("/users/12345/orders/987/"))
+                .isEqualTo("/users/{id}/orders/{id}/");
+        assertThat(REPLACE_IDS.templatize("/items/123e4567-e89b-12d3-a456-426655440000"))
+                .isEqualTo("/items/{uuid}");
+        assertThat(REPLACE_IDS.templatize("/objects/5a1b2c3d4e5f6a7b8c9d0e1f/content"))
+                .isEqualTo("/objects/{hex}/content");
+    }
+
+    @Test
+    public void shouldNotReplaceNonIds() {
+        String uri = "http://10.0.0.1:8080/api/v2/deadbeef/facade";
+        // returns the same instance when there is nothing to replace
+        assertThat(REPLACE_IDS.templatize(uri)).isSameAs(uri);
+        assertThat(REPLACE_IDS.templatize("http://localhost:8080"))
+                .isEqualTo("http://localhost:8080");
+    }
+
+    @Test
+    public void shouldApplyCustomTemplates() {
+        // given
+        UriTemplater uriTemplater =
+                new UriTemplater(true, Arrays.asList("/users/{name}/profile", "files/*"));
+        // then
+        assertThat(uriTemplater.templatize("http://localhost/users/abc/profile"))
+                .isEqualTo("http://localhost/users/{name}/profile");
+        assertThat(uriTemplater.templatize("/files/readme.txt")).isEqualTo("/files/*");
+        // number of segments must match
+        assertThat(uriTemplater.templatize("/files/docs/123")).isEqualTo("/files/docs/{id}");
+        assertThat(uriTemplater.templatize("/users/abc/profile/x"))
+                .isEqualTo("/users/abc/profile/x");
+    }
+
+    @Test
+    public void shouldUseMemo() {
+        // given
+        UriTemplater uriTemplater = new UriTemplater(true, Collections.<String>emptyList());
+        // when
+        String template1 = uriTemplater.templatize("/users/12345");
+        String template2 = uriTemplater.templatize("/users/12345");
+        // then
+        assertThat(template1).isEqualTo("/users/{id}");
+        assertThat(template2).isSameAs(template1);
+    }
+
+    @Test
+    public void shouldNotReplaceWhenDisabled() {
+        UriTemplater uriTemplater = new UriTemplater(false, Collections.<String>emptyList());
+        assertThat(uriTemplater.templatize("/users/12345")).isEqualTo("/users/12345");
+    }
+}
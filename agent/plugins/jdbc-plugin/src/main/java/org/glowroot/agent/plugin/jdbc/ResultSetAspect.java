@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2016 the original author or authors.
+ * Copyright 2011-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -82,6 +82,33 @@ public class ResultSetAspect {
         }
     }
 
+    // used instead of NextAdvice when ResultSet navigation timing is disabled, so that row counts
+    // are still captured for result sets with millions of rows, but at the cost of a field increment
+    // per row (the row count is passed on to the query entry by StatementMirror)
+    @Pointcut(className = "java.sql.ResultSet", methodName = "next", methodParameterTypes = {},
+            nestingGroup = "jdbc")
+    public static class NextRowCountAdvice {
+        private static final BooleanProperty timerEnabled =
+                configService.getBooleanProperty("captureResultSetNavigate");
+        @IsEnabled
+        public static boolean isEnabled() {
+            return !timerEnabled.value();
+        }
+        @OnReturn
+        public static void onReturn(@BindReturn boolean currentRowValid,
+                @BindReceiver HasStatementMirror resultSet) {
+            StatementMirror mirror = resultSet.glowroot$getStatementMirror();
+            if (mirror == null) {
+                return;
+            }
+            if (currentRowValid) {
+                mirror.incrementRowCount();
+            } else {
+                mirror.endOfRows();
+            }
+        }
+    }
+
     @Pointcut(className = "java.sql.ResultSet",
             methodName = "previous|relative|absolute|first|last", methodParameterTypes = "..",
             nestingGroup = "jdbc")
@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2017 the original author or authors.
+ * Copyright 2011-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -30,6 +30,10 @@ import org.glowroot.agent.plugin.api.QueryEntry;
 // this class must be public since it is referenced from bytecode inside other packages via @Mixin
 public class StatementMirror {
 
+    // must be a power of 2
+    private static final int ROW_COUNT_FLUSH_INTERVAL = 1024;
+    private static final int ROW_COUNT_FLUSH_MASK = ROW_COUNT_FLUSH_INTERVAL - 1;
+
     // this field is not used by PreparedStatementMirror subclass
     //
     // ok for this field to be non-volatile since it is only temporary storage for a single thread
@@ -40,6 +44,15 @@ public class StatementMirror {
     // while that thread is adding batches into the statement and executing it
     private @Nullable QueryEntry lastQueryEntry;
 
+    // rows read so far from the result set of lastQueryEntry, which are only passed on to
+    // lastQueryEntry every ROW_COUNT_FLUSH_INTERVAL rows, at the end of the result set, and when
+    // lastQueryEntry is replaced or cleared (see ResultSetAspect.NextRowCountAdvice)
+    //
+    // ok for these fields to be non-volatile for the same reason as lastQueryEntry above
+    private long rowCount;
+    // -1 means that nothing has been passed on to lastQueryEntry yet
+    private long flushedRowCount = -1;
+
     void addBatch(String sql) {
         // synchronization isn't an issue here as this method is called only by
         // the monitored thread
@@ -67,10 +80,47 @@ public class StatementMirror {
     }
 
     void setLastQueryEntry(QueryEntry lastQueryEntry) {
+        flushPendingRowCount();
         this.lastQueryEntry = lastQueryEntry;
     }
 
     void clearLastQueryEntry() {
+        flushPendingRowCount();
         lastQueryEntry = null;
     }
+
+    void incrementRowCount() {
+        // periodically passed on so that active and partial traces show the progress of long
+        // running result sets
+        if ((++rowCount & ROW_COUNT_FLUSH_MASK) == 0) {
+            flushRowCount();
+        }
+    }
+
+    // called when ResultSet.next() returns false
+    void endOfRows() {
+        if (flushedRowCount != rowCount) {
+            flushRowCount();
+        }
+    }
+
+    private void flushPendingRowCount() {
+        if (rowCount != 0 && flushedRowCount != rowCount) {
+            flushRowCount();
+        }
+        rowCount = 0;
+        flushedRowCount = -1;
+    }
+
+    private void flushRowCount() {
+        if (lastQueryEntry != null) {
+            if (flushedRowCount == -1) {
+                lastQueryEntry.rowNavigationAttempted();
+            }
+            if (rowCount != 0) {
+                lastQueryEntry.setCurrRow(rowCount);
+            }
+        }
+        flushedRowCount = rowCount;
+    }
 }
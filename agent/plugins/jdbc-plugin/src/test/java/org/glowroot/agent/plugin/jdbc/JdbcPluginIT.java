@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2016 the original author or authors.
+ * Copyright 2011-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -176,6 +176,30 @@ public class JdbcPluginIT {
         assertThat(found).isFalse();
     }
 
+    @Test
+    public void testRowCountWithoutResultSetNavigateTimer() throws Exception {
+        // given
+        container.getConfigService().setPluginProperty(PLUGIN_ID, "captureResultSetNavigate",
+                false);
+        // when
+        Trace trace = container.execute(ExecuteStatementAndIterateOverResults.class);
+        // then
+        Trace.Entry entry = trace.getEntry(0);
+        assertThat(entry.getQueryEntryMessage().getSuffix()).isEqualTo(" => 3 rows");
+    }
+
+    @Test
+    public void testPartialRowCountWithoutResultSetNavigateTimer() throws Exception {
+        // given
+        container.getConfigService().setPluginProperty(PLUGIN_ID, "captureResultSetNavigate",
+                false);
+        // when
+        Trace trace = container.execute(ExecuteStatementAndReadFirstResult.class);
+        // then
+        Trace.Entry entry = trace.getEntry(0);
+        assertThat(entry.getQueryEntryMessage().getSuffix()).isEqualTo(" => 1 row");
+    }
+
     @Test
     public void testDefaultStackTraceThreshold() throws Exception {
         // when
@@ -289,6 +313,32 @@ public class JdbcPluginIT {
         }
     }
 
+    public static class ExecuteStatementAndReadFirstResult
+            implements AppUnderTest, TransactionMarker {
+        private Connection connection;
+        @Override
+        public void executeApp() throws Exception {
+            connection = Connections.createConnection();
+            try {
+                transactionMarker();
+            } finally {
+                Connections.closeConnection(connection);
+            }
+        }
+        @Override
+        public void transactionMarker() throws Exception {
+            Statement statement = connection.createStatement();
+            try {
+                ResultSet rs = statement.executeQuery("select * from employee");
+                if (rs.next()) {
+                    rs.getString(1);
+                }
+            } finally {
+                statement.close();
+            }
+        }
+    }
+
     public static class ExecuteLotsOfStatementAndIterateOverResults
             implements AppUnderTest, TransactionMarker {
         private Connection connection;
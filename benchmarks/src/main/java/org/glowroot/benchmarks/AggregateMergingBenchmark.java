@@ -0,0 +1,135 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.benchmarks.support.SyntheticAggregates;
+import org.glowroot.common.live.ImmutableOverviewAggregate;
+import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
+import org.glowroot.common.repo.util.ThreadStatsCreator;
+import org.glowroot.common.util.SizeLimitBypassingParser;
+import org.glowroot.ui.AggregateMerging;
+import org.glowroot.ui.AggregateMerging.MergedAggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+// each operation is building the transaction overview tab (the merged timer tree and thread
+// stats) from the stored overview rows, where the rows are held in memory as a stand-in for the
+// central (cassandra) or embedded (h2) storage, with the timer columns serialized the same way
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class AggregateMergingBenchmark {
+
+    // number of overview rows in the chart time range, e.g. 60 is one hour of one-minute rollups
+    @Param({"60", "360"})
+    private int rowCount;
+
+    private List<Row> rows;
+    private List<OverviewAggregate> overviewAggregates;
+
+    @Setup
+    public void setup() throws IOException {
+        Random random = new Random(0);
+        rows = Lists.newArrayList();
+        for (int i = 0; i < rowCount; i++) {
+            rows.add(new Row(i * 60000L, SyntheticAggregates.create(random)));
+        }
+        overviewAggregates = readOverviewAggregates();
+    }
+
+    // this is the path used for reading the overview aggregates from storage
+    @Benchmark
+    public List<OverviewAggregate> read() throws IOException {
+        return readOverviewAggregates();
+    }
+
+    @Benchmark
+    public MergedAggregate merge() {
+        return AggregateMerging.getMergedAggregate(overviewAggregates);
+    }
+
+    @Benchmark
+    public MergedAggregate readAndMerge() throws IOException {
+        return AggregateMerging.getMergedAggregate(readOverviewAggregates());
+    }
+
+    private List<OverviewAggregate> readOverviewAggregates() throws IOException {
+        List<OverviewAggregate> overviewAggregates = Lists.newArrayList();
+        for (Row row : rows) {
+            overviewAggregates.add(ImmutableOverviewAggregate.builder()
+                    .captureTime(row.captureTime)
+                    .totalDurationNanos(row.totalDurationNanos)
+                    .transactionCount(row.transactionCount)
+                    .asyncTransactions(false)
+                    .addAllMainThreadRootTimers(parseDelimitedFrom(row.mainThreadRootTimers))
+                    .mainThreadStats(ThreadStatsCreator.create(row.mainThreadTotalCpuNanos, null,
+                            null, row.mainThreadTotalAllocatedBytes))
+                    .build());
+        }
+        return overviewAggregates;
+    }
+
+    private static List<Aggregate.Timer> parseDelimitedFrom(byte[] bytes) throws IOException {
+        SizeLimitBypassingParser<Aggregate.Timer> parser =
+                new SizeLimitBypassingParser<Aggregate.Timer>(Aggregate.Timer.parser());
+        List<Aggregate.Timer> timers = Lists.newArrayList();
+        ByteArrayInputStream input = new ByteArrayInputStream(bytes);
+        Aggregate.Timer timer;
+        while ((timer = parser.parseDelimitedFrom(input)) != null) {
+            timers.add(timer);
+        }
+        return timers;
+    }
+
+    private static class Row {
+
+        private final long captureTime;
+        private final double totalDurationNanos;
+        private final long transactionCount;
+        private final byte[] mainThreadRootTimers;
+        private final Double mainThreadTotalCpuNanos;
+        private final Double mainThreadTotalAllocatedBytes;
+
+        private Row(long captureTime, Aggregate aggregate) throws IOException {
+            this.captureTime = captureTime;
+            totalDurationNanos = aggregate.getTotalDurationNanos();
+            transactionCount = aggregate.getTransactionCount();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (Aggregate.Timer timer : aggregate.getMainThreadRootTimerList()) {
+                timer.writeDelimitedTo(out);
+            }
+            mainThreadRootTimers = out.toByteArray();
+            mainThreadTotalCpuNanos = totalDurationNanos / 2;
+            mainThreadTotalAllocatedBytes = transactionCount * 100000.0;
+        }
+    }
+}
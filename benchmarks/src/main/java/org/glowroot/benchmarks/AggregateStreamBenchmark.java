@@ -0,0 +1,104 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.benchmarks;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.benchmarks.support.SyntheticAggregates;
+import org.glowroot.common.model.SharedTimerNames;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage;
+
+// each operation is central decoding one minute of aggregates (for a single transaction type)
+// from a single agent, which is parsing each stream message and (with shared timer names)
+// resolving the timer names, or the agent encoding the same stream
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class AggregateStreamBenchmark {
+
+    @Param({"100", "1000"})
+    private int transactionNameCount;
+
+    @Param({"false", "true"})
+    private boolean sharedTimerNames;
+
+    private List<AggregateStreamMessage> messages;
+    private List<byte[]> serializedMessages;
+
+    @Setup
+    public void setup() {
+        messages = SyntheticAggregates.createStream(new Random(0), transactionNameCount,
+                sharedTimerNames);
+        serializedMessages = encode();
+    }
+
+    @Benchmark
+    public List<byte[]> encode() {
+        List<byte[]> serialized = Lists.newArrayList();
+        for (AggregateStreamMessage message : messages) {
+            serialized.add(message.toByteArray());
+        }
+        return serialized;
+    }
+
+    @Benchmark
+    public List<Aggregate> decode() throws Exception {
+        SharedTimerNames.Decoder decoder = new SharedTimerNames.Decoder();
+        boolean decodeTimerNames = false;
+        List<Aggregate> aggregates = Lists.newArrayList();
+        for (byte[] serializedMessage : serializedMessages) {
+            AggregateStreamMessage message = AggregateStreamMessage.parseFrom(serializedMessage);
+            switch (message.getMessageCase()) {
+                case STREAM_HEADER:
+                    decodeTimerNames = message.getStreamHeader().getSharedTimerNames();
+                    break;
+                case SHARED_TIMER_NAME:
+                    decoder.addTimerName(message.getSharedTimerName());
+                    break;
+                case OVERALL_AGGREGATE:
+                    aggregates.add(decode(message.getOverallAggregate().getAggregate(), decoder,
+                            decodeTimerNames));
+                    break;
+                case TRANSACTION_AGGREGATE:
+                    aggregates.add(decode(message.getTransactionAggregate().getAggregate(),
+                            decoder, decodeTimerNames));
+                    break;
+                default:
+                    throw new IllegalStateException("Unexpected message: "
+                            + message.getMessageCase());
+            }
+        }
+        return aggregates;
+    }
+
+    private static Aggregate decode(Aggregate aggregate, SharedTimerNames.Decoder decoder,
+            boolean decodeTimerNames) {
+        return decodeTimerNames ? decoder.decode(aggregate) : aggregate;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import org.glowroot.benchmarks.support.SyntheticAggregates;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage;
+
+// prints the bytes sent over the wire for one minute of aggregates, with and without shared timer
+// names, both uncompressed and with the gzip message compression used by the agent (grpc compresses
+// each stream message separately, so the repeated timer names across messages are not compressed
+// away)
+//
+// java -cp target/benchmarks.jar org.glowroot.benchmarks.AggregateStreamSizeComparison
+public class AggregateStreamSizeComparison {
+
+    private static final int[] TRANSACTION_NAME_COUNTS = {10, 100, 1000, 5000};
+
+    private AggregateStreamSizeComparison() {}
+
+    public static void main(String[] args) throws IOException {
+        System.out.format("%15s%15s%15s%15s%15s%n", "transactions", "plain bytes", "plain gzip",
+                "shared bytes", "shared gzip");
+        for (int transactionNameCount : TRANSACTION_NAME_COUNTS) {
+            System.out.format("%15d", transactionNameCount);
+            for (boolean sharedTimerNames : new boolean[] {false, true}) {
+                List<AggregateStreamMessage> messages = SyntheticAggregates
+                        .createStream(new Random(0), transactionNameCount, sharedTimerNames);
+                int bytes = 0;
+                int gzipBytes = 0;
+                for (AggregateStreamMessage message : messages) {
+                    bytes += message.getSerializedSize();
+                    gzipBytes += gzip(message.toByteArray());
+                }
+                System.out.format("%15d%15d", bytes, gzipBytes);
+            }
+            System.out.println();
+        }
+    }
+
+    private static int gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(baos);
+        out.write(bytes);
+        out.close();
+        return baos.size();
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.agent.model.ErrorMessage;
+import org.glowroot.benchmarks.support.SyntheticThrowables;
+
+// each operation is one failed transaction during an error storm (the same exception thrown over
+// and over), so throwOnly is the baseline cost of the application throwing the exception
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class ErrorStormBenchmark {
+
+    @Param({"50", "150"})
+    private int stackDepth;
+
+    @Benchmark
+    public Exception throwOnly() {
+        return SyntheticThrowables.create(stackDepth);
+    }
+
+    // this is the cost on the application thread when a plugin calls endWithError(), which
+    // includes converting the throwable
+    @Benchmark
+    public ErrorMessage capture() {
+        return ErrorMessage.create(null, SyntheticThrowables.create(stackDepth),
+                new AtomicInteger());
+    }
+}
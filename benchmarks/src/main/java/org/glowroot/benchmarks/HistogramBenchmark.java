@@ -0,0 +1,96 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.benchmarks;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.benchmarks.support.SyntheticDurations;
+import org.glowroot.common.model.LazyHistogram;
+import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+// see HistogramSizeComparison for the storage size comparison between histogram types
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class HistogramBenchmark {
+
+    // one hour of one-minute aggregates, which is what is merged for each 1-hour rollup
+    private static final int HISTOGRAM_COUNT = 60;
+
+    @Param
+    private HistogramType histogramType;
+
+    // number of transactions per minute
+    @Param({"2000", "100000"})
+    private int transactionCount;
+
+    private LazyHistogram lazyHistogram;
+    private List<Aggregate.Histogram> histograms;
+    private byte[] histogramBytes;
+    private ScratchBuffer scratchBuffer;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        histograms = Lists.newArrayList();
+        scratchBuffer = new ScratchBuffer();
+        for (int i = 0; i < HISTOGRAM_COUNT; i++) {
+            LazyHistogram histogram = histogramType.create();
+            for (long duration : SyntheticDurations.create(random, transactionCount)) {
+                histogram.add(duration);
+            }
+            histograms.add(histogram.toProto(scratchBuffer));
+            lazyHistogram = histogram;
+        }
+        histogramBytes = histograms.get(0).toByteArray();
+    }
+
+    @Benchmark
+    public Aggregate.Histogram encode() {
+        return lazyHistogram.toProto(scratchBuffer);
+    }
+
+    // this is the path used for percentile alerts and for percentile charts
+    @Benchmark
+    public long decode() throws Exception {
+        LazyHistogram histogram = histogramType.create();
+        histogram.merge(Aggregate.Histogram.parseFrom(histogramBytes));
+        return histogram.getValueAtPercentile(99);
+    }
+
+    // this is the path used for rollups
+    @Benchmark
+    public Aggregate.Histogram merge() {
+        LazyHistogram histogram = histogramType.create();
+        for (Aggregate.Histogram toBeMerged : histograms) {
+            histogram.merge(toBeMerged);
+        }
+        return histogram.toProto(scratchBuffer);
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.benchmarks;
+
+import java.util.Random;
+
+import org.glowroot.benchmarks.support.SyntheticDurations;
+import org.glowroot.common.model.LazyHistogram;
+import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
+
+// prints the serialized size of the duration histogram (as stored in the aggregate histogram
+// column) for each histogram type, along with the resulting 99th percentile
+//
+// java -cp target/benchmarks.jar org.glowroot.benchmarks.HistogramSizeComparison
+public class HistogramSizeComparison {
+
+    private static final int[] TRANSACTION_COUNTS =
+            {100, 1000, 2000, 10000, 100000, 1000000, 10000000};
+
+    private HistogramSizeComparison() {}
+
+    public static void main(String[] args) {
+        System.out.format("%15s", "transactions");
+        for (HistogramType histogramType : HistogramType.values()) {
+            System.out.format("%15s%15s", histogramType + " bytes", histogramType + " p99");
+        }
+        System.out.println();
+        for (int transactionCount : TRANSACTION_COUNTS) {
+            long[] durations = SyntheticDurations.create(new Random(0), transactionCount);
+            System.out.format("%15d", transactionCount);
+            for (HistogramType histogramType : HistogramType.values()) {
+                LazyHistogram histogram = histogramType.create();
+                for (long duration : durations) {
+                    histogram.add(duration);
+                }
+                int size = histogram.toProto(new ScratchBuffer()).getSerializedSize();
+                System.out.format("%15d%15d", size, histogram.getValueAtPercentile(99));
+            }
+            System.out.println();
+        }
+    }
+}
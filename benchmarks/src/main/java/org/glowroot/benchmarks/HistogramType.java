@@ -0,0 +1,33 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.benchmarks;
+
+import org.glowroot.common.model.LazyHistogram;
+
+public enum HistogramType {
+
+    HDR(0), COMPACT(10);
+
+    private final int compactRelativeErrorPermille;
+
+    private HistogramType(int compactRelativeErrorPermille) {
+        this.compactRelativeErrorPermille = compactRelativeErrorPermille;
+    }
+
+    LazyHistogram create() {
+        return new LazyHistogram(compactRelativeErrorPermille);
+    }
+}
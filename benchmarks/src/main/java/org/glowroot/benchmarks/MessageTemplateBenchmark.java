@@ -0,0 +1,56 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.agent.plugin.api.Message;
+import org.glowroot.agent.weaving.GenericMessageSupplier;
+import org.glowroot.agent.weaving.MessageTemplate;
+import org.glowroot.benchmarks.support.SyntheticRequest;
+
+// each operation renders the trace entry message of config-based instrumentation, to compare the
+// generated accessors against reflection, run a second time with
+// -jvmArgsAppend -Dglowroot.internal.reflectionOnlyAccessors=true
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class MessageTemplateBenchmark {
+
+    private MessageTemplate template;
+    private SyntheticRequest request;
+
+    @Setup
+    public void setup() throws Exception {
+        template = MessageTemplate.create(
+                "{{this.method}} {{this.uri.path}} {{this.uri.port}} {{this.uri.path.length}}",
+                SyntheticRequest.class.getMethod("execute"));
+        request = new SyntheticRequest();
+    }
+
+    @Benchmark
+    public Message render() {
+        return GenericMessageSupplier.create(template, request, "execute").get();
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.benchmarks;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.benchmarks.support.SyntheticProfiles;
+import org.glowroot.common.model.MutableProfile;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class ProfileBenchmark {
+
+    // one hour of one-minute aggregate profiles, which is what is merged for each 1-hour rollup
+    private static final int PROFILE_COUNT = 60;
+
+    // number of stack trace samples per minute
+    @Param({"100", "1000"})
+    private int sampleCount;
+
+    private List<Profile> profiles;
+    private MutableProfile mergedProfile;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        profiles = Lists.newArrayList();
+        for (int i = 0; i < PROFILE_COUNT; i++) {
+            profiles.add(SyntheticProfiles.create(random, sampleCount));
+        }
+        mergedProfile = merge();
+    }
+
+    // this is the path used for rollups and for the profile tab
+    @Benchmark
+    public MutableProfile merge() {
+        MutableProfile profile = new MutableProfile();
+        for (Profile toBeMerged : profiles) {
+            profile.merge(toBeMerged);
+        }
+        return profile;
+    }
+
+    @Benchmark
+    public Profile toProto() {
+        return mergedProfile.toProto();
+    }
+
+    // this is the path used for the profile tab when filtering and truncating
+    @Benchmark
+    public String filterAndTruncate() throws Exception {
+        MutableProfile profile = merge();
+        profile.filter(ImmutableList.of("module1"), ImmutableList.of("method7"));
+        profile.truncateBranches(10);
+        return profile.toJson();
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.benchmarks;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.benchmarks.support.SyntheticQueries;
+import org.glowroot.common.config.ConfigDefaults;
+import org.glowroot.common.model.MutableQuery;
+import org.glowroot.common.model.QueryCollector;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class QueryCollectorBenchmark {
+
+    // one hour of one-minute aggregates, which is what is merged for each 1-hour rollup
+    private static final int MINUTE_COUNT = 60;
+
+    @Param({"100", "5000"})
+    private int distinctQueryCount;
+
+    private List<List<Aggregate.QueriesByType>> queries;
+    private QueryCollector queryCollector;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        queries = Lists.newArrayList();
+        for (int i = 0; i < MINUTE_COUNT; i++) {
+            queries.add(SyntheticQueries.create(random, distinctQueryCount, 200));
+        }
+        queryCollector = merge();
+    }
+
+    // this is the path used for rollups and for the queries tab
+    @Benchmark
+    public QueryCollector merge() {
+        QueryCollector collector =
+                new QueryCollector(ConfigDefaults.MAX_AGGREGATE_QUERIES_PER_TYPE);
+        for (List<Aggregate.QueriesByType> queriesForMinute : queries) {
+            for (Aggregate.QueriesByType queriesByType : queriesForMinute) {
+                for (Aggregate.Query query : queriesByType.getQueryList()) {
+                    collector.mergeQuery(queriesByType.getType(), query.getFullText(), null,
+                            query.getTotalDurationNanos(), query.getExecutionCount(),
+                            query.hasTotalRows(), query.getTotalRows().getValue());
+                }
+            }
+        }
+        return collector;
+    }
+
+    // this is the path used when storing the rollup and when rendering the queries tab
+    @Benchmark
+    public Map<String, List<MutableQuery>> getSortedAndTruncatedQueries() {
+        return queryCollector.getSortedAndTruncatedQueries();
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.benchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.agent.model.ThreadStats;
+import org.glowroot.agent.model.ThreadStatsComponent;
+import org.glowroot.agent.util.ThreadAllocatedBytes;
+
+// each operation is the thread stats capture overhead of one transaction
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class ThreadStatsBenchmark {
+
+    @Param({"false", "true"})
+    private boolean contentionMonitoring;
+
+    private ThreadAllocatedBytes threadAllocatedBytes;
+
+    @Setup
+    public void setup() {
+        ManagementFactory.getThreadMXBean()
+                .setThreadContentionMonitoringEnabled(contentionMonitoring);
+        threadAllocatedBytes = ThreadAllocatedBytes.create().getService();
+    }
+
+    @Benchmark
+    public ThreadStats capture() {
+        ThreadStatsComponent threadStatsComponent = new ThreadStatsComponent(threadAllocatedBytes,
+                ThreadStatsComponent.nextBlockedWaitedSampleWeight());
+        threadStatsComponent.onComplete();
+        return threadStatsComponent.getThreadStats();
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.benchmarks.support;
+
+import java.util.List;
+import java.util.Random;
+
+import com.google.common.collect.Lists;
+
+import org.glowroot.common.model.SharedTimerNames;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamHeader;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.OverallAggregate;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TransactionAggregate;
+
+public class SyntheticAggregates {
+
+    private static final String TRANSACTION_TYPE = "Web";
+
+    // similar to the timers captured by the built-in plugins
+    private static final String[] CHILD_TIMER_NAMES = {"jdbc query", "jdbc get connection",
+            "jdbc commit", "jdbc prepare", "hibernate query", "hibernate flush",
+            "http client request", "cassandra query", "redis", "jsp render", "thymeleaf render",
+            "spring controller", "spring bean", "ejb call", "servlet filter", "jaxrs resource",
+            "logging", "mail", "elasticsearch query", "mongodb query"};
+
+    private SyntheticAggregates() {}
+
+    // one minute of aggregates for a single transaction type, as sent by the agent in a single
+    // aggregate stream
+    public static List<AggregateStreamMessage> createStream(Random random, int transactionNameCount,
+            boolean sharedTimerNames) {
+        SharedTimerNames.Encoder encoder = sharedTimerNames ? new SharedTimerNames.Encoder() : null;
+        List<AggregateStreamMessage> messages = Lists.newArrayList();
+        messages.add(AggregateStreamMessage.newBuilder()
+                .setStreamHeader(AggregateStreamHeader.newBuilder()
+                        .setAgentId("agent-1")
+                        .setCaptureTime(60000)
+                        .setSharedTimerNames(sharedTimerNames))
+                .build());
+        addMessages(messages, null, create(random), encoder);
+        for (int i = 0; i < transactionNameCount; i++) {
+            addMessages(messages, "/api/module" + i % 20 + "/resource" + i, create(random),
+                    encoder);
+        }
+        return messages;
+    }
+
+    private static void addMessages(List<AggregateStreamMessage> messages,
+            String transactionName, Aggregate aggregate, SharedTimerNames.Encoder encoder) {
+        if (encoder != null) {
+            aggregate = encoder.encode(aggregate);
+            for (String timerName : encoder.getNewTimerNames()) {
+                messages.add(AggregateStreamMessage.newBuilder()
+                        .setSharedTimerName(timerName)
+                        .build());
+            }
+        }
+        if (transactionName == null) {
+            messages.add(AggregateStreamMessage.newBuilder()
+                    .setOverallAggregate(OverallAggregate.newBuilder()
+                            .setTransactionType(TRANSACTION_TYPE)
+                            .setAggregate(aggregate))
+                    .build());
+        } else {
+            messages.add(AggregateStreamMessage.newBuilder()
+                    .setTransactionAggregate(TransactionAggregate.newBuilder()
+                            .setTransactionType(TRANSACTION_TYPE)
+                            .setTransactionName(transactionName)
+                            .setAggregate(aggregate))
+                    .build());
+        }
+    }
+
+    // one minute of aggregate data for a single transaction name
+    public static Aggregate create(Random random) {
+        long transactionCount = 1 + random.nextInt(1000);
+        Aggregate.Timer.Builder rootTimer = timer(random, "http request", transactionCount);
+        int childTimerCount = 2 + random.nextInt(6);
+        for (int i = 0; i < childTimerCount; i++) {
+            Aggregate.Timer.Builder childTimer = timer(random,
+                    CHILD_TIMER_NAMES[random.nextInt(CHILD_TIMER_NAMES.length)], transactionCount);
+            if (random.nextBoolean()) {
+                childTimer.addChildTimer(timer(random, "jdbc get connection", transactionCount));
+            }
+            rootTimer.addChildTimer(childTimer);
+        }
+        return Aggregate.newBuilder()
+                .setTotalDurationNanos(transactionCount * random.nextInt(100000000))
+                .setTransactionCount(transactionCount)
+                .setErrorCount(random.nextInt(10))
+                .addMainThreadRootTimer(rootTimer)
+                .build();
+    }
+
+    private static Aggregate.Timer.Builder timer(Random random, String name, long count) {
+        return Aggregate.Timer.newBuilder()
+                .setName(name)
+                .setTotalNanos(count * random.nextInt(10000000))
+                .setCount(count);
+    }
+}
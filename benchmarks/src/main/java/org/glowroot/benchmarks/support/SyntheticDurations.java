@@ -0,0 +1,33 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.benchmarks.support;
+
+import java.util.Random;
+
+public class SyntheticDurations {
+
+    private SyntheticDurations() {}
+
+    // log-normal distribution of transaction durations in nanoseconds, with median around 50
+    // milliseconds and a long tail out to multiple seconds (which is typical of web transactions)
+    public static long[] create(Random random, int count) {
+        long[] durations = new long[count];
+        for (int i = 0; i < count; i++) {
+            durations[i] = (long) Math.exp(17.7 + 1.2 * random.nextGaussian());
+        }
+        return durations;
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.benchmarks.support;
+
+import java.util.List;
+import java.util.Random;
+
+import com.google.common.collect.Lists;
+
+import org.glowroot.common.model.MutableProfile;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+
+public class SyntheticProfiles {
+
+    private static final Thread.State[] THREAD_STATES = {Thread.State.RUNNABLE,
+            Thread.State.RUNNABLE, Thread.State.BLOCKED, Thread.State.WAITING,
+            Thread.State.TIMED_WAITING};
+
+    private SyntheticProfiles() {}
+
+    // each stack trace is a random walk down a fixed (but very large) call tree, where each frame
+    // has a small number of possible callees, so that stack traces share long common prefixes
+    // (which is typical of application server profiles)
+    public static Profile create(Random random, int sampleCount) {
+        MutableProfile profile = new MutableProfile();
+        for (int i = 0; i < sampleCount; i++) {
+            profile.merge(createStackTrace(random), THREAD_STATES[random.nextInt(5)]);
+        }
+        return profile.toProto();
+    }
+
+    private static List<StackTraceElement> createStackTrace(Random random) {
+        int depth = 20 + random.nextInt(60);
+        List<StackTraceElement> stackTraceElements = Lists.newArrayListWithCapacity(depth);
+        long frame = random.nextInt(4);
+        for (int i = 0; i < depth; i++) {
+            stackTraceElements.add(createStackTraceElement(frame));
+            frame = frame * 31 + random.nextInt(3);
+        }
+        // stack trace elements are ordered from leaf to root
+        return Lists.reverse(stackTraceElements);
+    }
+
+    private static StackTraceElement createStackTraceElement(long frame) {
+        // limit the number of distinct names, similar to real applications
+        int id = (int) ((frame & Long.MAX_VALUE) % 5000);
+        int classId = id / 8;
+        return new StackTraceElement("org.example.module" + classId % 50 + ".Class" + classId,
+                "method" + id % 8, "Class" + classId + ".java", 10 + id % 400);
+    }
+}
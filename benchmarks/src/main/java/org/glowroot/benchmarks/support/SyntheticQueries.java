@@ -0,0 +1,70 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.benchmarks.support;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.Proto.OptionalInt64;
+
+public class SyntheticQueries {
+
+    private static final String[] QUERY_TYPES = {"SQL", "CQL", "Redis"};
+
+    private SyntheticQueries() {}
+
+    // one minute of queries, drawn from a pool of distinct queries where a small number of queries
+    // account for most of the executions (which is typical of real applications)
+    public static List<Aggregate.QueriesByType> create(Random random, int distinctQueryCount,
+            int queryCount) {
+        Map<String, Map<Integer, Aggregate.Query>> queries = Maps.newHashMap();
+        for (int i = 0; i < queryCount; i++) {
+            int id = skewed(random, distinctQueryCount);
+            String queryType = QUERY_TYPES[id % QUERY_TYPES.length];
+            Map<Integer, Aggregate.Query> queriesForType = queries.get(queryType);
+            if (queriesForType == null) {
+                queriesForType = Maps.newHashMap();
+                queries.put(queryType, queriesForType);
+            }
+            long executionCount = 1 + random.nextInt(20);
+            queriesForType.put(id, Aggregate.Query.newBuilder()
+                    .setFullText("select * from table" + id % 100 + " where column" + id + " = ?")
+                    .setTotalDurationNanos(executionCount * random.nextInt(10000000))
+                    .setExecutionCount(executionCount)
+                    .setTotalRows(OptionalInt64.newBuilder()
+                            .setValue(executionCount * random.nextInt(100)))
+                    .build());
+        }
+        List<Aggregate.QueriesByType> queriesByType = Lists.newArrayList();
+        for (Map.Entry<String, Map<Integer, Aggregate.Query>> entry : queries.entrySet()) {
+            queriesByType.add(Aggregate.QueriesByType.newBuilder()
+                    .setType(entry.getKey())
+                    .addAllQuery(entry.getValue().values())
+                    .build());
+        }
+        return queriesByType;
+    }
+
+    private static int skewed(Random random, int bound) {
+        double value = random.nextDouble();
+        return (int) (value * value * value * bound);
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.benchmarks.support;
+
+// the kind of object that config-based instrumentation captures in message templates
+public class SyntheticRequest {
+
+    private final String method = "GET";
+    private final Uri uri = new Uri();
+
+    public String getMethod() {
+        return method;
+    }
+
+    public Uri getUri() {
+        return uri;
+    }
+
+    public void execute() {}
+
+    public static class Uri {
+
+        public final int port = 8080;
+
+        private final String path = "/orders/1234";
+
+        public String getPath() {
+            return path;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.benchmarks.support;
+
+import java.io.IOException;
+
+public class SyntheticThrowables {
+
+    private SyntheticThrowables() {}
+
+    // simulates a downstream outage, where the same exception (wrapping the same cause) is thrown
+    // from the same place deep in the call stack over and over
+    public static Exception create(int stackDepth) {
+        return createAtDepth(stackDepth);
+    }
+
+    private static Exception createAtDepth(int remainingDepth) {
+        if (remainingDepth > 0) {
+            return createAtDepth(remainingDepth - 1);
+        }
+        IOException cause = new IOException("Connection refused");
+        return new RuntimeException("Unable to call downstream service", cause);
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2017 the original author or authors.
+ * Copyright 2017-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -26,6 +26,8 @@ import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.api.Instrumentation;
 import org.glowroot.central.repo.ConfigRepositoryImpl;
+import org.glowroot.central.util.Session;
+import org.glowroot.central.util.Session.WorkloadClass;
 import org.glowroot.common.repo.util.AlertingService;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig.AlertCondition;
@@ -54,7 +56,8 @@ class CentralAlertingService {
         this.configRepository = configRepository;
         this.alertingService = alertingService;
         this.heartbeatAlertingService = heartbeatAlertingService;
-        alertCheckingExecutor = Executors.newSingleThreadExecutor();
+        alertCheckingExecutor = Executors
+                .newSingleThreadExecutor(Session.newThreadFactory(WorkloadClass.ALERTING));
     }
 
     void close() throws InterruptedException {
@@ -1,5 +1,5 @@
 /*
- * Copyright 2017 the original author or authors.
+ * Copyright 2017-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -19,12 +19,14 @@ import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.checkerframework.checker.nullness.qual.RequiresNonNull;
@@ -32,6 +34,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.api.Instrumentation;
+import org.glowroot.central.IngestPipeline.IngestTask;
 import org.glowroot.central.repo.AgentConfigDao;
 import org.glowroot.central.repo.AgentRollupDao;
 import org.glowroot.central.repo.AggregateDao;
@@ -40,6 +43,9 @@ import org.glowroot.central.repo.GaugeValueDao;
 import org.glowroot.central.repo.HeartbeatDao;
 import org.glowroot.central.repo.SchemaUpgrade;
 import org.glowroot.central.repo.TraceDao;
+import org.glowroot.central.util.Session;
+import org.glowroot.central.util.Session.WorkloadClass;
+import org.glowroot.common.model.SharedTimerNames;
 import org.glowroot.common.util.Clock;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
@@ -83,6 +89,7 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
     private final HeartbeatDao heartbeatDao;
     private final TraceDao traceDao;
     private final CentralAlertingService centralAlertingService;
+    private final IngestPipeline ingestPipeline;
     private final Clock clock;
     private final String version;
 
@@ -92,7 +99,8 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
     CollectorServiceImpl(AgentRollupDao agentRollupDao, AgentConfigDao agentConfigDao,
             EnvironmentDao environmentDao, AggregateDao aggregateDao, GaugeValueDao gaugeValueDao,
             HeartbeatDao heartbeatDao, TraceDao traceDao,
-            CentralAlertingService centralAlertingService, Clock clock, String version) {
+            CentralAlertingService centralAlertingService, IngestPipeline ingestPipeline,
+            Clock clock, String version) {
         this.agentRollupDao = agentRollupDao;
         this.agentConfigDao = agentConfigDao;
         this.environmentDao = environmentDao;
@@ -101,6 +109,7 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
         this.heartbeatDao = heartbeatDao;
         this.traceDao = traceDao;
         this.centralAlertingService = centralAlertingService;
+        this.ingestPipeline = ingestPipeline;
         this.clock = clock;
         this.version = version;
     }
@@ -111,6 +120,7 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
     public void collectInit(InitMessage request, StreamObserver<InitResponse> responseObserver) {
         String agentId = request.getAgentId();
         AgentConfig updatedAgentConfig;
+        WorkloadClass priorWorkloadClass = Session.setWorkloadClass(WorkloadClass.INGEST);
         try {
             String agentRollupId = request.getAgentRollupId();
             // trim spaces around rollup separator "/"
@@ -126,6 +136,8 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
             logger.error("{} - {}", getDisplayForLogging(agentId), t.getMessage(), t);
             responseObserver.onError(t);
             return;
+        } finally {
+            Session.setWorkloadClass(priorWorkloadClass);
         }
         logger.info("agent connected: {}, version {}", getDisplayForLogging(agentId),
                 request.getEnvironment().getJavaInfo().getGlowrootAgentVersion());
@@ -186,12 +198,15 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
     public void collectTrace(OldTraceMessage request,
             StreamObserver<EmptyMessage> responseObserver) {
         String agentId = request.getAgentId();
+        WorkloadClass priorWorkloadClass = Session.setWorkloadClass(WorkloadClass.INGEST);
         try {
             traceDao.store(agentId, request.getTrace());
         } catch (Throwable t) {
             logger.error("{} - {}", getDisplayForLogging(agentId), t.getMessage(), t);
             responseObserver.onError(t);
             return;
+        } finally {
+            Session.setWorkloadClass(priorWorkloadClass);
         }
         responseObserver.onNext(EmptyMessage.getDefaultInstance());
         responseObserver.onCompleted();
@@ -202,6 +217,7 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
     @Override
     public void log(LogMessage request, StreamObserver<EmptyMessage> responseObserver) {
         String agentId = request.getAgentId();
+        WorkloadClass priorWorkloadClass = Session.setWorkloadClass(WorkloadClass.INGEST);
         try {
             LogEvent logEvent = request.getLogEvent();
             Level level = logEvent.getLevel();
@@ -220,6 +236,8 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
             logger.error("{} - {}", getDisplayForLogging(agentId), t.getMessage(), t);
             responseObserver.onError(t);
             return;
+        } finally {
+            Session.setWorkloadClass(priorWorkloadClass);
         }
         responseObserver.onNext(EmptyMessage.getDefaultInstance());
         responseObserver.onCompleted();
@@ -229,65 +247,95 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
             List<Aggregate.SharedQueryText> sharedQueryTexts,
             List<OldAggregatesByType> aggregatesByTypeList,
             StreamObserver<AggregateResponseMessage> responseObserver) {
-        if (!aggregatesByTypeList.isEmpty()) {
-            try {
-                aggregateDao.store(agentId, captureTime, aggregatesByTypeList, sharedQueryTexts);
-            } catch (Throwable t) {
-                logger.error("{} - {}", getDisplayForLogging(agentId), t.getMessage(), t);
-                responseObserver.onError(t);
-                return;
+        CompletableFuture<?> future = ingestPipeline.submit(agentId, new IngestTask() {
+            @Override
+            public void store() throws Exception {
+                if (!aggregatesByTypeList.isEmpty()) {
+                    aggregateDao.store(agentId, captureTime, aggregatesByTypeList,
+                            sharedQueryTexts);
+                }
             }
-        }
-        String agentDisplay;
-        try {
-            agentDisplay = agentRollupDao.readAgentRollupDisplay(agentId);
-        } catch (Exception e) {
-            logger.error("{} - {}", getDisplayForLogging(agentId), e.getMessage(), e);
-            responseObserver.onError(e);
+            @Override
+            public String readAgentDisplay() throws Exception {
+                return agentRollupDao.readAgentRollupDisplay(agentId);
+            }
+            @Override
+            public void checkAlerts(String agentDisplay) {
+                centralAlertingService.checkForDeletedAlerts(agentId, agentDisplay);
+                centralAlertingService.checkAggregateAlertsAsync(agentId, agentDisplay,
+                        captureTime);
+            }
+        });
+        if (future == null) {
+            rejectDueToBackPressure(agentId, responseObserver);
             return;
         }
-        centralAlertingService.checkForDeletedAlerts(agentId, agentDisplay);
-        centralAlertingService.checkAggregateAlertsAsync(agentId, agentDisplay, captureTime);
-        responseObserver.onNext(AggregateResponseMessage.newBuilder()
-                .setNextDelayMillis(getNextDelayMillis())
-                .build());
-        responseObserver.onCompleted();
+        future.whenComplete((result, t) -> {
+            if (t == null) {
+                responseObserver.onNext(AggregateResponseMessage.newBuilder()
+                        .setNextDelayMillis(getNextDelayMillis())
+                        .setSharedTimerNamesSupported(true)
+                        .build());
+                responseObserver.onCompleted();
+            } else {
+                logger.error("{} - {}", getDisplayForLogging(agentId), t.getMessage(), t);
+                responseObserver.onError(t);
+            }
+        });
     }
 
     private void throttledCollectGaugeValues(GaugeValueMessage request,
             StreamObserver<EmptyMessage> responseObserver) {
         String agentId = request.getAgentId();
+        List<GaugeValue> gaugeValues = request.getGaugeValuesList();
         long maxCaptureTime = 0;
-        try {
-            gaugeValueDao.store(agentId, request.getGaugeValuesList());
-            for (GaugeValue gaugeValue : request.getGaugeValuesList()) {
-                maxCaptureTime = Math.max(maxCaptureTime, gaugeValue.getCaptureTime());
-            }
-        } catch (Throwable t) {
-            logger.error("{} - {}", getDisplayForLogging(agentId), t.getMessage(), t);
-            responseObserver.onError(t);
-            return;
+        for (GaugeValue gaugeValue : gaugeValues) {
+            maxCaptureTime = Math.max(maxCaptureTime, gaugeValue.getCaptureTime());
         }
-        try {
-            heartbeatDao.store(agentId);
-        } catch (Throwable t) {
-            logger.error("{} - {}", getDisplayForLogging(agentId), t.getMessage(), t);
-            responseObserver.onError(t);
-            return;
-        }
-        String agentDisplay;
-        try {
-            agentDisplay = agentRollupDao.readAgentRollupDisplay(agentId);
-        } catch (Throwable t) {
-            logger.error("{} - {}", getDisplayForLogging(agentId), t.getMessage(), t);
-            responseObserver.onError(t);
+        long endTime = maxCaptureTime;
+        CompletableFuture<?> future = ingestPipeline.submit(agentId, new IngestTask() {
+            @Override
+            public void store() throws Exception {
+                gaugeValueDao.store(agentId, gaugeValues);
+                heartbeatDao.store(agentId);
+            }
+            @Override
+            public String readAgentDisplay() throws Exception {
+                return agentRollupDao.readAgentRollupDisplay(agentId);
+            }
+            @Override
+            public void checkAlerts(String agentDisplay) {
+                centralAlertingService.checkForDeletedAlerts(agentId, agentDisplay);
+                centralAlertingService.checkGaugeAndHeartbeatAlertsAsync(agentId, agentDisplay,
+                        endTime);
+            }
+        });
+        if (future == null) {
+            rejectDueToBackPressure(agentId, responseObserver);
             return;
         }
-        centralAlertingService.checkForDeletedAlerts(agentId, agentDisplay);
-        centralAlertingService.checkGaugeAndHeartbeatAlertsAsync(agentId, agentDisplay,
-                maxCaptureTime);
-        responseObserver.onNext(EmptyMessage.getDefaultInstance());
-        responseObserver.onCompleted();
+        future.whenComplete((result, t) -> {
+            if (t == null) {
+                responseObserver.onNext(EmptyMessage.getDefaultInstance());
+                responseObserver.onCompleted();
+            } else {
+                logger.error("{} - {}", getDisplayForLogging(agentId), t.getMessage(), t);
+                responseObserver.onError(t);
+            }
+        });
+    }
+
+    private void rejectDueToBackPressure(String agentId, StreamObserver<?> responseObserver) {
+        // this only happens when the agent itself has too many collections pending (the pipeline
+        // accepts overflow collections and asks agents to slow down instead, see IngestPipeline)
+        //
+        // the agent retries RESOURCE_EXHAUSTED (with backoff) without giving up, which keeps the
+        // data in the agent until the ingest pipeline has room for it, instead of tying up a grpc
+        // thread here in the meantime
+        logger.debug("{} - too many pending collections, rejecting collection", agentId);
+        responseObserver.onError(Status.RESOURCE_EXHAUSTED
+                .withDescription("Glowroot central ingest is at capacity, retry later")
+                .asRuntimeException());
     }
 
     private int getNextDelayMillis() {
@@ -298,7 +346,9 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
             currentMinute = (long) Math.ceil(currentishTimeMillis / 60000.0) * 60000;
         }
         // spread out aggregate collections 100 milliseconds a part, rolling over at 10 seconds
-        return nextDelay.getAndAdd(100) % 10000;
+        int nextDelayMillis = nextDelay.getAndAdd(100) % 10000;
+        // and push them out further when the ingest pipeline is backing up
+        return nextDelayMillis + ingestPipeline.getBackPressureDelayMillis();
     }
 
     private String getDisplayForLogging(String agentRollupId) {
@@ -361,6 +411,7 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
         private final StreamObserver<AggregateResponseMessage> responseObserver;
         private @MonotonicNonNull AggregateStreamHeader streamHeader;
         private List<Aggregate.SharedQueryText> sharedQueryTexts = Lists.newArrayList();
+        private SharedTimerNames.Decoder sharedTimerNameDecoder = new SharedTimerNames.Decoder();
         private Map<String, OldAggregatesByType.Builder> aggregatesByTypeMap = Maps.newHashMap();
 
         private AggregateStreamObserver(StreamObserver<AggregateResponseMessage> responseObserver) {
@@ -376,12 +427,16 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
                 case SHARED_QUERY_TEXT:
                     sharedQueryTexts.add(value.getSharedQueryText());
                     break;
+                case SHARED_TIMER_NAME:
+                    sharedTimerNameDecoder.addTimerName(value.getSharedTimerName());
+                    break;
                 case OVERALL_AGGREGATE:
                     OverallAggregate overallAggregate = value.getOverallAggregate();
                     String transactionType = overallAggregate.getTransactionType();
+                    Aggregate aggregate = decodeTimerNames(overallAggregate.getAggregate());
                     aggregatesByTypeMap.put(transactionType, OldAggregatesByType.newBuilder()
                             .setTransactionType(transactionType)
-                            .setOverallAggregate(overallAggregate.getAggregate()));
+                            .setOverallAggregate(aggregate));
                     break;
                 case TRANSACTION_AGGREGATE:
                     TransactionAggregate transactionAggregate = value.getTransactionAggregate();
@@ -389,7 +444,7 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
                             aggregatesByTypeMap.get(transactionAggregate.getTransactionType()));
                     builder.addTransactionAggregate(OldTransactionAggregate.newBuilder()
                             .setTransactionName(transactionAggregate.getTransactionName())
-                            .setAggregate(transactionAggregate.getAggregate())
+                            .setAggregate(decodeTimerNames(transactionAggregate.getAggregate()))
                             .build());
                     break;
                 default:
@@ -397,6 +452,14 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
             }
         }
 
+        private Aggregate decodeTimerNames(Aggregate aggregate) {
+            if (streamHeader != null && streamHeader.getSharedTimerNames()) {
+                return sharedTimerNameDecoder.decode(aggregate);
+            } else {
+                return aggregate;
+            }
+        }
+
         @Override
         public void onError(Throwable t) {
             if (streamHeader == null) {
@@ -514,6 +577,7 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
                         .addAllSharedQueryText(sharedQueryTexts)
                         .build();
             }
+            WorkloadClass priorWorkloadClass = Session.setWorkloadClass(WorkloadClass.INGEST);
             try {
                 traceDao.store(streamHeader.getAgentId(), trace);
             } catch (Throwable t) {
@@ -521,6 +585,8 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
                         t.getMessage(), t);
                 responseObserver.onError(t);
                 return;
+            } finally {
+                Session.setWorkloadClass(priorWorkloadClass);
             }
             responseObserver.onNext(EmptyMessage.getDefaultInstance());
             responseObserver.onCompleted();
@@ -1,5 +1,5 @@
 /*
- * Copyright 2017 the original author or authors.
+ * Copyright 2017-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -112,7 +112,11 @@ public class GlowrootServlet extends HttpServlet {
             if (zipFileName == null) {
                 PrintWriter out = res.getWriter();
                 ChunkCopier copier = chunkSource.getCopier(out);
-                while (copier.copyNext()) {
+                try {
+                    while (copier.copyNext()) {
+                    }
+                } finally {
+                    copier.close();
                 }
                 out.flush();
             } else {
@@ -121,7 +125,11 @@ public class GlowrootServlet extends HttpServlet {
                 zipOut.putNextEntry(new ZipEntry(zipFileName + ".html"));
                 OutputStreamWriter zipWriter = new OutputStreamWriter(zipOut, Charsets.UTF_8);
                 ChunkCopier copier = chunkSource.getCopier(zipWriter);
-                while (copier.copyNext()) {
+                try {
+                    while (copier.copyNext()) {
+                    }
+                } finally {
+                    copier.close();
                 }
                 zipWriter.close();
                 out.flush();
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2017 the original author or authors.
+ * Copyright 2015-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -22,6 +22,7 @@ import java.net.InetSocketAddress;
 
 import javax.annotation.Nullable;
 
+import com.google.common.base.Ticker;
 import io.grpc.Server;
 import io.grpc.netty.NettyServerBuilder;
 import org.slf4j.Logger;
@@ -45,6 +46,7 @@ class GrpcServer {
     private static final Logger startupLogger = LoggerFactory.getLogger("org.glowroot");
 
     private final DownstreamServiceImpl downstreamService;
+    private final IngestPipeline ingestPipeline;
 
     private final @Nullable Server httpServer;
     private final @Nullable Server httpsServer;
@@ -58,9 +60,11 @@ class GrpcServer {
 
         downstreamService = new DownstreamServiceImpl(agentRollupDao, clusterManager);
 
+        ingestPipeline = IngestPipeline.create(Ticker.systemTicker());
+
         CollectorServiceImpl collectorService = new CollectorServiceImpl(agentRollupDao,
                 agentConfigDao, environmentDao, aggregateDao, gaugeValueDao, heartbeatDao, traceDao,
-                centralAlertingService, clock, version);
+                centralAlertingService, ingestPipeline, clock, version);
 
         if (httpPort == null) {
             httpServer = null;
@@ -122,6 +126,8 @@ class GrpcServer {
         if (httpServer != null) {
             shutdown(httpServer);
         }
+        // complete collections that were accepted before the grpc servers were shutdown
+        ingestPipeline.close();
     }
 
     private static File getHttpsConfFile(File confDir, String fileName, String sharedFileName,
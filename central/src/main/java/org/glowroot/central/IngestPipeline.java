@@ -0,0 +1,335 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Ticker;
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.central.util.Session;
+import org.glowroot.central.util.Session.WorkloadClass;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// storing collected aggregates and gauge values (and the alert checks that follow) is performed on
+// a fixed pool of ingest threads instead of on grpc threads, so that bursts of collections (e.g.
+// when many agents reconnect at the same time after a network partition) queue up here, with
+// explicit limits, instead of piling up grpc threads
+//
+// once the overall limit is reached, each agent can still have a small number of collections
+// pending (see MAX_OVERFLOW_PER_AGENT), and agents are asked to slow down via the next aggregate
+// delay instead, since agents only retry rejected collections for a limited time before dropping
+// them, which would lose data after bursts that last longer than that
+//
+// work for a given agent is serialized (chained on the completion of the agent's prior work), so
+// that a single agent can only occupy one ingest thread at a time, and so that data for a given
+// agent is stored in the order that it was collected
+class IngestPipeline implements IngestPipelineMXBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(IngestPipeline.class);
+
+    private static final String MBEAN_NAME = "org.glowroot.central:type=IngestPipeline";
+
+    private static final int THREAD_COUNT =
+            Integer.getInteger("glowroot.central.ingestThreadCount", 16);
+
+    // number of collections that are queued or in progress across all agents before switching to
+    // only accepting overflow collections (see below)
+    private static final int MAX_PENDING =
+            Integer.getInteger("glowroot.central.ingestMaxPending", 1000);
+
+    // agents normally have at most one aggregate collection and one gauge value collection pending
+    // at a time, so anything beyond this means the agent is retrying faster than it is being stored
+    private static final int MAX_PENDING_PER_AGENT =
+            Integer.getInteger("glowroot.central.ingestMaxPendingPerAgent", 4);
+
+    // once MAX_PENDING is reached, collections are still accepted from agents with fewer than this
+    // many pending (normally an agent has at most one aggregate collection and one gauge value
+    // collection pending at a time), which bounds the overflow by the number of agents
+    private static final int MAX_OVERFLOW_PER_AGENT = 2;
+
+    // extra delay (on top of the usual spreading out of aggregate collections) that is requested
+    // from agents when the pipeline is completely full (agents cap the delay at 30 seconds)
+    private static final int MAX_BACK_PRESSURE_DELAY_MILLIS = 20000;
+
+    private final Ticker ticker;
+    private final int maxPending;
+    private final ExecutorService executor;
+    private final Semaphore pendingPermits;
+    private final AtomicInteger overflowCount = new AtomicInteger();
+    // entries are removed once the agent has no pending work, so that agents which stop reporting
+    // (e.g. short-lived containers) do not accumulate here
+    private final ConcurrentMap<String, AgentQueue> agentQueues = Maps.newConcurrentMap();
+
+    private final StageStats queueStats = new StageStats();
+    private final StageStats storeStats = new StageStats();
+    private final StageStats readAgentDisplayStats = new StageStats();
+    private final StageStats checkAlertsStats = new StageStats();
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    private volatile boolean closed;
+
+    IngestPipeline(Ticker ticker) {
+        this(ticker, MAX_PENDING);
+    }
+
+    @VisibleForTesting
+    IngestPipeline(Ticker ticker, int maxPending) {
+        this.ticker = ticker;
+        this.maxPending = maxPending;
+        pendingPermits = new Semaphore(maxPending);
+        executor = Executors.newFixedThreadPool(THREAD_COUNT,
+                Session.newThreadFactory(WorkloadClass.INGEST));
+    }
+
+    static IngestPipeline create(Ticker ticker) {
+        IngestPipeline ingestPipeline = new IngestPipeline(ticker);
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            mbeanServer.registerMBean(ingestPipeline, new ObjectName(MBEAN_NAME));
+        } catch (Exception e) {
+            // e.g. InstanceAlreadyExistsException when running multiple central instances in the
+            // same jvm, in which case the stats are just not exposed
+            logger.warn(e.getMessage(), e);
+        }
+        return ingestPipeline;
+    }
+
+    // returns null if there is too much pending work for the agent, in which case the agent should
+    // be told to retry later
+    //
+    // the returned future completes (on an ingest thread) after the task has been run, and
+    // completes exceptionally if either storing or reading the agent display failed
+    @Nullable
+    CompletableFuture<?> submit(String agentId, IngestTask task) {
+        if (closed) {
+            rejectedCount.incrementAndGet();
+            return null;
+        }
+        boolean overflow = !pendingPermits.tryAcquire();
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        while (true) {
+            AgentQueue agentQueue = agentQueues.computeIfAbsent(agentId, k -> new AgentQueue());
+            synchronized (agentQueue) {
+                if (agentQueue.removed) {
+                    // lost the race with the agent's prior work completing and removing the queue,
+                    // so retry with a new queue (the prior work is complete at this point, so
+                    // ordering is still preserved)
+                    continue;
+                }
+                if (agentQueue.pendingCount == MAX_PENDING_PER_AGENT
+                        || overflow && agentQueue.pendingCount >= MAX_OVERFLOW_PER_AGENT) {
+                    if (!overflow) {
+                        pendingPermits.release();
+                    }
+                    rejectedCount.incrementAndGet();
+                    return null;
+                }
+                agentQueue.pendingCount++;
+                if (overflow) {
+                    overflowCount.incrementAndGet();
+                }
+                long queueStartTick = ticker.read();
+                // whenCompleteAsync runs regardless of whether the agent's prior work failed
+                agentQueue.tail.whenCompleteAsync(
+                        (result, t) -> run(task, queueStartTick, future), executor);
+                agentQueue.tail = future;
+            }
+            future.whenComplete((result, t) -> {
+                synchronized (agentQueue) {
+                    if (--agentQueue.pendingCount == 0) {
+                        agentQueue.removed = true;
+                        agentQueues.remove(agentId, agentQueue);
+                    }
+                }
+                if (overflow) {
+                    overflowCount.decrementAndGet();
+                } else {
+                    pendingPermits.release();
+                }
+            });
+            return future;
+        }
+    }
+
+    int getBackPressureDelayMillis() {
+        int pendingCount = Math.min(getPendingCount(), maxPending);
+        return (int) ((long) MAX_BACK_PRESSURE_DELAY_MILLIS * pendingCount / maxPending);
+    }
+
+    void close() throws InterruptedException {
+        closed = true;
+        // wait for pending work to complete, since agent work is only handed to the executor when
+        // the agent's prior work completes (so executor shutdown cannot be called until then)
+        //
+        // not throwing on timeout, so that the rest of shutdown still proceeds
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        boolean completed = pendingPermits.tryAcquire(maxPending, 10, SECONDS);
+        while (completed && overflowCount.get() > 0) {
+            if (stopwatch.elapsed(SECONDS) >= 10) {
+                completed = false;
+            } else {
+                MILLISECONDS.sleep(10);
+            }
+        }
+        if (!completed) {
+            logger.warn("timed out waiting for ingest pipeline to complete, {} collections will"
+                    + " not be stored", getPendingCount());
+        }
+        executor.shutdown();
+        if (!executor.awaitTermination(10, SECONDS)) {
+            logger.warn("timed out waiting for ingest threads to terminate");
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(MBEAN_NAME));
+        } catch (Exception e) {
+            logger.debug(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public int getPendingCount() {
+        return maxPending - pendingPermits.availablePermits() + overflowCount.get();
+    }
+
+    @Override
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    @Override
+    public long getQueueCount() {
+        return queueStats.count.get();
+    }
+
+    @Override
+    public long getQueueTimeMillis() {
+        return queueStats.getTimeMillis();
+    }
+
+    @Override
+    public long getStoreCount() {
+        return storeStats.count.get();
+    }
+
+    @Override
+    public long getStoreTimeMillis() {
+        return storeStats.getTimeMillis();
+    }
+
+    @Override
+    public long getReadAgentDisplayCount() {
+        return readAgentDisplayStats.count.get();
+    }
+
+    @Override
+    public long getReadAgentDisplayTimeMillis() {
+        return readAgentDisplayStats.getTimeMillis();
+    }
+
+    @Override
+    public long getCheckAlertsCount() {
+        return checkAlertsStats.count.get();
+    }
+
+    @Override
+    public long getCheckAlertsTimeMillis() {
+        return checkAlertsStats.getTimeMillis();
+    }
+
+    @VisibleForTesting
+    static int getMaxPendingPerAgent() {
+        return MAX_PENDING_PER_AGENT;
+    }
+
+    @VisibleForTesting
+    int getAgentQueueCount() {
+        return agentQueues.size();
+    }
+
+    private void run(IngestTask task, long queueStartTick, CompletableFuture<Void> future) {
+        long startTick = ticker.read();
+        queueStats.record(startTick - queueStartTick);
+        try {
+            task.store();
+            long tick = ticker.read();
+            storeStats.record(tick - startTick);
+            startTick = tick;
+            String agentDisplay = task.readAgentDisplay();
+            tick = ticker.read();
+            readAgentDisplayStats.record(tick - startTick);
+            startTick = tick;
+            task.checkAlerts(agentDisplay);
+            checkAlertsStats.record(ticker.read() - startTick);
+        } catch (Throwable t) {
+            future.completeExceptionally(t);
+            return;
+        }
+        future.complete(null);
+    }
+
+    interface IngestTask {
+
+        void store() throws Exception;
+
+        String readAgentDisplay() throws Exception;
+
+        void checkAlerts(String agentDisplay);
+    }
+
+    private static class AgentQueue {
+
+        // guarded by this
+        private CompletableFuture<?> tail = CompletableFuture.completedFuture(null);
+        private int pendingCount;
+        // set when the queue is removed from agentQueues, so that a concurrent submit does not
+        // add work to a queue that is no longer reachable
+        private boolean removed;
+    }
+
+    private static class StageStats {
+
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+
+        private void record(long nanos) {
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+        }
+
+        private long getTimeMillis() {
+            return NANOSECONDS.toMillis(totalNanos.get());
+        }
+    }
+}
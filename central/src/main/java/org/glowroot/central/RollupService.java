@@ -1,5 +1,5 @@
 /*
- * Copyright 2016-2017 the original author or authors.
+ * Copyright 2016-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -30,6 +30,8 @@ import org.glowroot.central.repo.AgentRollupDao;
 import org.glowroot.central.repo.AggregateDao;
 import org.glowroot.central.repo.GaugeValueDao;
 import org.glowroot.central.repo.SyntheticResultDao;
+import org.glowroot.central.util.Session;
+import org.glowroot.central.util.Session.WorkloadClass;
 import org.glowroot.common.repo.AgentRollupRepository.AgentRollup;
 import org.glowroot.common.util.Clock;
 
@@ -59,7 +61,8 @@ class RollupService implements Runnable {
         this.syntheticResultDao = syntheticResultDao;
         this.centralAlertingService = centralAlertingService;
         this.clock = clock;
-        executor = Executors.newSingleThreadExecutor();
+        executor = Executors
+                .newSingleThreadExecutor(Session.newThreadFactory(WorkloadClass.ROLLUP));
         executor.execute(castInitialized(this));
     }
 
@@ -93,6 +96,16 @@ class RollupService implements Runnable {
             timer = "outer rollup loop")
     private void runInternal() throws Exception {
         Glowroot.setTransactionOuter();
+        // parent rollups accumulated at ingest time are written first, so that the rollups below
+        // only need to read back whatever was not accumulated
+        try {
+            aggregateDao.flushParentRollups();
+        } catch (InterruptedException e) {
+            // probably shutdown requested (see close method above)
+            throw e;
+        } catch (Exception e) {
+            logger.error(e.getMessage(), e);
+        }
         for (AgentRollup agentRollup : agentRollupDao.readAgentRollups()) {
             rollupAggregates(agentRollup, null);
             rollupGauges(agentRollup, null);
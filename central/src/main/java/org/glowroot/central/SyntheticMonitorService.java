@@ -1,5 +1,5 @@
 /*
- * Copyright 2017 the original author or authors.
+ * Copyright 2017-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -71,6 +71,8 @@ import org.glowroot.central.repo.ConfigRepositoryImpl;
 import org.glowroot.central.repo.IncidentDao;
 import org.glowroot.central.repo.SyntheticResultDao;
 import org.glowroot.central.util.MoreFutures;
+import org.glowroot.central.util.Session;
+import org.glowroot.central.util.Session.WorkloadClass;
 import org.glowroot.common.config.HttpProxyConfig;
 import org.glowroot.common.repo.AgentRollupRepository.AgentRollup;
 import org.glowroot.common.repo.IncidentRepository.OpenIncident;
@@ -156,8 +158,10 @@ class SyntheticMonitorService implements Runnable {
                 .setMaxConnTotal(1000) // increasing from default 20
                 .build();
         httpClient.start();
-        checkExecutor = Executors.newCachedThreadPool();
-        mainLoopExecutor = Executors.newSingleThreadExecutor();
+        checkExecutor =
+                Executors.newCachedThreadPool(Session.newThreadFactory(WorkloadClass.ALERTING));
+        mainLoopExecutor = Executors
+                .newSingleThreadExecutor(Session.newThreadFactory(WorkloadClass.ALERTING));
         mainLoopExecutor.execute(castInitialized(this));
     }
 
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2017 the original author or authors.
+ * Copyright 2015-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -63,6 +63,8 @@ public class AgentRollupDao implements AgentRollupRepository {
     private static final String WITH_LCS =
             "with compaction = { 'class' : 'LeveledCompactionStrategy' }";
 
+    private static final String SINGLE_CACHE_KEY = "x";
+
     private final Session session;
 
     private final PreparedStatement readPS;
@@ -79,6 +81,7 @@ public class AgentRollupDao implements AgentRollupRepository {
 
     private final Cache<String, Optional<String>> agentRollupIdCache;
     private final Cache<String, Optional<AgentRollupConfig>> agentRollupConfigCache;
+    private final Cache<String, List<AgentRollup>> agentRollupTreeCache;
 
     AgentRollupDao(Session session, ClusterManager clusterManager) throws Exception {
         this.session = session;
@@ -122,6 +125,8 @@ public class AgentRollupDao implements AgentRollupRepository {
                 clusterManager.createCache("agentRollupIdCache", new AgentRollupIdCacheLoader());
         agentRollupConfigCache = clusterManager.createCache("agentRollupConfigCache",
                 new AgentRollupConfigCacheLoader());
+        agentRollupTreeCache =
+                clusterManager.createCache("agentRollupTreeCache", new AgentRollupTreeCacheLoader());
     }
 
     public void store(String agentId, @Nullable String agentRollupId) throws Exception {
@@ -173,6 +178,11 @@ public class AgentRollupDao implements AgentRollupRepository {
         return agentRollups;
     }
 
+    @Override
+    public List<AgentRollup> readAgentRollupTree() throws Exception {
+        return agentRollupTreeCache.get(SINGLE_CACHE_KEY);
+    }
+
     @Override
     public String readAgentRollupDisplay(String agentRollupId) throws Exception {
         AgentRollupConfig agentRollupConfig = readAgentRollupConfig(agentRollupId);
@@ -252,6 +262,7 @@ public class AgentRollupDao implements AgentRollupRepository {
         boolean applied = row.getBool("[applied]");
         if (applied) {
             agentRollupConfigCache.invalidate(agentRollupConfig.id());
+            agentRollupTreeCache.invalidate(SINGLE_CACHE_KEY);
         } else {
             throw new OptimisticLockException();
         }
@@ -261,6 +272,7 @@ public class AgentRollupDao implements AgentRollupRepository {
         BoundStatement boundStatement = deletePS.bind();
         boundStatement.setString(0, agentRollupId);
         session.execute(boundStatement);
+        agentRollupTreeCache.invalidate(SINGLE_CACHE_KEY);
     }
 
     private void insert(String agentRollupId, @Nullable String parentAgentRollupId, boolean agent)
@@ -274,6 +286,7 @@ public class AgentRollupDao implements AgentRollupRepository {
 
         agentRollupIdCache.invalidate(agentRollupId);
         agentRollupConfigCache.invalidate(agentRollupId);
+        agentRollupTreeCache.invalidate(SINGLE_CACHE_KEY);
     }
 
     private AgentRollup createAgentRollup(AgentRollupRecord agentRollupRecord,
@@ -379,4 +392,11 @@ public class AgentRollupDao implements AgentRollupRepository {
             return Optional.of(buildAgentRollupConfig(agentRollupId, row.getString(0)));
         }
     }
+
+    private class AgentRollupTreeCacheLoader implements CacheLoader<String, List<AgentRollup>> {
+        @Override
+        public List<AgentRollup> load(String dummy) throws Exception {
+            return ImmutableList.copyOf(readAgentRollups());
+        }
+    }
 }
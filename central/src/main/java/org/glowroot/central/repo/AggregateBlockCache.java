@@ -0,0 +1,238 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+import javax.management.ObjectName;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.immutables.serial.Serial;
+import org.immutables.value.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.central.util.Cache;
+import org.glowroot.central.util.ClusterManager;
+import org.glowroot.common.live.ImmutableTransactionQuery;
+import org.glowroot.common.live.LiveAggregateRepository.TransactionQuery;
+import org.glowroot.common.util.Clock;
+import org.glowroot.common.util.Styles;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+
+// near cache of decoded aggregate rows, by agent rollup, rollup level, transaction type and block
+// of capture times (each block spanning a fixed number of rollup intervals)
+//
+// only blocks that ended at least one block length ago are cached, since those are not expected to
+// change, and any (late) write into such a block invalidates it across the cluster
+//
+// the decoded rows are held in a local cache bounded by total row count, keyed by the block's
+// current version, which is held in a (much smaller) cluster-wide invalidation cache, so that
+// invalidating a block's version makes its rows unreachable on every central node, after which
+// they are evicted as the least recently used rows
+class AggregateBlockCache implements AggregateBlockCacheMXBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(AggregateBlockCache.class);
+
+    private static final String MBEAN_NAME = "org.glowroot.central:type=AggregateBlockCache";
+
+    private static final int BLOCK_INTERVALS =
+            Integer.getInteger("glowroot.central.aggregateCacheBlockIntervals", 60);
+
+    private static final long MAX_BLOCKS =
+            Long.getLong("glowroot.central.aggregateCacheMaxBlocks", 100000);
+
+    private static final long MAX_ROWS =
+            Long.getLong("glowroot.central.aggregateCacheMaxRows", 1000000);
+
+    private final Cache<BlockKey, Long> blockVersions;
+    private final com.google.common.cache.Cache<RowsKey, List<?>> blockRows;
+    private final ConfigRepositoryImpl configRepository;
+    private final Clock clock;
+
+    private final AtomicLong nextBlockVersion = new AtomicLong();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong invalidationCount = new AtomicLong();
+
+    AggregateBlockCache(ClusterManager clusterManager, ConfigRepositoryImpl configRepository,
+            Clock clock) {
+        this.configRepository = configRepository;
+        this.clock = clock;
+        blockVersions = clusterManager.createSizeBoundedCache("aggregateBlockCache", MAX_BLOCKS,
+                key -> nextBlockVersion.getAndIncrement());
+        // plus one so that blocks without any rows still count towards the bound
+        blockRows = CacheBuilder.newBuilder()
+                .maximumWeight(MAX_ROWS)
+                .<RowsKey, List<?>>weigher((key, rows) -> rows.size() + 1)
+                .build();
+    }
+
+    static AggregateBlockCache create(ClusterManager clusterManager,
+            ConfigRepositoryImpl configRepository, Clock clock) {
+        AggregateBlockCache aggregateBlockCache =
+                new AggregateBlockCache(clusterManager, configRepository, clock);
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(aggregateBlockCache,
+                    new ObjectName(MBEAN_NAME));
+        } catch (Exception e) {
+            // e.g. InstanceAlreadyExistsException when running multiple central instances in the
+            // same jvm, in which case the stats are just not exposed
+            logger.warn(e.getMessage(), e);
+        }
+        return aggregateBlockCache;
+    }
+
+    // rows must be returned by the reader in capture time order
+    <T> List<T> read(String agentRollupId, TransactionQuery query, String tableName,
+            boolean fromInclusive, RowReader<T> reader, CaptureTimeGetter<T> captureTimeGetter)
+            throws Exception {
+        long blockMillis = getBlockMillis(query.rollupLevel());
+        long cacheableTo = getCacheableTo(blockMillis);
+        long fromExclusive = fromInclusive ? query.from() - 1 : query.from();
+        if (fromExclusive >= cacheableTo) {
+            return reader.read(query);
+        }
+        ImmutableTransactionQuery blockQuery = ImmutableTransactionQuery.copyOf(query);
+        String subKey = getSubKey(tableName, query.transactionName());
+        // cached rows are not expired by cassandra, so rows past their TTL are filtered out here
+        long minCaptureTimeExclusive =
+                Math.max(fromExclusive, getExpiredCaptureTime(query.rollupLevel()));
+        List<T> rows = Lists.newArrayList();
+        long blockStart = Math.floorDiv(minCaptureTimeExclusive, blockMillis) * blockMillis;
+        while (blockStart < cacheableTo && blockStart < query.to()) {
+            long blockEnd = blockStart + blockMillis;
+            BlockKey blockKey = ImmutableBlockKey.of(agentRollupId, query.rollupLevel(),
+                    query.transactionType(), blockStart);
+            RowsKey rowsKey = ImmutableRowsKey.of(blockKey, blockVersions.get(blockKey), subKey);
+            @SuppressWarnings("unchecked")
+            List<T> cachedRows = (List<T>) blockRows.getIfPresent(rowsKey);
+            if (cachedRows == null) {
+                missCount.incrementAndGet();
+                cachedRows = ImmutableList.copyOf(reader.read(blockQuery
+                        .withFrom(fromInclusive ? blockStart + 1 : blockStart)
+                        .withTo(blockEnd)));
+                blockRows.put(rowsKey, cachedRows);
+            } else {
+                hitCount.incrementAndGet();
+            }
+            for (T row : cachedRows) {
+                long captureTime = captureTimeGetter.getCaptureTime(row);
+                if (captureTime > minCaptureTimeExclusive && captureTime <= query.to()) {
+                    rows.add(row);
+                }
+            }
+            blockStart = blockEnd;
+        }
+        if (query.to() > cacheableTo) {
+            rows.addAll(reader.read(blockQuery
+                    .withFrom(fromInclusive ? cacheableTo + 1 : cacheableTo)));
+        }
+        return rows;
+    }
+
+    // this must be called after the write has completed, so that the block cannot be re-populated
+    // with the prior data
+    void invalidate(String agentRollupId, int rollupLevel, String transactionType,
+            long captureTime) {
+        long blockMillis = getBlockMillis(rollupLevel);
+        if (captureTime > getCacheableTo(blockMillis)) {
+            // block is not cached yet
+            return;
+        }
+        // capture times are at the end of their interval, so a capture time at the exact end of a
+        // block belongs to that block
+        long blockStart = Math.floorDiv(captureTime - 1, blockMillis) * blockMillis;
+        blockVersions.invalidate(
+                ImmutableBlockKey.of(agentRollupId, rollupLevel, transactionType, blockStart));
+        invalidationCount.incrementAndGet();
+    }
+
+    @Override
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    @Override
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    @Override
+    public long getInvalidationCount() {
+        return invalidationCount.get();
+    }
+
+    private long getBlockMillis(int rollupLevel) {
+        return configRepository.getRollupConfigs().get(rollupLevel).intervalMillis()
+                * BLOCK_INTERVALS;
+    }
+
+    private long getCacheableTo(long blockMillis) {
+        return Math.floorDiv(clock.currentTimeMillis() - blockMillis, blockMillis) * blockMillis;
+    }
+
+    // rows with capture time at or before the returned time have expired in cassandra (see
+    // AggregateDao.getAdjustedTTL())
+    private long getExpiredCaptureTime(int rollupLevel) throws Exception {
+        int expirationHours = configRepository.getCentralStorageConfig().rollupExpirationHours()
+                .get(rollupLevel);
+        if (expirationHours == 0) {
+            // no TTL
+            return Long.MIN_VALUE;
+        }
+        return clock.currentTimeMillis() - HOURS.toMillis(expirationHours);
+    }
+
+    private static String getSubKey(String tableName, @Nullable String transactionName) {
+        return transactionName == null ? tableName : tableName + ':' + transactionName;
+    }
+
+    interface RowReader<T> {
+        List<T> read(TransactionQuery query) throws Exception;
+    }
+
+    interface CaptureTimeGetter<T> {
+        long getCaptureTime(T row);
+    }
+
+    @Value.Immutable
+    @Serial.Structural
+    @Styles.AllParameters
+    interface BlockKey extends Serializable {
+        String agentRollupId();
+        int rollupLevel();
+        String transactionType();
+        long blockStart();
+    }
+
+    // rows are loaded lazily per table and transaction name
+    @Value.Immutable
+    @Styles.AllParameters
+    interface RowsKey {
+        BlockKey blockKey();
+        long blockVersion();
+        String subKey();
+    }
+}
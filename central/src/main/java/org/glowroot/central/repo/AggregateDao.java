@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2017 the original author or authors.
+ * Copyright 2015-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -18,10 +18,13 @@ package org.glowroot.central.repo;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.PriorityQueue;
+import java.util.Queue;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.Future;
@@ -52,6 +55,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.api.Instrumentation;
+import org.glowroot.central.repo.ParentRollupAccumulator.PendingRollup;
+import org.glowroot.central.repo.ParentRollupAccumulator.PendingRollupKey;
+import org.glowroot.central.repo.ParentRollupAccumulator.RollupLimits;
+import org.glowroot.central.util.ClusterManager;
 import org.glowroot.central.util.Messages;
 import org.glowroot.central.util.MoreFutures;
 import org.glowroot.central.util.Session;
@@ -108,6 +115,16 @@ public class AggregateDao implements AggregateRepository {
     @SuppressWarnings("deprecation")
     private static final HashFunction SHA_1 = Hashing.sha1();
 
+    // parent agent rollups are accumulated at ingest time unless this is set (or central is
+    // clustered), see ParentRollupAccumulator
+    private static final boolean INGEST_TIME_ROLLUP_DISABLED =
+            Boolean.getBoolean("glowroot.central.ingestTimeRollupDisabled");
+
+    // aggregates are normally received within a few seconds of their capture time, and any that
+    // are received after their capture time is flushed are rolled up by the read back instead
+    private static final long PARENT_ROLLUP_FLUSH_DELAY_MILLIS =
+            Long.getLong("glowroot.central.parentRollupFlushDelayMillis", 10000);
+
     private static final Table summaryTable = ImmutableTable.builder()
             .partialName("summary")
             .addColumns(ImmutableColumn.of("total_duration_nanos", "double"))
@@ -234,17 +251,30 @@ public class AggregateDao implements AggregateRepository {
     private final PreparedStatement readNeedsRollupFromChild;
     private final PreparedStatement deleteNeedsRollupFromChild;
 
+    // list index is rollupLevel
+
     private final ImmutableList<Table> allTables;
 
+    private final AggregateBlockCache aggregateBlockCache;
+
+    private final @Nullable ParentRollupAccumulator parentRollupAccumulator;
+
     AggregateDao(Session session, AgentRollupDao agentRollupDao,
             TransactionTypeDao transactionTypeDao, FullQueryTextDao fullQueryTextDao,
-            ConfigRepositoryImpl configRepository, Clock clock) throws Exception {
+            ConfigRepositoryImpl configRepository, ClusterManager clusterManager, Clock clock)
+            throws Exception {
         this.session = session;
         this.agentRollupDao = agentRollupDao;
         this.transactionTypeDao = transactionTypeDao;
         this.fullQueryTextDao = fullQueryTextDao;
         this.configRepository = configRepository;
         this.clock = clock;
+        aggregateBlockCache = AggregateBlockCache.create(clusterManager, configRepository, clock);
+        if (clusterManager.isClustered() || INGEST_TIME_ROLLUP_DISABLED) {
+            parentRollupAccumulator = null;
+        } else {
+            parentRollupAccumulator = new ParentRollupAccumulator(clock.currentTimeMillis());
+        }
 
         int count = configRepository.getRollupConfigs().size();
         List<Integer> rollupExpirationHours =
@@ -460,6 +490,10 @@ public class AggregateDao implements AggregateRepository {
         // wait for success before inserting "needs rollup" records
         MoreFutures.waitForAll(futures);
         futures.clear();
+        for (OldAggregatesByType aggregatesByType : aggregatesByTypeList) {
+            aggregateBlockCache.invalidate(agentId, 0, aggregatesByType.getTransactionType(),
+                    captureTime);
+        }
 
         List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
         // TODO report checker framework issue that occurs without this suppression
@@ -468,12 +502,14 @@ public class AggregateDao implements AggregateRepository {
                 .map(OldAggregatesByType::getTransactionType).collect(Collectors.toSet());
 
         int needsRollupAdjustedTTL = getNeedsRollupAdjustedTTL(adjustedTTL, rollupConfigs);
+        UUID needsRollupFromChildUniqueness = null;
         if (agentRollupIds.size() > 1) {
+            needsRollupFromChildUniqueness = UUIDs.timeBased();
             BoundStatement boundStatement = insertNeedsRollupFromChild.bind();
             int i = 0;
             boundStatement.setString(i++, agentRollupIds.get(1));
             boundStatement.setTimestamp(i++, new Date(captureTime));
-            boundStatement.setUUID(i++, UUIDs.timeBased());
+            boundStatement.setUUID(i++, needsRollupFromChildUniqueness);
             boundStatement.setString(i++, agentId);
             boundStatement.setSet(i++, transactionTypes);
             boundStatement.setInt(i++, needsRollupAdjustedTTL);
@@ -491,6 +527,13 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setInt(i++, needsRollupAdjustedTTL);
         futures.add(session.executeAsync(boundStatement));
         MoreFutures.waitForAll(futures);
+        if (parentRollupAccumulator != null && needsRollupFromChildUniqueness != null) {
+            // the "needs rollup from child" record is left for the read back if this returns false
+            List<String> parentAgentRollupIds = agentRollupIds.subList(1, agentRollupIds.size());
+            parentRollupAccumulator.add(agentId, parentAgentRollupIds, captureTime,
+                    needsRollupFromChildUniqueness, aggregatesByTypeList, sharedQueryTexts,
+                    getRollupLimits(parentAgentRollupIds.get(0)));
+        }
     }
 
     // query.from() is non-inclusive
@@ -577,6 +620,13 @@ public class AggregateDao implements AggregateRepository {
     @Override
     public List<OverviewAggregate> readOverviewAggregates(String agentRollupId,
             TransactionQuery query) throws Exception {
+        return aggregateBlockCache.read(agentRollupId, query, overviewTable.partialName(),
+                overviewTable.fromInclusive(), q -> readOverviewAggregatesUncached(agentRollupId, q),
+                OverviewAggregate::captureTime);
+    }
+
+    private List<OverviewAggregate> readOverviewAggregatesUncached(String agentRollupId,
+            TransactionQuery query) throws Exception {
         ResultSet results = executeQuery(agentRollupId, query, overviewTable);
         List<OverviewAggregate> overviewAggregates = Lists.newArrayList();
         for (Row row : results) {
@@ -628,6 +678,14 @@ public class AggregateDao implements AggregateRepository {
     @Override
     public List<PercentileAggregate> readPercentileAggregates(String agentRollupId,
             TransactionQuery query) throws Exception {
+        return aggregateBlockCache.read(agentRollupId, query, histogramTable.partialName(),
+                histogramTable.fromInclusive(),
+                q -> readPercentileAggregatesUncached(agentRollupId, q),
+                PercentileAggregate::captureTime);
+    }
+
+    private List<PercentileAggregate> readPercentileAggregatesUncached(String agentRollupId,
+            TransactionQuery query) throws Exception {
         ResultSet results = executeQuery(agentRollupId, query, histogramTable);
         List<PercentileAggregate> percentileAggregates = Lists.newArrayList();
         for (Row row : results) {
@@ -651,6 +709,14 @@ public class AggregateDao implements AggregateRepository {
     @Override
     public List<ThroughputAggregate> readThroughputAggregates(String agentRollupId,
             TransactionQuery query) throws Exception {
+        return aggregateBlockCache.read(agentRollupId, query, throughputTable.partialName(),
+                throughputTable.fromInclusive(),
+                q -> readThroughputAggregatesUncached(agentRollupId, q),
+                ThroughputAggregate::captureTime);
+    }
+
+    private List<ThroughputAggregate> readThroughputAggregatesUncached(String agentRollupId,
+            TransactionQuery query) throws Exception {
         ResultSet results = executeQuery(agentRollupId, query, throughputTable);
         List<ThroughputAggregate> throughputAggregates = Lists.newArrayList();
         for (Row row : results) {
@@ -678,11 +744,26 @@ public class AggregateDao implements AggregateRepository {
     @Override
     public void mergeQueriesInto(String agentRollupId, TransactionQuery query,
             QueryCollector collector) throws Exception {
-        ResultSet results = executeQuery(agentRollupId, query, queryTable);
+        List<QueryRow> queryRows = aggregateBlockCache.read(agentRollupId, query,
+                queryTable.partialName(), queryTable.fromInclusive(),
+                q -> readQueryRowsUncached(agentRollupId, q), QueryRow::captureTime);
         long captureTime = Long.MIN_VALUE;
+        for (QueryRow queryRow : queryRows) {
+            captureTime = Math.max(captureTime, queryRow.captureTime());
+            collector.mergeQuery(queryRow.queryType(), queryRow.truncatedText(),
+                    queryRow.fullTextSha1(), queryRow.totalDurationNanos(),
+                    queryRow.executionCount(), queryRow.hasTotalRows(), queryRow.totalRows());
+            collector.updateLastCaptureTime(captureTime);
+        }
+    }
+
+    private List<QueryRow> readQueryRowsUncached(String agentRollupId, TransactionQuery query)
+            throws Exception {
+        ResultSet results = executeQuery(agentRollupId, query, queryTable);
+        List<QueryRow> queryRows = Lists.newArrayList();
         for (Row row : results) {
             int i = 0;
-            captureTime = Math.max(captureTime, checkNotNull(row.getTimestamp(i++)).getTime());
+            long captureTime = checkNotNull(row.getTimestamp(i++)).getTime();
             String queryType = checkNotNull(row.getString(i++));
             String truncatedText = checkNotNull(row.getString(i++));
             // full_query_text_sha1 cannot be null since it is used in clustering key
@@ -691,10 +772,10 @@ public class AggregateDao implements AggregateRepository {
             long executionCount = row.getLong(i++);
             boolean hasTotalRows = !row.isNull(i);
             long totalRows = row.getLong(i++);
-            collector.mergeQuery(queryType, truncatedText, fullTextSha1, totalDurationNanos,
-                    executionCount, hasTotalRows, totalRows);
-            collector.updateLastCaptureTime(captureTime);
+            queryRows.add(ImmutableQueryRow.of(captureTime, queryType, truncatedText,
+                    fullTextSha1, totalDurationNanos, executionCount, hasTotalRows, totalRows));
         }
+        return queryRows;
     }
 
     // query.from() is non-inclusive
@@ -822,6 +903,11 @@ public class AggregateDao implements AggregateRepository {
         long nextRollupIntervalMillis = rollupConfigs.get(rollupLevel + 1).intervalMillis();
         for (NeedsRollupFromChildren needsRollupFromChildren : needsRollupFromChildrenList) {
             long captureTime = needsRollupFromChildren.getCaptureTime();
+            if (parentRollupAccumulator != null
+                    && captureTime > parentRollupAccumulator.getFlushedThrough()) {
+                // still being accumulated, and will be written by flushParentRollups()
+                continue;
+            }
             int adjustedTTL = getAdjustedTTL(ttl, captureTime, clock);
             int needsRollupAdjustedTTL = getNeedsRollupAdjustedTTL(adjustedTTL, rollupConfigs);
             RollupParams rollupParams = getRollupParams(agentRollupId, rollupLevel, adjustedTTL);
@@ -835,6 +921,10 @@ public class AggregateDao implements AggregateRepository {
             }
             // wait for above async work to ensure rollup complete before proceeding
             MoreFutures.waitForAll(futures);
+            for (String transactionType : needsRollupFromChildren.getKeys().keySet()) {
+                aggregateBlockCache.invalidate(agentRollupId, rollupLevel, transactionType,
+                        captureTime);
+            }
 
             if (parentAgentRollupId != null) {
                 // insert needs to happen first before call to postRollup(), see method-level
@@ -857,6 +947,106 @@ public class AggregateDao implements AggregateRepository {
         }
     }
 
+    // writes the parent agent rollups that have been accumulated at ingest time, this is called
+    // once per rollup interval, prior to the rollup pass (see ParentRollupAccumulator)
+    public void flushParentRollups() throws Exception {
+        if (parentRollupAccumulator == null) {
+            return;
+        }
+        Map<PendingRollupKey, PendingRollup> pendingRollups = parentRollupAccumulator
+                .removePendingRollups(clock.currentTimeMillis() - PARENT_ROLLUP_FLUSH_DELAY_MILLIS);
+        // deepest first, since writing a parent rollup accumulates it into its own parent (which
+        // is then added to the queue if it was not already pending)
+        Queue<PendingRollup> queue = new PriorityQueue<>(Math.max(1, pendingRollups.size()),
+                Comparator.comparingInt((PendingRollup p) -> p.parentAgentRollupIds().size())
+                        .reversed());
+        queue.addAll(pendingRollups.values());
+        PendingRollup pendingRollup;
+        while ((pendingRollup = queue.poll()) != null) {
+            try {
+                flushParentRollup(pendingRollup, pendingRollups, queue);
+            } catch (InterruptedException e) {
+                // probably shutdown requested
+                throw e;
+            } catch (Exception e) {
+                // the "needs rollup from child" records are still there for the read back
+                logger.error("{} - {}", pendingRollup.agentRollupId(), e.getMessage(), e);
+            }
+        }
+    }
+
+    private void flushParentRollup(PendingRollup pendingRollup,
+            Map<PendingRollupKey, PendingRollup> pendingRollups, Queue<PendingRollup> queue)
+            throws Exception {
+        String agentRollupId = pendingRollup.agentRollupId();
+        long captureTime = pendingRollup.captureTime();
+        List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
+        int adjustedTTL = getAdjustedTTL(getTTLs().get(0), captureTime, clock);
+        int needsRollupAdjustedTTL = getNeedsRollupAdjustedTTL(adjustedTTL, rollupConfigs);
+        List<Aggregate.SharedQueryText> sharedQueryTexts = Lists.newArrayList();
+        List<OldAggregatesByType> aggregatesByTypeList = pendingRollup.toProto(sharedQueryTexts);
+        List<Future<?>> futures = Lists.newArrayList();
+        for (Aggregate.SharedQueryText sharedQueryText : sharedQueryTexts) {
+            String fullTextSha1 = sharedQueryText.getFullTextSha1();
+            if (!fullTextSha1.isEmpty()) {
+                futures.addAll(fullQueryTextDao.updateTTL(agentRollupId, fullTextSha1));
+            }
+        }
+        for (OldAggregatesByType aggregatesByType : aggregatesByTypeList) {
+            String transactionType = aggregatesByType.getTransactionType();
+            futures.addAll(storeOverallAggregate(agentRollupId, transactionType, captureTime,
+                    aggregatesByType.getOverallAggregate(), sharedQueryTexts, adjustedTTL));
+            for (OldTransactionAggregate transactionAggregate : aggregatesByType
+                    .getTransactionAggregateList()) {
+                futures.addAll(storeTransactionAggregate(agentRollupId, transactionType,
+                        transactionAggregate.getTransactionName(), captureTime,
+                        transactionAggregate.getAggregate(), sharedQueryTexts, adjustedTTL));
+            }
+            // wait for success before proceeding, same as in store()
+            MoreFutures.waitForAll(futures);
+            futures.clear();
+            for (OldTransactionAggregate transactionAggregate : aggregatesByType
+                    .getTransactionAggregateList()) {
+                futures.addAll(storeTransactionSummary(agentRollupId, transactionType,
+                        transactionAggregate.getTransactionName(), captureTime,
+                        transactionAggregate.getAggregate(), adjustedTTL));
+            }
+        }
+        MoreFutures.waitForAll(futures);
+        Set<String> transactionTypes = pendingRollup.getTransactionTypes();
+        for (String transactionType : transactionTypes) {
+            aggregateBlockCache.invalidate(agentRollupId, 0, transactionType, captureTime);
+        }
+        List<String> parentAgentRollupIds = pendingRollup.parentAgentRollupIds();
+        if (!parentAgentRollupIds.isEmpty()) {
+            // insert needs to happen first before call to postRollup(), see method-level
+            // comment on postRollup
+            UUID uniqueness = UUIDs.timeBased();
+            BoundStatement boundStatement = insertNeedsRollupFromChild.bind();
+            int i = 0;
+            boundStatement.setString(i++, parentAgentRollupIds.get(0));
+            boundStatement.setTimestamp(i++, new Date(captureTime));
+            boundStatement.setUUID(i++, uniqueness);
+            boundStatement.setString(i++, agentRollupId);
+            boundStatement.setSet(i++, transactionTypes);
+            boundStatement.setInt(i++, needsRollupAdjustedTTL);
+            session.execute(boundStatement);
+            int pendingRollupCount = pendingRollups.size();
+            PendingRollup parentPendingRollup = ParentRollupAccumulator.getOrCreate(
+                    pendingRollups, parentAgentRollupIds, captureTime,
+                    getRollupLimits(parentAgentRollupIds.get(0)));
+            parentPendingRollup.add(agentRollupId, uniqueness, aggregatesByTypeList,
+                    sharedQueryTexts);
+            if (pendingRollups.size() > pendingRollupCount) {
+                queue.add(parentPendingRollup);
+            }
+        }
+        postRollup(agentRollupId, captureTime, transactionTypes,
+                pendingRollup.getUniquenessKeysForDeletion(), rollupConfigs.get(1).intervalMillis(),
+                insertNeedsRollup.get(0), deleteNeedsRollupFromChild, needsRollupAdjustedTTL,
+                session);
+    }
+
     private void rollup(String agentRollupId, int rollupLevel, int ttl) throws Exception {
         List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
         long rollupIntervalMillis = rollupConfigs.get(rollupLevel).intervalMillis();
@@ -889,6 +1079,10 @@ public class AggregateDao implements AggregateRepository {
             }
             // wait for above async work to ensure rollup complete before proceeding
             MoreFutures.waitForAll(futures);
+            for (String transactionType : transactionTypes) {
+                aggregateBlockCache.invalidate(agentRollupId, rollupLevel, transactionType,
+                        captureTime);
+            }
 
             PreparedStatement insertNeedsRollup = nextRollupIntervalMillis == null ? null
                     : this.insertNeedsRollup.get(rollupLevel);
@@ -2040,6 +2234,12 @@ public class AggregateDao implements AggregateRepository {
         return rollupInfo.build();
     }
 
+    private RollupLimits getRollupLimits(String agentRollupId) throws Exception {
+        RollupParams rollupParams = getRollupParams(agentRollupId, 0, 0);
+        return ImmutableRollupLimits.of(rollupParams.maxAggregateQueriesPerType(),
+                rollupParams.maxAggregateServiceCallsPerType());
+    }
+
     static int getAdjustedTTL(int ttl, long captureTime, Clock clock) {
         if (ttl == 0) {
             return 0;
@@ -2457,6 +2657,20 @@ public class AggregateDao implements AggregateRepository {
         String type();
     }
 
+    @Value.Immutable
+    @Styles.AllParameters
+    interface QueryRow {
+        long captureTime();
+        String queryType();
+        String truncatedText();
+        @Nullable
+        String fullTextSha1();
+        double totalDurationNanos();
+        long executionCount();
+        boolean hasTotalRows();
+        long totalRows();
+    }
+
     @Value.Immutable
     interface RollupParams {
         String agentRollupId();
@@ -1,5 +1,5 @@
 /*
- * Copyright 2017 the original author or authors.
+ * Copyright 2017-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -59,7 +59,7 @@ public class CentralRepoModule {
         transactionTypeDao = new TransactionTypeDao(session, configRepository, clusterManager);
         FullQueryTextDao fullQueryTextDao = new FullQueryTextDao(session, configRepository);
         aggregateDao = new AggregateDao(session, agentRollupDao, transactionTypeDao,
-                fullQueryTextDao, configRepository, clock);
+                fullQueryTextDao, configRepository, clusterManager, clock);
         traceAttributeNameDao =
                 new TraceAttributeNameDao(session, configRepository, clusterManager);
         traceDao = new TraceDao(session, agentRollupDao, transactionTypeDao, fullQueryTextDao,
@@ -0,0 +1,412 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.immutables.value.Value;
+
+import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
+import org.glowroot.common.model.MutableProfile;
+import org.glowroot.common.model.MutableQuery;
+import org.glowroot.common.model.QueryCollector;
+import org.glowroot.common.repo.MutableAggregate;
+import org.glowroot.common.util.Styles;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldAggregatesByType;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldTransactionAggregate;
+import org.glowroot.wire.api.model.Proto.OptionalInt64;
+
+// accumulates each agent's level-0 aggregates into its parent agent rollup at ingest time, so that
+// the parent rollup can be written directly once per rollup interval, instead of re-reading every
+// child's level-0 aggregates after the fact
+//
+// each child's contribution is kept per capture time and only merged when the parent rollup is
+// flushed, so that an agent re-sending the same aggregates (e.g. retrying after a response was
+// lost) replaces its earlier contribution instead of being counted twice
+//
+// the "needs rollup from child" records are still written, and are only deleted once the
+// accumulated parent rollup has been written, so that anything which is not accumulated (e.g.
+// aggregates received after their capture time was already flushed, or aggregates accumulated prior
+// to central restart) is still rolled up by reading back the children's aggregates
+//
+// this is only used when central is not clustered, since otherwise each central node would only
+// accumulate the aggregates of the agents connected to it
+class ParentRollupAccumulator {
+
+    // guards flushedThrough against adds, so that nothing can be added to a capture time that
+    // has already been flushed (adds take the read lock, since they only contend per capture time)
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final ConcurrentMap<PendingRollupKey, PendingRollup> pendingRollups =
+            Maps.newConcurrentMap();
+
+    private volatile long flushedThrough;
+
+    ParentRollupAccumulator(long flushedThrough) {
+        this.flushedThrough = flushedThrough;
+    }
+
+    // "needs rollup from child" records with capture time after this are (or will be) accumulated
+    // and so should not be read back
+    long getFlushedThrough() {
+        return flushedThrough;
+    }
+
+    // agentRollupIds are the agent's ancestors (parent first)
+    //
+    // returns false if the capture time has already been flushed, in which case the "needs rollup
+    // from child" record needs to be left for the read back
+    boolean add(String childAgentRollupId, List<String> agentRollupIds, long captureTime,
+            UUID uniqueness,
+            List<OldAggregatesByType> aggregatesByTypeList,
+            List<Aggregate.SharedQueryText> sharedQueryTexts, RollupLimits limits) {
+        lock.readLock().lock();
+        try {
+            if (captureTime <= flushedThrough) {
+                return false;
+            }
+            PendingRollup pendingRollup = getOrCreate(pendingRollups, agentRollupIds, captureTime,
+                    limits);
+            pendingRollup.add(childAgentRollupId, uniqueness, aggregatesByTypeList,
+                    sharedQueryTexts);
+            return true;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // removes and returns the pending rollups with capture time <= flushThrough, and from then on,
+    // aggregates for those capture times are no longer accumulated
+    Map<PendingRollupKey, PendingRollup> removePendingRollups(long flushThrough) {
+        lock.writeLock().lock();
+        try {
+            flushedThrough = Math.max(flushedThrough, flushThrough);
+            Map<PendingRollupKey, PendingRollup> removed = Maps.newHashMap();
+            for (PendingRollup pendingRollup : pendingRollups.values()) {
+                if (pendingRollup.captureTime <= flushedThrough) {
+                    removed.put(pendingRollup.key(), pendingRollup);
+                }
+            }
+            pendingRollups.keySet().removeAll(removed.keySet());
+            return removed;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // agentRollupIds are the pending rollup's agent rollup id followed by its ancestors
+    static PendingRollup getOrCreate(Map<PendingRollupKey, PendingRollup> pendingRollups,
+            List<String> agentRollupIds, long captureTime, RollupLimits limits) {
+        PendingRollupKey key = ImmutablePendingRollupKey.of(agentRollupIds.get(0), captureTime);
+        PendingRollup pendingRollup = pendingRollups.get(key);
+        if (pendingRollup == null) {
+            pendingRollup = new PendingRollup(agentRollupIds, captureTime, limits);
+            PendingRollup existing = pendingRollups.putIfAbsent(key, pendingRollup);
+            if (existing != null) {
+                pendingRollup = existing;
+            }
+        }
+        return pendingRollup;
+    }
+
+    static class PendingRollup {
+
+        private final String agentRollupId;
+        private final List<String> parentAgentRollupIds;
+        private final long captureTime;
+        private final RollupLimits limits;
+
+        // uniqueness keys of the "needs rollup from child" records that are covered by this rollup
+        private final Set<UUID> uniquenessKeysForDeletion = Sets.newHashSet();
+        // keyed by child agent rollup id, the latest contribution replaces any earlier one
+        private final Map<String, ChildContribution> childContributions = Maps.newHashMap();
+
+        private PendingRollup(List<String> agentRollupIds, long captureTime,
+                RollupLimits limits) {
+            agentRollupId = agentRollupIds.get(0);
+            parentAgentRollupIds = ImmutableList.copyOf(agentRollupIds.subList(1,
+                    agentRollupIds.size()));
+            this.captureTime = captureTime;
+            this.limits = limits;
+        }
+
+        String agentRollupId() {
+            return agentRollupId;
+        }
+
+        // the parent agent rollup id followed by its ancestors
+        List<String> parentAgentRollupIds() {
+            return parentAgentRollupIds;
+        }
+
+        long captureTime() {
+            return captureTime;
+        }
+
+        PendingRollupKey key() {
+            return ImmutablePendingRollupKey.of(agentRollupId, captureTime);
+        }
+
+        synchronized Set<UUID> getUniquenessKeysForDeletion() {
+            return ImmutableSet.copyOf(uniquenessKeysForDeletion);
+        }
+
+        synchronized Set<String> getTransactionTypes() {
+            Set<String> transactionTypes = Sets.newHashSet();
+            for (ChildContribution childContribution : childContributions.values()) {
+                for (OldAggregatesByType aggregatesByType : childContribution
+                        .aggregatesByTypeList()) {
+                    transactionTypes.add(aggregatesByType.getTransactionType());
+                }
+            }
+            return transactionTypes;
+        }
+
+        synchronized void add(String childAgentRollupId, UUID uniqueness,
+                List<OldAggregatesByType> aggregatesByTypeList,
+                List<Aggregate.SharedQueryText> sharedQueryTexts) {
+            // the replaced contribution's "needs rollup from child" record is still covered by
+            // this rollup, since it was for the same child and capture time
+            uniquenessKeysForDeletion.add(uniqueness);
+            childContributions.put(childAgentRollupId,
+                    ImmutableChildContribution.of(aggregatesByTypeList, sharedQueryTexts));
+        }
+
+        // sharedQueryTexts is passed in empty, and populated by method
+        synchronized List<OldAggregatesByType> toProto(
+                List<Aggregate.SharedQueryText> sharedQueryTexts) {
+            Map<String, TransactionTypeRollup> transactionTypeRollups = Maps.newHashMap();
+            for (ChildContribution childContribution : childContributions.values()) {
+                merge(transactionTypeRollups, childContribution.aggregatesByTypeList(),
+                        childContribution.sharedQueryTexts(), limits);
+            }
+            ScratchBuffer scratchBuffer = new ScratchBuffer();
+            Map<String, Integer> sharedQueryTextIndexes = Maps.newHashMap();
+            List<OldAggregatesByType> aggregatesByTypeList = Lists.newArrayList();
+            for (Map.Entry<String, TransactionTypeRollup> entry : transactionTypeRollups
+                    .entrySet()) {
+                TransactionTypeRollup transactionTypeRollup = entry.getValue();
+                OldAggregatesByType.Builder aggregatesByType = OldAggregatesByType.newBuilder()
+                        .setTransactionType(entry.getKey())
+                        .setOverallAggregate(toAggregate(transactionTypeRollup.overallAggregate,
+                                scratchBuffer, sharedQueryTexts, sharedQueryTextIndexes));
+                for (Map.Entry<String, MutableAggregate> transactionEntry : transactionTypeRollup
+                        .transactionAggregates.entrySet()) {
+                    aggregatesByType.addTransactionAggregate(OldTransactionAggregate.newBuilder()
+                            .setTransactionName(transactionEntry.getKey())
+                            .setAggregate(toAggregate(transactionEntry.getValue(), scratchBuffer,
+                                    sharedQueryTexts, sharedQueryTextIndexes)));
+                }
+                aggregatesByTypeList.add(aggregatesByType.build());
+            }
+            return aggregatesByTypeList;
+        }
+    }
+
+    private static void merge(Map<String, TransactionTypeRollup> transactionTypeRollups,
+            List<OldAggregatesByType> aggregatesByTypeList,
+            List<Aggregate.SharedQueryText> sharedQueryTexts, RollupLimits limits) {
+        for (OldAggregatesByType aggregatesByType : aggregatesByTypeList) {
+            String transactionType = aggregatesByType.getTransactionType();
+            TransactionTypeRollup transactionTypeRollup =
+                    transactionTypeRollups.get(transactionType);
+            if (transactionTypeRollup == null) {
+                transactionTypeRollup = new TransactionTypeRollup(limits);
+                transactionTypeRollups.put(transactionType, transactionTypeRollup);
+            }
+            merge(transactionTypeRollup.overallAggregate, aggregatesByType.getOverallAggregate(),
+                    sharedQueryTexts);
+            for (OldTransactionAggregate transactionAggregate : aggregatesByType
+                    .getTransactionAggregateList()) {
+                String transactionName = transactionAggregate.getTransactionName();
+                MutableAggregate aggregate =
+                        transactionTypeRollup.transactionAggregates.get(transactionName);
+                if (aggregate == null) {
+                    aggregate = limits.createMutableAggregate();
+                    transactionTypeRollup.transactionAggregates.put(transactionName, aggregate);
+                }
+                merge(aggregate, transactionAggregate.getAggregate(), sharedQueryTexts);
+            }
+        }
+    }
+
+    private static void merge(MutableAggregate mutableAggregate, Aggregate aggregate,
+            List<Aggregate.SharedQueryText> sharedQueryTexts) {
+        mutableAggregate.addTotalDurationNanos(aggregate.getTotalDurationNanos());
+        mutableAggregate.addTransactionCount(aggregate.getTransactionCount());
+        mutableAggregate.addErrorCount(aggregate.getErrorCount());
+        mutableAggregate.addAsyncTransactions(aggregate.getAsyncTransactions());
+        mutableAggregate.mergeMainThreadRootTimers(aggregate.getMainThreadRootTimerList());
+        mutableAggregate.mergeAuxThreadRootTimers(aggregate.getAuxThreadRootTimerList());
+        mutableAggregate.mergeAsyncTimers(aggregate.getAsyncTimerList());
+        if (aggregate.hasMainThreadStats()) {
+            mutableAggregate.mergeMainThreadStats(aggregate.getMainThreadStats());
+        }
+        if (aggregate.hasAuxThreadStats()) {
+            mutableAggregate.mergeAuxThreadStats(aggregate.getAuxThreadStats());
+        }
+        mutableAggregate.mergeDurationNanosHistogram(aggregate.getDurationNanosHistogram());
+        for (Aggregate.QueriesByType queriesByType : aggregate.getQueriesByTypeList()) {
+            for (Aggregate.Query query : queriesByType.getQueryList()) {
+                Aggregate.SharedQueryText sharedQueryText =
+                        sharedQueryTexts.get(query.getSharedQueryTextIndex());
+                String fullTextSha1 = sharedQueryText.getFullTextSha1();
+                if (fullTextSha1.isEmpty()) {
+                    mutableAggregate.mergeQuery(queriesByType.getType(),
+                            sharedQueryText.getFullText(), null, query.getTotalDurationNanos(),
+                            query.getExecutionCount(), query.hasTotalRows(),
+                            query.getTotalRows().getValue());
+                } else {
+                    mutableAggregate.mergeQuery(queriesByType.getType(),
+                            sharedQueryText.getTruncatedText(), fullTextSha1,
+                            query.getTotalDurationNanos(), query.getExecutionCount(),
+                            query.hasTotalRows(), query.getTotalRows().getValue());
+                }
+            }
+        }
+        mutableAggregate.mergeServiceCalls(aggregate.getServiceCallsByTypeList());
+        if (aggregate.hasMainThreadProfile()) {
+            mutableAggregate.mergeMainThreadProfile(aggregate.getMainThreadProfile());
+        }
+        if (aggregate.hasAuxThreadProfile()) {
+            mutableAggregate.mergeAuxThreadProfile(aggregate.getAuxThreadProfile());
+        }
+    }
+
+    private static Aggregate toAggregate(MutableAggregate mutableAggregate,
+            ScratchBuffer scratchBuffer, List<Aggregate.SharedQueryText> sharedQueryTexts,
+            Map<String, Integer> sharedQueryTextIndexes) {
+        Aggregate.Builder aggregate = Aggregate.newBuilder()
+                .setTotalDurationNanos(mutableAggregate.getTotalDurationNanos())
+                .setTransactionCount(mutableAggregate.getTransactionCount())
+                .setErrorCount(mutableAggregate.getErrorCount())
+                .setAsyncTransactions(mutableAggregate.isAsyncTransactions())
+                .addAllMainThreadRootTimer(mutableAggregate.getMainThreadRootTimersProto())
+                .addAllAuxThreadRootTimer(mutableAggregate.getAuxThreadRootTimersProto())
+                .addAllAsyncTimer(mutableAggregate.getAsyncTimersProto())
+                .setDurationNanosHistogram(
+                        mutableAggregate.getDurationNanosHistogram().toProto(scratchBuffer))
+                .addAllServiceCallsByType(mutableAggregate.getServiceCallsProto());
+        if (!mutableAggregate.getMainThreadStats().isNA()) {
+            aggregate.setMainThreadStats(mutableAggregate.getMainThreadStats().toProto());
+        }
+        if (!mutableAggregate.getAuxThreadStats().isNA()) {
+            aggregate.setAuxThreadStats(mutableAggregate.getAuxThreadStats().toProto());
+        }
+        QueryCollector queries = mutableAggregate.getQueries();
+        if (queries != null) {
+            for (Map.Entry<String, List<MutableQuery>> entry : queries
+                    .getSortedAndTruncatedQueries().entrySet()) {
+                Aggregate.QueriesByType.Builder queriesByType = Aggregate.QueriesByType.newBuilder()
+                        .setType(entry.getKey());
+                for (MutableQuery query : entry.getValue()) {
+                    Aggregate.Query.Builder queryBuilder = Aggregate.Query.newBuilder()
+                            .setSharedQueryTextIndex(getSharedQueryTextIndex(query,
+                                    sharedQueryTexts, sharedQueryTextIndexes))
+                            .setTotalDurationNanos(query.getTotalDurationNanos())
+                            .setExecutionCount(query.getExecutionCount());
+                    if (query.hasTotalRows()) {
+                        queryBuilder.setTotalRows(OptionalInt64.newBuilder()
+                                .setValue(query.getTotalRows()));
+                    }
+                    queriesByType.addQuery(queryBuilder);
+                }
+                aggregate.addQueriesByType(queriesByType);
+            }
+        }
+        MutableProfile mainThreadProfile = mutableAggregate.getMainThreadProfile();
+        if (mainThreadProfile != null) {
+            aggregate.setMainThreadProfile(mainThreadProfile.toProto());
+        }
+        MutableProfile auxThreadProfile = mutableAggregate.getAuxThreadProfile();
+        if (auxThreadProfile != null) {
+            aggregate.setAuxThreadProfile(auxThreadProfile.toProto());
+        }
+        return aggregate.build();
+    }
+
+    private static int getSharedQueryTextIndex(MutableQuery query,
+            List<Aggregate.SharedQueryText> sharedQueryTexts,
+            Map<String, Integer> sharedQueryTextIndexes) {
+        String fullTextSha1 = query.getFullTextSha1();
+        String key = fullTextSha1 == null ? query.getTruncatedText() : fullTextSha1;
+        Integer index = sharedQueryTextIndexes.get(key);
+        if (index == null) {
+            index = sharedQueryTexts.size();
+            sharedQueryTextIndexes.put(key, index);
+            if (fullTextSha1 == null) {
+                sharedQueryTexts.add(Aggregate.SharedQueryText.newBuilder()
+                        .setFullText(query.getTruncatedText())
+                        .build());
+            } else {
+                sharedQueryTexts.add(Aggregate.SharedQueryText.newBuilder()
+                        .setTruncatedText(query.getTruncatedText())
+                        .setFullTextSha1(fullTextSha1)
+                        .build());
+            }
+        }
+        return index;
+    }
+
+    private static class TransactionTypeRollup {
+
+        private final MutableAggregate overallAggregate;
+        private final Map<String, MutableAggregate> transactionAggregates = Maps.newHashMap();
+
+        private TransactionTypeRollup(RollupLimits limits) {
+            overallAggregate = limits.createMutableAggregate();
+        }
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface ChildContribution {
+        List<OldAggregatesByType> aggregatesByTypeList();
+        List<Aggregate.SharedQueryText> sharedQueryTexts();
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface PendingRollupKey {
+        String agentRollupId();
+        long captureTime();
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface RollupLimits {
+
+        int maxAggregateQueriesPerType();
+        int maxAggregateServiceCallsPerType();
+
+        default MutableAggregate createMutableAggregate() {
+            return new MutableAggregate(maxAggregateQueriesPerType(),
+                    maxAggregateServiceCallsPerType());
+        }
+    }
+}
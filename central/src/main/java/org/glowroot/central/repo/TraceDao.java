@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2017 the original author or authors.
+ * Copyright 2015-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -16,6 +16,7 @@
 package org.glowroot.central.repo;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.util.Comparator;
 import java.util.Date;
@@ -47,9 +48,7 @@ import org.glowroot.central.util.Messages;
 import org.glowroot.central.util.MoreFutures;
 import org.glowroot.central.util.Session;
 import org.glowroot.common.config.StorageConfig;
-import org.glowroot.common.live.ImmutableEntries;
 import org.glowroot.common.live.ImmutableTracePoint;
-import org.glowroot.common.live.LiveTraceRepository.Entries;
 import org.glowroot.common.live.LiveTraceRepository.Existence;
 import org.glowroot.common.live.LiveTraceRepository.TracePoint;
 import org.glowroot.common.live.LiveTraceRepository.TracePointFilter;
@@ -58,9 +57,12 @@ import org.glowroot.common.repo.ImmutableErrorMessageCount;
 import org.glowroot.common.repo.ImmutableErrorMessagePoint;
 import org.glowroot.common.repo.ImmutableErrorMessageResult;
 import org.glowroot.common.repo.ImmutableHeaderPlus;
+import org.glowroot.common.repo.ImmutableStoredEntries;
 import org.glowroot.common.repo.TraceRepository;
+import org.glowroot.common.repo.TraceRepository.StoredEntries;
 import org.glowroot.common.repo.Utils;
 import org.glowroot.common.util.Clock;
+import org.glowroot.common.util.CloseableIterator;
 import org.glowroot.common.util.Styles;
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 import org.glowroot.wire.api.model.Proto;
@@ -750,23 +752,20 @@ public class TraceDao implements TraceRepository {
     }
 
     @Override
-    public Entries readEntries(String agentRollupId, String agentId, String traceId)
+    public StoredEntries readEntries(String agentRollupId, String agentId, String traceId)
             throws Exception {
         checkValidAgentIdForRequest(agentRollupId, agentId, traceId);
-        return ImmutableEntries.builder()
-                .addAllEntries(readEntriesInternal(agentId, traceId))
-                .addAllSharedQueryTexts(readSharedQueryTexts(agentId, traceId))
-                .build();
+        return ImmutableStoredEntries.of(readEntriesInternal(agentId, traceId),
+                readSharedQueryTexts(agentId, traceId));
     }
 
     // since this is only used by export, SharedQueryTexts are always returned with fullTrace
     // (never with truncatedText/truncatedEndText/fullTraceSha1) @Override
     @Override
-    public Entries readEntriesForExport(String agentRollupId, String agentId, String traceId)
-            throws Exception {
+    public StoredEntries readEntriesForExport(String agentRollupId, String agentId,
+            String traceId) throws Exception {
         checkValidAgentIdForRequest(agentRollupId, agentId, traceId);
-        ImmutableEntries.Builder entries = ImmutableEntries.builder()
-                .addAllEntries(readEntriesInternal(agentId, traceId));
+        CloseableIterator<Trace.Entry> entries = readEntriesInternal(agentId, traceId);
         List<Trace.SharedQueryText> sharedQueryTexts = Lists.newArrayList();
         for (Trace.SharedQueryText sharedQueryText : readSharedQueryTexts(agentId, traceId)) {
             String fullTextSha1 = sharedQueryText.getFullTextSha1();
@@ -787,8 +786,7 @@ public class TraceDao implements TraceRepository {
                 }
             }
         }
-        return entries.addAllSharedQueryTexts(sharedQueryTexts)
-                .build();
+        return ImmutableStoredEntries.of(entries, sharedQueryTexts);
     }
 
     @Override
@@ -849,52 +847,67 @@ public class TraceDao implements TraceRepository {
         return Trace.Header.parseFrom(checkNotNull(row.getBytes(0)));
     }
 
-    private List<Trace.Entry> readEntriesInternal(String agentId, String traceId) throws Exception {
+    // rows are converted to entries as the returned iterator is advanced, and the driver only
+    // fetches the next page of rows once the current page has been iterated over
+    private CloseableIterator<Trace.Entry> readEntriesInternal(String agentId, String traceId)
+            throws Exception {
         BoundStatement boundStatement = readEntries.bind();
         boundStatement.setString(0, agentId);
         boundStatement.setString(1, traceId);
         ResultSet results = session.execute(boundStatement);
-        List<Trace.Entry> entries = Lists.newArrayList();
-        while (!results.isExhausted()) {
-            Row row = results.one();
-            int i = 0;
-            Trace.Entry.Builder entry = Trace.Entry.newBuilder()
-                    .setDepth(row.getInt(i++))
-                    .setStartOffsetNanos(row.getLong(i++))
-                    .setDurationNanos(row.getLong(i++))
-                    .setActive(row.getBool(i++));
-            if (row.isNull(i + 1)) { // shared_query_text_index
-                // message is null for trace entries added using addErrorEntry()
-                entry.setMessage(Strings.nullToEmpty(row.getString(i++)));
-                i++; // shared_query_text_index
-                i++; // query_message_prefix
-                i++; // query_message_suffix
-            } else {
-                i++; // message
-                Trace.QueryEntryMessage queryEntryMessage = Trace.QueryEntryMessage.newBuilder()
-                        .setSharedQueryTextIndex(row.getInt(i++))
-                        .setPrefix(Strings.nullToEmpty(row.getString(i++)))
-                        .setSuffix(Strings.nullToEmpty(row.getString(i++)))
-                        .build();
-                entry.setQueryEntryMessage(queryEntryMessage);
-            }
-            ByteBuffer detailBytes = row.getBytes(i++);
-            if (detailBytes != null) {
-                entry.addAllDetailEntry(
-                        Messages.parseDelimitedFrom(detailBytes, Trace.DetailEntry.parser()));
-            }
-            ByteBuffer locationBytes = row.getBytes(i++);
-            if (locationBytes != null) {
-                entry.addAllLocationStackTraceElement(Messages.parseDelimitedFrom(locationBytes,
-                        Proto.StackTraceElement.parser()));
-            }
-            ByteBuffer errorBytes = row.getBytes(i++);
-            if (errorBytes != null) {
-                entry.setError(Trace.Error.parseFrom(errorBytes));
+        return new CloseableIterator<Trace.Entry>() {
+            @Override
+            protected Trace.Entry computeNext() {
+                Row row = results.one();
+                if (row == null) {
+                    return endOfData();
+                }
+                try {
+                    return readEntry(row);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
             }
-            entries.add(entry.build());
+        };
+    }
+
+    private static Trace.Entry readEntry(Row row) throws IOException {
+        int i = 0;
+        Trace.Entry.Builder entry = Trace.Entry.newBuilder()
+                .setDepth(row.getInt(i++))
+                .setStartOffsetNanos(row.getLong(i++))
+                .setDurationNanos(row.getLong(i++))
+                .setActive(row.getBool(i++));
+        if (row.isNull(i + 1)) { // shared_query_text_index
+            // message is null for trace entries added using addErrorEntry()
+            entry.setMessage(Strings.nullToEmpty(row.getString(i++)));
+            i++; // shared_query_text_index
+            i++; // query_message_prefix
+            i++; // query_message_suffix
+        } else {
+            i++; // message
+            Trace.QueryEntryMessage queryEntryMessage = Trace.QueryEntryMessage.newBuilder()
+                    .setSharedQueryTextIndex(row.getInt(i++))
+                    .setPrefix(Strings.nullToEmpty(row.getString(i++)))
+                    .setSuffix(Strings.nullToEmpty(row.getString(i++)))
+                    .build();
+            entry.setQueryEntryMessage(queryEntryMessage);
+        }
+        ByteBuffer detailBytes = row.getBytes(i++);
+        if (detailBytes != null) {
+            entry.addAllDetailEntry(
+                    Messages.parseDelimitedFrom(detailBytes, Trace.DetailEntry.parser()));
+        }
+        ByteBuffer locationBytes = row.getBytes(i++);
+        if (locationBytes != null) {
+            entry.addAllLocationStackTraceElement(Messages.parseDelimitedFrom(locationBytes,
+                    Proto.StackTraceElement.parser()));
+        }
+        ByteBuffer errorBytes = row.getBytes(i++);
+        if (errorBytes != null) {
+            entry.setError(Trace.Error.parseFrom(errorBytes));
         }
-        return entries;
+        return entry.build();
     }
 
     private List<Trace.SharedQueryText> readSharedQueryTexts(String agentId, String traceId)
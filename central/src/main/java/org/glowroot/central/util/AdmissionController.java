@@ -0,0 +1,436 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.management.ObjectName;
+
+import com.datastax.driver.core.ResultSet;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.central.util.Session.WorkloadClass;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+// admission control for cassandra queries
+//
+// queries are queued per workload class instead of parking the calling thread, and are dispatched
+// in weighted fair share order (the class with the fewest in-flight queries relative to its weight
+// goes first), subject to both the overall limit and a per class concurrency limit
+//
+// the per class concurrency limit adapts to the observed latency: it is increased additively while
+// the class is using its full limit and latency is stable, and is decreased multiplicatively when
+// the short-term average latency rises well above the long-term average latency
+//
+// queued queries are started on the dispatch executor, never on the thread that completed the prior
+// query (typically a cassandra driver I/O thread)
+class AdmissionController {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdmissionController.class);
+
+    private static final String MBEAN_NAME_PREFIX =
+            "org.glowroot.central:type=CassandraWorkload,name=";
+
+    // the calling thread is only blocked (as back pressure) once its workload class has this many
+    // queries queued, and only if the calling thread allows blocking (see allowBlocking())
+    @VisibleForTesting
+    static final int MAX_QUEUED_PER_CLASS =
+            Integer.getInteger("glowroot.cassandra.maxQueuedQueriesPerClass", 4096);
+
+    // calling threads that do not allow blocking have their queries failed (as back pressure) once
+    // their workload class has this many queries queued, this is higher than MAX_QUEUED_PER_CLASS
+    // so that queries chained from queries that are already queued (e.g. on cassandra driver I/O
+    // threads) are not failed just because blocking threads have filled the queue
+    @VisibleForTesting
+    static final int MAX_QUEUED_NON_BLOCKING_PER_CLASS = 2 * MAX_QUEUED_PER_CLASS;
+
+    private static final double MIN_LIMIT = 8;
+
+    private static final double SHORT_TERM_WEIGHT = 0.1;
+    private static final double LONG_TERM_WEIGHT = 0.001;
+    private static final double LATENCY_TOLERANCE = 2;
+    private static final double DECREASE_FACTOR = 0.9;
+
+    // only threads that are known to be safe to block are blocked for back pressure, all other
+    // threads (e.g. cassandra driver I/O threads, or any other thread running guava future
+    // listeners) queue their queries beyond the limit instead, up to
+    // MAX_QUEUED_NON_BLOCKING_PER_CLASS
+    @SuppressWarnings("nullness:type.argument.type.incompatible")
+    private static final ThreadLocal<Boolean> blockingAllowed = new ThreadLocal<Boolean>() {
+        @Override
+        protected Boolean initialValue() {
+            return false;
+        }
+    };
+
+    private final int maxConcurrentQueries;
+    private final Executor dispatchExecutor;
+    private final Ticker ticker;
+
+    private final Map<WorkloadClass, ClassQueue> classQueues;
+
+    @GuardedBy("this")
+    private int inFlightCount;
+
+    AdmissionController(int maxConcurrentQueries, Executor dispatchExecutor, Ticker ticker) {
+        this.maxConcurrentQueries = maxConcurrentQueries;
+        this.dispatchExecutor = dispatchExecutor;
+        this.ticker = ticker;
+        // start out with the same limit as the prior per-thread semaphores
+        double initialLimit = Math.max(MIN_LIMIT, maxConcurrentQueries / 8);
+        double maxLimit = Math.max(MIN_LIMIT, maxConcurrentQueries / 2);
+        classQueues = new EnumMap<WorkloadClass, ClassQueue>(WorkloadClass.class);
+        for (WorkloadClass workloadClass : WorkloadClass.values()) {
+            classQueues.put(workloadClass,
+                    new ClassQueue(workloadClass, initialLimit, maxLimit));
+        }
+    }
+
+    // marks the current thread as safe to block for back pressure
+    static void allowBlocking() {
+        blockingAllowed.set(true);
+    }
+
+    void registerMBeans() {
+        for (ClassQueue classQueue : classQueues.values()) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(classQueue,
+                        new ObjectName(getMBeanName(classQueue.workloadClass)));
+            } catch (Exception e) {
+                // e.g. InstanceAlreadyExistsException when there are multiple sessions in the same
+                // jvm, in which case the stats are just not exposed
+                logger.debug(e.getMessage(), e);
+            }
+        }
+    }
+
+    void unregisterMBeans() {
+        for (ClassQueue classQueue : classQueues.values()) {
+            try {
+                ManagementFactory.getPlatformMBeanServer()
+                        .unregisterMBean(new ObjectName(getMBeanName(classQueue.workloadClass)));
+            } catch (Exception e) {
+                logger.debug(e.getMessage(), e);
+            }
+        }
+    }
+
+    @VisibleForTesting
+    CassandraWorkloadMXBean getWorkloadStats(WorkloadClass workloadClass) {
+        return classQueues.get(workloadClass);
+    }
+
+    ListenableFuture<ResultSet> submit(WorkloadClass workloadClass, Query query)
+            throws InterruptedException {
+        ClassQueue classQueue = classQueues.get(workloadClass);
+        PendingQuery pendingQuery = new PendingQuery(classQueue, query, ticker.read());
+        boolean executeNow;
+        synchronized (this) {
+            if (blockingAllowed.get()) {
+                if (classQueue.queue.size() >= MAX_QUEUED_PER_CLASS) {
+                    classQueue.blockedCount.incrementAndGet();
+                    while (classQueue.queue.size() >= MAX_QUEUED_PER_CLASS) {
+                        wait();
+                    }
+                }
+            } else if (classQueue.queue.size() >= MAX_QUEUED_NON_BLOCKING_PER_CLASS) {
+                classQueue.rejectedCount.incrementAndGet();
+                return Futures.immediateFailedFuture(new RejectedExecutionException(
+                        "Too many cassandra queries queued for workload class: "
+                                + workloadClass));
+            }
+            executeNow = classQueue.queue.isEmpty() && inFlightCount < maxConcurrentQueries
+                    && classQueue.inFlightCount < classQueue.getLimit();
+            if (executeNow) {
+                inFlightCount++;
+                classQueue.inFlightCount++;
+            } else {
+                classQueue.queue.add(pendingQuery);
+            }
+        }
+        if (executeNow) {
+            execute(pendingQuery);
+        }
+        return pendingQuery.future;
+    }
+
+    private void execute(PendingQuery pendingQuery) {
+        long startTick = ticker.read();
+        ClassQueue classQueue = pendingQuery.classQueue;
+        classQueue.queueNanos.addAndGet(startTick - pendingQuery.queueStartTick);
+        ListenableFuture<ResultSet> innerFuture;
+        try {
+            innerFuture = pendingQuery.query.execute();
+        } catch (Throwable t) {
+            innerFuture = Futures.immediateFailedFuture(t);
+        }
+        Futures.addCallback(innerFuture, new FutureCallback<ResultSet>() {
+            @Override
+            public void onSuccess(ResultSet result) {
+                onComplete(pendingQuery, startTick);
+                complete(pendingQuery, result, null);
+            }
+            @Override
+            public void onFailure(Throwable t) {
+                onComplete(pendingQuery, startTick);
+                complete(pendingQuery, null, t);
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    private void onComplete(PendingQuery pendingQuery, long startTick) {
+        long endTick = ticker.read();
+        ClassQueue classQueue = pendingQuery.classQueue;
+        classQueue.completedCount.incrementAndGet();
+        classQueue.executionNanos.addAndGet(endTick - startTick);
+        List<PendingQuery> toExecute = new ArrayList<PendingQuery>();
+        synchronized (this) {
+            inFlightCount--;
+            classQueue.inFlightCount--;
+            classQueue.updateLimit(endTick - startTick, endTick);
+            boolean unblock = false;
+            ClassQueue next;
+            while ((next = nextToDispatch()) != null) {
+                if (next.queue.size() == MAX_QUEUED_PER_CLASS) {
+                    unblock = true;
+                }
+                inFlightCount++;
+                next.inFlightCount++;
+                toExecute.add(next.queue.remove());
+            }
+            if (unblock) {
+                notifyAll();
+            }
+        }
+        if (!toExecute.isEmpty()) {
+            dispatch(toExecute);
+        }
+    }
+
+    private void dispatch(List<PendingQuery> toExecute) {
+        try {
+            dispatchExecutor.execute(() -> {
+                for (PendingQuery pendingQuery : toExecute) {
+                    execute(pendingQuery);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the session is closing, so fail everything that is queued, including any threads
+            // blocked waiting to queue
+            logger.debug(e.getMessage(), e);
+            List<PendingQuery> toFail = new ArrayList<PendingQuery>(toExecute);
+            synchronized (this) {
+                for (PendingQuery pendingQuery : toExecute) {
+                    inFlightCount--;
+                    pendingQuery.classQueue.inFlightCount--;
+                }
+                for (ClassQueue classQueue : classQueues.values()) {
+                    toFail.addAll(classQueue.queue);
+                    classQueue.queue.clear();
+                }
+                notifyAll();
+            }
+            for (PendingQuery pendingQuery : toFail) {
+                complete(pendingQuery, null, e);
+            }
+        }
+    }
+
+    @GuardedBy("this")
+    private @Nullable ClassQueue nextToDispatch() {
+        if (inFlightCount >= maxConcurrentQueries) {
+            return null;
+        }
+        ClassQueue best = null;
+        double bestShare = Double.MAX_VALUE;
+        for (ClassQueue classQueue : classQueues.values()) {
+            if (classQueue.queue.isEmpty()
+                    || classQueue.inFlightCount >= classQueue.getLimit()) {
+                continue;
+            }
+            double share = classQueue.inFlightCount / (double) classQueue.workloadClass.weight();
+            if (share < bestShare) {
+                best = classQueue;
+                bestShare = share;
+            }
+        }
+        return best;
+    }
+
+    // the outer future is completed with the query's workload class set on the current thread (a
+    // cassandra driver thread), so that queries chained on the outer future are attributed to the
+    // same workload class
+    private void complete(PendingQuery pendingQuery, @Nullable ResultSet result,
+            @Nullable Throwable t) {
+        WorkloadClass priorWorkloadClass =
+                Session.setWorkloadClass(pendingQuery.classQueue.workloadClass);
+        try {
+            if (t == null) {
+                pendingQuery.future.set(result);
+            } else {
+                pendingQuery.future.setException(t);
+            }
+        } finally {
+            Session.setWorkloadClass(priorWorkloadClass);
+        }
+    }
+
+    private static String getMBeanName(WorkloadClass workloadClass) {
+        return MBEAN_NAME_PREFIX + workloadClass.name().toLowerCase();
+    }
+
+    interface Query {
+        ListenableFuture<ResultSet> execute() throws Exception;
+    }
+
+    private static class PendingQuery {
+
+        private final ClassQueue classQueue;
+        private final Query query;
+        private final long queueStartTick;
+        private final SettableFuture<ResultSet> future = SettableFuture.create();
+
+        private PendingQuery(ClassQueue classQueue, Query query, long queueStartTick) {
+            this.classQueue = classQueue;
+            this.query = query;
+            this.queueStartTick = queueStartTick;
+        }
+    }
+
+    private class ClassQueue implements CassandraWorkloadMXBean {
+
+        private final WorkloadClass workloadClass;
+        private final double maxLimit;
+
+        @GuardedBy("AdmissionController.this")
+        private final Deque<PendingQuery> queue = new ArrayDeque<PendingQuery>();
+        @GuardedBy("AdmissionController.this")
+        private int inFlightCount;
+        @GuardedBy("AdmissionController.this")
+        private double limit;
+        @GuardedBy("AdmissionController.this")
+        private double shortTermLatencyNanos;
+        @GuardedBy("AdmissionController.this")
+        private double longTermLatencyNanos;
+        @GuardedBy("AdmissionController.this")
+        private long lastDecreaseTick;
+
+        private final AtomicLong completedCount = new AtomicLong();
+        private final AtomicLong queueNanos = new AtomicLong();
+        private final AtomicLong executionNanos = new AtomicLong();
+        private final AtomicLong blockedCount = new AtomicLong();
+        private final AtomicLong rejectedCount = new AtomicLong();
+
+        private ClassQueue(WorkloadClass workloadClass, double initialLimit, double maxLimit) {
+            this.workloadClass = workloadClass;
+            this.maxLimit = maxLimit;
+            limit = initialLimit;
+        }
+
+        @GuardedBy("AdmissionController.this")
+        private int getLimit() {
+            return (int) limit;
+        }
+
+        @GuardedBy("AdmissionController.this")
+        private void updateLimit(long latencyNanos, long tick) {
+            if (longTermLatencyNanos == 0) {
+                shortTermLatencyNanos = latencyNanos;
+                longTermLatencyNanos = latencyNanos;
+                return;
+            }
+            shortTermLatencyNanos += SHORT_TERM_WEIGHT * (latencyNanos - shortTermLatencyNanos);
+            longTermLatencyNanos += LONG_TERM_WEIGHT * (latencyNanos - longTermLatencyNanos);
+            if (shortTermLatencyNanos > longTermLatencyNanos * LATENCY_TOLERANCE) {
+                // decrease at most once per round trip, since the queries that were already in
+                // flight will report the same high latency
+                if (tick - lastDecreaseTick > shortTermLatencyNanos) {
+                    limit = Math.max(MIN_LIMIT, limit * DECREASE_FACTOR);
+                    lastDecreaseTick = tick;
+                }
+            } else if (inFlightCount + 1 >= getLimit()) {
+                // the limit was reached, so probe for more (roughly one more per round trip)
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+        }
+
+        @Override
+        public int getQueuedCount() {
+            synchronized (AdmissionController.this) {
+                return queue.size();
+            }
+        }
+
+        @Override
+        public int getInFlightCount() {
+            synchronized (AdmissionController.this) {
+                return inFlightCount;
+            }
+        }
+
+        @Override
+        public int getConcurrencyLimit() {
+            synchronized (AdmissionController.this) {
+                return getLimit();
+            }
+        }
+
+        @Override
+        public long getCompletedCount() {
+            return completedCount.get();
+        }
+
+        @Override
+        public long getQueueTimeMillis() {
+            return NANOSECONDS.toMillis(queueNanos.get());
+        }
+
+        @Override
+        public long getExecutionTimeMillis() {
+            return NANOSECONDS.toMillis(executionNanos.get());
+        }
+
+        @Override
+        public long getBlockedCount() {
+            return blockedCount.get();
+        }
+
+        @Override
+        public long getRejectedCount() {
+            return rejectedCount.get();
+        }
+    }
+}
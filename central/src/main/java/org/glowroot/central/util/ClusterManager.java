@@ -1,5 +1,5 @@
 /*
- * Copyright 2017 the original author or authors.
+ * Copyright 2017-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -27,6 +27,7 @@ import java.util.regex.Pattern;
 
 import javax.annotation.Nullable;
 
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Queues;
 import org.infinispan.configuration.cache.CacheMode;
@@ -73,12 +74,18 @@ public abstract class ClusterManager {
     public abstract <K extends /*@NonNull*/ Serializable, V extends /*@NonNull*/ Object> Cache<K, V> createCache(
             String cacheName, CacheLoader<K, V> loader);
 
+    // entries beyond maxSize are evicted (least recently used first)
+    public abstract <K extends /*@NonNull*/ Serializable, V extends /*@NonNull*/ Object> Cache<K, V> createSizeBoundedCache(
+            String cacheName, long maxSize, CacheLoader<K, V> loader);
+
     public abstract <K extends /*@NonNull*/ Serializable, V extends /*@NonNull*/ Serializable> ConcurrentMap<K, V> createReplicatedMap(
             String mapName);
 
     public abstract <K extends /*@NonNull*/ Serializable, V extends /*@NonNull*/ Object> DistributedExecutionMap<K, V> createDistributedExecutionMap(
             String cacheName);
 
+    public abstract boolean isClustered();
+
     public abstract void close() throws InterruptedException;
 
     private static class ClusterManagerImpl extends ClusterManager {
@@ -106,6 +113,18 @@ public abstract class ClusterManager {
             return new CacheImpl<K, V>(cacheManager.getCache(cacheName), loader);
         }
 
+        @Override
+        public <K extends /*@NonNull*/ Serializable, V extends /*@NonNull*/ Object> Cache<K, V> createSizeBoundedCache(
+                String cacheName, long maxSize, CacheLoader<K, V> loader) {
+            ConfigurationBuilder configurationBuilder = new ConfigurationBuilder();
+            configurationBuilder.clustering()
+                    .cacheMode(CacheMode.INVALIDATION_ASYNC)
+                    .memory()
+                    .size(maxSize);
+            cacheManager.defineConfiguration(cacheName, configurationBuilder.build());
+            return new CacheImpl<K, V>(cacheManager.getCache(cacheName), loader);
+        }
+
         @Override
         public <K extends /*@NonNull*/ Serializable, V extends /*@NonNull*/ Serializable> ConcurrentMap<K, V> createReplicatedMap(
                 String mapName) {
@@ -126,6 +145,11 @@ public abstract class ClusterManager {
             return new DistributedExecutionMapImpl<K, V>(cacheManager.getCache(cacheName));
         }
 
+        @Override
+        public boolean isClustered() {
+            return true;
+        }
+
         @Override
         public void close() throws InterruptedException {
             cacheManager.stop();
@@ -186,6 +210,13 @@ public abstract class ClusterManager {
             return new NonClusterCacheImpl<K, V>(Maps.newConcurrentMap(), loader);
         }
 
+        @Override
+        public <K extends /*@NonNull*/ Serializable, V extends /*@NonNull*/ Object> Cache<K, V> createSizeBoundedCache(
+                String cacheName, long maxSize, CacheLoader<K, V> loader) {
+            return new NonClusterCacheImpl<K, V>(
+                    CacheBuilder.newBuilder().maximumSize(maxSize).<K, V>build().asMap(), loader);
+        }
+
         @Override
         public <K extends /*@NonNull*/ Serializable, V extends /*@NonNull*/ Object> DistributedExecutionMap<K, V> createDistributedExecutionMap(
                 String cacheName) {
@@ -198,6 +229,11 @@ public abstract class ClusterManager {
             return Maps.newConcurrentMap();
         }
 
+        @Override
+        public boolean isClustered() {
+            return false;
+        }
+
         @Override
         public void close() {}
     }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2017 the original author or authors.
+ * Copyright 2017-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -16,21 +16,19 @@
 package org.glowroot.central.util;
 
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import com.datastax.driver.core.Cluster;
 import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.ResultSet;
-import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Statement;
 import com.datastax.driver.core.exceptions.DriverException;
 import com.datastax.driver.core.exceptions.InvalidConfigurationInQueryException;
-import com.google.common.base.Throwables;
-import com.google.common.util.concurrent.FutureCallback;
-import com.google.common.util.concurrent.Futures;
+import com.google.common.base.Ticker;
 import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.MoreExecutors;
-import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -42,21 +40,51 @@ public class Session {
 
     private static final Logger logger = LoggerFactory.getLogger(Session.class);
 
-    private final com.datastax.driver.core.Session wrappedSession;
+    // queries are attributed to the workload class of the thread that executes them (see
+    // newThreadFactory() below, and the collector gRPC service which sets INGEST around its
+    // calls), with anything else (e.g. UI requests) falling under UI
+    @SuppressWarnings("nullness:type.argument.type.incompatible")
+    private static final ThreadLocal<WorkloadClass> currentWorkloadClass =
+            new ThreadLocal<WorkloadClass>() {
+                @Override
+                protected WorkloadClass initialValue() {
+                    return WorkloadClass.UI;
+                }
+            };
 
-    private final Semaphore overallSemaphore = new Semaphore(MAX_CONCURRENT_QUERIES);
+    private final com.datastax.driver.core.Session wrappedSession;
 
-    // limit concurrent async queries per thread (mainly so rollup thread doesn't hog all)
-    @SuppressWarnings("nullness:type.argument.type.incompatible")
-    private final ThreadLocal<Semaphore> perThreadSemaphores = new ThreadLocal<Semaphore>() {
-        @Override
-        protected Semaphore initialValue() {
-            return new Semaphore(MAX_CONCURRENT_QUERIES / 8);
-        }
-    };
+    // starts queued queries, so that they are not started on cassandra driver I/O threads
+    private final ExecutorService dispatchExecutor;
+    private final AdmissionController admissionController;
 
     public Session(com.datastax.driver.core.Session wrappedSession) {
         this.wrappedSession = wrappedSession;
+        dispatchExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("Glowroot-Cassandra-Dispatch")
+                .build());
+        admissionController = new AdmissionController(MAX_CONCURRENT_QUERIES, dispatchExecutor,
+                Ticker.systemTicker());
+        admissionController.registerMBeans();
+    }
+
+    // returns the prior workload class of the current thread
+    public static WorkloadClass setWorkloadClass(WorkloadClass workloadClass) {
+        WorkloadClass priorWorkloadClass = currentWorkloadClass.get();
+        currentWorkloadClass.set(workloadClass);
+        return priorWorkloadClass;
+    }
+
+    public static ThreadFactory newThreadFactory(WorkloadClass workloadClass) {
+        ThreadFactory defaultThreadFactory = Executors.defaultThreadFactory();
+        return runnable -> defaultThreadFactory.newThread(() -> {
+            setWorkloadClass(workloadClass);
+            // these threads run central's own tasks (not cassandra driver callbacks), so are safe
+            // to block for back pressure
+            AdmissionController.allowBlocking();
+            runnable.run();
+        });
     }
 
     public PreparedStatement prepare(String query) {
@@ -98,7 +126,9 @@ public class Session {
     }
 
     public void close() {
+        admissionController.unregisterMBeans();
         wrappedSession.close();
+        dispatchExecutor.shutdown();
     }
 
     public void createKeyspaceIfNotExists(String keyspace) {
@@ -144,35 +174,9 @@ public class Session {
         }
     }
 
-    private ListenableFuture<ResultSet> throttle(DoUnderThrottle doUnderThrottle) throws Exception {
-        Semaphore perThreadSemaphore = perThreadSemaphores.get();
-        perThreadSemaphore.acquire();
-        overallSemaphore.acquire();
-        SettableFuture<ResultSet> outerFuture = SettableFuture.create();
-        ResultSetFuture innerFuture;
-        try {
-            innerFuture = doUnderThrottle.execute();
-        } catch (Throwable t) {
-            overallSemaphore.release();
-            perThreadSemaphore.release();
-            Throwables.propagateIfPossible(t, Exception.class);
-            throw new Exception(t);
-        }
-        Futures.addCallback(innerFuture, new FutureCallback<ResultSet>() {
-            @Override
-            public void onSuccess(ResultSet result) {
-                overallSemaphore.release();
-                perThreadSemaphore.release();
-                outerFuture.set(result);
-            }
-            @Override
-            public void onFailure(Throwable t) {
-                overallSemaphore.release();
-                perThreadSemaphore.release();
-                outerFuture.setException(t);
-            }
-        }, MoreExecutors.directExecutor());
-        return outerFuture;
+    private ListenableFuture<ResultSet> throttle(AdmissionController.Query query)
+            throws Exception {
+        return admissionController.submit(currentWorkloadClass.get(), query);
     }
 
     private static void propagateCauseIfPossible(ExecutionException e) throws Exception {
@@ -187,7 +191,19 @@ public class Session {
         }
     }
 
-    private interface DoUnderThrottle {
-        ResultSetFuture execute();
+    public enum WorkloadClass {
+
+        INGEST(4), ROLLUP(2), UI(4), ALERTING(1);
+
+        // relative share of the concurrent queries when there is contention
+        private final int weight;
+
+        WorkloadClass(int weight) {
+            this.weight = weight;
+        }
+
+        int weight() {
+            return weight;
+        }
     }
 }
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.central.IngestPipeline.IngestTask;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class IngestPipelineTest {
+
+    private IngestPipeline ingestPipeline;
+
+    @Before
+    public void beforeEachTest() {
+        ingestPipeline = new IngestPipeline(Ticker.systemTicker());
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        ingestPipeline.close();
+    }
+
+    @Test
+    public void shouldStoreInOrderPerAgent() throws Exception {
+        // given
+        List<Integer> stored = Lists.newCopyOnWriteArrayList();
+        List<CompletableFuture<?>> futures = Lists.newArrayList();
+        // when
+        for (int i = 0; i < IngestPipeline.getMaxPendingPerAgent(); i++) {
+            futures.add(ingestPipeline.submit("a", new TestTask(stored, i, null)));
+        }
+        for (CompletableFuture<?> future : futures) {
+            future.get(10, SECONDS);
+        }
+        // then
+        assertThat(stored).containsExactly(0, 1, 2, 3);
+        assertThat(ingestPipeline.getStoreCount()).isEqualTo(4);
+        assertThat(ingestPipeline.getCheckAlertsCount()).isEqualTo(4);
+        assertThat(ingestPipeline.getPendingCount()).isZero();
+    }
+
+    @Test
+    public void shouldRejectWhenAgentHasTooMuchPending() throws Exception {
+        // given
+        List<Integer> stored = Lists.newCopyOnWriteArrayList();
+        CountDownLatch latch = new CountDownLatch(1);
+        List<CompletableFuture<?>> futures = Lists.newArrayList();
+        for (int i = 0; i < IngestPipeline.getMaxPendingPerAgent(); i++) {
+            futures.add(ingestPipeline.submit("a", new TestTask(stored, i, latch)));
+        }
+        // when
+        CompletableFuture<?> rejected = ingestPipeline.submit("a", new TestTask(stored, -1, null));
+        CompletableFuture<?> otherAgent =
+                ingestPipeline.submit("b", new TestTask(stored, 100, null));
+        // then
+        assertThat(rejected).isNull();
+        assertThat(ingestPipeline.getRejectedCount()).isEqualTo(1);
+        // other agents are not blocked by the slow agent
+        otherAgent.get(10, SECONDS);
+        assertThat(stored).containsExactly(100);
+        latch.countDown();
+        for (CompletableFuture<?> future : futures) {
+            future.get(10, SECONDS);
+        }
+        assertThat(stored).containsExactly(100, 0, 1, 2, 3);
+    }
+
+    @Test
+    public void shouldAcceptOverflowAndAskAgentsToSlowDown() throws Exception {
+        // given
+        ingestPipeline.close();
+        ingestPipeline = new IngestPipeline(Ticker.systemTicker(), 2);
+        List<Integer> stored = Lists.newCopyOnWriteArrayList();
+        CountDownLatch latch = new CountDownLatch(1);
+        List<CompletableFuture<?>> futures = Lists.newArrayList();
+        futures.add(ingestPipeline.submit("a", new TestTask(stored, 1, latch)));
+        futures.add(ingestPipeline.submit("b", new TestTask(stored, 2, latch)));
+        assertThat(ingestPipeline.getBackPressureDelayMillis()).isEqualTo(20000);
+        // when
+        futures.add(ingestPipeline.submit("c", new TestTask(stored, 3, latch)));
+        futures.add(ingestPipeline.submit("c", new TestTask(stored, 4, latch)));
+        CompletableFuture<?> rejected = ingestPipeline.submit("c", new TestTask(stored, 5, null));
+        // then
+        for (CompletableFuture<?> future : futures) {
+            assertThat(future).isNotNull();
+        }
+        assertThat(rejected).isNull();
+        assertThat(ingestPipeline.getPendingCount()).isEqualTo(4);
+        assertThat(ingestPipeline.getBackPressureDelayMillis()).isEqualTo(20000);
+        latch.countDown();
+        for (CompletableFuture<?> future : futures) {
+            future.get(10, SECONDS);
+        }
+        assertThat(stored).containsOnly(1, 2, 3, 4);
+        assertThat(ingestPipeline.getPendingCount()).isZero();
+    }
+
+    @Test
+    public void shouldContinueAfterFailure() throws Exception {
+        // given
+        List<Integer> stored = Lists.newCopyOnWriteArrayList();
+        // when
+        CompletableFuture<?> failed = ingestPipeline.submit("a", new IngestTask() {
+            @Override
+            public void store() throws Exception {
+                throw new Exception("Test");
+            }
+            @Override
+            public String readAgentDisplay() {
+                return "a";
+            }
+            @Override
+            public void checkAlerts(String agentDisplay) {}
+        });
+        CompletableFuture<?> future = ingestPipeline.submit("a", new TestTask(stored, 1, null));
+        // then
+        Throwable t = null;
+        try {
+            failed.get(10, SECONDS);
+        } catch (ExecutionException e) {
+            t = e.getCause();
+        }
+        assertThat(t).hasMessage("Test");
+        future.get(10, SECONDS);
+        assertThat(stored).containsExactly(1);
+        assertThat(ingestPipeline.getCheckAlertsCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldRemoveAgentQueueOnceIdle() throws Exception {
+        // given
+        List<Integer> stored = Lists.newCopyOnWriteArrayList();
+        CountDownLatch latch = new CountDownLatch(1);
+        // when
+        CompletableFuture<?> future1 = ingestPipeline.submit("a", new TestTask(stored, 1, latch));
+        CompletableFuture<?> future2 = ingestPipeline.submit("b", new TestTask(stored, 2, null));
+        future2.get(10, SECONDS);
+        // then
+        waitForAgentQueueCount(1);
+        latch.countDown();
+        future1.get(10, SECONDS);
+        waitForAgentQueueCount(0);
+        // and the agent can continue to submit after its queue was removed
+        ingestPipeline.submit("a", new TestTask(stored, 3, null)).get(10, SECONDS);
+        assertThat(stored).containsExactly(2, 1, 3);
+        waitForAgentQueueCount(0);
+    }
+
+    // the agent queue is removed just after the future completes
+    private void waitForAgentQueueCount(int count) throws InterruptedException {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        while (ingestPipeline.getAgentQueueCount() != count
+                && stopwatch.elapsed(SECONDS) < 10) {
+            MILLISECONDS.sleep(10);
+        }
+        assertThat(ingestPipeline.getAgentQueueCount()).isEqualTo(count);
+    }
+
+    private static class TestTask implements IngestTask {
+
+        private final List<Integer> stored;
+        private final int value;
+        private final @Nullable CountDownLatch latch;
+
+        private TestTask(List<Integer> stored, int value, @Nullable CountDownLatch latch) {
+            this.stored = stored;
+            this.value = value;
+            this.latch = latch;
+        }
+
+        @Override
+        public void store() throws Exception {
+            if (latch != null) {
+                latch.await();
+            }
+            stored.add(value);
+        }
+
+        @Override
+        public String readAgentDisplay() {
+            return "display";
+        }
+
+        @Override
+        public void checkAlerts(String agentDisplay) {}
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.central.util.ClusterManager;
+import org.glowroot.common.config.ImmutableCentralStorageConfig;
+import org.glowroot.common.live.ImmutableTransactionQuery;
+import org.glowroot.common.live.LiveAggregateRepository.TransactionQuery;
+import org.glowroot.common.repo.ConfigRepository.RollupConfig;
+import org.glowroot.common.repo.ImmutableRollupConfig;
+import org.glowroot.common.util.Clock;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AggregateBlockCacheTest {
+
+    private static final long NOW = HOURS.toMillis(10);
+
+    private ClusterManager clusterManager;
+    private ConfigRepositoryImpl configRepository;
+    private AggregateBlockCache aggregateBlockCache;
+    private int readCount;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        clusterManager = ClusterManager.create();
+        configRepository = mock(ConfigRepositoryImpl.class);
+        when(configRepository.getRollupConfigs()).thenReturn(
+                ImmutableList.<RollupConfig>of(ImmutableRollupConfig.of(MINUTES.toMillis(1), 0)));
+        when(configRepository.getCentralStorageConfig())
+                .thenReturn(ImmutableCentralStorageConfig.builder().build());
+        Clock clock = mock(Clock.class);
+        when(clock.currentTimeMillis()).thenReturn(NOW);
+        // blocks are 1 hour, and only blocks that ended at least 1 hour ago are cached
+        aggregateBlockCache = new AggregateBlockCache(clusterManager, configRepository, clock);
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        clusterManager.close();
+    }
+
+    @Test
+    public void shouldCacheOldBlocks() throws Exception {
+        // given
+        TransactionQuery query = query(0, NOW);
+        // when
+        List<Long> rows = read(query, true);
+        List<Long> rows2 = read(query, true);
+        // then
+        assertThat(rows).isEqualTo(readDirect(query, true));
+        assertThat(rows2).isEqualTo(rows);
+        // 10 cacheable blocks (including the block ending at capture time 0) plus the rest on the
+        // first read, then only the rest on the second read
+        assertThat(readCount).isEqualTo(12);
+        assertThat(aggregateBlockCache.getMissCount()).isEqualTo(10);
+        assertThat(aggregateBlockCache.getHitCount()).isEqualTo(10);
+    }
+
+    @Test
+    public void shouldFilterCachedBlocksToQuery() throws Exception {
+        // given
+        TransactionQuery query = query(MINUTES.toMillis(30), MINUTES.toMillis(90));
+        read(query(0, NOW), true);
+        read(query(0, NOW), false);
+        // when
+        List<Long> inclusiveRows = read(query, true);
+        List<Long> exclusiveRows = read(query, false);
+        // then
+        assertThat(inclusiveRows).isEqualTo(readDirect(query, true));
+        assertThat(inclusiveRows).hasSize(61);
+        assertThat(exclusiveRows).isEqualTo(readDirect(query, false));
+        assertThat(exclusiveRows).hasSize(60);
+    }
+
+    @Test
+    public void shouldNotCacheRecentBlocks() throws Exception {
+        // given
+        TransactionQuery query = query(NOW - MINUTES.toMillis(30), NOW);
+        // when
+        read(query, true);
+        read(query, true);
+        // then
+        assertThat(readCount).isEqualTo(2);
+        assertThat(aggregateBlockCache.getMissCount()).isZero();
+    }
+
+    @Test
+    public void shouldInvalidateBlock() throws Exception {
+        // given
+        TransactionQuery query = query(0, HOURS.toMillis(2));
+        read(query, true);
+        assertThat(readCount).isEqualTo(3);
+        // when
+        aggregateBlockCache.invalidate("a", 0, "t", HOURS.toMillis(1));
+        // capture time is not in a cacheable block, so nothing to invalidate
+        aggregateBlockCache.invalidate("a", 0, "t", NOW);
+        read(query, true);
+        // then
+        assertThat(readCount).isEqualTo(4);
+        assertThat(aggregateBlockCache.getInvalidationCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldFilterExpiredRows() throws Exception {
+        // given
+        TransactionQuery query = query(0, NOW);
+        read(query, true);
+        // when
+        when(configRepository.getCentralStorageConfig()).thenReturn(
+                ImmutableCentralStorageConfig.builder()
+                        .rollupExpirationHours(ImmutableList.of(5))
+                        .build());
+        List<Long> rows = read(query, true);
+        // then
+        // rows at or before 5 hours ago have expired in cassandra
+        assertThat(rows).isEqualTo(readDirect(query(HOURS.toMillis(5), NOW), false));
+        assertThat(rows.get(0)).isEqualTo(HOURS.toMillis(5) + MINUTES.toMillis(1));
+    }
+
+    private List<Long> read(TransactionQuery query, boolean fromInclusive) throws Exception {
+        return aggregateBlockCache.read("a", query, "table", fromInclusive, q -> {
+            readCount++;
+            return readDirect(q, fromInclusive);
+        }, row -> row);
+    }
+
+    // simulates a table with one row per minute
+    private static List<Long> readDirect(TransactionQuery query, boolean fromInclusive) {
+        List<Long> rows = Lists.newArrayList();
+        long minute = MINUTES.toMillis(1);
+        for (long captureTime = 0; captureTime <= query.to(); captureTime += minute) {
+            if (fromInclusive ? captureTime >= query.from() : captureTime > query.from()) {
+                rows.add(captureTime);
+            }
+        }
+        return rows;
+    }
+
+    private static TransactionQuery query(long from, long to) {
+        return ImmutableTransactionQuery.builder()
+                .transactionType("t")
+                .from(from)
+                .to(to)
+                .rollupLevel(0)
+                .build();
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.junit.Test;
+
+import org.glowroot.central.repo.ParentRollupAccumulator.PendingRollup;
+import org.glowroot.central.repo.ParentRollupAccumulator.PendingRollupKey;
+import org.glowroot.central.repo.ParentRollupAccumulator.RollupLimits;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldAggregatesByType;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldTransactionAggregate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ParentRollupAccumulatorTest {
+
+    private static final RollupLimits LIMITS = ImmutableRollupLimits.of(100, 100);
+
+    @Test
+    public void shouldMergeChildAggregates() {
+        // given
+        ParentRollupAccumulator accumulator = new ParentRollupAccumulator(0);
+        List<String> agentRollupIds = ImmutableList.of("parent", "grandparent");
+        UUID uniqueness1 = UUID.randomUUID();
+        UUID uniqueness2 = UUID.randomUUID();
+        // when
+        boolean added1 = accumulator.add("child1", agentRollupIds, 60000, uniqueness1,
+                createAggregatesByType(10, 1), ImmutableList.of(sharedQueryText("select 1")),
+                LIMITS);
+        boolean added2 = accumulator.add("child2", agentRollupIds, 60000, uniqueness2,
+                createAggregatesByType(20, 2), ImmutableList.of(sharedQueryText("select 1")),
+                LIMITS);
+        Map<PendingRollupKey, PendingRollup> pendingRollups =
+                accumulator.removePendingRollups(60000);
+        // then
+        assertThat(added1).isTrue();
+        assertThat(added2).isTrue();
+        assertThat(pendingRollups).hasSize(1);
+        PendingRollup pendingRollup = pendingRollups.values().iterator().next();
+        assertThat(pendingRollup.agentRollupId()).isEqualTo("parent");
+        assertThat(pendingRollup.parentAgentRollupIds()).containsExactly("grandparent");
+        assertThat(pendingRollup.captureTime()).isEqualTo(60000);
+        assertThat(pendingRollup.getUniquenessKeysForDeletion()).containsOnly(uniqueness1,
+                uniqueness2);
+        assertThat(pendingRollup.getTransactionTypes()).containsExactly("Web");
+
+        List<Aggregate.SharedQueryText> sharedQueryTexts = Lists.newArrayList();
+        List<OldAggregatesByType> aggregatesByTypeList = pendingRollup.toProto(sharedQueryTexts);
+        assertThat(aggregatesByTypeList).hasSize(1);
+        OldAggregatesByType aggregatesByType = aggregatesByTypeList.get(0);
+        Aggregate overallAggregate = aggregatesByType.getOverallAggregate();
+        assertThat(overallAggregate.getTotalDurationNanos()).isEqualTo(30);
+        assertThat(overallAggregate.getTransactionCount()).isEqualTo(3);
+        assertThat(overallAggregate.getQueriesByTypeCount()).isEqualTo(1);
+        Aggregate.Query query = overallAggregate.getQueriesByType(0).getQuery(0);
+        assertThat(query.getExecutionCount()).isEqualTo(3);
+        assertThat(sharedQueryTexts.get(query.getSharedQueryTextIndex()).getFullText())
+                .isEqualTo("select 1");
+        assertThat(aggregatesByType.getTransactionAggregateCount()).isEqualTo(1);
+        OldTransactionAggregate transactionAggregate = aggregatesByType.getTransactionAggregate(0);
+        assertThat(transactionAggregate.getTransactionName()).isEqualTo("/abc");
+        assertThat(transactionAggregate.getAggregate().getTransactionCount()).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldReplaceRepeatedChildAggregates() {
+        // given
+        ParentRollupAccumulator accumulator = new ParentRollupAccumulator(0);
+        List<String> agentRollupIds = ImmutableList.of("parent");
+        UUID uniqueness1 = UUID.randomUUID();
+        UUID uniqueness2 = UUID.randomUUID();
+        accumulator.add("child1", agentRollupIds, 60000, UUID.randomUUID(),
+                createAggregatesByType(5, 1), ImmutableList.of(sharedQueryText("select 1")),
+                LIMITS);
+        // when
+        // same aggregates sent twice by child2, e.g. retried after the response was lost
+        accumulator.add("child2", agentRollupIds, 60000, uniqueness1,
+                createAggregatesByType(20, 2), ImmutableList.of(sharedQueryText("select 1")),
+                LIMITS);
+        accumulator.add("child2", agentRollupIds, 60000, uniqueness2,
+                createAggregatesByType(20, 2), ImmutableList.of(sharedQueryText("select 1")),
+                LIMITS);
+        Map<PendingRollupKey, PendingRollup> pendingRollups =
+                accumulator.removePendingRollups(60000);
+        // then
+        assertThat(pendingRollups).hasSize(1);
+        PendingRollup pendingRollup = pendingRollups.values().iterator().next();
+        // both "needs rollup from child" records are covered by the rollup
+        assertThat(pendingRollup.getUniquenessKeysForDeletion()).contains(uniqueness1,
+                uniqueness2);
+        List<OldAggregatesByType> aggregatesByTypeList =
+                pendingRollup.toProto(Lists.newArrayList());
+        Aggregate overallAggregate = aggregatesByTypeList.get(0).getOverallAggregate();
+        assertThat(overallAggregate.getTotalDurationNanos()).isEqualTo(25);
+        assertThat(overallAggregate.getTransactionCount()).isEqualTo(3);
+        assertThat(overallAggregate.getQueriesByType(0).getQuery(0).getExecutionCount())
+                .isEqualTo(3);
+        assertThat(aggregatesByTypeList.get(0).getTransactionAggregate(0).getAggregate()
+                .getTransactionCount()).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldNotAddToFlushedCaptureTime() {
+        // given
+        ParentRollupAccumulator accumulator = new ParentRollupAccumulator(60000);
+        List<String> agentRollupIds = ImmutableList.of("parent");
+        // when
+        boolean addedBeforeStart = accumulator.add("child", agentRollupIds, 60000,
+                UUID.randomUUID(), createAggregatesByType(10, 1),
+                ImmutableList.of(sharedQueryText("select 1")), LIMITS);
+        boolean addedAfterStart = accumulator.add("child", agentRollupIds, 120000,
+                UUID.randomUUID(), createAggregatesByType(10, 1),
+                ImmutableList.of(sharedQueryText("select 1")), LIMITS);
+        Map<PendingRollupKey, PendingRollup> pendingRollups =
+                accumulator.removePendingRollups(120000);
+        boolean addedAfterFlush = accumulator.add("child", agentRollupIds, 120000,
+                UUID.randomUUID(), createAggregatesByType(10, 1),
+                ImmutableList.of(sharedQueryText("select 1")), LIMITS);
+        // then
+        assertThat(addedBeforeStart).isFalse();
+        assertThat(addedAfterStart).isTrue();
+        assertThat(pendingRollups).hasSize(1);
+        assertThat(addedAfterFlush).isFalse();
+        assertThat(accumulator.getFlushedThrough()).isEqualTo(120000);
+        assertThat(accumulator.removePendingRollups(180000)).isEmpty();
+    }
+
+    @Test
+    public void shouldNotRemoveLaterCaptureTimes() {
+        // given
+        ParentRollupAccumulator accumulator = new ParentRollupAccumulator(0);
+        List<String> agentRollupIds = ImmutableList.of("parent");
+        accumulator.add("child", agentRollupIds, 60000, UUID.randomUUID(),
+                createAggregatesByType(10, 1), ImmutableList.of(sharedQueryText("select 1")),
+                LIMITS);
+        accumulator.add("child", agentRollupIds, 120000, UUID.randomUUID(),
+                createAggregatesByType(10, 1), ImmutableList.of(sharedQueryText("select 1")),
+                LIMITS);
+        // when
+        Map<PendingRollupKey, PendingRollup> pendingRollups =
+                accumulator.removePendingRollups(60000);
+        // then
+        assertThat(pendingRollups).hasSize(1);
+        assertThat(pendingRollups.values().iterator().next().captureTime()).isEqualTo(60000);
+        assertThat(accumulator.removePendingRollups(120000)).hasSize(1);
+    }
+
+    @Test
+    public void shouldAccumulateIntoGrandparent() {
+        // given
+        ParentRollupAccumulator accumulator = new ParentRollupAccumulator(0);
+        accumulator.add("child", ImmutableList.of("parent", "grandparent"), 60000,
+                UUID.randomUUID(), createAggregatesByType(10, 1),
+                ImmutableList.of(sharedQueryText("select 1")), LIMITS);
+        Map<PendingRollupKey, PendingRollup> pendingRollups =
+                Maps.newHashMap(accumulator.removePendingRollups(60000));
+        PendingRollup pendingRollup = pendingRollups.values().iterator().next();
+        List<Aggregate.SharedQueryText> sharedQueryTexts = Lists.newArrayList();
+        List<OldAggregatesByType> aggregatesByTypeList = pendingRollup.toProto(sharedQueryTexts);
+        // when
+        ParentRollupAccumulator.getOrCreate(pendingRollups, pendingRollup.parentAgentRollupIds(),
+                60000, LIMITS).add("parent", UUID.randomUUID(), aggregatesByTypeList,
+                sharedQueryTexts);
+        // then
+        assertThat(pendingRollups).hasSize(2);
+        PendingRollup grandparentRollup =
+                pendingRollups.get(ImmutablePendingRollupKey.of("grandparent", 60000L));
+        assertThat(grandparentRollup.parentAgentRollupIds()).isEmpty();
+        List<OldAggregatesByType> grandparentAggregatesByTypeList =
+                grandparentRollup.toProto(Lists.newArrayList());
+        assertThat(grandparentAggregatesByTypeList.get(0).getOverallAggregate()
+                .getTransactionCount()).isEqualTo(1);
+    }
+
+    private static List<OldAggregatesByType> createAggregatesByType(double totalDurationNanos,
+            long transactionCount) {
+        Aggregate aggregate = Aggregate.newBuilder()
+                .setTotalDurationNanos(totalDurationNanos)
+                .setTransactionCount(transactionCount)
+                .addQueriesByType(Aggregate.QueriesByType.newBuilder()
+                        .setType("SQL")
+                        .addQuery(Aggregate.Query.newBuilder()
+                                .setSharedQueryTextIndex(0)
+                                .setTotalDurationNanos(totalDurationNanos)
+                                .setExecutionCount(transactionCount)))
+                .build();
+        return ImmutableList.of(OldAggregatesByType.newBuilder()
+                .setTransactionType("Web")
+                .setOverallAggregate(aggregate)
+                .addTransactionAggregate(OldTransactionAggregate.newBuilder()
+                        .setTransactionName("/abc")
+                        .setAggregate(aggregate))
+                .build());
+    }
+
+    private static Aggregate.SharedQueryText sharedQueryText(String fullText) {
+        return Aggregate.SharedQueryText.newBuilder()
+                .setFullText(fullText)
+                .build();
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.datastax.driver.core.ResultSet;
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.central.util.Session.WorkloadClass;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AdmissionControllerTest {
+
+    private AdmissionController admissionController;
+
+    @Before
+    public void beforeEachTest() {
+        // per class concurrency limit starts at 8
+        admissionController = new AdmissionController(16, MoreExecutors.directExecutor(),
+                Ticker.systemTicker());
+    }
+
+    @Test
+    public void shouldQueueBeyondClassLimit() throws Exception {
+        // given
+        List<SettableFuture<ResultSet>> innerFutures = Lists.newArrayList();
+        List<ListenableFuture<ResultSet>> futures = Lists.newArrayList();
+        // when
+        for (int i = 0; i < 10; i++) {
+            futures.add(admissionController.submit(WorkloadClass.ROLLUP, () -> {
+                SettableFuture<ResultSet> innerFuture = SettableFuture.create();
+                innerFutures.add(innerFuture);
+                return innerFuture;
+            }));
+        }
+        // then
+        CassandraWorkloadMXBean stats = admissionController.getWorkloadStats(WorkloadClass.ROLLUP);
+        assertThat(innerFutures).hasSize(8);
+        assertThat(stats.getInFlightCount()).isEqualTo(8);
+        assertThat(stats.getQueuedCount()).isEqualTo(2);
+        // other workload classes are not affected
+        SettableFuture<ResultSet> uiInnerFuture = SettableFuture.create();
+        ListenableFuture<ResultSet> uiFuture =
+                admissionController.submit(WorkloadClass.UI, () -> uiInnerFuture);
+        uiInnerFuture.set(null);
+        assertThat(uiFuture.isDone()).isTrue();
+        // completing a query dispatches the next queued query
+        innerFutures.get(0).set(null);
+        assertThat(futures.get(0).isDone()).isTrue();
+        assertThat(innerFutures).hasSize(9);
+        assertThat(stats.getQueuedCount()).isEqualTo(1);
+        for (int i = 1; i < 10; i++) {
+            innerFutures.get(i).set(null);
+        }
+        for (ListenableFuture<ResultSet> future : futures) {
+            assertThat(future.isDone()).isTrue();
+        }
+        assertThat(stats.getInFlightCount()).isZero();
+        assertThat(stats.getQueuedCount()).isZero();
+        assertThat(stats.getCompletedCount()).isEqualTo(10);
+    }
+
+    @Test
+    public void shouldDispatchToClassWithSmallestWeightedShare() throws Exception {
+        // given
+        List<SettableFuture<ResultSet>> rollupInnerFutures = submit(WorkloadClass.ROLLUP, 8);
+        submit(WorkloadClass.UI, 4);
+        submit(WorkloadClass.INGEST, 3);
+        submit(WorkloadClass.ALERTING, 1);
+        // overall limit is now reached
+        List<WorkloadClass> dispatched = Lists.newArrayList();
+        admissionController.submit(WorkloadClass.ALERTING, () -> {
+            dispatched.add(WorkloadClass.ALERTING);
+            return SettableFuture.create();
+        });
+        admissionController.submit(WorkloadClass.INGEST, () -> {
+            dispatched.add(WorkloadClass.INGEST);
+            return SettableFuture.create();
+        });
+        assertThat(dispatched).isEmpty();
+        // when
+        rollupInnerFutures.get(0).set(null);
+        // then
+        // ingest has 3 in flight with weight 4, alerting has 1 in flight with weight 1
+        assertThat(dispatched).containsExactly(WorkloadClass.INGEST);
+        // when
+        rollupInnerFutures.get(1).set(null);
+        // then
+        assertThat(dispatched).containsExactly(WorkloadClass.INGEST, WorkloadClass.ALERTING);
+    }
+
+    @Test
+    public void shouldPropagateWorkloadClassToChainedQueries() throws Exception {
+        // given
+        SettableFuture<ResultSet> innerFuture = SettableFuture.create();
+        ListenableFuture<ResultSet> future =
+                admissionController.submit(WorkloadClass.ROLLUP, () -> innerFuture);
+        List<WorkloadClass> workloadClasses = Lists.newArrayList();
+        future.addListener(() -> {
+            WorkloadClass workloadClass = Session.setWorkloadClass(WorkloadClass.UI);
+            Session.setWorkloadClass(workloadClass);
+            workloadClasses.add(workloadClass);
+        }, Runnable::run);
+        // when
+        innerFuture.set(null);
+        // then
+        assertThat(workloadClasses).containsExactly(WorkloadClass.ROLLUP);
+        WorkloadClass workloadClass = Session.setWorkloadClass(WorkloadClass.UI);
+        assertThat(workloadClass).isEqualTo(WorkloadClass.UI);
+    }
+
+    @Test
+    public void shouldPropagateFailure() throws Exception {
+        // when
+        ListenableFuture<ResultSet> future = admissionController.submit(WorkloadClass.UI, () -> {
+            throw new IllegalStateException("Test");
+        });
+        // then
+        Throwable t = null;
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            t = e.getCause();
+        }
+        assertThat(t).isInstanceOf(IllegalStateException.class).hasMessage("Test");
+        assertThat(admissionController.getWorkloadStats(WorkloadClass.UI).getInFlightCount())
+                .isZero();
+    }
+
+    @Test
+    public void shouldStartQueuedQueriesOnDispatchExecutor() throws Exception {
+        // given
+        List<Runnable> dispatched = Lists.newArrayList();
+        admissionController =
+                new AdmissionController(16, dispatched::add, Ticker.systemTicker());
+        List<SettableFuture<ResultSet>> innerFutures = submit(WorkloadClass.ROLLUP, 9);
+        // when
+        innerFutures.get(0).set(null);
+        // then
+        // the queued query is not started on the thread that completed the prior query
+        CassandraWorkloadMXBean stats = admissionController.getWorkloadStats(WorkloadClass.ROLLUP);
+        assertThat(dispatched).hasSize(1);
+        assertThat(stats.getQueuedCount()).isZero();
+        assertThat(innerFutures.get(8).isDone()).isFalse();
+        // when
+        dispatched.get(0).run();
+        // then
+        innerFutures.get(8).set(null);
+        assertThat(stats.getCompletedCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldQueueInsteadOfBlockingCallbackThreads() throws Exception {
+        // given
+        submit(WorkloadClass.ROLLUP, 8);
+        // when
+        // the test thread has not called allowBlocking(), so it is treated like a callback thread
+        submit(WorkloadClass.ROLLUP, AdmissionController.MAX_QUEUED_PER_CLASS + 1);
+        // then
+        CassandraWorkloadMXBean stats = admissionController.getWorkloadStats(WorkloadClass.ROLLUP);
+        assertThat(stats.getQueuedCount())
+                .isEqualTo(AdmissionController.MAX_QUEUED_PER_CLASS + 1);
+        assertThat(stats.getBlockedCount()).isZero();
+        assertThat(stats.getRejectedCount()).isZero();
+    }
+
+    @Test
+    public void shouldFailFastWhenNonBlockingQueueIsFull() throws Exception {
+        // given
+        submit(WorkloadClass.UI, 8);
+        submit(WorkloadClass.UI, AdmissionController.MAX_QUEUED_NON_BLOCKING_PER_CLASS);
+        // when
+        ListenableFuture<ResultSet> future =
+                admissionController.submit(WorkloadClass.UI, SettableFuture::create);
+        // then
+        Throwable t = null;
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            t = e.getCause();
+        }
+        assertThat(t).isInstanceOf(RejectedExecutionException.class);
+        CassandraWorkloadMXBean stats = admissionController.getWorkloadStats(WorkloadClass.UI);
+        assertThat(stats.getQueuedCount())
+                .isEqualTo(AdmissionController.MAX_QUEUED_NON_BLOCKING_PER_CLASS);
+        assertThat(stats.getRejectedCount()).isEqualTo(1);
+        // other workload classes are not affected
+        SettableFuture<ResultSet> ingestInnerFuture = SettableFuture.create();
+        ListenableFuture<ResultSet> ingestFuture =
+                admissionController.submit(WorkloadClass.INGEST, () -> ingestInnerFuture);
+        ingestInnerFuture.set(null);
+        assertThat(ingestFuture.isDone()).isTrue();
+        assertThat(ingestFuture.get()).isNull();
+    }
+
+    @Test
+    public void shouldFailQueuedQueriesWhenDispatchIsRejected() throws Exception {
+        // given
+        admissionController = new AdmissionController(16, runnable -> {
+            throw new RejectedExecutionException();
+        }, Ticker.systemTicker());
+        List<SettableFuture<ResultSet>> innerFutures = submit(WorkloadClass.ROLLUP, 8);
+        List<ListenableFuture<ResultSet>> futures = Lists.newArrayList();
+        for (int i = 0; i < 3; i++) {
+            futures.add(
+                    admissionController.submit(WorkloadClass.ROLLUP, SettableFuture::create));
+        }
+        // when
+        innerFutures.get(0).set(null);
+        // then
+        for (ListenableFuture<ResultSet> future : futures) {
+            Throwable t = null;
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                t = e.getCause();
+            }
+            assertThat(t).isInstanceOf(RejectedExecutionException.class);
+        }
+        CassandraWorkloadMXBean stats = admissionController.getWorkloadStats(WorkloadClass.ROLLUP);
+        assertThat(stats.getQueuedCount()).isZero();
+        assertThat(stats.getInFlightCount()).isEqualTo(7);
+    }
+
+    private List<SettableFuture<ResultSet>> submit(WorkloadClass workloadClass, int count)
+            throws Exception {
+        List<SettableFuture<ResultSet>> innerFutures = Lists.newArrayList();
+        for (int i = 0; i < count; i++) {
+            SettableFuture<ResultSet> innerFuture = SettableFuture.create();
+            admissionController.submit(workloadClass, () -> innerFuture);
+            innerFutures.add(innerFuture);
+        }
+        return innerFutures;
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2017 the original author or authors.
+ * Copyright 2015-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -19,6 +19,8 @@ import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.List;
 
+import javax.annotation.Nullable;
+
 import com.google.common.annotations.VisibleForTesting;
 import com.google.protobuf.ByteString;
 import org.HdrHistogram.Histogram;
@@ -32,18 +34,40 @@ public class LazyHistogram {
     private static final int HISTOGRAM_SIGNIFICANT_DIGITS = 5;
     private static final int MAX_VALUES = 1024;
 
+    // when non-zero, histograms over MAX_VALUES are tracked using LogBucketHistogram (with this
+    // relative error) instead of HdrHistogram, which is much smaller to store and faster to merge
+    //
+    // this is disabled by default since prior versions of glowroot central and the glowroot UI
+    // cannot read these histograms
+    private static final int COMPACT_RELATIVE_ERROR_PERMILLE =
+            Integer.getInteger("glowroot.histogram.compactRelativeErrorPermille", 0);
+
+    private final int compactRelativeErrorPermille;
+
     private long[] values = new long[8];
     private int size;
     private boolean sorted;
 
-    private @MonotonicNonNull Histogram histogram;
+    // at most one of these is non-null
+    private @Nullable Histogram histogram;
+    private @MonotonicNonNull LogBucketHistogram logBucketHistogram;
 
-    public LazyHistogram() {}
+    public LazyHistogram() {
+        this(COMPACT_RELATIVE_ERROR_PERMILLE);
+    }
+
+    // compactRelativeErrorPermille of 0 means use HdrHistogram
+    public LazyHistogram(int compactRelativeErrorPermille) {
+        this.compactRelativeErrorPermille = compactRelativeErrorPermille;
+    }
 
     // special constructor, histogram created this way cannot be further mutated
     public LazyHistogram(Aggregate.Histogram hist) {
+        compactRelativeErrorPermille = COMPACT_RELATIVE_ERROR_PERMILLE;
         ByteString encodedBytes = hist.getEncodedBytes();
-        if (encodedBytes.isEmpty()) {
+        if (hist.hasLogBucketHistogram()) {
+            logBucketHistogram = LogBucketHistogram.create(hist.getLogBucketHistogram());
+        } else if (encodedBytes.isEmpty()) {
             List<Long> orderedRawValues = hist.getOrderedRawValueList();
             values = new long[orderedRawValues.size()];
             for (int i = 0; i < values.length; i++) {
@@ -57,7 +81,9 @@ public class LazyHistogram {
 
     public Aggregate.Histogram toProto(ScratchBuffer scratchBuffer) {
         Aggregate.Histogram.Builder builder = Aggregate.Histogram.newBuilder();
-        if (histogram == null) {
+        if (logBucketHistogram != null) {
+            builder.setLogBucketHistogram(logBucketHistogram.toProto());
+        } else if (histogram == null) {
             if (!sorted) {
                 // sort values before storing so don't have to sort each time later when calculating
                 // percentiles
@@ -79,23 +105,45 @@ public class LazyHistogram {
 
     public void merge(Aggregate.Histogram toBeMergedHistogram) {
         ByteString encodedBytes = toBeMergedHistogram.getEncodedBytes();
-        if (encodedBytes.isEmpty()) {
+        if (toBeMergedHistogram.hasLogBucketHistogram()) {
+            Aggregate.LogBucketHistogram toBeMergedLogBucketHistogram =
+                    toBeMergedHistogram.getLogBucketHistogram();
+            if (logBucketHistogram == null) {
+                convertToLogBucketHistogram(
+                        toBeMergedLogBucketHistogram.getRelativeErrorPermille());
+            }
+            logBucketHistogram.merge(toBeMergedLogBucketHistogram);
+        } else if (encodedBytes.isEmpty()) {
             for (long rawValue : toBeMergedHistogram.getOrderedRawValueList()) {
                 add(rawValue);
             }
         } else {
-            if (histogram == null) {
-                convertValuesToHistogram();
+            Histogram toBeMergedHdrHistogram =
+                    Histogram.decodeFromByteBuffer(encodedBytes.asReadOnlyByteBuffer(), 0);
+            if (logBucketHistogram != null) {
+                logBucketHistogram.merge(toBeMergedHdrHistogram);
+            } else {
+                if (histogram == null) {
+                    convertValuesToHistogram();
+                }
+                histogram.add(toBeMergedHdrHistogram);
             }
-            histogram.add(Histogram.decodeFromByteBuffer(encodedBytes.asReadOnlyByteBuffer(), 0));
         }
     }
 
     public void merge(LazyHistogram toBeMergedHistogram) {
-        if (toBeMergedHistogram.histogram == null) {
+        if (toBeMergedHistogram.logBucketHistogram != null) {
+            if (logBucketHistogram == null) {
+                convertToLogBucketHistogram(
+                        toBeMergedHistogram.logBucketHistogram.getRelativeErrorPermille());
+            }
+            logBucketHistogram.merge(toBeMergedHistogram.logBucketHistogram);
+        } else if (toBeMergedHistogram.histogram == null) {
             for (int i = 0; i < toBeMergedHistogram.size; i++) {
                 add(toBeMergedHistogram.values[i]);
             }
+        } else if (logBucketHistogram != null) {
+            logBucketHistogram.merge(toBeMergedHistogram.histogram);
         } else {
             if (histogram == null) {
                 convertValuesToHistogram();
@@ -105,6 +153,9 @@ public class LazyHistogram {
     }
 
     public long getValueAtPercentile(double percentile) {
+        if (logBucketHistogram != null) {
+            return logBucketHistogram.getValueAtPercentile(percentile);
+        }
         if (histogram == null) {
             if (size == 0) {
                 // this is consistent with HdrHistogram behavior
@@ -125,7 +176,9 @@ public class LazyHistogram {
     @VisibleForTesting
     public void add(long value) {
         ensureCapacity(size + 1);
-        if (histogram != null) {
+        if (logBucketHistogram != null) {
+            logBucketHistogram.add(value);
+        } else if (histogram != null) {
             histogram.recordValue(value);
         } else {
             values[size++] = value;
@@ -134,11 +187,15 @@ public class LazyHistogram {
     }
 
     private void ensureCapacity(int capacity) {
-        if (histogram != null) {
+        if (histogram != null || logBucketHistogram != null) {
             return;
         }
         if (capacity > MAX_VALUES) {
-            convertValuesToHistogram();
+            if (compactRelativeErrorPermille == 0) {
+                convertValuesToHistogram();
+            } else {
+                convertToLogBucketHistogram(compactRelativeErrorPermille);
+            }
             return;
         }
         if (capacity > values.length) {
@@ -160,6 +217,23 @@ public class LazyHistogram {
         values = new long[0];
     }
 
+    // once any log bucket histogram is involved, everything is converted to log bucket histogram
+    // since that is the one with (generally) coarser precision
+    @EnsuresNonNull("logBucketHistogram")
+    private void convertToLogBucketHistogram(int relativeErrorPermille) {
+        logBucketHistogram = new LogBucketHistogram(relativeErrorPermille);
+        if (histogram == null) {
+            for (int i = 0; i < size; i++) {
+                logBucketHistogram.add(values[i]);
+            }
+            values = new long[0];
+            size = 0;
+        } else {
+            logBucketHistogram.merge(histogram);
+            histogram = null;
+        }
+    }
+
     private void sortValues() {
         Arrays.sort(values, 0, size);
         sorted = true;
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramIterationValue;
+
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// mergeable histogram with logarithmic buckets, where every value read back from the histogram is
+// within the configured relative error of the actual value (same approach as DDSketch)
+//
+// bucket i covers the range (gamma^(i-1), gamma^i] where gamma = (1 + error) / (1 - error), so
+// the number of buckets only grows with the log of the value range, e.g. at 1% relative error, 1
+// microsecond up to 1 hour is covered by less than 800 buckets
+class LogBucketHistogram {
+
+    private final int relativeErrorPermille;
+    private final double gamma;
+    private final double logGamma;
+
+    private long zeroCount;
+    // counts[i] is the count for bucket index (offset + i)
+    private long[] counts = new long[0];
+    private int offset;
+    private long totalCount;
+
+    LogBucketHistogram(int relativeErrorPermille) {
+        checkArgument(relativeErrorPermille > 0 && relativeErrorPermille < 1000,
+                "relativeErrorPermille must be between 1 and 999");
+        this.relativeErrorPermille = relativeErrorPermille;
+        double relativeError = relativeErrorPermille / 1000.0;
+        gamma = (1 + relativeError) / (1 - relativeError);
+        logGamma = Math.log(gamma);
+    }
+
+    static LogBucketHistogram create(Aggregate.LogBucketHistogram hist) {
+        LogBucketHistogram logBucketHistogram =
+                new LogBucketHistogram(hist.getRelativeErrorPermille());
+        logBucketHistogram.merge(hist);
+        return logBucketHistogram;
+    }
+
+    int getRelativeErrorPermille() {
+        return relativeErrorPermille;
+    }
+
+    long getTotalCount() {
+        return totalCount;
+    }
+
+    void add(long value) {
+        add(value, 1);
+    }
+
+    void add(long value, long count) {
+        if (value < 1) {
+            zeroCount += count;
+        } else {
+            int index = getIndex(value);
+            ensureRange(index, index);
+            counts[index - offset] += count;
+        }
+        totalCount += count;
+    }
+
+    void merge(Aggregate.LogBucketHistogram toBeMergedHistogram) {
+        if (toBeMergedHistogram.getRelativeErrorPermille() != relativeErrorPermille) {
+            // slow path, need to re-bucket
+            merge(create(toBeMergedHistogram));
+            return;
+        }
+        zeroCount += toBeMergedHistogram.getZeroCount();
+        totalCount += toBeMergedHistogram.getZeroCount();
+        int size = toBeMergedHistogram.getBucketCountCount();
+        if (size == 0) {
+            return;
+        }
+        int firstIndex = toBeMergedHistogram.getFirstIndex();
+        ensureRange(firstIndex, firstIndex + size - 1);
+        int start = firstIndex - offset;
+        for (int i = 0; i < size; i++) {
+            long count = toBeMergedHistogram.getBucketCount(i);
+            counts[start + i] += count;
+            totalCount += count;
+        }
+    }
+
+    void merge(LogBucketHistogram toBeMergedHistogram) {
+        if (toBeMergedHistogram.relativeErrorPermille != relativeErrorPermille) {
+            // slow path, need to re-bucket
+            add(0, toBeMergedHistogram.zeroCount);
+            for (int i = 0; i < toBeMergedHistogram.counts.length; i++) {
+                long count = toBeMergedHistogram.counts[i];
+                if (count != 0) {
+                    add(toBeMergedHistogram.getValue(toBeMergedHistogram.offset + i), count);
+                }
+            }
+            return;
+        }
+        zeroCount += toBeMergedHistogram.zeroCount;
+        totalCount += toBeMergedHistogram.totalCount;
+        int size = toBeMergedHistogram.counts.length;
+        if (size == 0) {
+            return;
+        }
+        ensureRange(toBeMergedHistogram.offset, toBeMergedHistogram.offset + size - 1);
+        int start = toBeMergedHistogram.offset - offset;
+        for (int i = 0; i < size; i++) {
+            counts[start + i] += toBeMergedHistogram.counts[i];
+        }
+    }
+
+    void merge(Histogram histogram) {
+        for (HistogramIterationValue value : histogram.recordedValues()) {
+            add(histogram.medianEquivalentValue(value.getValueIteratedTo()),
+                    value.getCountAtValueIteratedTo());
+        }
+    }
+
+    long getValueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            // this is consistent with HdrHistogram behavior
+            return 0;
+        }
+        // "0th" percentile means the smallest tracked value
+        long rank = Math.max(1, (long) Math.ceil(totalCount * percentile / 100));
+        long cumulativeCount = zeroCount;
+        if (cumulativeCount >= rank) {
+            return 0;
+        }
+        for (int i = 0; i < counts.length; i++) {
+            cumulativeCount += counts[i];
+            if (cumulativeCount >= rank) {
+                return getValue(offset + i);
+            }
+        }
+        // only reachable due to floating point rounding of rank
+        return getValue(getLastNonZeroIndex());
+    }
+
+    Aggregate.LogBucketHistogram toProto() {
+        Aggregate.LogBucketHistogram.Builder builder = Aggregate.LogBucketHistogram.newBuilder()
+                .setRelativeErrorPermille(relativeErrorPermille)
+                .setZeroCount(zeroCount);
+        int first = 0;
+        while (first < counts.length && counts[first] == 0) {
+            first++;
+        }
+        if (first == counts.length) {
+            return builder.build();
+        }
+        int last = getLastNonZeroIndex() - offset;
+        builder.setFirstIndex(offset + first);
+        for (int i = first; i <= last; i++) {
+            builder.addBucketCount(counts[i]);
+        }
+        return builder.build();
+    }
+
+    private int getIndex(long value) {
+        return (int) Math.ceil(Math.log(value) / logGamma);
+    }
+
+    // returns the value with the smallest relative error to all values in the bucket
+    private long getValue(int index) {
+        return Math.round(2 * Math.exp(index * logGamma) / (gamma + 1));
+    }
+
+    private int getLastNonZeroIndex() {
+        int last = counts.length - 1;
+        while (last > 0 && counts[last] == 0) {
+            last--;
+        }
+        return offset + last;
+    }
+
+    private void ensureRange(int minIndex, int maxIndex) {
+        if (counts.length == 0) {
+            counts = new long[Math.max(maxIndex - minIndex + 1, 64)];
+            offset = minIndex;
+            return;
+        }
+        int currMaxIndex = offset + counts.length - 1;
+        if (minIndex >= offset && maxIndex <= currMaxIndex) {
+            return;
+        }
+        int newMinIndex = Math.min(minIndex, offset);
+        int newMaxIndex = Math.max(maxIndex, currMaxIndex);
+        // at least double in size, growing in the direction(s) that needed it
+        int extra = Math.max(2 * counts.length - (newMaxIndex - newMinIndex + 1), 0);
+        if (minIndex < offset) {
+            newMinIndex -= extra;
+        } else {
+            newMaxIndex += extra;
+        }
+        long[] temp = new long[newMaxIndex - newMinIndex + 1];
+        System.arraycopy(counts, 0, temp, offset - newMinIndex, counts.length);
+        counts = temp;
+        offset = newMinIndex;
+    }
+}
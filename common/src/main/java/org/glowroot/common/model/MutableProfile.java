@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2017 the original author or authors.
+ * Copyright 2015-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -16,9 +16,7 @@
 package org.glowroot.common.model;
 
 import java.io.IOException;
-import java.util.ArrayDeque;
-import java.util.Deque;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -29,25 +27,39 @@ import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Strings;
-import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.PeekingIterator;
-import com.google.common.collect.Queues;
 import com.google.common.io.CharStreams;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.common.util.ObjectMappers;
-import org.glowroot.common.util.Traverser;
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 
+// the profile tree is stored as a struct of arrays indexed by node id, instead of as a tree of
+// node objects, since merging many large profiles (e.g. for the profile tab over long time
+// ranges) otherwise allocates and retains a very large number of small objects
+//
+// the arrays are paged so that growing them never copies (and so never temporarily doubles) the
+// existing data
+//
+// node 0 is a synthetic root node whose children are the actual root nodes, and nodes are linked
+// to their first child, last child and next sibling (with -1 meaning none)
 public class MutableProfile {
 
     private static final Logger logger = LoggerFactory.getLogger(MutableProfile.class);
     private static final ObjectMapper mapper = ObjectMappers.create();
 
+    private static final Profile.LeafThreadState[] LEAF_THREAD_STATES =
+            Profile.LeafThreadState.values();
+
+    private static final int ROOT = 0;
+    private static final int NONE = -1;
+
+    private static final int PAGE_SHIFT = 10;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
     // TODO use primitive maps, e.g. from GS collections
     private final Map<String, Integer> packageNameIndexes = Maps.newHashMap();
     private final Map<String, Integer> classNameIndexes = Maps.newHashMap();
@@ -59,11 +71,31 @@ public class MutableProfile {
     private final List<String> methodNames = Lists.newArrayList();
     private final List<String> fileNames = Lists.newArrayList();
 
-    private final List<ProfileNode> rootNodes = Lists.newArrayList();
+    private int nodeCount;
+
+    private final IntColumn packageNameIndex = new IntColumn();
+    private final IntColumn classNameIndex = new IntColumn();
+    private final IntColumn methodNameIndex = new IntColumn();
+    private final IntColumn fileNameIndex = new IntColumn();
+    private final IntColumn lineNumber = new IntColumn();
+    // ordinal of Profile.LeafThreadState
+    private final ByteColumn leafThreadState = new ByteColumn();
+    private final LongColumn sampleCount = new LongColumn();
+    // pages are only allocated for this column when branches are truncated, so it is read using
+    // getOrZero()
+    private final LongColumn ellipsedSampleCount = new LongColumn();
+
+    private final IntColumn firstChild = new IntColumn();
+    private final IntColumn lastChild = new IntColumn();
+    private final IntColumn nextSibling = new IntColumn();
 
     // retain original sample count for in case of filtered profile
     private long unfilteredSampleCount = -1;
 
+    public MutableProfile() {
+        addNode(NONE, 0, 0, 0, 0, 0, Profile.LeafThreadState.NONE);
+    }
+
     // this method is not used that often (only for traces with > 20 stack trace samples) so ok
     // that it does not have most optimal implementation (converts unnecessarily to profile tree)
     public void merge(MutableProfile profile) {
@@ -71,19 +103,58 @@ public class MutableProfile {
     }
 
     public void merge(Profile profile) {
-        Merger merger = new Merger(profile);
-        merger.merge(profile.getNodeList(), rootNodes);
+        int[] packageNameIndexMapping =
+                makeIndexMapping(profile.getPackageNameList(), packageNameIndexes, packageNames);
+        int[] classNameIndexMapping =
+                makeIndexMapping(profile.getClassNameList(), classNameIndexes, classNames);
+        int[] methodNameIndexMapping =
+                makeIndexMapping(profile.getMethodNameList(), methodNameIndexes, methodNames);
+        int[] fileNameIndexMapping =
+                makeIndexMapping(profile.getFileNameList(), fileNameIndexes, fileNames);
+        // destinationStack[depth] is the destination parent node for flat nodes at that depth
+        int[] destinationStack = new int[16];
+        destinationStack[0] = ROOT;
+        // once a new node is added, there is no need to look for matches among its descendants
+        int newNodeDepth = Integer.MAX_VALUE;
+        List<Profile.ProfileNode> flatNodes = profile.getNodeList();
+        for (int i = 0; i < flatNodes.size(); i++) {
+            Profile.ProfileNode flatNode = flatNodes.get(i);
+            int depth = flatNode.getDepth();
+            if (depth <= newNodeDepth) {
+                newNodeDepth = Integer.MAX_VALUE;
+            }
+            int destinationParent = destinationStack[depth];
+            int packageNameIndex = packageNameIndexMapping[flatNode.getPackageNameIndex()];
+            int classNameIndex = classNameIndexMapping[flatNode.getClassNameIndex()];
+            int methodNameIndex = methodNameIndexMapping[flatNode.getMethodNameIndex()];
+            int fileNameIndex = fileNameIndexMapping[flatNode.getFileNameIndex()];
+            int lineNumber = flatNode.getLineNumber();
+            Profile.LeafThreadState leafThreadState = flatNode.getLeafThreadState();
+            int node = NONE;
+            if (newNodeDepth == Integer.MAX_VALUE) {
+                node = findChild(destinationParent, packageNameIndex, classNameIndex,
+                        methodNameIndex, fileNameIndex, lineNumber, leafThreadState);
+            }
+            if (node == NONE) {
+                node = addNode(destinationParent, packageNameIndex, classNameIndex,
+                        methodNameIndex, fileNameIndex, lineNumber, leafThreadState);
+                newNodeDepth = Math.min(newNodeDepth, depth);
+            }
+            sampleCount.add(node, flatNode.getSampleCount());
+            if (i + 1 < flatNodes.size() && flatNodes.get(i + 1).getDepth() > depth) {
+                if (depth + 1 == destinationStack.length) {
+                    destinationStack = Arrays.copyOf(destinationStack, destinationStack.length * 2);
+                }
+                destinationStack[depth + 1] = node;
+            }
+        }
     }
 
     public void merge(List<StackTraceElement> stackTraceElements, Thread.State threadState) {
-        PeekingIterator<StackTraceElement> i =
-                Iterators.peekingIterator(Lists.reverse(stackTraceElements).iterator());
-        ProfileNode lastMatchedNode = null;
-        List<ProfileNode> mergeIntoNodes = rootNodes;
-
+        int destinationParent = ROOT;
         boolean lookingForMatch = true;
-        while (i.hasNext()) {
-            StackTraceElement stackTraceElement = i.next();
+        for (int i = stackTraceElements.size() - 1; i >= 0; i--) {
+            StackTraceElement stackTraceElement = stackTraceElements.get(i);
             String fullClassName = stackTraceElement.getClassName();
             int index = fullClassName.lastIndexOf('.');
             String packageName;
@@ -104,80 +175,88 @@ public class MutableProfile {
                     fileNameIndexes, fileNames);
             int lineNumber = stackTraceElement.getLineNumber();
             Profile.LeafThreadState leafThreadState =
-                    i.hasNext() ? Profile.LeafThreadState.NONE : getThreadState(threadState);
+                    i == 0 ? getThreadState(threadState) : Profile.LeafThreadState.NONE;
 
-            ProfileNode node = null;
+            int node = NONE;
             if (lookingForMatch) {
-                for (ProfileNode childNode : mergeIntoNodes) {
-                    if (isMatch(childNode, packageNameIndex, classNameIndex, methodNameIndex,
-                            fileNameIndex, lineNumber, leafThreadState)) {
-                        node = childNode;
-                        break;
-                    }
-                }
+                node = findChild(destinationParent, packageNameIndex, classNameIndex,
+                        methodNameIndex, fileNameIndex, lineNumber, leafThreadState);
             }
-            if (node == null) {
+            if (node == NONE) {
                 lookingForMatch = false;
-                node = new ProfileNode(packageNameIndex, classNameIndex, methodNameIndex,
-                        fileNameIndex, lineNumber, leafThreadState);
-                mergeIntoNodes.add(node);
+                node = addNode(destinationParent, packageNameIndex, classNameIndex,
+                        methodNameIndex, fileNameIndex, lineNumber, leafThreadState);
             }
-            node.sampleCount++;
-            lastMatchedNode = node;
-            mergeIntoNodes = lastMatchedNode.childNodes;
+            sampleCount.add(node, 1);
+            destinationParent = node;
         }
     }
 
     public void filter(List<String> includes, List<String> excludes) {
         unfilteredSampleCount = getSampleCount();
+        // upper case text is only cached for the duration of filtering
+        /*@Nullable*/ String[] textUppers = new String[nodeCount];
+        boolean[] matched = new boolean[nodeCount];
         for (String include : includes) {
-            for (Iterator<ProfileNode> i = rootNodes.iterator(); i.hasNext();) {
-                ProfileNode rootNode = i.next();
-                new ProfileFilterer(rootNode, include, false).traverse();
-                if (rootNode.matched) {
-                    new ProfileResetMatches(rootNode).traverse();
-                } else {
-                    i.remove();
+            ProfileFilterer filterer = new ProfileFilterer(include, false, textUppers, matched);
+            int rootNode = firstChild.get(ROOT);
+            while (rootNode != NONE) {
+                int nextRootNode = nextSibling.get(rootNode);
+                filterer.traverse(rootNode);
+                if (!matched[rootNode]) {
+                    removeChild(ROOT, rootNode);
                 }
+                rootNode = nextRootNode;
             }
+            Arrays.fill(matched, false);
         }
         for (String exclude : excludes) {
-            for (Iterator<ProfileNode> i = rootNodes.iterator(); i.hasNext();) {
-                ProfileNode rootNode = i.next();
-                new ProfileFilterer(rootNode, exclude, true).traverse();
-                if (rootNode.matched) {
-                    i.remove();
+            ProfileFilterer filterer = new ProfileFilterer(exclude, true, textUppers, matched);
+            int rootNode = firstChild.get(ROOT);
+            while (rootNode != NONE) {
+                int nextRootNode = nextSibling.get(rootNode);
+                filterer.traverse(rootNode);
+                if (matched[rootNode]) {
+                    removeChild(ROOT, rootNode);
                 }
+                rootNode = nextRootNode;
             }
+            Arrays.fill(matched, false);
         }
     }
 
-    public void truncateBranches(int minSamples) {
-        Deque<ProfileNode> toBeVisited = new ArrayDeque<ProfileNode>();
-        for (ProfileNode rootNode : rootNodes) {
-            toBeVisited.add(rootNode);
-        }
-        ProfileNode node;
-        while ((node = toBeVisited.poll()) != null) {
-            for (Iterator<ProfileNode> i = node.childNodes.iterator(); i.hasNext();) {
-                ProfileNode childNode = i.next();
-                if (childNode.sampleCount < minSamples) {
-                    i.remove();
-                    // TODO capture sampleCount per timerName of non-ellipsed structure
-                    // and use this in UI dropdown filter of timer names
-                    // (currently sampleCount per timerName of ellipsed structure is used)
-                    node.ellipsedSampleCount += childNode.sampleCount;
-                } else {
-                    toBeVisited.add(childNode);
+    public void truncateBranches(final int minSamples) {
+        NodeTraverser<RuntimeException> truncator = new NodeTraverser<RuntimeException>() {
+            @Override
+            boolean visit(int node, int depth) {
+                int childNode = firstChild.get(node);
+                while (childNode != NONE) {
+                    int nextChildNode = nextSibling.get(childNode);
+                    if (sampleCount.get(childNode) < minSamples) {
+                        removeChild(node, childNode);
+                        // TODO capture sampleCount per timerName of non-ellipsed structure
+                        // and use this in UI dropdown filter of timer names
+                        // (currently sampleCount per timerName of ellipsed structure is used)
+                        ellipsedSampleCount.add(node, sampleCount.get(childNode));
+                    }
+                    childNode = nextChildNode;
                 }
+                return true;
             }
+        };
+        int rootNode = firstChild.get(ROOT);
+        while (rootNode != NONE) {
+            truncator.traverse(rootNode);
+            rootNode = nextSibling.get(rootNode);
         }
     }
 
     public long getSampleCount() {
         long sampleCount = 0;
-        for (ProfileNode rootNode : rootNodes) {
-            sampleCount += rootNode.sampleCount;
+        int rootNode = firstChild.get(ROOT);
+        while (rootNode != NONE) {
+            sampleCount += this.sampleCount.get(rootNode);
+            rootNode = nextSibling.get(rootNode);
         }
         return sampleCount;
     }
@@ -191,9 +270,29 @@ public class MutableProfile {
     }
 
     public Profile toProto() {
-        List<Profile.ProfileNode> nodes = Lists.newArrayList();
-        for (ProfileNode rootNode : rootNodes) {
-            new ProfileNodeCollector(rootNode, nodes).traverse();
+        final List<Profile.ProfileNode> nodes = Lists.newArrayList();
+        // the builder is re-used since build() copies the fields into a new (immutable) node
+        final Profile.ProfileNode.Builder nodeBuilder = Profile.ProfileNode.newBuilder();
+        NodeTraverser<RuntimeException> collector = new NodeTraverser<RuntimeException>() {
+            @Override
+            boolean visit(int node, int depth) {
+                nodes.add(nodeBuilder
+                        .setDepth(depth)
+                        .setPackageNameIndex(packageNameIndex.get(node))
+                        .setClassNameIndex(classNameIndex.get(node))
+                        .setMethodNameIndex(methodNameIndex.get(node))
+                        .setFileNameIndex(fileNameIndex.get(node))
+                        .setLineNumber(lineNumber.get(node))
+                        .setLeafThreadState(getLeafThreadState(node))
+                        .setSampleCount(sampleCount.get(node))
+                        .build());
+                return true;
+            }
+        };
+        int rootNode = firstChild.get(ROOT);
+        while (rootNode != NONE) {
+            collector.traverse(rootNode);
+            rootNode = nextSibling.get(rootNode);
         }
         return Profile.newBuilder()
                 .addAllPackageName(packageNames)
@@ -216,8 +315,11 @@ public class MutableProfile {
         jg.writeStartObject();
         jg.writeNumberField("unfilteredSampleCount", getUnfilteredSampleCount());
         jg.writeArrayFieldStart("rootNodes");
-        for (ProfileNode rootNode : rootNodes) {
-            new ProfileWriter(rootNode, jg).traverse();
+        ProfileWriter profileWriter = new ProfileWriter(jg);
+        int rootNode = firstChild.get(ROOT);
+        while (rootNode != NONE) {
+            profileWriter.traverse(rootNode);
+            rootNode = nextSibling.get(rootNode);
         }
         jg.writeEndArray();
         jg.writeEndObject();
@@ -230,16 +332,16 @@ public class MutableProfile {
             jg.writeStartObject();
             jg.writeNumberField("totalSampleCount", getSampleCount());
             jg.writeArrayFieldStart("rootNodes");
-            int height = 0;
-            for (ProfileNode rootNode : rootNodes) {
-                if (rootNode.sampleCount > rootNode.ellipsedSampleCount) {
-                    FlameGraphWriter flameGraphWriter = new FlameGraphWriter(rootNode, jg);
-                    flameGraphWriter.traverse();
-                    height = Math.max(height, flameGraphWriter.height);
+            FlameGraphWriter flameGraphWriter = new FlameGraphWriter(jg);
+            int rootNode = firstChild.get(ROOT);
+            while (rootNode != NONE) {
+                if (sampleCount.get(rootNode) > ellipsedSampleCount.getOrZero(rootNode)) {
+                    flameGraphWriter.traverse(rootNode);
                 }
+                rootNode = nextSibling.get(rootNode);
             }
             jg.writeEndArray();
-            jg.writeNumberField("height", height);
+            jg.writeNumberField("height", flameGraphWriter.height);
             jg.writeEndObject();
         } finally {
             jg.close();
@@ -247,6 +349,88 @@ public class MutableProfile {
         return sb.toString();
     }
 
+    private int findChild(int parentNode, int packageNameIndex, int classNameIndex,
+            int methodNameIndex, int fileNameIndex, int lineNumber,
+            Profile.LeafThreadState leafThreadState) {
+        int leafThreadStateOrdinal = leafThreadState.ordinal();
+        int node = firstChild.get(parentNode);
+        while (node != NONE) {
+            // checking line number first since most likely to be different
+            if (lineNumber == this.lineNumber.get(node)
+                    && fileNameIndex == this.fileNameIndex.get(node)
+                    && leafThreadStateOrdinal == this.leafThreadState.get(node)
+                    && methodNameIndex == this.methodNameIndex.get(node)
+                    && classNameIndex == this.classNameIndex.get(node)
+                    && packageNameIndex == this.packageNameIndex.get(node)) {
+                return node;
+            }
+            node = nextSibling.get(node);
+        }
+        return NONE;
+    }
+
+    private int addNode(int parentNode, int packageNameIndex, int classNameIndex,
+            int methodNameIndex, int fileNameIndex, int lineNumber,
+            Profile.LeafThreadState leafThreadState) {
+        int node = nodeCount++;
+        this.packageNameIndex.set(node, packageNameIndex);
+        this.classNameIndex.set(node, classNameIndex);
+        this.methodNameIndex.set(node, methodNameIndex);
+        this.fileNameIndex.set(node, fileNameIndex);
+        this.lineNumber.set(node, lineNumber);
+        this.leafThreadState.set(node, (byte) leafThreadState.ordinal());
+        sampleCount.set(node, 0);
+        firstChild.set(node, NONE);
+        lastChild.set(node, NONE);
+        nextSibling.set(node, NONE);
+        if (parentNode != NONE) {
+            // append to preserve insertion order of children
+            int lastSiblingNode = lastChild.get(parentNode);
+            if (lastSiblingNode == NONE) {
+                firstChild.set(parentNode, node);
+            } else {
+                nextSibling.set(lastSiblingNode, node);
+            }
+            lastChild.set(parentNode, node);
+        }
+        return node;
+    }
+
+    // removed nodes are only unlinked from the tree, their slots are not reused
+    private void removeChild(int parentNode, int childNode) {
+        int prevNode = NONE;
+        int node = firstChild.get(parentNode);
+        while (node != childNode) {
+            prevNode = node;
+            node = nextSibling.get(node);
+        }
+        if (prevNode == NONE) {
+            firstChild.set(parentNode, nextSibling.get(childNode));
+        } else {
+            nextSibling.set(prevNode, nextSibling.get(childNode));
+        }
+        if (lastChild.get(parentNode) == childNode) {
+            lastChild.set(parentNode, prevNode);
+        }
+    }
+
+    private Profile.LeafThreadState getLeafThreadState(int node) {
+        return LEAF_THREAD_STATES[leafThreadState.get(node)];
+    }
+
+    private String getText(int node) {
+        String packageName = packageNames.get(packageNameIndex.get(node));
+        String className = classNames.get(classNameIndex.get(node));
+        String fullClassName;
+        if (packageName.isEmpty()) {
+            fullClassName = className;
+        } else {
+            fullClassName = packageName + '.' + className;
+        }
+        return new StackTraceElement(fullClassName, methodNames.get(methodNameIndex.get(node)),
+                fileNames.get(fileNameIndex.get(node)), lineNumber.get(node)).toString();
+    }
+
     private static int getNameIndex(String name, Map<String, Integer> nameIndexes,
             List<String> names) {
         Integer index = nameIndexes.get(name);
@@ -281,18 +465,6 @@ public class MutableProfile {
         }
     }
 
-    private static boolean isMatch(ProfileNode profileNode, int packageNameIndex,
-            int classNameIndex, int methodNameIndex, int fileNameIndex, int lineNumber,
-            Profile.LeafThreadState leafThreadState) {
-        // checking line number first since most likely to be different
-        return lineNumber == profileNode.lineNumber
-                && fileNameIndex == profileNode.fileNameIndex
-                && leafThreadState == profileNode.leafThreadState
-                && methodNameIndex == profileNode.methodNameIndex
-                && classNameIndex == profileNode.classNameIndex
-                && packageNameIndex == profileNode.packageNameIndex;
-    }
-
     private static int[] makeIndexMapping(List<String> toBeMergedNames,
             Map<String, Integer> existingIndexes, List<String> existingNames) {
         int[] indexMapping = new int[toBeMergedNames.size()];
@@ -311,227 +483,128 @@ public class MutableProfile {
         return indexMapping;
     }
 
-    private class ProfileNode {
-
-        private final int packageNameIndex;
-        private final int classNameIndex;
-        private final int methodNameIndex;
-        private final int fileNameIndex;
-        private final int lineNumber;
-        private final Profile.LeafThreadState leafThreadState;
-
-        private long sampleCount;
-
-        private List<ProfileNode> childNodes = Lists.newArrayListWithCapacity(2);
-
-        // these fields are only used for filtering
-        private @Nullable String text;
-        private @Nullable String textUpper;
-        private boolean matched;
-        private long ellipsedSampleCount;
-
-        private ProfileNode(int packageNameIndex, int classNameIndex, int methodNameIndex,
-                int fileNameIndex, int lineNumber, Profile.LeafThreadState leafThreadState) {
-            this.packageNameIndex = packageNameIndex;
-            this.classNameIndex = classNameIndex;
-            this.methodNameIndex = methodNameIndex;
-            this.fileNameIndex = fileNameIndex;
-            this.lineNumber = lineNumber;
-            this.leafThreadState = leafThreadState;
-        }
-
-        private String getText() {
-            if (text == null) {
-                String packageName = packageNames.get(packageNameIndex);
-                String className = classNames.get(classNameIndex);
-                String fullClassName;
-                if (packageName.isEmpty()) {
-                    fullClassName = className;
-                } else {
-                    fullClassName = packageName + '.' + className;
-                }
-                text = new StackTraceElement(fullClassName, methodNames.get(methodNameIndex),
-                        fileNames.get(fileNameIndex), lineNumber).toString();
-            }
-            return text;
-        }
-
-        private String getTextUpper() {
-            if (textUpper == null) {
-                textUpper = getText().toUpperCase(Locale.ENGLISH);
-            }
-            return textUpper;
-        }
-    }
-
-    private class Merger {
-
-        private final int[] packageNameIndexMapping;
-        private final int[] classNameIndexMapping;
-        private final int[] methodNameIndexMapping;
-        private final int[] fileNameIndexMapping;
-
-        private final Deque<List<ProfileNode>> destinationStack = Queues.newArrayDeque();
-
-        private Merger(Profile toBeMergedProfile) {
-            packageNameIndexMapping = makeIndexMapping(toBeMergedProfile.getPackageNameList(),
-                    packageNameIndexes, packageNames);
-            classNameIndexMapping = makeIndexMapping(toBeMergedProfile.getClassNameList(),
-                    classNameIndexes, classNames);
-            methodNameIndexMapping = makeIndexMapping(toBeMergedProfile.getMethodNameList(),
-                    methodNameIndexes, methodNames);
-            fileNameIndexMapping = makeIndexMapping(toBeMergedProfile.getFileNameList(),
-                    fileNameIndexes, fileNames);
-        }
-
-        private void merge(List<Profile.ProfileNode> flatNodes,
-                List<ProfileNode> destinationRootNodes) {
-            destinationStack.push(destinationRootNodes);
-            PeekingIterator<Profile.ProfileNode> i =
-                    Iterators.peekingIterator(flatNodes.iterator());
-            while (i.hasNext()) {
-                Profile.ProfileNode flatNode = i.next();
-                int destinationDepth = destinationStack.size() - 1;
-                for (int j = 0; j < destinationDepth - flatNode.getDepth(); j++) {
-                    // TODO optimize: faster way to pop multiple elements at once
-                    destinationStack.pop();
-                }
-                ProfileNode destinationNode = mergeOne(flatNode, destinationStack.getFirst());
-                if (i.hasNext() && i.peek().getDepth() > flatNode.getDepth()) {
-                    destinationStack.push(destinationNode.childNodes);
+    // iterative depth-first traversal (following the child/sibling links) to avoid
+    // StackOverflowError caused by a recursive algorithm
+    private abstract class NodeTraverser<E extends Exception> {
+
+        // ancestors[depth] is the parent of the node currently being visited at that depth
+        private int[] ancestors = new int[16];
+
+        void traverse(int rootNode) throws E {
+            int node = rootNode;
+            int depth = 0;
+            boolean visitChildren = visit(node, depth);
+            while (true) {
+                int childNode = visitChildren ? firstChild.get(node) : NONE;
+                if (childNode != NONE) {
+                    depth++;
+                    if (depth == ancestors.length) {
+                        ancestors = Arrays.copyOf(ancestors, ancestors.length * 2);
+                    }
+                    ancestors[depth] = node;
+                    node = childNode;
+                    visitChildren = visit(node, depth);
+                    continue;
                 }
-            }
-        }
-
-        private ProfileNode mergeOne(Profile.ProfileNode toBeMergedNode,
-                List<ProfileNode> destinationNodes) {
-            int toBeMergedPackageNameIndex =
-                    packageNameIndexMapping[toBeMergedNode.getPackageNameIndex()];
-            int toBeMergedClassNameIndex =
-                    classNameIndexMapping[toBeMergedNode.getClassNameIndex()];
-            int toBeMergedMethodNameIndex =
-                    methodNameIndexMapping[toBeMergedNode.getMethodNameIndex()];
-            int toBeMergedFileNameIndex = fileNameIndexMapping[toBeMergedNode.getFileNameIndex()];
-            int toBeMergedLineNumber = toBeMergedNode.getLineNumber();
-            Profile.LeafThreadState toBeMergedLeafThreadState = toBeMergedNode.getLeafThreadState();
-            for (ProfileNode destinationNode : destinationNodes) {
-                if (isMatch(destinationNode, toBeMergedPackageNameIndex, toBeMergedClassNameIndex,
-                        toBeMergedMethodNameIndex, toBeMergedFileNameIndex, toBeMergedLineNumber,
-                        toBeMergedLeafThreadState)) {
-                    merge(toBeMergedNode, destinationNode);
-                    return destinationNode;
+                // no (more) children to visit, so move to next sibling or back up to parent
+                while (true) {
+                    revisitAfterChildren(node);
+                    if (node == rootNode) {
+                        return;
+                    }
+                    int siblingNode = nextSibling.get(node);
+                    if (siblingNode != NONE) {
+                        node = siblingNode;
+                        visitChildren = visit(node, depth);
+                        break;
+                    }
+                    node = ancestors[depth];
+                    depth--;
                 }
             }
-            // no match found
-            ProfileNode destinationNode = new ProfileNode(toBeMergedPackageNameIndex,
-                    toBeMergedClassNameIndex, toBeMergedMethodNameIndex, toBeMergedFileNameIndex,
-                    toBeMergedLineNumber, toBeMergedLeafThreadState);
-            destinationNodes.add(destinationNode);
-            merge(toBeMergedNode, destinationNode);
-            return destinationNode;
         }
 
-        private void merge(Profile.ProfileNode toBeMergedNode, ProfileNode destinationNode) {
-            destinationNode.sampleCount += toBeMergedNode.getSampleCount();
-        }
-    }
-
-    // using Traverser to avoid StackOverflowError caused by a recursive algorithm
-    private static class ProfileNodeCollector extends Traverser<ProfileNode, RuntimeException> {
-
-        private final List<Profile.ProfileNode> nodes;
+        // returns false if the children of this node should not be visited
+        abstract boolean visit(int node, int depth) throws E;
 
-        public ProfileNodeCollector(ProfileNode rootNode, List<Profile.ProfileNode> nodes) {
-            super(rootNode);
-            this.nodes = nodes;
-        }
-
-        @Override
-        public List<ProfileNode> visit(ProfileNode node, int depth) {
-            nodes.add(Profile.ProfileNode.newBuilder()
-                    .setDepth(depth)
-                    .setPackageNameIndex(node.packageNameIndex)
-                    .setClassNameIndex(node.classNameIndex)
-                    .setMethodNameIndex(node.methodNameIndex)
-                    .setFileNameIndex(node.fileNameIndex)
-                    .setLineNumber(node.lineNumber)
-                    .setLeafThreadState(node.leafThreadState)
-                    .setSampleCount(node.sampleCount)
-                    .build());
-            return node.childNodes;
-        }
+        void revisitAfterChildren(@SuppressWarnings("unused") int node) throws E {}
     }
 
-    private static class ProfileFilterer extends Traverser<ProfileNode, RuntimeException> {
+    private class ProfileFilterer extends NodeTraverser<RuntimeException> {
 
         private final String filterTextUpper;
         private final boolean exclusion;
+        private final /*@Nullable*/ String[] textUppers;
+        private final boolean[] matched;
 
-        private ProfileFilterer(ProfileNode rootNode, String filterText, boolean exclusion) {
-            super(rootNode);
+        private ProfileFilterer(String filterText, boolean exclusion,
+                /*@Nullable*/ String[] textUppers, boolean[] matched) {
             this.filterTextUpper = filterText.toUpperCase(Locale.ENGLISH);
             this.exclusion = exclusion;
+            this.textUppers = textUppers;
+            this.matched = matched;
         }
 
         @Override
-        public List<ProfileNode> visit(ProfileNode node, int depth) {
+        boolean visit(int node, int depth) {
             if (isMatch(node)) {
-                node.matched = true;
+                matched[node] = true;
                 // no need to visit children
-                return ImmutableList.of();
+                return false;
             }
-            return node.childNodes;
+            return true;
         }
 
         @Override
-        public void revisitAfterChildren(ProfileNode node) {
-            if (node.matched) {
+        void revisitAfterChildren(int node) {
+            if (matched[node]) {
                 // if exclusion then node will be removed by parent
                 // if not exclusion then keep node and all children
                 return;
             }
-            if (node.childNodes.isEmpty()) {
+            if (firstChild.get(node) == NONE) {
                 return;
             }
             if (removeNode(node)) {
                 // node will be removed by parent
                 if (exclusion) {
-                    node.matched = true;
+                    matched[node] = true;
                 }
                 return;
             }
             if (!exclusion) {
-                node.matched = true;
+                matched[node] = true;
             }
             // node is a partial match, need to filter it out
             long filteredSampleCount = 0;
-            for (Iterator<ProfileNode> i = node.childNodes.iterator(); i.hasNext();) {
-                ProfileNode childNode = i.next();
-                if (exclusion == !childNode.matched) {
-                    filteredSampleCount += childNode.sampleCount;
+            int childNode = firstChild.get(node);
+            while (childNode != NONE) {
+                int nextChildNode = nextSibling.get(childNode);
+                if (exclusion == !matched[childNode]) {
+                    filteredSampleCount += sampleCount.get(childNode);
                 } else {
-                    i.remove();
+                    removeChild(node, childNode);
                 }
+                childNode = nextChildNode;
             }
-            node.sampleCount = filteredSampleCount;
+            sampleCount.set(node, filteredSampleCount);
         }
 
-        private boolean isMatch(ProfileNode node) {
-            String textUpper = node.getTextUpper();
+        private boolean isMatch(int node) {
+            String textUpper = textUppers[node];
+            if (textUpper == null) {
+                textUpper = getText(node).toUpperCase(Locale.ENGLISH);
+                textUppers[node] = textUpper;
+            }
             if (textUpper.contains(filterTextUpper)) {
                 return true;
             }
-            Profile.LeafThreadState leafThreadState = node.leafThreadState;
-            if (leafThreadState != null) {
-                String leafThreadStateUpper = leafThreadState.name().toUpperCase(Locale.ENGLISH);
-                if (leafThreadStateUpper.contains(filterTextUpper)) {
-                    return true;
-                }
-            }
-            return false;
+            String leafThreadStateUpper =
+                    getLeafThreadState(node).name().toUpperCase(Locale.ENGLISH);
+            return leafThreadStateUpper.contains(filterTextUpper);
         }
 
-        private boolean removeNode(ProfileNode node) {
+        private boolean removeNode(int node) {
             if (exclusion) {
                 return hasOnlyMatchedChildren(node);
             } else {
@@ -539,104 +612,205 @@ public class MutableProfile {
             }
         }
 
-        private boolean hasOnlyMatchedChildren(ProfileNode node) {
-            for (ProfileNode childNode : node.childNodes) {
-                if (!childNode.matched) {
+        private boolean hasOnlyMatchedChildren(int node) {
+            int childNode = firstChild.get(node);
+            while (childNode != NONE) {
+                if (!matched[childNode]) {
                     return false;
                 }
+                childNode = nextSibling.get(childNode);
             }
             return true;
         }
 
-        private boolean hasNoMatchedChildren(ProfileNode node) {
-            for (ProfileNode childNode : node.childNodes) {
-                if (childNode.matched) {
+        private boolean hasNoMatchedChildren(int node) {
+            int childNode = firstChild.get(node);
+            while (childNode != NONE) {
+                if (matched[childNode]) {
                     return false;
                 }
+                childNode = nextSibling.get(childNode);
             }
             return true;
         }
     }
 
-    private static class ProfileResetMatches extends Traverser<ProfileNode, RuntimeException> {
-
-        private ProfileResetMatches(ProfileNode rootNode) {
-            super(rootNode);
-        }
-
-        @Override
-        public List<ProfileNode> visit(ProfileNode node, int depth) {
-            node.matched = false;
-            return node.childNodes;
-        }
-    }
-
-    private class ProfileWriter extends Traverser<ProfileNode, IOException> {
+    private class ProfileWriter extends NodeTraverser<IOException> {
 
         private final JsonGenerator jg;
 
-        private ProfileWriter(ProfileNode rootNode, JsonGenerator jg) {
-            super(rootNode);
+        private ProfileWriter(JsonGenerator jg) {
             this.jg = jg;
         }
 
         @Override
-        public List<ProfileNode> visit(ProfileNode node, int depth) throws IOException {
+        boolean visit(int node, int depth) throws IOException {
             jg.writeStartObject();
-            jg.writeStringField("stackTraceElement", node.getText());
-            Profile.LeafThreadState leafThreadState = node.leafThreadState;
+            jg.writeStringField("stackTraceElement", getText(node));
+            Profile.LeafThreadState leafThreadState = getLeafThreadState(node);
             if (leafThreadState != Profile.LeafThreadState.NONE) {
                 jg.writeStringField("leafThreadState", leafThreadState.name());
             }
-            jg.writeNumberField("sampleCount", node.sampleCount);
-            long ellipsedSampleCount = node.ellipsedSampleCount;
+            jg.writeNumberField("sampleCount", sampleCount.get(node));
+            long ellipsedSampleCount = MutableProfile.this.ellipsedSampleCount.getOrZero(node);
             if (ellipsedSampleCount > 0) {
                 jg.writeNumberField("ellipsedSampleCount", ellipsedSampleCount);
             }
-            List<ProfileNode> childNodes = node.childNodes;
-            if (!childNodes.isEmpty()) {
+            if (firstChild.get(node) != NONE) {
                 jg.writeArrayFieldStart("childNodes");
             }
-            return childNodes;
+            return true;
         }
 
         @Override
-        public void revisitAfterChildren(ProfileNode node) throws IOException {
-            if (!node.childNodes.isEmpty()) {
+        void revisitAfterChildren(int node) throws IOException {
+            if (firstChild.get(node) != NONE) {
                 jg.writeEndArray();
             }
             jg.writeEndObject();
         }
     }
 
-    private class FlameGraphWriter extends Traverser<ProfileNode, IOException> {
+    private class FlameGraphWriter extends NodeTraverser<IOException> {
 
         private final JsonGenerator jg;
         private int height;
 
-        private FlameGraphWriter(ProfileNode rootNode, JsonGenerator jg) {
-            super(rootNode);
+        private FlameGraphWriter(JsonGenerator jg) {
             this.jg = jg;
         }
 
         @Override
-        public List<ProfileNode> visit(ProfileNode node, int depth) throws IOException {
+        boolean visit(int node, int depth) throws IOException {
             height = Math.max(height, depth + 1);
             jg.writeStartObject();
-            jg.writeStringField("name", node.getText());
-            jg.writeNumberField("value", node.sampleCount);
-            if (!node.childNodes.isEmpty()) {
+            jg.writeStringField("name", getText(node));
+            jg.writeNumberField("value", sampleCount.get(node));
+            if (firstChild.get(node) != NONE) {
                 jg.writeArrayFieldStart("children");
             }
-            return node.childNodes;
+            return true;
         }
 
         @Override
-        public void revisitAfterChildren(ProfileNode node) throws IOException {
-            if (!node.childNodes.isEmpty()) {
+        void revisitAfterChildren(int node) throws IOException {
+            if (firstChild.get(node) != NONE) {
                 jg.writeEndArray();
             }
             jg.writeEndObject();
         }
     }
+
+    // the first page starts small and grows (up to the page size) since most profiles captured by
+    // the agent are small, after that pages are allocated as needed and never copied
+    private static int getPageCapacity(int currCapacity, int offset) {
+        return Math.min(Math.max(16, Math.max(currCapacity * 2, offset + 1)), PAGE_SIZE);
+    }
+
+    private static class IntColumn {
+
+        private int[][] pages = new int[1][];
+
+        private int get(int index) {
+            return pages[index >>> PAGE_SHIFT][index & PAGE_MASK];
+        }
+
+        private void set(int index, int value) {
+            getPage(index)[index & PAGE_MASK] = value;
+        }
+
+        private int[] getPage(int index) {
+            int pageIndex = index >>> PAGE_SHIFT;
+            int offset = index & PAGE_MASK;
+            if (pageIndex == pages.length) {
+                pages = Arrays.copyOf(pages, pages.length * 2);
+            }
+            int[] page = pages[pageIndex];
+            if (page == null) {
+                page = new int[pageIndex == 0 ? getPageCapacity(0, offset) : PAGE_SIZE];
+                pages[pageIndex] = page;
+            } else if (offset >= page.length) {
+                page = Arrays.copyOf(page, getPageCapacity(page.length, offset));
+                pages[pageIndex] = page;
+            }
+            return page;
+        }
+    }
+
+    private static class ByteColumn {
+
+        private byte[][] pages = new byte[1][];
+
+        private byte get(int index) {
+            return pages[index >>> PAGE_SHIFT][index & PAGE_MASK];
+        }
+
+        private void set(int index, byte value) {
+            getPage(index)[index & PAGE_MASK] = value;
+        }
+
+        private byte[] getPage(int index) {
+            int pageIndex = index >>> PAGE_SHIFT;
+            int offset = index & PAGE_MASK;
+            if (pageIndex == pages.length) {
+                pages = Arrays.copyOf(pages, pages.length * 2);
+            }
+            byte[] page = pages[pageIndex];
+            if (page == null) {
+                page = new byte[pageIndex == 0 ? getPageCapacity(0, offset) : PAGE_SIZE];
+                pages[pageIndex] = page;
+            } else if (offset >= page.length) {
+                page = Arrays.copyOf(page, getPageCapacity(page.length, offset));
+                pages[pageIndex] = page;
+            }
+            return page;
+        }
+    }
+
+    private static class LongColumn {
+
+        private long[][] pages = new long[1][];
+
+        private long get(int index) {
+            return pages[index >>> PAGE_SHIFT][index & PAGE_MASK];
+        }
+
+        private long getOrZero(int index) {
+            int pageIndex = index >>> PAGE_SHIFT;
+            if (pageIndex >= pages.length) {
+                return 0;
+            }
+            long[] page = pages[pageIndex];
+            int offset = index & PAGE_MASK;
+            if (page == null || offset >= page.length) {
+                return 0;
+            }
+            return page[offset];
+        }
+
+        private void set(int index, long value) {
+            getPage(index)[index & PAGE_MASK] = value;
+        }
+
+        private void add(int index, long delta) {
+            getPage(index)[index & PAGE_MASK] += delta;
+        }
+
+        private long[] getPage(int index) {
+            int pageIndex = index >>> PAGE_SHIFT;
+            int offset = index & PAGE_MASK;
+            if (pageIndex >= pages.length) {
+                pages = Arrays.copyOf(pages, Math.max(pages.length * 2, pageIndex + 1));
+            }
+            long[] page = pages[pageIndex];
+            if (page == null) {
+                page = new long[pageIndex == 0 ? getPageCapacity(0, offset) : PAGE_SIZE];
+                pages[pageIndex] = page;
+            } else if (offset >= page.length) {
+                page = Arrays.copyOf(page, getPageCapacity(page.length, offset));
+                pages[pageIndex] = page;
+            }
+            return page;
+        }
+    }
 }
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+// the same timer names are repeated in the timer trees of every aggregate in an aggregate stream, so
+// (when central supports it) the agent sends each distinct timer name only once per stream and the
+// timers refer to it by index
+//
+// the dictionary is scoped to a single stream (as opposed to the agent connection) so that each
+// stream is self-contained, which is needed since retries and different minutes can be handled by
+// different central cluster nodes
+public class SharedTimerNames {
+
+    private SharedTimerNames() {}
+
+    public static class Encoder {
+
+        private final Map<String, Integer> indexes = Maps.newHashMap();
+        private final List<String> newTimerNames = Lists.newArrayList();
+
+        // timer names that were first seen in the last call to encode, these must be sent prior to
+        // the encoded aggregate
+        public List<String> getNewTimerNames() {
+            return newTimerNames;
+        }
+
+        public Aggregate encode(Aggregate aggregate) {
+            newTimerNames.clear();
+            Aggregate.Builder builder = aggregate.toBuilder();
+            for (Aggregate.Timer.Builder timer : builder.getMainThreadRootTimerBuilderList()) {
+                encode(timer);
+            }
+            for (Aggregate.Timer.Builder timer : builder.getAuxThreadRootTimerBuilderList()) {
+                encode(timer);
+            }
+            for (Aggregate.Timer.Builder timer : builder.getAsyncTimerBuilderList()) {
+                encode(timer);
+            }
+            return builder.build();
+        }
+
+        private void encode(Aggregate.Timer.Builder timer) {
+            String name = timer.getName();
+            Integer index = indexes.get(name);
+            if (index == null) {
+                index = indexes.size();
+                indexes.put(name, index);
+                newTimerNames.add(name);
+            }
+            timer.clearName();
+            timer.setSharedTimerNameIndex(index);
+            for (Aggregate.Timer.Builder childTimer : timer.getChildTimerBuilderList()) {
+                encode(childTimer);
+            }
+        }
+    }
+
+    public static class Decoder {
+
+        private final List<String> timerNames = Lists.newArrayList();
+
+        public void addTimerName(String timerName) {
+            timerNames.add(timerName);
+        }
+
+        public Aggregate decode(Aggregate aggregate) {
+            return aggregate.toBuilder()
+                    .clearMainThreadRootTimer()
+                    .addAllMainThreadRootTimer(decode(aggregate.getMainThreadRootTimerList()))
+                    .clearAuxThreadRootTimer()
+                    .addAllAuxThreadRootTimer(decode(aggregate.getAuxThreadRootTimerList()))
+                    .clearAsyncTimer()
+                    .addAllAsyncTimer(decode(aggregate.getAsyncTimerList()))
+                    .build();
+        }
+
+        private List<Aggregate.Timer> decode(List<Aggregate.Timer> timers) {
+            if (timers.isEmpty()) {
+                return ImmutableList.of();
+            }
+            List<Aggregate.Timer> decodedTimers = Lists.newArrayListWithCapacity(timers.size());
+            for (Aggregate.Timer timer : timers) {
+                decodedTimers.add(Aggregate.Timer.newBuilder()
+                        .setName(timerNames.get(timer.getSharedTimerNameIndex()))
+                        .setExtended(timer.getExtended())
+                        .setTotalNanos(timer.getTotalNanos())
+                        .setCount(timer.getCount())
+                        .addAllChildTimer(decode(timer.getChildTimerList()))
+                        .build());
+            }
+            return decodedTimers;
+        }
+    }
+}
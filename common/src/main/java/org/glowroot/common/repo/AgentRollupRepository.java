@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2017 the original author or authors.
+ * Copyright 2015-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -28,6 +28,10 @@ public interface AgentRollupRepository {
 
     List<AgentRollup> readAgentRollups() throws Exception;
 
+    // same as readAgentRollups(), except that lastCaptureTime is not kept up to date, which allows
+    // the agent rollup tree to be cached (it only changes when agents are added, removed or renamed)
+    List<AgentRollup> readAgentRollupTree() throws Exception;
+
     String readAgentRollupDisplay(String agentRollupId) throws Exception;
 
     boolean isAgent(String agentRollupId) throws Exception;
@@ -1,5 +1,5 @@
 /*
- * Copyright 2016 the original author or authors.
+ * Copyright 2016-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -133,7 +133,7 @@ public class MutableThreadStats {
                 && NotAvailableAware.isNA(totalAllocatedBytes);
     }
 
-    Aggregate.ThreadStats toProto() {
+    public Aggregate.ThreadStats toProto() {
         Aggregate.ThreadStats.Builder builder = Aggregate.ThreadStats.newBuilder();
         if (!NotAvailableAware.isNA(totalCpuNanos)) {
             builder.setTotalCpuNanos(toProto(totalCpuNanos));
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2017 the original author or authors.
+ * Copyright 2015-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -22,11 +22,11 @@ import javax.annotation.Nullable;
 import com.google.common.collect.ImmutableList;
 import org.immutables.value.Value;
 
-import org.glowroot.common.live.LiveTraceRepository.Entries;
 import org.glowroot.common.live.LiveTraceRepository.Existence;
 import org.glowroot.common.live.LiveTraceRepository.TracePoint;
 import org.glowroot.common.live.LiveTraceRepository.TracePointFilter;
 import org.glowroot.common.model.Result;
+import org.glowroot.common.util.CloseableIterator;
 import org.glowroot.common.util.Styles;
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
@@ -56,7 +56,8 @@ public interface TraceRepository {
     // SharedQueryTexts are returned with either fullTrace or
     // truncatedText/truncatedEndText/fullTraceSha1
     @Nullable
-    Entries readEntries(String agentRollupId, String agentId, String traceId) throws Exception;
+    StoredEntries readEntries(String agentRollupId, String agentId, String traceId)
+            throws Exception;
 
     // null return value means trace not found or was found but had no entries (and therefore also
     // no queries)
@@ -64,7 +65,7 @@ public interface TraceRepository {
     // since this is only used by export, SharedQueryTexts are always returned with fullTrace
     // (never with truncatedText/truncatedEndText/fullTraceSha1)
     @Nullable
-    Entries readEntriesForExport(String agentRollupId, String agentId, String traceId)
+    StoredEntries readEntriesForExport(String agentRollupId, String agentId, String traceId)
             throws Exception;
 
     // null return value means trace not found or was found but had no main thread profile
@@ -112,6 +113,17 @@ public interface TraceRepository {
         long count();
     }
 
+    // the entries are read from storage as they are iterated over, instead of all being read into a
+    // list up front, so that the entries of a large trace are never all held in memory at once
+    //
+    // the entries iterator must be closed if it is not iterated to the end
+    @Value.Immutable
+    @Styles.AllParameters
+    interface StoredEntries {
+        CloseableIterator<Trace.Entry> entries();
+        List<Trace.SharedQueryText> sharedQueryTexts();
+    }
+
     @Value.Immutable
     @Styles.AllParameters
     interface HeaderPlus {
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+
+import com.google.common.collect.AbstractIterator;
+
+// iterator that reads from storage as it is advanced, close() must be called if it is abandoned
+// before reaching the end
+public abstract class CloseableIterator<T> extends AbstractIterator<T> implements Closeable {
+
+    public static <T> CloseableIterator<T> of(final Iterator<T> iterator) {
+        return new CloseableIterator<T>() {
+            @Override
+            protected T computeNext() {
+                return iterator.hasNext() ? iterator.next() : endOfData();
+            }
+        };
+    }
+
+    // returns true if the underlying storage has been overwritten before all of the elements could
+    // be read, in which case the iteration ends early
+    public boolean isOverwritten() {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {}
+}
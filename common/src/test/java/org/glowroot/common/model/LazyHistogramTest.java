@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2016 the original author or authors.
+ * Copyright 2015-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -24,6 +24,8 @@ import static org.assertj.core.api.Assertions.assertThat;
 
 public class LazyHistogramTest {
 
+    private static final int COMPACT_RELATIVE_ERROR_PERMILLE = 10;
+
     @Test
     public void shouldTestPercentiles() {
         // test smaller numbers in more detail since that is where laziness occurs
@@ -78,6 +80,92 @@ public class LazyHistogramTest {
         shouldDecodeOnTopOfExisting(100000000, 200000000);
     }
 
+    @Test
+    public void shouldTestCompactPercentiles() {
+        // test smaller numbers in more detail since that is where laziness occurs
+        for (int i = 0; i < 2000000; i += 10000) {
+            shouldTestCompactPercentiles(i);
+        }
+        shouldTestCompactPercentiles(10000000);
+        shouldTestCompactPercentiles(100000000);
+    }
+
+    @Test
+    public void shouldTestCompactEncodeDecode() throws Exception {
+        // test smaller numbers in more detail since that is where laziness occurs
+        for (int i = 0; i < 2000000; i += 10000) {
+            shouldTestCompactEncodeDecode(i);
+        }
+        shouldTestCompactEncodeDecode(10000000);
+        shouldTestCompactEncodeDecode(100000000);
+    }
+
+    @Test
+    public void shouldTestCompactDecodeOnTopOfExisting() throws Exception {
+        // test smaller numbers in more detail since that is where laziness occurs
+        for (int i = 0; i < 2000000; i += 10000) {
+            shouldCompactDecodeOnTopOfExisting(i, i);
+        }
+        shouldCompactDecodeOnTopOfExisting(10000000, 10000000);
+        shouldCompactDecodeOnTopOfExisting(100000000, 100000000);
+    }
+
+    @Test
+    public void shouldMergeHdrHistogramIntoCompact() throws Exception {
+        // given
+        LazyHistogram hdrHistogram = new LazyHistogram(0);
+        for (int i = 10000000; i > 0; i -= 1000) {
+            hdrHistogram.add(i);
+        }
+        LazyHistogram compactHistogram = new LazyHistogram(COMPACT_RELATIVE_ERROR_PERMILLE);
+        for (int i = 20000000; i > 10000000; i -= 1000) {
+            compactHistogram.add(i);
+        }
+        // when
+        hdrHistogram.merge(compactHistogram.toProto(new ScratchBuffer()));
+        compactHistogram.merge(hdrHistogram.toProto(new ScratchBuffer()));
+        // then
+        assertThat(hdrHistogram.toProto(new ScratchBuffer()).hasLogBucketHistogram()).isTrue();
+        assertCompactPercentile(hdrHistogram, 20000000, 50);
+        assertCompactPercentile(hdrHistogram, 20000000, 99);
+    }
+
+    @Test
+    public void shouldMergeDifferentCompactPrecisions() throws Exception {
+        // given
+        LazyHistogram lazyHistogram = new LazyHistogram(5);
+        for (int i = 10000000; i > 0; i -= 1000) {
+            lazyHistogram.add(i);
+        }
+        LazyHistogram otherLazyHistogram = new LazyHistogram(10);
+        for (int i = 20000000; i > 10000000; i -= 1000) {
+            otherLazyHistogram.add(i);
+        }
+        // when
+        lazyHistogram.merge(otherLazyHistogram.toProto(new ScratchBuffer()));
+        // then
+        assertThat(lazyHistogram.toProto(new ScratchBuffer()).getLogBucketHistogram()
+                .getRelativeErrorPermille()).isEqualTo(5);
+        assertCompactPercentile(lazyHistogram, 20000000, 50);
+        assertCompactPercentile(lazyHistogram, 20000000, 99);
+    }
+
+    @Test
+    public void shouldBeSmallerThanHdrHistogram() throws Exception {
+        // given
+        LazyHistogram hdrHistogram = new LazyHistogram(0);
+        LazyHistogram compactHistogram = new LazyHistogram(COMPACT_RELATIVE_ERROR_PERMILLE);
+        // when
+        for (int i = 100000000; i > 0; i -= 1000) {
+            hdrHistogram.add(i);
+            compactHistogram.add(i);
+        }
+        // then
+        int hdrSize = hdrHistogram.toProto(new ScratchBuffer()).getSerializedSize();
+        int compactSize = compactHistogram.toProto(new ScratchBuffer()).getSerializedSize();
+        assertThat(compactSize).isLessThan(hdrSize / 10);
+    }
+
     private void shouldTestPercentiles(int num) {
         // given
         LazyHistogram lazyHistogram = new LazyHistogram();
@@ -153,6 +241,69 @@ public class LazyHistogramTest {
         assertPercentile(lazyHistogram, encodedSize + nonEncodedSize, 99.99);
     }
 
+    private void shouldTestCompactPercentiles(int num) {
+        // given
+        LazyHistogram lazyHistogram = new LazyHistogram(COMPACT_RELATIVE_ERROR_PERMILLE);
+        // when
+        for (int i = num; i > 0; i -= 1000) {
+            lazyHistogram.add(i);
+        }
+        // then
+        assertCompactPercentile(lazyHistogram, num, 50);
+        assertCompactPercentile(lazyHistogram, num, 95);
+        assertCompactPercentile(lazyHistogram, num, 99);
+        assertCompactPercentile(lazyHistogram, num, 99.9);
+        assertCompactPercentile(lazyHistogram, num, 99.99);
+    }
+
+    private void shouldTestCompactEncodeDecode(int num) throws Exception {
+        // given
+        LazyHistogram lazyHistogram = new LazyHistogram(COMPACT_RELATIVE_ERROR_PERMILLE);
+        for (int i = num; i > 0; i -= 1000) {
+            lazyHistogram.add(i);
+        }
+        Aggregate.Histogram histogram = lazyHistogram.toProto(new ScratchBuffer());
+        // when
+        lazyHistogram = new LazyHistogram(histogram);
+        // then
+        assertCompactPercentile(lazyHistogram, num, 50);
+        assertCompactPercentile(lazyHistogram, num, 95);
+        assertCompactPercentile(lazyHistogram, num, 99);
+        assertCompactPercentile(lazyHistogram, num, 99.9);
+        assertCompactPercentile(lazyHistogram, num, 99.99);
+    }
+
+    private void shouldCompactDecodeOnTopOfExisting(int encodedSize, int nonEncodedSize)
+            throws Exception {
+        // given
+        LazyHistogram lazyHistogram = new LazyHistogram(COMPACT_RELATIVE_ERROR_PERMILLE);
+        for (int i = encodedSize; i > 0; i -= 1000) {
+            lazyHistogram.add(i);
+        }
+        Aggregate.Histogram histogram = lazyHistogram.toProto(new ScratchBuffer());
+        lazyHistogram = new LazyHistogram(COMPACT_RELATIVE_ERROR_PERMILLE);
+        // when
+        for (int i = nonEncodedSize + encodedSize; i > encodedSize; i -= 1000) {
+            lazyHistogram.add(i);
+        }
+        lazyHistogram.merge(histogram);
+        // then
+        assertCompactPercentile(lazyHistogram, encodedSize + nonEncodedSize, 50);
+        assertCompactPercentile(lazyHistogram, encodedSize + nonEncodedSize, 95);
+        assertCompactPercentile(lazyHistogram, encodedSize + nonEncodedSize, 99);
+        assertCompactPercentile(lazyHistogram, encodedSize + nonEncodedSize, 99.9);
+        assertCompactPercentile(lazyHistogram, encodedSize + nonEncodedSize, 99.99);
+    }
+
+    // compact histograms have bounded relative error, but that is on top of the slight skew already
+    // accounted for in assertPercentile(), and is compounded when re-bucketing
+    private void assertCompactPercentile(LazyHistogram lazyHistogram, int num,
+            double percentile) {
+        long low = (long) Math.floor(num * percentile * 0.98 / (100 * 1000)) * 1000;
+        long high = (long) Math.ceil(num * percentile * 1.02 / (100 * 1000)) * 1000;
+        assertThat(lazyHistogram.getValueAtPercentile(percentile)).isBetween(low, high);
+    }
+
     private void assertPercentile(LazyHistogram lazyHistogram, int num, double percentile) {
         long low = (long) Math.floor(num * percentile * 0.99 / (100 * 1000)) * 1000;
         long high = (long) Math.ceil(num * percentile * 1.01 / (100 * 1000)) * 1000;
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2016 the original author or authors.
+ * Copyright 2015-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -23,6 +23,7 @@ import com.fasterxml.jackson.core.util.DefaultIndenter;
 import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.io.CharStreams;
 import org.junit.Test;
@@ -164,6 +165,108 @@ public class MutableProfileTest {
                 + "}").replace(" ", ""));
     }
 
+    @Test
+    public void testMergingProto() throws IOException {
+        // given
+        MutableProfile profile = new MutableProfile();
+        profile.merge(createStackTrace("main"), Thread.State.RUNNABLE);
+        profile.merge(createStackTrace("main2"), Thread.State.RUNNABLE);
+        profile.merge(createStackTrace("main"), Thread.State.BLOCKED);
+        // when
+        MutableProfile mergedProfile = new MutableProfile();
+        mergedProfile.merge(profile.toProto());
+        mergedProfile.merge(profile.toProto());
+        // then
+        assertThat(mergedProfile.getSampleCount()).isEqualTo(6);
+        MutableProfile expectedProfile = new MutableProfile();
+        for (int i = 0; i < 2; i++) {
+            expectedProfile.merge(createStackTrace("main"), Thread.State.RUNNABLE);
+            expectedProfile.merge(createStackTrace("main2"), Thread.State.RUNNABLE);
+            expectedProfile.merge(createStackTrace("main"), Thread.State.BLOCKED);
+        }
+        assertThat(mergedProfile.toJson()).isEqualTo(expectedProfile.toJson());
+        assertThat(mergedProfile.toProto()).isEqualTo(expectedProfile.toProto());
+    }
+
+    @Test
+    public void testFilter() throws IOException {
+        // given
+        MutableProfile profile = new MutableProfile();
+        profile.merge(createStackTrace("main"), Thread.State.RUNNABLE);
+        profile.merge(createStackTrace("main2"), Thread.State.RUNNABLE);
+        profile.merge(createStackTrace("main"), Thread.State.BLOCKED);
+        // when
+        profile.filter(ImmutableList.of("zz.Main.main("), ImmutableList.of("blocked"));
+        // then
+        assertThat(profile.getUnfilteredSampleCount()).isEqualTo(3);
+        assertThat(profile.toJson()).isEqualTo(("{"
+                + "  \"unfilteredSampleCount\": 3,"
+                + "  \"rootNodes\": ["
+                + "    {"
+                + "      \"stackTraceElement\": \"xx.yy.zz.Main.main(Main.java:789)\","
+                + "      \"sampleCount\": 1,"
+                + "      \"childNodes\": ["
+                + "        {"
+                + "          \"stackTraceElement\": \"aa.bb.cc.Def.ghi(Def.java:456)\","
+                + "          \"sampleCount\": 1,"
+                + "          \"childNodes\": ["
+                + "            {"
+                + "              \"stackTraceElement\": \"aa.bb.cc.Def.ghi(Def.java:123)\","
+                + "              \"leafThreadState\": \"RUNNABLE\","
+                + "              \"sampleCount\": 1"
+                + "            }"
+                + "          ]"
+                + "        }"
+                + "      ]"
+                + "    }"
+                + "  ]"
+                + "}").replace(" ", ""));
+    }
+
+    @Test
+    public void testTruncateBranches() throws IOException {
+        // given
+        MutableProfile profile = new MutableProfile();
+        profile.merge(createStackTrace("main"), Thread.State.RUNNABLE);
+        profile.merge(createStackTrace("main"), Thread.State.RUNNABLE);
+        profile.merge(createStackTrace("main"), Thread.State.BLOCKED);
+        // when
+        profile.truncateBranches(2);
+        // then
+        assertThat(profile.toJson()).isEqualTo(("{"
+                + "  \"unfilteredSampleCount\": 3,"
+                + "  \"rootNodes\": ["
+                + "    {"
+                + "      \"stackTraceElement\": \"xx.yy.zz.Main.main(Main.java:789)\","
+                + "      \"sampleCount\": 3,"
+                + "      \"childNodes\": ["
+                + "        {"
+                + "          \"stackTraceElement\": \"aa.bb.cc.Def.ghi(Def.java:456)\","
+                + "          \"sampleCount\": 3,"
+                + "          \"ellipsedSampleCount\": 1,"
+                + "          \"childNodes\": ["
+                + "            {"
+                + "              \"stackTraceElement\": \"aa.bb.cc.Def.ghi(Def.java:123)\","
+                + "              \"leafThreadState\": \"RUNNABLE\","
+                + "              \"sampleCount\": 2"
+                + "            }"
+                + "          ]"
+                + "        }"
+                + "      ]"
+                + "    }"
+                + "  ]"
+                + "}").replace(" ", ""));
+    }
+
+    private static List<StackTraceElement> createStackTrace(String mainMethodName) {
+        List<StackTraceElement> stackTraceElements = Lists.newArrayList();
+        stackTraceElements.add(new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", 123));
+        stackTraceElements.add(new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", 456));
+        stackTraceElements
+                .add(new StackTraceElement("xx.yy.zz.Main", mainMethodName, "Main.java", 789));
+        return stackTraceElements;
+    }
+
     // this is helpful when building tests
     @SuppressWarnings("unused")
     private static void prettyPrint(String json) throws IOException {
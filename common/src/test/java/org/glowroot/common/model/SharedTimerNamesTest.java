@@ -0,0 +1,73 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import org.junit.Test;
+
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SharedTimerNamesTest {
+
+    @Test
+    public void shouldRoundTrip() {
+        // given
+        Aggregate aggregate1 = Aggregate.newBuilder()
+                .setTransactionCount(1)
+                .addMainThreadRootTimer(timer("http request")
+                        .addChildTimer(timer("jdbc query"))
+                        .addChildTimer(timer("jdbc commit")))
+                .addAuxThreadRootTimer(timer("auxiliary thread")
+                        .addChildTimer(timer("jdbc query")))
+                .addAsyncTimer(timer("http client request"))
+                .build();
+        Aggregate aggregate2 = Aggregate.newBuilder()
+                .setTransactionCount(2)
+                .addMainThreadRootTimer(timer("http request")
+                        .addChildTimer(timer("jdbc query")
+                                .addChildTimer(timer("jdbc get connection"))))
+                .build();
+        SharedTimerNames.Encoder encoder = new SharedTimerNames.Encoder();
+        SharedTimerNames.Decoder decoder = new SharedTimerNames.Decoder();
+        // when
+        Aggregate encodedAggregate1 = encoder.encode(aggregate1);
+        assertThat(encoder.getNewTimerNames()).containsExactly("http request", "jdbc query",
+                "jdbc commit", "auxiliary thread", "http client request");
+        for (String timerName : encoder.getNewTimerNames()) {
+            decoder.addTimerName(timerName);
+        }
+        Aggregate encodedAggregate2 = encoder.encode(aggregate2);
+        // only names not already sent in the stream
+        assertThat(encoder.getNewTimerNames()).containsExactly("jdbc get connection");
+        for (String timerName : encoder.getNewTimerNames()) {
+            decoder.addTimerName(timerName);
+        }
+        // then
+        assertThat(encodedAggregate1.getMainThreadRootTimer(0).getName()).isEmpty();
+        assertThat(encodedAggregate1.getSerializedSize())
+                .isLessThan(aggregate1.getSerializedSize());
+        assertThat(decoder.decode(encodedAggregate1)).isEqualTo(aggregate1);
+        assertThat(decoder.decode(encodedAggregate2)).isEqualTo(aggregate2);
+    }
+
+    private static Aggregate.Timer.Builder timer(String name) {
+        return Aggregate.Timer.newBuilder()
+                .setName(name)
+                .setTotalNanos(1000)
+                .setCount(1);
+    }
+}
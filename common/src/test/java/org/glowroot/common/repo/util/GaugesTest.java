@@ -1,5 +1,5 @@
 /*
- * Copyright 2016 the original author or authors.
+ * Copyright 2016-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -29,4 +29,12 @@ public class GaugesTest {
                 + ":CollectionTime[counter]");
         assertThat(gauge.unit()).isEqualTo("milliseconds per second");
     }
+
+    @Test
+    public void shouldHaveAgentOverheadUnits() {
+        assertThat(Gauges.getGauge("org.glowroot:type=AgentOverhead:EstimatedOverheadPercent")
+                .unit()).isEqualTo("percent");
+        assertThat(Gauges.getGauge("org.glowroot:type=AgentOverhead:WeavingTimeMillis[counter]")
+                .unit()).isEqualTo("milliseconds per second");
+    }
 }
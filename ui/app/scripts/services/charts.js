@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2017 the original author or authors.
+ * Copyright 2015-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -26,6 +26,10 @@ glowroot.factory('charts', [
   'httpErrors',
   function ($http, $rootScope, $timeout, keyedColorPools, queryStrings, httpErrors) {
 
+    // compact data series format is little endian so that it can be decoded directly into typed arrays
+    var compactDataSupported = window.atob && window.Float64Array
+        && new Uint8Array(new Int32Array([1]).buffer)[0] === 1;
+
     function createState() {
       return {
         plot: undefined,
@@ -281,6 +285,9 @@ glowroot.factory('charts', [
       if (autoRefresh) {
         query.autoRefresh = true;
       }
+      if (compactDataSupported) {
+        query.compact = true;
+      }
       if (addToQuery) {
         addToQuery(query);
       }
@@ -301,6 +308,12 @@ glowroot.factory('charts', [
               return;
             }
             var data = response.data;
+            angular.forEach(data.dataSeries, function (dataSeries) {
+              if (dataSeries.compactData) {
+                dataSeries.data = decodeCompactData(dataSeries.compactData);
+                delete dataSeries.compactData;
+              }
+            });
             $scope.chartNoData = !data.dataSeries.length;
             // allow callback to modify data if desired
             onRefreshData(data);
@@ -365,6 +378,30 @@ glowroot.factory('charts', [
           });
     }
 
+    // see DataSeries.java for the compact data format
+    function decodeCompactData(compactData) {
+      var binary = window.atob(compactData);
+      var bytes = new Uint8Array(binary.length);
+      var i;
+      for (i = 0; i < binary.length; i++) {
+        bytes[i] = binary.charCodeAt(i);
+      }
+      var pointCount = new Int32Array(bytes.buffer, 0, 1)[0];
+      var captureTime = new Float64Array(bytes.buffer, 8, 1)[0];
+      var values = new Float64Array(bytes.buffer, 16, pointCount);
+      var captureTimeDeltas = new Int32Array(bytes.buffer, 16 + 8 * pointCount, pointCount);
+      var points = new Array(pointCount);
+      for (i = 0; i < pointCount; i++) {
+        if (isNaN(values[i])) {
+          points[i] = null;
+        } else {
+          captureTime += captureTimeDeltas[i];
+          points[i] = [captureTime, values[i]];
+        }
+      }
+      return points;
+    }
+
     function updateLegend(chartState, $scope) {
       var plotData = chartState.plot.getData();
       $scope.seriesLabels = [];
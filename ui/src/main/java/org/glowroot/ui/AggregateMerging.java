@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2017 the original author or authors.
+ * Copyright 2015-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -19,6 +19,7 @@ import java.util.List;
 
 import javax.annotation.Nullable;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Lists;
 import org.immutables.value.Value;
 
@@ -28,11 +29,14 @@ import org.glowroot.common.repo.MutableTimer;
 import org.glowroot.common.util.Styles;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 
-class AggregateMerging {
+// public (along with getMergedAggregate() and MergedAggregate) only so that it can be benchmarked
+// from the benchmarks module (see AggregateMergingBenchmark)
+public class AggregateMerging {
 
     private AggregateMerging() {}
 
-    static MergedAggregate getMergedAggregate(List<OverviewAggregate> overviewAggregates) {
+    @VisibleForTesting
+    public static MergedAggregate getMergedAggregate(List<OverviewAggregate> overviewAggregates) {
         long transactionCount = 0;
         List<MutableTimer> mainThreadRootTimers = Lists.newArrayList();
         List<MutableTimer> auxThreadRootTimers = Lists.newArrayList();
@@ -83,7 +87,7 @@ class AggregateMerging {
     }
 
     @Value.Immutable
-    interface MergedAggregate {
+    public interface MergedAggregate {
         long transactionCount();
         List<MutableTimer> mainThreadRootTimers();
         List<MutableTimer> auxThreadRootTimers();
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2017 the original author or authors.
+ * Copyright 2015-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,6 +15,7 @@
  */
 package org.glowroot.ui;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.Writer;
@@ -56,7 +57,9 @@ public abstract class ChunkSource {
         };
     }
 
-    public interface ChunkCopier {
+    // close() is called once the response is complete, and also if the client disconnects before
+    // the response is complete
+    public interface ChunkCopier extends Closeable {
 
         // returns false when nothing left to copy
         boolean copyNext() throws IOException;
@@ -86,6 +89,11 @@ public abstract class ChunkSource {
             return true;
         }
 
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+
         private static int readFully(Reader reader, char[] buffer) throws IOException {
             int total = 0;
             while (true) {
@@ -126,6 +134,7 @@ public abstract class ChunkSource {
             if (currChunkCopier.copyNext()) {
                 return true;
             }
+            currChunkCopier.close();
             if (!chunkSources.hasNext()) {
                 return false;
             }
@@ -133,6 +142,14 @@ public abstract class ChunkSource {
             currChunkCopier = chunkSources.next().getCopier(writer);
             return copyNext();
         }
+
+        @Override
+        public void close() throws IOException {
+            ChunkCopier currChunkCopier = this.currChunkCopier;
+            if (currChunkCopier != null) {
+                currChunkCopier.close();
+            }
+        }
     }
 
     private static class StringChunkCopier implements ChunkCopier {
@@ -156,5 +173,8 @@ public abstract class ChunkSource {
             closed = true;
             return true;
         }
+
+        @Override
+        public void close() {}
     }
 }
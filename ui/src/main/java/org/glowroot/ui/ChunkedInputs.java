@@ -1,5 +1,5 @@
 /*
- * Copyright 2013-2016 the original author or authors.
+ * Copyright 2013-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -77,9 +77,6 @@ class ChunkedInputs {
             return hasSentTerminatingChunk;
         }
 
-        @Override
-        public void close() throws IOException {}
-
         @Override
         public long length() {
             // negative value means unknown
@@ -132,6 +129,12 @@ class ChunkedInputs {
             closed = true;
             return null;
         }
+
+        @Override
+        public void close() throws IOException {
+            // also called when the client disconnects before the response is complete
+            chunkCopier.close();
+        }
     }
 
     private static class ZipFileChunkedInput extends BaseChunkedInput {
@@ -179,5 +182,10 @@ class ChunkedInputs {
                 }
             }
         }
+
+        @Override
+        public void close() throws IOException {
+            chunkCopier.close();
+        }
     }
 }
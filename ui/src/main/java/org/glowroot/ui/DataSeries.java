@@ -1,5 +1,5 @@
 /*
- * Copyright 2014-2017 the original author or authors.
+ * Copyright 2014-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,11 +15,16 @@
  */
 package org.glowroot.ui;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.List;
 
 import javax.annotation.Nullable;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Lists;
 
 class DataSeries {
@@ -52,4 +57,73 @@ class DataSeries {
     public void setOverall(double overall) {
         this.overall = overall;
     }
+
+    // compact format is a columnar alternative to the array of [captureTime, value] arrays, which
+    // for long time ranges across many data series is expensive to serialize with jackson and
+    // expensive to parse in the browser
+    //
+    // each data series is written with its data encoded (base64) as little endian:
+    // int32 point count, int32 padding (so that the float64 columns are 8-byte aligned),
+    // float64 base capture time, float64[] values (NaN for null), int32[] capture time deltas
+    // (from the prior non-null point, 0 for null)
+    static void writeDataSeries(JsonGenerator jg, List<DataSeries> dataSeriesList,
+            boolean compact) throws IOException {
+        if (!compact) {
+            jg.writeObjectField("dataSeries", dataSeriesList);
+            return;
+        }
+        jg.writeArrayFieldStart("dataSeries");
+        for (DataSeries dataSeries : dataSeriesList) {
+            byte[] compactData = dataSeries.toCompactData();
+            if (compactData == null) {
+                // capture time delta does not fit in int32
+                jg.writeObject(dataSeries);
+                continue;
+            }
+            jg.writeStartObject();
+            jg.writeStringField("name", dataSeries.name);
+            jg.writeBinaryField("compactData", compactData);
+            if (dataSeries.overall != null) {
+                jg.writeNumberField("overall", dataSeries.overall);
+            }
+            jg.writeEndObject();
+        }
+        jg.writeEndArray();
+    }
+
+    // returns null if a capture time delta does not fit in int32
+    @VisibleForTesting
+    byte /*@Nullable*/ [] toCompactData() {
+        int pointCount = data.size();
+        ByteBuffer buffer = ByteBuffer.allocate(16 + pointCount * 12)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(pointCount);
+        buffer.putInt(0);
+        long baseCaptureTime = 0;
+        for (Number /*@Nullable*/ [] point : data) {
+            if (point != null) {
+                baseCaptureTime = point[0].longValue();
+                break;
+            }
+        }
+        buffer.putDouble(baseCaptureTime);
+        for (Number /*@Nullable*/ [] point : data) {
+            buffer.putDouble(point == null ? Double.NaN : point[1].doubleValue());
+        }
+        long priorCaptureTime = baseCaptureTime;
+        for (Number /*@Nullable*/ [] point : data) {
+            if (point == null) {
+                buffer.putInt(0);
+                continue;
+            }
+            long captureTime = point[0].longValue();
+            long delta = captureTime - priorCaptureTime;
+            if (delta != (int) delta) {
+                return null;
+            }
+            buffer.putInt((int) delta);
+            priorCaptureTime = captureTime;
+        }
+        return buffer.array();
+    }
 }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2013-2017 the original author or authors.
+ * Copyright 2013-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -96,7 +96,7 @@ class GaugeValueJsonService {
         JsonGenerator jg = mapper.getFactory().createGenerator(CharStreams.asWriter(sb));
         try {
             jg.writeStartObject();
-            jg.writeObjectField("dataSeries", dataSeriesList);
+            DataSeries.writeDataSeries(jg, dataSeriesList, request.compact());
             jg.writeEndObject();
         } finally {
             jg.close();
@@ -245,11 +245,16 @@ class GaugeValueJsonService {
     }
 
     @Value.Immutable
-    interface GaugeValueRequest {
-        long from();
-        long to();
+    abstract static class GaugeValueRequest {
+        abstract long from();
+        abstract long to();
         // singular because this is used in query string
-        ImmutableList<String> gaugeName();
+        abstract ImmutableList<String> gaugeName();
+        // compact data series format (see DataSeries.writeDataSeries())
+        @Value.Default
+        boolean compact() {
+            return false;
+        }
     }
 
     @Value.Immutable
@@ -1,5 +1,5 @@
 /*
- * Copyright 2013-2017 the original author or authors.
+ * Copyright 2013-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -24,6 +24,8 @@ import javax.annotation.Nullable;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
@@ -34,6 +36,7 @@ import org.immutables.value.Value;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.glowroot.common.config.RoleConfig;
 import org.glowroot.common.repo.AgentRollupRepository;
 import org.glowroot.common.repo.AgentRollupRepository.AgentRollup;
 import org.glowroot.common.repo.ConfigRepository;
@@ -64,6 +67,16 @@ class LayoutService {
     private final TransactionTypeRepository transactionTypeRepository;
     private final TraceAttributeNameRepository traceAttributeNameRepository;
 
+    // central layouts are cached per combination of roles (and the other authentication attributes
+    // that the layout depends on), since with many agents and many users on auto-refresh, building
+    // the layout just to compute its version is expensive
+    //
+    // a cached layout is only used while the inputs that it was built from are unchanged, which is
+    // checked by identity since these inputs are all served from central's cluster-wide caches,
+    // which are invalidated (on all central nodes) when agents, configs or roles are changed
+    private final Cache<LayoutCacheKey, CachedLayout> centralLayoutCache =
+            CacheBuilder.newBuilder().maximumSize(1000).build();
+
     LayoutService(boolean central, boolean offline, String version,
             ConfigRepository configRepository, AgentRollupRepository agentRollupRepository,
             TransactionTypeRepository transactionTypeRepository,
@@ -146,13 +159,55 @@ class LayoutService {
     }
 
     private Layout buildLayoutCentral(Authentication authentication) throws Exception {
-        List<FilteredAgentRollup> agentRollups =
-                filter(agentRollupRepository.readAgentRollups(), authentication);
-        CentralLayoutBuilder centralLayoutBuilder = new CentralLayoutBuilder(authentication);
+        CentralLayoutInputs inputs = readCentralLayoutInputs();
+        LayoutCacheKey cacheKey = ImmutableLayoutCacheKey.builder()
+                .offline(authentication.offline())
+                .anonymous(authentication.anonymous())
+                .ldap(authentication.ldap())
+                .roles(authentication.roles())
+                .build();
+        CachedLayout cachedLayout = centralLayoutCache.getIfPresent(cacheKey);
+        if (cachedLayout != null && isStillValid(cachedLayout, inputs)) {
+            return cachedLayout.layout;
+        }
+        List<FilteredAgentRollup> agentRollups = filter(inputs.agentRollups, authentication);
+        CentralLayoutBuilder centralLayoutBuilder =
+                new CentralLayoutBuilder(authentication, inputs);
         for (FilteredAgentRollup agentRollup : agentRollups) {
             centralLayoutBuilder.process(agentRollup, 0);
         }
-        return centralLayoutBuilder.build(authentication);
+        Layout layout = centralLayoutBuilder.build(authentication);
+        if (centralLayoutBuilder.cacheable) {
+            centralLayoutCache.put(cacheKey,
+                    new CachedLayout(layout, inputs, centralLayoutBuilder.uiConfigs));
+        }
+        return layout;
+    }
+
+    private CentralLayoutInputs readCentralLayoutInputs() throws Exception {
+        return new CentralLayoutInputs(agentRollupRepository.readAgentRollupTree(),
+                transactionTypeRepository.read(), traceAttributeNameRepository.read(),
+                configRepository.getRoleConfigs(), isLoginEnabled(),
+                configRepository.getStorageConfig().rollupExpirationHours());
+    }
+
+    private boolean isStillValid(CachedLayout cachedLayout, CentralLayoutInputs inputs)
+            throws Exception {
+        if (!cachedLayout.inputs.isSameAs(inputs)) {
+            return false;
+        }
+        for (Map.Entry<String, UiConfig> entry : cachedLayout.uiConfigs.entrySet()) {
+            UiConfig uiConfig;
+            try {
+                uiConfig = configRepository.getUiConfig(entry.getKey());
+            } catch (AgentConfigNotFoundException e) {
+                return false;
+            }
+            if (uiConfig != entry.getValue()) {
+                return false;
+            }
+        }
+        return true;
     }
 
     private ImmutableLayout createNoAccessLayout(Authentication authentication) {
@@ -193,9 +248,7 @@ class LayoutService {
                 .offline(offline)
                 .glowrootVersion(version)
                 .embeddedAgentDisplayName(getEmbeddedAgentDisplayName())
-                .loginEnabled(offline ? false
-                        : configRepository.namedUsersExist()
-                                || !configRepository.getLdapConfig().host().isEmpty())
+                .loginEnabled(isLoginEnabled())
                 .addAllRollupConfigs(configRepository.getRollupConfigs())
                 .addAllRollupExpirationMillis(rollupExpirationMillis)
                 .gaugeCollectionIntervalMillis(configRepository.getGaugeCollectionIntervalMillis())
@@ -217,6 +270,12 @@ class LayoutService {
                 .build();
     }
 
+    private boolean isLoginEnabled() throws Exception {
+        return offline ? false
+                : configRepository.namedUsersExist()
+                        || !configRepository.getLdapConfig().host().isEmpty();
+    }
+
     private @Nullable String getEmbeddedAgentDisplayName() {
         if (central) {
             return null;
@@ -343,6 +402,11 @@ class LayoutService {
         private final Map<String, List<String>> transactionTypesMap;
         private final Map<String, Map<String, List<String>>> traceAttributeNamesMap;
 
+        // these are the ui configs that the layout was built from, which are needed to check
+        // whether a cached layout is still valid
+        private final Map<String, UiConfig> uiConfigs = Maps.newHashMap();
+        private boolean cacheable = true;
+
         private boolean hasSomeAccess = false;
         private boolean showNavbarTransaction = false;
         private boolean showNavbarError = false;
@@ -352,9 +416,10 @@ class LayoutService {
         private boolean showNavbarReport = false;
         private boolean showNavbarConfig = false;
 
-        private CentralLayoutBuilder(Authentication authentication) throws Exception {
-            transactionTypesMap = transactionTypeRepository.read();
-            traceAttributeNamesMap = traceAttributeNameRepository.read();
+        private CentralLayoutBuilder(Authentication authentication, CentralLayoutInputs inputs)
+                throws Exception {
+            transactionTypesMap = inputs.transactionTypes;
+            traceAttributeNamesMap = inputs.traceAttributeNames;
             // "*" is to check permissions for "all agents"
             Permissions permissions = getPermissions(authentication, "*", true);
             hasSomeAccess =
@@ -379,8 +444,10 @@ class LayoutService {
             } catch (AgentConfigNotFoundException e) {
                 // this shouldn't happen anymore, but just in case, don't want to kill entire ui
                 logger.error(e.getMessage(), e);
+                cacheable = false;
                 return;
             }
+            uiConfigs.put(agentRollup.id(), uiConfig);
             Permissions permissions = agentRollup.permissions();
             hasSomeAccess = true;
             showNavbarTransaction =
@@ -436,6 +503,60 @@ class LayoutService {
         }
     }
 
+    @Value.Immutable
+    interface LayoutCacheKey {
+        boolean offline();
+        boolean anonymous();
+        boolean ldap();
+        Set<String> roles();
+    }
+
+    private static class CentralLayoutInputs {
+
+        private final List<AgentRollup> agentRollups;
+        private final Map<String, List<String>> transactionTypes;
+        private final Map<String, Map<String, List<String>>> traceAttributeNames;
+        private final List<RoleConfig> roleConfigs;
+        private final boolean loginEnabled;
+        private final List<Integer> rollupExpirationHours;
+
+        private CentralLayoutInputs(List<AgentRollup> agentRollups,
+                Map<String, List<String>> transactionTypes,
+                Map<String, Map<String, List<String>>> traceAttributeNames,
+                List<RoleConfig> roleConfigs, boolean loginEnabled,
+                List<Integer> rollupExpirationHours) {
+            this.agentRollups = agentRollups;
+            this.transactionTypes = transactionTypes;
+            this.traceAttributeNames = traceAttributeNames;
+            this.roleConfigs = roleConfigs;
+            this.loginEnabled = loginEnabled;
+            this.rollupExpirationHours = rollupExpirationHours;
+        }
+
+        private boolean isSameAs(CentralLayoutInputs other) {
+            return agentRollups == other.agentRollups
+                    && transactionTypes == other.transactionTypes
+                    && traceAttributeNames == other.traceAttributeNames
+                    && roleConfigs == other.roleConfigs
+                    && loginEnabled == other.loginEnabled
+                    && rollupExpirationHours.equals(other.rollupExpirationHours);
+        }
+    }
+
+    private static class CachedLayout {
+
+        private final Layout layout;
+        private final CentralLayoutInputs inputs;
+        private final Map<String, UiConfig> uiConfigs;
+
+        private CachedLayout(Layout layout, CentralLayoutInputs inputs,
+                Map<String, UiConfig> uiConfigs) {
+            this.layout = layout;
+            this.inputs = inputs;
+            this.uiConfigs = uiConfigs;
+        }
+    }
+
     @Value.Immutable
     interface FilteredAgentRollup {
         String id();
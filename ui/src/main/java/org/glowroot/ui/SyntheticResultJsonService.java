@@ -1,5 +1,5 @@
 /*
- * Copyright 2013-2017 the original author or authors.
+ * Copyright 2013-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -122,7 +122,7 @@ class SyntheticResultJsonService {
         JsonGenerator jg = mapper.getFactory().createGenerator(CharStreams.asWriter(sb));
         try {
             jg.writeStartObject();
-            jg.writeObjectField("dataSeries", dataSeriesList);
+            DataSeries.writeDataSeries(jg, dataSeriesList, request.compact());
             jg.writeObjectField("executionCounts", executionCountsList);
             jg.writeObjectField("markings", markings);
             jg.writeEndObject();
@@ -326,11 +326,16 @@ class SyntheticResultJsonService {
     }
 
     @Value.Immutable
-    interface SyntheticResultRequest {
-        long from();
-        long to();
+    abstract static class SyntheticResultRequest {
+        abstract long from();
+        abstract long to();
         // singular because this is used in query string
-        ImmutableList<String> syntheticMonitorId();
+        abstract ImmutableList<String> syntheticMonitorId();
+        // compact data series format (see DataSeries.writeDataSeries())
+        @Value.Default
+        boolean compact() {
+            return false;
+        }
     }
 
     private static class SyntheticMonitorOrdering extends Ordering<SyntheticMonitor> {
@@ -1,5 +1,5 @@
 /*
- * Copyright 2012-2017 the original author or authors.
+ * Copyright 2012-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -16,6 +16,7 @@
 package org.glowroot.ui;
 
 import java.io.IOException;
+import java.io.Writer;
 import java.text.SimpleDateFormat;
 import java.util.List;
 import java.util.Locale;
@@ -25,7 +26,6 @@ import javax.annotation.Nullable;
 
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
-import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.PeekingIterator;
 import com.google.common.io.CharStreams;
@@ -39,7 +39,10 @@ import org.glowroot.common.model.MutableProfile;
 import org.glowroot.common.repo.AgentRollupRepository;
 import org.glowroot.common.repo.TraceRepository;
 import org.glowroot.common.repo.TraceRepository.HeaderPlus;
+import org.glowroot.common.repo.TraceRepository.StoredEntries;
+import org.glowroot.common.util.CloseableIterator;
 import org.glowroot.common.util.Styles;
+import org.glowroot.ui.ChunkSource.ChunkCopier;
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 import org.glowroot.wire.api.model.Proto;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
@@ -48,6 +51,11 @@ class TraceCommonService {
 
     private static final JsonFactory jsonFactory = new JsonFactory();
 
+    // number of entries serialized per chunk when streaming entries json, so that the full json
+    // text for large traces is never held in memory, and so that the netty ChunkedWriteHandler
+    // only pulls the next chunk once the previous chunk has been written to the channel
+    private static final int ENTRIES_PER_CHUNK = 100;
+
     private final TraceRepository traceRepository;
     private final LiveTraceRepository liveTraceRepository;
     private final AgentRollupRepository agentRollupRepository;
@@ -85,11 +93,10 @@ class TraceCommonService {
         return toJsonRepoHeader(agentId, header);
     }
 
-    // TODO this comment is no longer valid?
-    // overwritten entries will return {"overwritten":true}
+    // entries overwritten while streaming will return {"entries":[...],"overwritten":true}
     // expired (not found) trace will return {"expired":true}
     @Nullable
-    String getEntriesJson(String agentRollupId, String agentId, String traceId,
+    ChunkSource getEntries(String agentRollupId, String agentId, String traceId,
             boolean checkLiveTraces) throws Exception {
         if (checkLiveTraces) {
             // check active/pending traces first, and lastly stored traces to make sure that the
@@ -103,11 +110,16 @@ class TraceCommonService {
                 entries = null;
             }
             if (entries != null) {
-                return toJson(entries);
+                return new EntriesChunkSource(CloseableIterator.of(entries.entries().iterator()),
+                        entries.sharedQueryTexts());
             }
         }
-        return toJson(getStoredEntries(agentRollupId, agentId, traceId,
-                new RetryCountdown(checkLiveTraces)));
+        StoredEntries entries = getStoredEntries(agentRollupId, agentId, traceId,
+                new RetryCountdown(checkLiveTraces));
+        if (entries == null) {
+            return null;
+        }
+        return new EntriesChunkSource(entries.entries(), entries.sharedQueryTexts());
     }
 
     // overwritten profile will return {"overwritten":true}
@@ -177,7 +189,8 @@ class TraceCommonService {
                 return ImmutableTraceExport.builder()
                         .fileName(getFileName(header))
                         .headerJson(toJsonLiveHeader(agentId, header))
-                        .entriesJson(entriesToJson(trace.getEntryList()))
+                        .entriesJson(entriesToChunkSource(
+                                CloseableIterator.of(trace.getEntryList().iterator())))
                         // SharedQueryTexts are always returned from getFullTrace() above with
                         // fullTrace, so no need to resolve fullTraceSha1
                         .sharedQueryTextsJson(
@@ -195,10 +208,10 @@ class TraceCommonService {
         ImmutableTraceExport.Builder builder = ImmutableTraceExport.builder()
                 .fileName(getFileName(header.header()))
                 .headerJson(toJsonRepoHeader(agentId, header));
-        Entries entries =
+        StoredEntries entries =
                 getStoredEntriesForExport(agentRollupId, agentId, traceId, retryCountdown);
         if (entries != null) {
-            builder.entriesJson(entriesToJson(entries.entries()));
+            builder.entriesJson(entriesToChunkSource(entries.entries()));
             // SharedQueryTexts are always returned from getStoredEntries() above with fullTrace,
             // so no need to resolve fullTraceSha1
             builder.sharedQueryTextsJson(sharedQueryTextsToJson(entries.sharedQueryTexts()));
@@ -222,9 +235,9 @@ class TraceCommonService {
         return headerPlus;
     }
 
-    private @Nullable Entries getStoredEntries(String agentRollupId, String agentId, String traceId,
-            RetryCountdown retryCountdown) throws Exception {
-        Entries entries = traceRepository.readEntries(agentRollupId, agentId, traceId);
+    private @Nullable StoredEntries getStoredEntries(String agentRollupId, String agentId,
+            String traceId, RetryCountdown retryCountdown) throws Exception {
+        StoredEntries entries = traceRepository.readEntries(agentRollupId, agentId, traceId);
         while (entries == null && retryCountdown.remaining-- > 0) {
             // trace may be completed, but still in transit from agent to the central collector
             Thread.sleep(500);
@@ -233,9 +246,10 @@ class TraceCommonService {
         return entries;
     }
 
-    private @Nullable Entries getStoredEntriesForExport(String agentRollupId, String agentId,
-            String traceId, RetryCountdown retryCountdown) throws Exception {
-        Entries entries = traceRepository.readEntriesForExport(agentRollupId, agentId, traceId);
+    private @Nullable StoredEntries getStoredEntriesForExport(String agentRollupId,
+            String agentId, String traceId, RetryCountdown retryCountdown) throws Exception {
+        StoredEntries entries =
+                traceRepository.readEntriesForExport(agentRollupId, agentId, traceId);
         while (entries == null && retryCountdown.remaining-- > 0) {
             // trace may be completed, but still in transit from agent to the central collector
             Thread.sleep(500);
@@ -266,38 +280,13 @@ class TraceCommonService {
         return profile;
     }
 
-    private static @Nullable String toJson(@Nullable Entries entries) throws IOException {
-        if (entries == null) {
-            return null;
-        }
-        StringBuilder sb = new StringBuilder();
-        JsonGenerator jg = jsonFactory.createGenerator(CharStreams.asWriter(sb));
-        try {
-            jg.writeStartObject();
-            jg.writeFieldName("entries");
-            writeEntries(jg, entries.entries());
-            jg.writeFieldName("sharedQueryTexts");
-            writeSharedQueryTexts(jg, entries.sharedQueryTexts());
-            jg.writeEndObject();
-        } finally {
-            jg.close();
-        }
-        return sb.toString();
-    }
-
-    @VisibleForTesting
-    static @Nullable String entriesToJson(List<Trace.Entry> entries) throws IOException {
-        if (entries.isEmpty()) {
+    // streams the entries json array, serializing ENTRIES_PER_CHUNK entries at a time, and only
+    // pulling the next entries from the iterator as each chunk is written
+    static @Nullable ChunkSource entriesToChunkSource(CloseableIterator<Trace.Entry> entries) {
+        if (!entries.hasNext() && !entries.isOverwritten()) {
             return null;
         }
-        StringBuilder sb = new StringBuilder();
-        JsonGenerator jg = jsonFactory.createGenerator(CharStreams.asWriter(sb));
-        try {
-            writeEntries(jg, entries);
-        } finally {
-            jg.close();
-        }
-        return sb.toString();
+        return new EntriesChunkSource(entries, null);
     }
 
     private static @Nullable String sharedQueryTextsToJson(
@@ -315,29 +304,27 @@ class TraceCommonService {
         return sb.toString();
     }
 
-    private static void writeEntries(JsonGenerator jg, List<Trace.Entry> entries)
+    // writes the next entry, leaving the json object (and its childEntries array) open if the
+    // entry after it is a child entry, or closing any open ancestors if the entry after it is at a
+    // shallower depth
+    private static void writeNextEntry(JsonGenerator jg, PeekingIterator<Trace.Entry> i)
             throws IOException {
-        jg.writeStartArray();
-        PeekingIterator<Trace.Entry> i = Iterators.peekingIterator(entries.iterator());
-        while (i.hasNext()) {
-            Trace.Entry entry = i.next();
-            int depth = entry.getDepth();
-            jg.writeStartObject();
-            writeJson(entry, jg);
-            int nextDepth = i.hasNext() ? i.peek().getDepth() : 0;
-            if (nextDepth > depth) {
-                jg.writeArrayFieldStart("childEntries");
-            } else if (nextDepth < depth) {
-                jg.writeEndObject();
-                for (int j = depth; j > nextDepth; j--) {
-                    jg.writeEndArray();
-                    jg.writeEndObject();
-                }
-            } else {
+        Trace.Entry entry = i.next();
+        int depth = entry.getDepth();
+        jg.writeStartObject();
+        writeJson(entry, jg);
+        int nextDepth = i.hasNext() ? i.peek().getDepth() : 0;
+        if (nextDepth > depth) {
+            jg.writeArrayFieldStart("childEntries");
+        } else if (nextDepth < depth) {
+            jg.writeEndObject();
+            for (int j = depth; j > nextDepth; j--) {
+                jg.writeEndArray();
                 jg.writeEndObject();
             }
+        } else {
+            jg.writeEndObject();
         }
-        jg.writeEndArray();
     }
 
     private static void writeSharedQueryTexts(JsonGenerator jg,
@@ -456,6 +443,10 @@ class TraceCommonService {
             if (entryLimitExceeded) {
                 jg.writeBooleanField("entryLimitExceeded", entryLimitExceeded);
             }
+            boolean entriesPartiallyCaptured = header.getEntriesPartiallyCaptured();
+            if (entriesPartiallyCaptured) {
+                jg.writeBooleanField("entriesPartiallyCaptured", entriesPartiallyCaptured);
+            }
             jg.writeNumberField("mainThreadProfileSampleCount",
                     header.getMainThreadProfileSampleCount());
             boolean mainThreadProfileSampleLimitExceeded =
@@ -656,13 +647,108 @@ class TraceCommonService {
         }
     }
 
+    // the entries iterator can only be consumed once, so the copier can only be retrieved once
+    private static class EntriesChunkSource extends ChunkSource {
+
+        private final CloseableIterator<Trace.Entry> entries;
+        // when non-null, the entries array is wrapped in an object along with the shared query
+        // texts array
+        private final @Nullable List<Trace.SharedQueryText> sharedQueryTexts;
+
+        private EntriesChunkSource(CloseableIterator<Trace.Entry> entries,
+                @Nullable List<Trace.SharedQueryText> sharedQueryTexts) {
+            this.entries = entries;
+            this.sharedQueryTexts = sharedQueryTexts;
+        }
+
+        @Override
+        public ChunkCopier getCopier(Writer writer) throws IOException {
+            return new EntriesChunkCopier(jsonFactory.createGenerator(writer), entries,
+                    sharedQueryTexts);
+        }
+    }
+
+    private static class EntriesChunkCopier implements ChunkCopier {
+
+        private final JsonGenerator jg;
+        private final CloseableIterator<Trace.Entry> entries;
+        private final PeekingIterator<Trace.Entry> i;
+        private final @Nullable List<Trace.SharedQueryText> sharedQueryTexts;
+
+        private boolean started;
+        private boolean finished;
+
+        private EntriesChunkCopier(JsonGenerator jg, CloseableIterator<Trace.Entry> entries,
+                @Nullable List<Trace.SharedQueryText> sharedQueryTexts) {
+            this.jg = jg;
+            this.entries = entries;
+            i = Iterators.peekingIterator(entries);
+            this.sharedQueryTexts = sharedQueryTexts;
+        }
+
+        @Override
+        public boolean copyNext() throws IOException {
+            if (finished) {
+                return false;
+            }
+            if (!started) {
+                if (sharedQueryTexts != null) {
+                    jg.writeStartObject();
+                    jg.writeFieldName("entries");
+                }
+                jg.writeStartArray();
+                started = true;
+            }
+            // if the storage has been overwritten since the last chunk, this ends the entries
+            // iterator early (after writing any entry that was already read, which closes any
+            // open child entries arrays)
+            entries.isOverwritten();
+            for (int count = 0; count < ENTRIES_PER_CHUNK && i.hasNext(); count++) {
+                writeNextEntry(jg, i);
+            }
+            if (!i.hasNext()) {
+                boolean overwritten = entries.isOverwritten();
+                if (overwritten && sharedQueryTexts == null) {
+                    // the export has no enclosing object to report this in
+                    jg.writeStartObject();
+                    writeJson(Trace.Entry.newBuilder()
+                            .setMessage("[the remaining trace entries have expired]")
+                            .build(), jg);
+                    jg.writeEndObject();
+                }
+                jg.writeEndArray();
+                if (sharedQueryTexts != null) {
+                    if (overwritten) {
+                        // the ui ignores the partial entries array in this case, same as if the
+                        // entries had already expired before the request
+                        jg.writeBooleanField("overwritten", true);
+                    } else {
+                        jg.writeFieldName("sharedQueryTexts");
+                        writeSharedQueryTexts(jg, sharedQueryTexts);
+                    }
+                    jg.writeEndObject();
+                }
+                finished = true;
+                entries.close();
+            }
+            // flush (but don't close) so the underlying writer receives this chunk
+            jg.flush();
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            entries.close();
+        }
+    }
+
     @Value.Immutable
     @Styles.AllParameters
     interface TraceExport {
         String fileName();
         String headerJson();
         @Nullable
-        String entriesJson();
+        ChunkSource entriesJson();
         @Nullable
         String sharedQueryTextsJson();
         @Nullable
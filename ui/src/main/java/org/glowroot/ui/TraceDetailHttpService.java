@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2017 the original author or authors.
+ * Copyright 2011-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -82,14 +82,10 @@ class TraceDetailHttpService implements HttpService {
     private @Nullable ChunkSource getDetailChunkSource(String traceComponent, String agentRollupId,
             String agentId, String traceId, boolean checkLiveTraces) throws Exception {
         if (traceComponent.equals("entries")) {
-            String entriesJson = traceCommonService.getEntriesJson(agentRollupId, agentId, traceId,
+            // this returns null when trace was found but the trace had no entries
+            // caller should check trace.entry_count
+            return traceCommonService.getEntries(agentRollupId, agentId, traceId,
                     checkLiveTraces);
-            if (entriesJson == null) {
-                // this includes trace was found but the trace had no entries
-                // caller should check trace.entry_count
-                return null;
-            }
-            return ChunkSource.wrap(entriesJson);
         }
         if (traceComponent.equals("main-thread-profile")) {
             String profileJson = traceCommonService.getMainThreadProfileJson(agentRollupId, agentId,
@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2017 the original author or authors.
+ * Copyright 2011-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -140,9 +140,9 @@ class TraceExportHttpService implements HttpService {
             } else if (match.equals(entriesPlaceholder)) {
                 chunkSources
                         .add(ChunkSource.wrap("<script type=\"text/json\" id=\"entriesJson\">"));
-                String entriesJson = traceExport.entriesJson();
+                ChunkSource entriesJson = traceExport.entriesJson();
                 if (entriesJson != null) {
-                    chunkSources.add(ChunkSource.wrap(entriesJson));
+                    chunkSources.add(entriesJson);
                 }
                 chunkSources.add(ChunkSource.wrap("</script>"));
             } else if (match.equals(sharedQueryTextsPlaceholder)) {
@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2017 the original author or authors.
+ * Copyright 2011-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -109,7 +109,7 @@ class TransactionJsonService {
         JsonGenerator jg = mapper.getFactory().createGenerator(CharStreams.asWriter(sb));
         try {
             jg.writeStartObject();
-            jg.writeObjectField("dataSeries", dataSeriesList);
+            DataSeries.writeDataSeries(jg, dataSeriesList, request.compact());
             jg.writeObjectField("transactionCounts", transactionCounts);
             jg.writeObjectField("mergedAggregate", mergedAggregate);
             jg.writeEndObject();
@@ -135,7 +135,7 @@ class TransactionJsonService {
         JsonGenerator jg = mapper.getFactory().createGenerator(CharStreams.asWriter(sb));
         try {
             jg.writeStartObject();
-            jg.writeObjectField("dataSeries", percentileData.dataSeriesList());
+            DataSeries.writeDataSeries(jg, percentileData.dataSeriesList(), request.compact());
             jg.writeObjectField("transactionCounts", transactionCounts);
             jg.writeObjectField("mergedAggregate", percentileData.mergedAggregate());
             jg.writeEndObject();
@@ -168,7 +168,7 @@ class TransactionJsonService {
         JsonGenerator jg = mapper.getFactory().createGenerator(CharStreams.asWriter(sb));
         try {
             jg.writeStartObject();
-            jg.writeObjectField("dataSeries", dataSeriesList);
+            DataSeries.writeDataSeries(jg, dataSeriesList, request.compact());
             jg.writeNumberField("transactionCount", transactionCount);
             jg.writeNumberField("transactionsPerMin",
                     60000.0 * transactionCount / (request.to() - request.from()));
@@ -702,12 +702,23 @@ class TransactionJsonService {
     }
 
     @Value.Immutable
-    interface TransactionDataRequest extends RequestBase {}
+    abstract static class TransactionDataRequest implements RequestBase {
+        // compact data series format (see DataSeries.writeDataSeries())
+        @Value.Default
+        boolean compact() {
+            return false;
+        }
+    }
 
     @Value.Immutable
-    interface TransactionPercentileRequest extends RequestBase {
+    abstract static class TransactionPercentileRequest implements RequestBase {
         // singular because this is used in query string
-        ImmutableList<Double> percentile();
+        abstract ImmutableList<Double> percentile();
+        // compact data series format (see DataSeries.writeDataSeries())
+        @Value.Default
+        boolean compact() {
+            return false;
+        }
     }
 
     @Value.Immutable
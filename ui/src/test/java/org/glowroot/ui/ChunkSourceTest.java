@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2016 the original author or authors.
+ * Copyright 2015-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -106,6 +106,9 @@ public class ChunkSourceTest {
                 public boolean copyNext() throws IOException {
                     return false;
                 }
+
+                @Override
+                public void close() {}
             };
         }
     }
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.ui;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.CharStreams;
+import org.junit.Test;
+
+import org.glowroot.common.util.ObjectMappers;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DataSeriesTest {
+
+    private static final ObjectMapper mapper = ObjectMappers.create();
+
+    @Test
+    public void shouldEncodeCompactData() {
+        // given
+        DataSeries dataSeries = new DataSeries("abc");
+        dataSeries.add(60000, 1.5);
+        dataSeries.add(120000, 2.5);
+        dataSeries.addNull();
+        dataSeries.add(300000, 0);
+
+        // when
+        byte[] compactData = dataSeries.toCompactData();
+
+        // then
+        ByteBuffer buffer = ByteBuffer.wrap(compactData).order(ByteOrder.LITTLE_ENDIAN);
+        assertThat(buffer.getInt()).isEqualTo(4);
+        assertThat(buffer.getInt()).isEqualTo(0);
+        assertThat(buffer.getDouble()).isEqualTo(60000);
+        assertThat(buffer.getDouble()).isEqualTo(1.5);
+        assertThat(buffer.getDouble()).isEqualTo(2.5);
+        assertThat(buffer.getDouble()).isNaN();
+        assertThat(buffer.getDouble()).isEqualTo(0);
+        assertThat(buffer.getInt()).isEqualTo(0);
+        assertThat(buffer.getInt()).isEqualTo(60000);
+        assertThat(buffer.getInt()).isEqualTo(0);
+        assertThat(buffer.getInt()).isEqualTo(180000);
+        assertThat(buffer.hasRemaining()).isFalse();
+    }
+
+    @Test
+    public void shouldFallBackWhenDeltaTooLarge() throws Exception {
+        // given
+        DataSeries dataSeries = new DataSeries("abc");
+        dataSeries.add(0, 1);
+        dataSeries.add(Integer.MAX_VALUE + 1L, 2);
+
+        // when
+        JsonNode node = write(dataSeries, true);
+
+        // then
+        assertThat(dataSeries.toCompactData()).isNull();
+        assertThat(node.get(0).get("compactData")).isNull();
+        assertThat(node.get(0).get("data")).hasSize(2);
+    }
+
+    @Test
+    public void shouldWriteCompactOnlyWhenRequested() throws Exception {
+        // given
+        DataSeries dataSeries = new DataSeries("abc");
+        dataSeries.add(60000, 1.5);
+        dataSeries.setOverall(1.5);
+
+        // when
+        JsonNode node = write(dataSeries, false);
+        JsonNode compactNode = write(dataSeries, true);
+
+        // then
+        assertThat(node.get(0).get("data")).hasSize(1);
+        assertThat(compactNode.get(0).get("name").asText()).isEqualTo("abc");
+        assertThat(compactNode.get(0).get("overall").asDouble()).isEqualTo(1.5);
+        assertThat(compactNode.get(0).get("data")).isNull();
+        assertThat(BaseEncoding.base64().decode(compactNode.get(0).get("compactData").asText()))
+                .isEqualTo(dataSeries.toCompactData());
+    }
+
+    private static JsonNode write(DataSeries dataSeries, boolean compact) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        JsonGenerator jg = mapper.getFactory().createGenerator(CharStreams.asWriter(sb));
+        try {
+            jg.writeStartObject();
+            DataSeries.writeDataSeries(jg, ImmutableList.of(dataSeries), compact);
+            jg.writeEndObject();
+        } finally {
+            jg.close();
+        }
+        return mapper.readTree(sb.toString()).get("dataSeries");
+    }
+}
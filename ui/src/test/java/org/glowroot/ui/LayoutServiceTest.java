@@ -0,0 +1,142 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.ui;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.common.config.ImmutableCentralStorageConfig;
+import org.glowroot.common.config.ImmutableLdapConfig;
+import org.glowroot.common.config.ImmutableRoleConfig;
+import org.glowroot.common.config.RoleConfig;
+import org.glowroot.common.repo.AgentRollupRepository;
+import org.glowroot.common.repo.AgentRollupRepository.AgentRollup;
+import org.glowroot.common.repo.ConfigRepository;
+import org.glowroot.common.repo.ImmutableAgentRollup;
+import org.glowroot.common.repo.TraceAttributeNameRepository;
+import org.glowroot.common.repo.TransactionTypeRepository;
+import org.glowroot.ui.HttpSessionManager.Authentication;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.UiConfig;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class LayoutServiceTest {
+
+    private ConfigRepository configRepository;
+    private AgentRollupRepository agentRollupRepository;
+    private LayoutService layoutService;
+    private Authentication authentication;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        configRepository = mock(ConfigRepository.class);
+        agentRollupRepository = mock(AgentRollupRepository.class);
+        TransactionTypeRepository transactionTypeRepository =
+                mock(TransactionTypeRepository.class);
+        TraceAttributeNameRepository traceAttributeNameRepository =
+                mock(TraceAttributeNameRepository.class);
+        List<AgentRollup> agentRollups = ImmutableList.<AgentRollup>of(
+                ImmutableAgentRollup.builder()
+                        .id("a")
+                        .display("A")
+                        .agent(true)
+                        .build());
+        List<RoleConfig> roleConfigs = ImmutableList.<RoleConfig>of(ImmutableRoleConfig.builder()
+                .central(true)
+                .name("r")
+                .addPermissions("agent:*:transaction")
+                .build());
+        Map<String, List<String>> transactionTypes =
+                ImmutableMap.<String, List<String>>of("a", ImmutableList.of("Web"));
+        Map<String, Map<String, List<String>>> traceAttributeNames = ImmutableMap.of();
+        when(agentRollupRepository.readAgentRollupTree()).thenReturn(agentRollups);
+        when(transactionTypeRepository.read()).thenReturn(transactionTypes);
+        when(traceAttributeNameRepository.read()).thenReturn(traceAttributeNames);
+        when(configRepository.getRoleConfigs()).thenReturn(roleConfigs);
+        when(configRepository.getLdapConfig()).thenReturn(ImmutableLdapConfig.builder().build());
+        when(configRepository.getStorageConfig())
+                .thenReturn(ImmutableCentralStorageConfig.builder().build());
+        when(configRepository.getUiConfig("a")).thenReturn(createUiConfig("Web"));
+        layoutService = new LayoutService(true, false, "0.0.0", configRepository,
+                agentRollupRepository, transactionTypeRepository, traceAttributeNameRepository);
+        authentication = ImmutableAuthentication.builder()
+                .central(true)
+                .offline(false)
+                .anonymous(false)
+                .ldap(false)
+                .caseAmbiguousUsername("u")
+                .roles(ImmutableSet.of("r"))
+                .configRepository(configRepository)
+                .build();
+    }
+
+    @Test
+    public void shouldReuseLayoutWhileInputsAreUnchanged() throws Exception {
+        // given
+        String version1 = layoutService.getLayoutVersion(authentication);
+        clearInvocations(configRepository);
+        // when
+        String version2 = layoutService.getLayoutVersion(authentication);
+        // then
+        assertThat(version2).isEqualTo(version1);
+        // role configs are only read to validate the cached layout, and not for every permission
+        // check that is needed to build the layout
+        verify(configRepository).getRoleConfigs();
+    }
+
+    @Test
+    public void shouldRebuildLayoutWhenUiConfigChanges() throws Exception {
+        // given
+        String version1 = layoutService.getLayoutVersion(authentication);
+        // when
+        when(configRepository.getUiConfig("a")).thenReturn(createUiConfig("Background"));
+        String version2 = layoutService.getLayoutVersion(authentication);
+        // then
+        assertThat(version2).isNotEqualTo(version1);
+    }
+
+    @Test
+    public void shouldRebuildLayoutWhenAgentRollupsChange() throws Exception {
+        // given
+        String version1 = layoutService.getLayoutVersion(authentication);
+        // when
+        when(agentRollupRepository.readAgentRollupTree()).thenReturn(
+                ImmutableList.<AgentRollup>of(ImmutableAgentRollup.builder()
+                        .id("a")
+                        .display("A renamed")
+                        .agent(true)
+                        .build()));
+        String version2 = layoutService.getLayoutVersion(authentication);
+        // then
+        assertThat(version2).isNotEqualTo(version1);
+    }
+
+    private static UiConfig createUiConfig(String defaultDisplayedTransactionType) {
+        return UiConfig.newBuilder()
+                .setDefaultDisplayedTransactionType(defaultDisplayedTransactionType)
+                .build();
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2016 the original author or authors.
+ * Copyright 2016-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,17 +15,32 @@
  */
 package org.glowroot.ui;
 
+import java.io.CharArrayWriter;
 import java.util.List;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import org.junit.Test;
 
+import org.glowroot.common.live.LiveTraceRepository;
+import org.glowroot.common.repo.AgentRollupRepository;
+import org.glowroot.common.repo.ImmutableStoredEntries;
+import org.glowroot.common.repo.TraceRepository;
+import org.glowroot.common.util.CloseableIterator;
+import org.glowroot.common.util.ObjectMappers;
+import org.glowroot.ui.ChunkSource.ChunkCopier;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 public class TraceCommonServiceTest {
 
+    private static final ObjectMapper mapper = ObjectMappers.create();
+
     @Test
     public void test() throws Exception {
         // given
@@ -33,10 +48,151 @@ public class TraceCommonServiceTest {
         entries.add(Trace.Entry.newBuilder().setDepth(0).build());
         entries.add(Trace.Entry.newBuilder().setDepth(1).build());
         // when
-        String json = TraceCommonService.entriesToJson(entries);
+        CharArrayWriter writer = new CharArrayWriter();
+        ChunkCopier copier = TraceCommonService
+                .entriesToChunkSource(CloseableIterator.of(entries.iterator())).getCopier(writer);
+        int chunkCount = 0;
+        while (copier.copyNext()) {
+            chunkCount++;
+        }
+        // then
+        assertThat(chunkCount).isEqualTo(1);
+        assertThat(writer.toString())
+                .isEqualTo("[{\"startOffsetNanos\":0,\"durationNanos\":0,\"message\":\"\","
+                        + "\"childEntries\":[{\"startOffsetNanos\":0,\"durationNanos\":0,"
+                        + "\"message\":\"\"}]}]");
+    }
+
+    @Test
+    public void shouldStreamEntriesInChunks() throws Exception {
+        // given
+        List<Trace.Entry> entries = Lists.newArrayList();
+        for (int i = 0; i < 1000; i++) {
+            entries.add(Trace.Entry.newBuilder()
+                    .setDepth(i % 7)
+                    .setMessage("entry " + i)
+                    .build());
+        }
+        // when
+        CharArrayWriter writer = new CharArrayWriter();
+        ChunkCopier copier = TraceCommonService
+                .entriesToChunkSource(CloseableIterator.of(entries.iterator())).getCopier(writer);
+        int chunkCount = 0;
+        while (copier.copyNext()) {
+            chunkCount++;
+        }
+        // then
+        assertThat(chunkCount).isEqualTo(10);
+        List<String> messages = Lists.newArrayList();
+        collectMessages(mapper.readTree(writer.toString()), 0, messages);
+        assertThat(messages).hasSize(1000);
+        for (int i = 0; i < 1000; i++) {
+            assertThat(messages.get(i)).isEqualTo((i % 7) + ":entry " + i);
+        }
+    }
+
+    @Test
+    public void shouldReportEntriesOverwrittenWhileStreaming() throws Exception {
+        // given
+        OverwrittenAfterFirstChunkIterator entries = new OverwrittenAfterFirstChunkIterator();
+        TraceRepository traceRepository = mock(TraceRepository.class);
+        when(traceRepository.readEntries("", "", "abc")).thenReturn(ImmutableStoredEntries
+                .of(entries, ImmutableList.<Trace.SharedQueryText>of()));
+        TraceCommonService traceCommonService = new TraceCommonService(traceRepository,
+                mock(LiveTraceRepository.class), mock(AgentRollupRepository.class));
+        // when
+        CharArrayWriter writer = new CharArrayWriter();
+        ChunkCopier copier = traceCommonService.getEntries("", "", "abc", false).getCopier(writer);
+        while (copier.copyNext()) {
+        }
+        // then
+        JsonNode rootNode = mapper.readTree(writer.toString());
+        assertThat(rootNode.get("overwritten").asBoolean()).isTrue();
+        assertThat(rootNode.get("sharedQueryTexts")).isNull();
+        // the entry that was already read before the overwrite was detected is still written
+        List<String> messages = Lists.newArrayList();
+        collectMessages(rootNode.get("entries"), 0, messages);
+        assertThat(messages).hasSize(101);
+        assertThat(entries.closed).isTrue();
+    }
+
+    @Test
+    public void shouldReportEntriesOverwrittenWhileStreamingExport() throws Exception {
+        // given
+        OverwrittenAfterFirstChunkIterator entries = new OverwrittenAfterFirstChunkIterator();
+        // when
+        CharArrayWriter writer = new CharArrayWriter();
+        ChunkCopier copier = TraceCommonService.entriesToChunkSource(entries).getCopier(writer);
+        while (copier.copyNext()) {
+        }
+        // then
+        List<String> messages = Lists.newArrayList();
+        collectMessages(mapper.readTree(writer.toString()), 0, messages);
+        assertThat(messages).hasSize(102);
+        assertThat(messages.get(101)).isEqualTo("0:[the remaining trace entries have expired]");
+    }
+
+    @Test
+    public void shouldCloseEntriesWhenClosedBeforeComplete() throws Exception {
+        // given
+        OverwrittenAfterFirstChunkIterator entries = new OverwrittenAfterFirstChunkIterator();
+        ChunkCopier copier =
+                TraceCommonService.entriesToChunkSource(entries).getCopier(new CharArrayWriter());
+        copier.copyNext();
+        // when
+        copier.close();
         // then
-        assertThat(json).isEqualTo("[{\"startOffsetNanos\":0,\"durationNanos\":0,\"message\":\"\","
-                + "\"childEntries\":[{\"startOffsetNanos\":0,\"durationNanos\":0,\"message\":\"\"}]"
-                + "}]");
+        assertThat(entries.closed).isTrue();
+    }
+
+    @Test
+    public void shouldReturnNullForNoEntries() {
+        List<Trace.Entry> entries = Lists.newArrayList();
+        ChunkSource chunkSource =
+                TraceCommonService.entriesToChunkSource(CloseableIterator.of(entries.iterator()));
+        assertThat(chunkSource).isNull();
+    }
+
+    // storage backed entries that are overwritten once the first chunk has been read
+    private static class OverwrittenAfterFirstChunkIterator
+            extends CloseableIterator<Trace.Entry> {
+
+        private int count;
+        private boolean closed;
+
+        @Override
+        protected Trace.Entry computeNext() {
+            if (closed) {
+                return endOfData();
+            }
+            return Trace.Entry.newBuilder()
+                    .setDepth(count % 3)
+                    .setMessage("entry " + count++)
+                    .build();
+        }
+
+        @Override
+        public boolean isOverwritten() {
+            if (count >= 100) {
+                closed = true;
+            }
+            return closed;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    // collects "<depth>:<message>" for each entry in the nested json, in document order
+    private static void collectMessages(JsonNode entriesNode, int depth, List<String> messages) {
+        for (JsonNode entryNode : entriesNode) {
+            messages.add(depth + ":" + entryNode.get("message").asText());
+            JsonNode childEntriesNode = entryNode.get("childEntries");
+            if (childEntriesNode != null) {
+                collectMessages(childEntriesNode, depth + 1, messages);
+            }
+        }
     }
 }
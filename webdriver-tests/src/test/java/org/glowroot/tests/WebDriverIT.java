@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2017 the original author or authors.
+ * Copyright 2015-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -214,7 +214,8 @@ public abstract class WebDriverIT {
             if (name.equals("java.lang:type=Memory")
                     || name.equals("java.lang:type=GarbageCollector,name=*")
                     || name.equals("java.lang:type=MemoryPool,name=*")
-                    || name.equals("java.lang:type=OperatingSystem")) {
+                    || name.equals("java.lang:type=OperatingSystem")
+                    || name.equals("org.glowroot:type=AgentOverhead")) {
                 continue;
             }
             String version = gauge.get("config").get("version").asText();